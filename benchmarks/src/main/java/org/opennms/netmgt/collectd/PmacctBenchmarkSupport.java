@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.opennms.netmgt.config.PmacctCollectionConfigFactory;
+
+/**
+ * <p>Fixtures shared by the pmacct benchmarks: recorded pmacct output, a
+ * fake pmacct client answering from it, generated configurations and
+ * collection agents.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public final class PmacctBenchmarkSupport {
+
+    /** Recorded output of <code>pmacct -s</code> for a <code>dst_host</code> table. */
+    public static final String TABLE = "pmacct-table.txt";
+
+    /** Recorded output of <code>pmacct -N</code> for one host. */
+    public static final String COUNTER = "pmacct-counter.txt";
+
+    /** Address of the benchmarked agent, present in the recorded table. */
+    public static final String AGENT_ADDRESS = "10.0.0.1";
+
+    private PmacctBenchmarkSupport() {
+    }
+
+    /**
+     * @param name the name of a resource of this package
+     * @return the content of the resource
+     * @throws java.io.IOException if any.
+     */
+    public static byte[] getResource(String name) throws IOException {
+        InputStream in = PmacctBenchmarkSupport.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("missing benchmark resource " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IOUtils.copy(in, out);
+            return out.toByteArray();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Generate the output of <code>pmacct -s</code> for a <code>dst_host</code>
+     * table of <code>rows</code> entries over 10.0.0.0/14, so that hosts repeat.
+     *
+     * @param rows the number of table entries
+     * @return the formatted table
+     */
+    public static byte[] getGeneratedTable(int rows) {
+        StringBuilder table = new StringBuilder(rows * 48);
+        table.append("DST_IP           PACKETS               BYTES\n");
+        Random random = new Random(rows);
+        for (int i = 0; i < rows; i++) {
+            table.append("10.").append(random.nextInt(4)).append('.').append(random.nextInt(256)).append('.')
+                .append(random.nextInt(256)).append("       ").append(1 + random.nextInt(1000))
+                .append("       ").append(random.nextInt(1500000)).append('\n');
+        }
+        table.append('\n').append("For a total of: ").append(rows).append(" entries\n");
+        return table.toString().getBytes();
+    }
+
+    /**
+     * Install the fake pmacct client and the recorded output it serves in
+     * a new temporary directory.
+     *
+     * @return the fake pmacct executable
+     * @throws java.io.IOException if any.
+     */
+    public static File installFakePmacct() throws IOException {
+        File dir = File.createTempFile("pmacct-bench", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+        File table = write(new File(dir, TABLE), getResource(TABLE));
+        File counter = write(new File(dir, COUNTER), getResource(COUNTER));
+        String script = new String(getResource("fake-pmacct.sh"), "UTF-8")
+            .replace("@TABLE@", table.getAbsolutePath())
+            .replace("@COUNTER@", counter.getAbsolutePath());
+        File pmacct = write(new File(dir, "pmacct"), script.getBytes("UTF-8"));
+        if (!pmacct.setExecutable(true)) {
+            throw new IOException("unable to make " + pmacct + " executable");
+        }
+        return pmacct;
+    }
+
+    private static File write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Build a configuration of <code>collections</code> collections named
+     * <code>pmacct-&lt;mode&gt;-&lt;i&gt;</code>, each with an inbound and
+     * an outbound attribute.
+     *
+     * @param pmacct the pmacct executable
+     * @param mode the mode of the collections
+     * @param collections the number of collections
+     * @return the configuration document
+     */
+    public static String getConfig(File pmacct, String mode, int collections) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<pmacct-datacollection-config rrdRepository=\"")
+            .append(new File(pmacct.getParentFile(), "rrd").getAbsolutePath())
+            .append("\" pmacctPath=\"").append(pmacct.getAbsolutePath()).append("\">\n");
+        for (int i = 0; i < collections; i++) {
+            xml.append("  <pmacct-collection name=\"").append(getCollectionName(mode, i))
+                .append("\" mode=\"").append(mode).append("\">\n");
+            xml.append("    <rrd step=\"300\">\n");
+            xml.append("      <rra>RRA:AVERAGE:0.5:1:2016</rra>\n");
+            xml.append("      <rra>RRA:MAX:0.5:288:366</rra>\n");
+            xml.append("    </rrd>\n");
+            xml.append("    <attributes>\n");
+            xml.append("      <attrib alias=\"pmacctInbound\" type=\"gauge\" pmacct-options=\"-c dst_host -N %h -p ")
+                .append(pmacct.getParent()).append("/in.pipe\"/>\n");
+            xml.append("      <attrib alias=\"pmacctOutbound\" type=\"gauge\" pmacct-options=\"-c dst_host -N %h -p ")
+                .append(pmacct.getParent()).append("/out.pipe\"/>\n");
+            xml.append("    </attributes>\n");
+            xml.append("  </pmacct-collection>\n");
+        }
+        xml.append("</pmacct-datacollection-config>\n");
+        return xml.toString();
+    }
+
+    /**
+     * @param mode the mode of the collection
+     * @param index the index of the collection in the configuration
+     * @return the name of the collection
+     */
+    public static String getCollectionName(String mode, int index) {
+        return "pmacct-" + mode + "-" + index;
+    }
+
+    /**
+     * Make <code>xml</code> the configuration returned by
+     * {@link org.opennms.netmgt.config.PmacctCollectionConfigFactory#getInstance()}.
+     *
+     * @param xml a configuration document
+     * @throws java.lang.Exception if any.
+     */
+    public static void loadConfig(String xml) throws Exception {
+        PmacctCollectionConfigFactory.setInstance(new PmacctCollectionConfigFactory(new ByteArrayInputStream(xml.getBytes("UTF-8"))));
+    }
+
+    /**
+     * @param collection the collection to collect
+     * @return the service parameters of a pmacct collection
+     */
+    public static Map<String, Object> getParameters(String collection) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("collection", collection);
+        return parameters;
+    }
+
+    /**
+     * A collection agent answering only what the pmacct collector asks.
+     *
+     * @param nodeId the node of the agent
+     * @param address the address of the agent
+     * @return a {@link org.opennms.netmgt.collectd.CollectionAgent} object.
+     * @throws java.io.IOException if any.
+     */
+    public static CollectionAgent getAgent(final int nodeId, final String address) throws IOException {
+        final InetAddress inetAddress = InetAddress.getByName(address);
+        return (CollectionAgent) Proxy.newProxyInstance(CollectionAgent.class.getClassLoader(),
+                                                        new Class<?>[] { CollectionAgent.class },
+                                                        new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getHostAddress".equals(name) || "toString".equals(name)) {
+                    return address;
+                } else if ("getNodeId".equals(name)) {
+                    return Integer.valueOf(nodeId);
+                } else if ("getAddress".equals(name) || "getInetAddress".equals(name)) {
+                    return inetAddress;
+                } else if ("hashCode".equals(name)) {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                } else if ("equals".equals(name)) {
+                    return Boolean.valueOf(proxy == args[0]);
+                } else if (method.getReturnType() == Boolean.TYPE) {
+                    return Boolean.FALSE;
+                } else if (method.getReturnType() == Integer.TYPE) {
+                    return Integer.valueOf(0);
+                } else if (method.getReturnType() == Long.TYPE) {
+                    return Long.valueOf(0);
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.config.collector.AttributeGroup;
+import org.opennms.netmgt.config.collector.CollectionAttribute;
+import org.opennms.netmgt.config.collector.CollectionResource;
+import org.opennms.netmgt.config.collector.CollectionSet;
+import org.opennms.netmgt.config.collector.CollectionSetVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>A full collection cycle against the fake pmacct client:
+ * {@link org.opennms.netmgt.collectd.PmacctCollector#collect(CollectionAgent, org.opennms.netmgt.model.events.EventProxy, Map)}
+ * followed by a visit of the collection set reading every value, as the
+ * persister does.</p>
+ *
+ * <p>In <code>exec</code> mode every cycle runs pmacct once per attribute;
+ * in <code>snapshot</code> mode the table is dumped once per step and the
+ * cycle measures the lookup in the cached snapshot.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PmacctCollectBenchmark {
+
+    @Param({ "exec", "snapshot" })
+    private String mode;
+
+    private PmacctCollector m_collector;
+
+    private CollectionAgent m_agent;
+
+    private Map<String, Object> m_parameters;
+
+    /**
+     * <p>setUp</p>
+     *
+     * @throws java.lang.Exception if any.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        File pmacct = PmacctBenchmarkSupport.installFakePmacct();
+        PmacctBenchmarkSupport.loadConfig(PmacctBenchmarkSupport.getConfig(pmacct, mode, 1));
+        m_collector = new PmacctCollector();
+        m_collector.initPmacctClients();
+        m_agent = PmacctBenchmarkSupport.getAgent(1, PmacctBenchmarkSupport.AGENT_ADDRESS);
+        m_parameters = PmacctBenchmarkSupport.getParameters(PmacctBenchmarkSupport.getCollectionName(mode, 0));
+        m_collector.initialize(m_agent, m_parameters);
+    }
+
+    /**
+     * <p>tearDown</p>
+     */
+    @TearDown
+    public void tearDown() {
+        m_collector.release(m_agent);
+        m_collector.release();
+    }
+
+    /**
+     * <p>collectAndVisit</p>
+     *
+     * @param blackhole a {@link org.openjdk.jmh.infra.Blackhole} object.
+     * @return the collection status
+     */
+    @Benchmark
+    public int collectAndVisit(final Blackhole blackhole) {
+        CollectionSet collectionSet = m_collector.collect(m_agent, null, m_parameters);
+        collectionSet.visit(new CollectionSetVisitor() {
+            public void visitCollectionSet(CollectionSet set) {
+            }
+
+            public void visitResource(CollectionResource resource) {
+                blackhole.consume(resource.getInstance());
+            }
+
+            public void visitGroup(AttributeGroup group) {
+            }
+
+            public void visitAttribute(CollectionAttribute attribute) {
+                blackhole.consume(attribute.getNumericValue());
+            }
+
+            public void completeAttribute(CollectionAttribute attribute) {
+            }
+
+            public void completeGroup(AttributeGroup group) {
+            }
+
+            public void completeResource(CollectionResource resource) {
+            }
+
+            public void completeCollectionSet(CollectionSet set) {
+            }
+        });
+        return collectionSet.getStatus();
+    }
+}
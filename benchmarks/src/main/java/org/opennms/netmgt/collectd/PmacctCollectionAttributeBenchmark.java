@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.config.PmacctCollectionConfigFactory;
+import org.opennms.netmgt.config.PmacctCompiledAttribute;
+import org.opennms.netmgt.config.PmacctCompiledCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Formatting of collected values by
+ * <code>PmacctCollectionAttribute.getNumericValue()</code> and
+ * <code>getValueAsString()</code>, called for every attribute persisted,
+ * with the value updated in place as a collection does.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PmacctCollectionAttributeBenchmark {
+
+    private PmacctCollector.PmacctCollectionAttribute m_numeric;
+
+    private PmacctCollector.PmacctCollectionAttribute m_string;
+
+    private PmacctCollector.PmacctCollectionAttribute m_rate;
+
+    private long m_counter = 5823946137L;
+
+    /**
+     * <p>setUp</p>
+     *
+     * @throws java.lang.Exception if any.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        File pmacct = PmacctBenchmarkSupport.installFakePmacct();
+        PmacctBenchmarkSupport.loadConfig(PmacctBenchmarkSupport.getConfig(pmacct, "exec", 1));
+        PmacctCompiledCollection collection = PmacctCollectionConfigFactory.getInstance().getCompiledCollection(PmacctBenchmarkSupport.getCollectionName("exec", 0));
+        PmacctCompiledAttribute attrib = collection.getAttributes().get(0);
+
+        PmacctCollector collector = new PmacctCollector();
+        PmacctCollector.PmacctCollectionResource resource = collector.new PmacctCollectionResource(
+            PmacctBenchmarkSupport.getAgent(1, PmacctBenchmarkSupport.AGENT_ADDRESS), collection.getName(),
+            collection.getGroupType());
+        m_numeric = collector.new PmacctCollectionAttribute(resource, attrib, attrib.getAlias(), attrib.getType(),
+                                                            5823946137L);
+        m_string = collector.new PmacctCollectionAttribute(resource, attrib, attrib.getAlias(), attrib.getType(),
+                                                           "5823946137");
+        m_rate = collector.new PmacctCollectionAttribute(resource, attrib, attrib.getAlias() + "Rate",
+                                                         attrib.getType(), 19413.153790000001);
+    }
+
+    /**
+     * <p>numericValue</p>
+     *
+     * @return the value as written to the RRD
+     */
+    @Benchmark
+    public String numericValue() {
+        return m_numeric.getNumericValue();
+    }
+
+    /**
+     * <p>numericValueFromString</p>
+     *
+     * @return the value as written to the RRD
+     */
+    @Benchmark
+    public String numericValueFromString() {
+        return m_string.getNumericValue();
+    }
+
+    /**
+     * <p>valueAsString</p>
+     *
+     * @return the formatted value
+     */
+    @Benchmark
+    public String valueAsString() {
+        return m_numeric.getValueAsString();
+    }
+
+    /**
+     * <p>updatedNumericValue</p>
+     *
+     * @return the value as written to the RRD
+     */
+    @Benchmark
+    public String updatedNumericValue() {
+        return m_numeric.setLong(m_counter++).getNumericValue();
+    }
+
+    /**
+     * <p>updatedRateValue</p>
+     *
+     * @return the value as written to the RRD
+     */
+    @Benchmark
+    public String updatedRateValue() {
+        return m_rate.setDouble(m_counter++ / 300.0).getNumericValue();
+    }
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.config.PmacctCollectionConfigFactory;
+import org.opennms.netmgt.config.pmacctdatacollection.PmacctCollection;
+import org.opennms.netmgt.model.RrdRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Configuration lookups done on every collection:
+ * {@link org.opennms.netmgt.config.PmacctCollectionConfigFactory#getPmacctCollection(String)}
+ * for the last collection of the configuration, and the repository built
+ * for it when persisting.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PmacctConfigLookupBenchmark {
+
+    @Param({ "1", "10", "100" })
+    private int collections;
+
+    private String m_name;
+
+    /**
+     * <p>setUp</p>
+     *
+     * @throws java.lang.Exception if any.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        File pmacct = PmacctBenchmarkSupport.installFakePmacct();
+        PmacctBenchmarkSupport.loadConfig(PmacctBenchmarkSupport.getConfig(pmacct, "exec", collections));
+        m_name = PmacctBenchmarkSupport.getCollectionName("exec", collections - 1);
+    }
+
+    /**
+     * <p>getPmacctCollection</p>
+     *
+     * @return the looked up collection
+     */
+    @Benchmark
+    public PmacctCollection getPmacctCollection() {
+        return PmacctCollectionConfigFactory.getInstance().getPmacctCollection(m_name);
+    }
+
+    /**
+     * <p>getRrdRepository</p>
+     *
+     * @return the repository of the collection
+     */
+    @Benchmark
+    public RrdRepository getRrdRepository() {
+        return PmacctCollectionConfigFactory.getInstance().getRrdRepository(m_name);
+    }
+
+    /**
+     * <p>getPmacctPath</p>
+     *
+     * @return the pmacct executable
+     */
+    @Benchmark
+    public String getPmacctPath() {
+        return PmacctCollectionConfigFactory.getInstance().getPmacctPath();
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.collectd.pmacct.PmacctParallelTableParser;
+import org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Parsing of a generated one million entry <code>pmacct -s</code> dump,
+ * on the calling thread (<code>threads=1</code>) and in chunks on a pool of
+ * <code>threads</code> threads, as done in snapshot mode with
+ * <code>parse-threads</code>.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PmacctParallelParseBenchmark {
+
+    @Param({ "1000000" })
+    private int rows;
+
+    @Param({ "1", "2", "4", "8" })
+    private int threads;
+
+    private byte[] m_table;
+
+    private ExecutorService m_executor;
+
+    private PmacctParallelTableParser m_parser;
+
+    /**
+     * <p>setUp</p>
+     */
+    @Setup
+    public void setUp() {
+        m_table = PmacctBenchmarkSupport.getGeneratedTable(rows);
+        if (threads > 1) {
+            m_executor = Executors.newFixedThreadPool(threads);
+            m_parser = new PmacctParallelTableParser(m_executor, threads);
+        }
+    }
+
+    /**
+     * <p>tearDown</p>
+     */
+    @TearDown
+    public void tearDown() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+        }
+    }
+
+    /**
+     * <p>parse</p>
+     *
+     * @return the parsed table
+     * @throws java.io.IOException if any.
+     */
+    @Benchmark
+    public PmacctTableSnapshot parse() throws IOException {
+        if (m_parser == null) {
+            return PmacctTableSnapshot.parse(new ByteArrayInputStream(m_table), "dst_host", 0,
+                                             PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET);
+        }
+        return m_parser.parse(new ByteArrayInputStream(m_table), "dst_host", 0,
+                              PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, null);
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.collectd.pmacct.PmacctReplyParser;
+import org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Parsing of recorded pmacct replies, as done by
+ * <code>PmacctCollector.processResponse</code> for the exec mode
+ * (<code>pmacct -N</code>) and by the table modes (<code>pmacct -s</code>).</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PmacctReplyParserBenchmark {
+
+    private byte[] m_counterReply;
+
+    private byte[] m_tableReply;
+
+    private final PmacctReplyParser m_parser = new PmacctReplyParser();
+
+    /**
+     * <p>setUp</p>
+     *
+     * @throws java.io.IOException if any.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        m_counterReply = PmacctBenchmarkSupport.getResource(PmacctBenchmarkSupport.COUNTER);
+        m_tableReply = PmacctBenchmarkSupport.getResource(PmacctBenchmarkSupport.TABLE);
+    }
+
+    /**
+     * <p>counterReply</p>
+     *
+     * @param blackhole a {@link org.openjdk.jmh.infra.Blackhole} object.
+     * @return the number of counters parsed
+     * @throws java.io.IOException if any.
+     */
+    @Benchmark
+    public int counterReply(final Blackhole blackhole) throws IOException {
+        return m_parser.parseCounters(new ByteArrayInputStream(m_counterReply), new PmacctReplyParser.CounterHandler() {
+            public void counter(long value) {
+                blackhole.consume(value);
+            }
+        });
+    }
+
+    /**
+     * <p>tableReply</p>
+     *
+     * @return the parsed table
+     * @throws java.io.IOException if any.
+     */
+    @Benchmark
+    public PmacctTableSnapshot tableReply() throws IOException {
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder();
+        m_parser.parseTable(new ByteArrayInputStream(m_tableReply), "dst_host", builder);
+        return builder.build(0);
+    }
+}
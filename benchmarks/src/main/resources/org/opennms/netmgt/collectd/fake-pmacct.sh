@@ -0,0 +1,13 @@
+#!/bin/sh
+# Stand-in for the pmacct client used by the benchmarks: answers from
+# recorded output instead of talking to a pmacctd memory plugin.
+#   pmacct -s ...   prints the recorded table (snapshot mode)
+#   pmacct -e ...   clears nothing
+#   pmacct -N ...   prints the recorded counter (exec mode)
+for arg in "$@"; do
+	case "$arg" in
+		-s) exec cat '@TABLE@' ;;
+		-e) exit 0 ;;
+	esac
+done
+exec cat '@COUNTER@'
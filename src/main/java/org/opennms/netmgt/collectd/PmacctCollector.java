@@ -55,16 +55,33 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.sql.SQLException;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
@@ -72,8 +89,42 @@ import org.opennms.core.utils.ParameterMap;
 import org.opennms.core.utils.ThreadCategory;
 import org.opennms.core.utils.TimeKeeper;
 import org.opennms.netmgt.collectd.HttpCollector.HttpCollectionSet;
+import org.opennms.netmgt.collectd.pmacct.CounterDeltaTable;
+import org.opennms.netmgt.collectd.pmacct.HostAddress;
+import org.opennms.netmgt.collectd.pmacct.HostCounterTable;
+import org.opennms.netmgt.collectd.pmacct.HostFilter;
+import org.opennms.netmgt.collectd.pmacct.NetflowAggregator;
+import org.opennms.netmgt.collectd.pmacct.NetflowReceiver;
+import org.opennms.netmgt.collectd.pmacct.PmacctAgentRegistry;
+import org.opennms.netmgt.collectd.pmacct.PmacctAttributeMetrics;
+import org.opennms.netmgt.collectd.pmacct.PmacctBackoffTable;
+import org.opennms.netmgt.collectd.pmacct.PmacctBatchTableSource;
+import org.opennms.netmgt.collectd.pmacct.PmacctBillingStore;
+import org.opennms.netmgt.collectd.pmacct.PmacctExecTableSource;
+import org.opennms.netmgt.collectd.pmacct.PmacctHttpExporter;
+import org.opennms.netmgt.collectd.pmacct.PmacctIOException;
+import org.opennms.netmgt.collectd.pmacct.PmacctMeteredTableSource;
+import org.opennms.netmgt.collectd.pmacct.PmacctMetrics;
+import org.opennms.netmgt.collectd.pmacct.PmacctOptions;
+import org.opennms.netmgt.collectd.pmacct.PmacctParallelTableParser;
+import org.opennms.netmgt.collectd.pmacct.PmacctProcessExecutor;
+import org.opennms.netmgt.collectd.pmacct.PmacctReplyParser;
+import org.opennms.netmgt.collectd.pmacct.PmacctShardedTableSource;
+import org.opennms.netmgt.collectd.pmacct.PmacctSnapshotCache;
+import org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot;
+import org.opennms.netmgt.collectd.pmacct.PmacctTableSource;
+import org.opennms.netmgt.collectd.pmacct.PmacctTalkerTable;
+import org.opennms.netmgt.collectd.pmacct.PmacctValueFormat;
+import org.opennms.netmgt.collectd.pmacct.PrefixTrie;
+import org.opennms.netmgt.collectd.pmacct.RateSampleTable;
+import org.opennms.netmgt.collectd.pmacct.SpaceSavingSketch;
 import org.opennms.netmgt.config.DataSourceFactory;
 import org.opennms.netmgt.config.PmacctCollectionConfigFactory;
+import org.opennms.netmgt.config.PmacctCommandTemplate;
+import org.opennms.netmgt.config.PmacctCompiledAttribute;
+import org.opennms.netmgt.config.PmacctCompiledCollection;
+import org.opennms.netmgt.config.PmacctCompiledConfig;
+import org.opennms.netmgt.config.PmacctConfigWatcher;
 import org.opennms.netmgt.config.collector.AttributeDefinition;
 import org.opennms.netmgt.config.collector.AttributeGroup;
 import org.opennms.netmgt.config.collector.AttributeGroupType;
@@ -82,9 +133,9 @@ import org.opennms.netmgt.config.collector.CollectionAttributeType;
 import org.opennms.netmgt.config.collector.CollectionResource;
 import org.opennms.netmgt.config.collector.CollectionSet;
 import org.opennms.netmgt.config.collector.CollectionSetVisitor;
-import org.opennms.netmgt.config.collector.Persister;
 import org.opennms.netmgt.config.collector.ServiceParameters;
-import org.opennms.netmgt.config.pmacctdatacollection.Attrib;
+import org.opennms.netmgt.config.pmacctdatacollection.HttpListener;
+import org.opennms.netmgt.config.pmacctdatacollection.NetflowListener;
 import org.opennms.netmgt.config.pmacctdatacollection.PmacctCollection;
 import org.opennms.netmgt.model.RrdRepository;
 import org.opennms.netmgt.model.events.EventProxy;
@@ -98,9 +149,56 @@ import org.opennms.netmgt.model.events.EventProxy;
  */
 public class PmacctCollector implements ServiceCollector {
 
-    private NumberFormat parser = null;
+    /** Nodes that pipes had no entry for, or failed for, and when to read them again. */
+    private final PmacctBackoffTable m_backoff = new PmacctBackoffTable(1024, PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, 0, 0);
 
-    private NumberFormat rrdFormatter = null;
+    private final PmacctSnapshotCache m_snapshotCache = new PmacctSnapshotCache(m_backoff);
+
+    private final PmacctAgentRegistry m_agentRegistry = new PmacctAgentRegistry();
+
+    /** Recorded from the start, published as MBeans by {@link #initialize(Map)}. */
+    private final PmacctMetrics m_metrics = new PmacctMetrics();
+
+    private PmacctProcessExecutor m_executor;
+
+    private NetflowAggregator m_netflowAggregator;
+
+    private NetflowReceiver m_netflowReceiver;
+
+    private PmacctHttpExporter m_httpExporter;
+
+    private PmacctBillingStore m_billing;
+
+    private PmacctConfigWatcher m_configWatcher;
+
+    /** Runs the attributes of a collection concurrently. */
+    private ExecutorService m_attributeExecutor;
+
+    /** Reads the shards of the tables sharded across several pipes. */
+    private ExecutorService m_shardExecutor;
+
+    /** Parses large table dumps on several threads, null with a single parse thread. */
+    private PmacctParallelTableParser m_tableParser;
+
+    private ExecutorService m_parseExecutor;
+
+    /** Previous readings of the attributes computed from cumulative counters. */
+    private CounterDeltaTable m_deltas;
+
+    /** Reads the tables of the collections refreshed in the background or sampled. */
+    private ScheduledExecutorService m_poller;
+
+    /** Previous sampled readings, apart from those of the collections. */
+    private CounterDeltaTable m_sampleDeltas;
+
+    /** Rates sampled since the previous collection, by collection name. */
+    private final Map<String, RateSampleTable> m_sampleTables = new ConcurrentHashMap<String, RateSampleTable>();
+
+    /** Resources of the nodes by node, address and collection, kept from one collection to the next. */
+    private final ConcurrentMap<String, PmacctCollectionResource> m_resources = new ConcurrentHashMap<String, PmacctCollectionResource>();
+
+    /** Time of the previous poll of each collection, only used by the poller thread. */
+    private final Map<String, Long> m_lastPolls = new HashMap<String, Long>();
 
     /**
      * <p>
@@ -108,16 +206,6 @@ public class PmacctCollector implements ServiceCollector {
      * </p>
      */
     public PmacctCollector() {
-        parser = NumberFormat.getNumberInstance();
-        ((DecimalFormat) parser).setParseBigDecimal(true);
-
-        rrdFormatter = NumberFormat.getNumberInstance();
-        rrdFormatter.setMinimumFractionDigits(0);
-        rrdFormatter.setMaximumFractionDigits(Integer.MAX_VALUE);
-        rrdFormatter.setMinimumIntegerDigits(1);
-        rrdFormatter.setMaximumIntegerDigits(Integer.MAX_VALUE);
-        rrdFormatter.setGroupingUsed(false);
-
     }
 
     /** {@inheritDoc} */
@@ -142,10 +230,15 @@ public class PmacctCollector implements ServiceCollector {
 
         private PmacctCollection m_collection;
 
+        private PmacctCompiledCollection m_compiledCollection;
+
         private String mPmacctPath;
 
         private List<PmacctCollectionResource> m_collectionResourceList;
-        
+
+        /** The resource of the agent, which also holds those of its peers and prefixes. */
+        private PmacctCollectionResource m_resource;
+
         private Date m_timestamp;
 
         PmacctCollectionSet(CollectionAgent agent,
@@ -157,21 +250,46 @@ public class PmacctCollector implements ServiceCollector {
 
         public void collect() {
             String collectionName = ParameterMap.getKeyedString(m_parameters,"collection",null);
-            mPmacctPath = PmacctCollectionConfigFactory.getInstance().getPmacctPath();
-            m_collection = PmacctCollectionConfigFactory.getInstance().getPmacctCollection(collectionName);
+            m_compiledCollection = PmacctCollectionConfigFactory.getInstance().getCompiledCollection(collectionName);
+            m_collection = m_compiledCollection.getCollection();
+            long started = System.nanoTime();
+            try {
+                doCollect();
+            } finally {
+                m_metrics.getCollection(m_compiledCollection.getName())
+                         .cycle(System.nanoTime() - started, m_status == ServiceCollector.COLLECTION_SUCCEEDED);
+            }
+        }
+
+        private void doCollect() {
+            m_agentRegistry.register(m_compiledCollection.getName(), m_agent.getHostAddress());
+            String mode = m_compiledCollection.getMode();
+            if (!"netflow".equals(mode)) {
+                mPmacctPath = PmacctCollectionConfigFactory.getInstance().getPmacctPath();
+            }
             m_collectionResourceList = new ArrayList<PmacctCollectionResource>();
-            PmacctCollectionResource collectionResource = new PmacctCollectionResource(
-                                                                                       m_agent,
-                                                                                       m_collection.getName());
+            PmacctCollectionResource collectionResource = getCollectionResource(m_agent, m_compiledCollection);
+            collectionResource.startCollection();
+            m_resource = collectionResource;
             try {
                 doCollection(this, collectionResource);
                 m_collectionResourceList.add(collectionResource);
+                m_collectionResourceList.addAll(collectionResource.getInstanceResources());
             } catch (PmacctCollectorException e) {
-                log().error("collect: pmacct collection failed: " + e, e);
+                if (isBackingOff(m_compiledCollection, collectionResource)) {
+                    log().debug("collect: backing off " + m_agent.getHostAddress() + ": " + e);
+                } else {
+                    log().error("collect: pmacct collection failed: " + e, e);
+                }
                 m_status = ServiceCollector.COLLECTION_FAILED;
                 return;
             }
             m_status = ServiceCollector.COLLECTION_SUCCEEDED;
+            PmacctHttpExporter exporter = m_httpExporter;
+            if (exporter != null) {
+                exporter.publish(getResourceKey(m_agent, m_compiledCollection),
+                                 collectionResource.getValues(m_compiledCollection.getName()));
+            }
         }
 
         public CollectionAgent getAgent() {
@@ -196,7 +314,22 @@ public class PmacctCollector implements ServiceCollector {
 
         public void storeResults(List<PmacctCollectionAttribute> results,
                 PmacctCollectionResource collectionResource) {
-            collectionResource.storeResults(results);
+            for (PmacctCollectionAttribute attrib : results) {
+                // talkers and prefixes are stored in resources of their own, not in collectionResource
+                attrib.m_resource.store(attrib);
+                if (attrib.m_resource == collectionResource && attrib.m_attribType instanceof PmacctCompiledAttribute) {
+                    storeBilling(m_compiledCollection, collectionResource, attrib);
+                }
+            }
+        }
+
+        /**
+         * @param resourceType the resource type of the instance
+         * @param instance a peer of the agent, or a prefix
+         * @return the resource of the instance, created on first use
+         */
+        PmacctInstanceResource getInstanceResource(String resourceType, String instance) {
+            return m_resource.getInstanceResource(resourceType, instance);
         }
 
         public void visit(CollectionSetVisitor visitor) {
@@ -226,6 +359,13 @@ public class PmacctCollector implements ServiceCollector {
             m_collection = pCollection;
         }
 
+        /**
+         * @return the compiled form of the collection
+         */
+        public PmacctCompiledCollection getCompiledCollection() {
+            return m_compiledCollection;
+        }
+
         /**
          * @return the pmacctPath
          */
@@ -270,39 +410,97 @@ public class PmacctCollector implements ServiceCollector {
         }
     }
 
+    /**
+     * A value of a resource, kept by the resource from one collection to
+     * the next and updated in place. Numbers are held as primitives and
+     * only formatted, once, when persisted.
+     */
     class PmacctCollectionAttribute extends AbstractCollectionAttribute
             implements AttributeDefinition {
 
-        String m_alias;
+        private static final int LONG = 0, DOUBLE = 1, STRING = 2;
+
+        final String m_alias;
+
+        final String m_type;
 
-        String m_type;
+        final PmacctCollectionResource m_resource;
 
-        Object m_value;
+        final CollectionAttributeType m_attribType;
 
-        PmacctCollectionResource m_resource;
+        private int m_kind;
 
-        PmacctCollectionAttributeType m_attribType;
+        private long m_long;
+
+        private double m_double;
+
+        private String m_string;
+
+        /** The value formatted, null until asked for. */
+        private String m_formatted;
+
+        /** The series of the previous readings in the delta table, -1 until needed. */
+        private int m_deltaSeries = -1;
 
         PmacctCollectionAttribute(PmacctCollectionResource resource,
-                PmacctCollectionAttributeType attribType, String alias,
-                String type, Number value) {
+                CollectionAttributeType attribType, String alias, String type) {
             super();
             m_resource = resource;
             m_attribType = attribType;
             m_alias = alias;
             m_type = type;
-            m_value = value;
         }
 
         PmacctCollectionAttribute(PmacctCollectionResource resource,
-                PmacctCollectionAttributeType attribType, String alias,
+                CollectionAttributeType attribType, String alias,
+                String type, long value) {
+            this(resource, attribType, alias, type);
+            setLong(value);
+        }
+
+        PmacctCollectionAttribute(PmacctCollectionResource resource,
+                CollectionAttributeType attribType, String alias,
+                String type, double value) {
+            this(resource, attribType, alias, type);
+            setDouble(value);
+        }
+
+        PmacctCollectionAttribute(PmacctCollectionResource resource,
+                CollectionAttributeType attribType, String alias,
                 String type, String value) {
-            super();
-            m_resource = resource;
-            m_attribType = attribType;
-            m_alias = alias;
-            m_type = type;
-            m_value = value;
+            this(resource, attribType, alias, type);
+            setString(value);
+        }
+
+        PmacctCollectionAttribute setLong(long value) {
+            m_kind = LONG;
+            m_long = value;
+            m_formatted = null;
+            return this;
+        }
+
+        PmacctCollectionAttribute setDouble(double value) {
+            m_kind = DOUBLE;
+            m_double = value;
+            m_formatted = null;
+            return this;
+        }
+
+        PmacctCollectionAttribute setString(String value) {
+            m_kind = STRING;
+            m_string = value;
+            m_formatted = value;
+            return this;
+        }
+
+        /**
+         * @return the series the previous readings of the attribute are kept under in the delta table
+         */
+        int getDeltaSeries() {
+            if (m_deltaSeries < 0) {
+                m_deltaSeries = m_deltas.getSeries(m_resource.getSeriesName(m_alias));
+            }
+            return m_deltaSeries;
         }
 
         @Override
@@ -314,20 +512,14 @@ public class PmacctCollector implements ServiceCollector {
             return m_type;
         }
 
-        public Object getValue() {
-            return m_value;
-        }
-
         @Override
         public String getNumericValue() {
-            Object val = getValue();
-            if (val instanceof Number) {
-                return val.toString();
-            } else {
-                try {
-                    return Double.valueOf(val.toString()).toString();
-                } catch (NumberFormatException nfe) { /* Fall through */
-                }
+            if (m_kind != STRING) {
+                return getValueAsString();
+            }
+            try {
+                return PmacctValueFormat.format(Double.parseDouble(m_string));
+            } catch (NumberFormatException nfe) { /* Fall through */
             }
             if (log().isDebugEnabled()) {
                 log().debug("Value for attribute "
@@ -339,15 +531,16 @@ public class PmacctCollector implements ServiceCollector {
 
         @Override
         public String getStringValue() {
-            return getValue().toString();
+            return getValueAsString();
         }
 
         public String getValueAsString() {
-            if (m_value instanceof Number) {
-                return rrdFormatter.format(m_value);
-            } else {
-                return m_value.toString();
+            String formatted = m_formatted;
+            if (formatted == null) {
+                formatted = m_kind == LONG ? PmacctValueFormat.format(m_long) : PmacctValueFormat.format(m_double);
+                m_formatted = formatted;
             }
+            return formatted;
         }
 
         @Override
@@ -397,71 +590,835 @@ public class PmacctCollector implements ServiceCollector {
             final PmacctCollectionSet collectionSet,
             PmacctCollectionResource collectionResource) {
         log().debug("processResponse:");
-        List<PmacctCollectionAttribute> butes = new LinkedList<PmacctCollectionAttribute>();
+        PmacctCompiledCollection lCollection = collectionSet.getCompiledCollection();
+        long processTimeout = PmacctCollectionConfigFactory.getInstance().getProcessTimeout();
+        String mode = lCollection.getMode();
+        String scope = getTableScope(lCollection);
+        if (scope != null) {
+            return processTableResponse(collectionSet, collectionResource, scope, getTableSource(lCollection));
+        } else if ("talkers".equals(mode)) {
+            return processTalkerResponse(collectionSet, collectionResource, getTalkerSource());
+        }
 
-        PmacctCollection lCollection = collectionSet.getCollection();
-        List<Attrib> attribDefs = lCollection.getAttributes().getAttribCollection();
-        AttributeGroupType groupType = new AttributeGroupType(
-                                                              lCollection.getName(),
-                                                              "all");
+        final PmacctCollectionResource resource = collectionResource;
+        final long timeout = processTimeout;
+        final long timestamp = collectionSet.getCollectionTimestamp().getTime();
+        List<Callable<List<PmacctCollectionAttribute>>> tasks = new ArrayList<Callable<List<PmacctCollectionAttribute>>>();
+        for (final PmacctCompiledAttribute attribDef : lCollection.getAttributes()) {
+            final PmacctAttributeMetrics metrics = m_metrics.getAttribute(lCollection.getName(), attribDef.getAlias());
+            tasks.add(new Callable<List<PmacctCollectionAttribute>>() {
+                public List<PmacctCollectionAttribute> call() throws IOException {
+                    return processAttribute(resource, attribDef, metrics, timeout, timestamp);
+                }
+            });
+        }
+        return collectAttributes(lCollection, resource, tasks, processTimeout);
+    }
 
-        String lPmacctPath = collectionSet.getPmacctPath();
-        String lAddress = collectionResource.m_ipAddress;
+    /**
+     * @return the scope the tables of the collection are cached in, null if it does not read whole tables
+     */
+    private String getTableScope(PmacctCompiledCollection collection) {
+        String mode = collection.getMode();
+        if ("snapshot".equals(mode) || "netflow".equals(mode)) {
+            return mode;
+        } else if ("batch".equals(mode)) {
+            return "batch:" + collection.getName();
+        }
+        return null;
+    }
 
-        for (Attrib attribDef : attribDefs) {
-            String lCmd = lPmacctPath + " "
-                    + attribDef.getPmacctOptions().replaceAll("%h", lAddress);
-            try {
-                Process child = Runtime.getRuntime().exec(lCmd);
-
-                // Get the input stream and read from it
-                InputStream stdout = child.getInputStream();
-                BufferedReader brCleanUp = new BufferedReader(
-                                                              new InputStreamReader(
-                                                                                    stdout));
-                String line;
-                while ((line = brCleanUp.readLine()) != null) {
-                    System.out.println("[Stdout] " + line);
-
-                    if (!attribDef.getType().matches("^([Oo](ctet|CTET)[Ss](tring|TRING))|([Ss](tring|TRING))$")) {
-                        Number num = NumberFormat.getNumberInstance().parse(line);
-                        // m.group(attribDef.getMatchGroup()));
-                        PmacctCollectionAttribute bute = new PmacctCollectionAttribute(
-                                                                                       collectionResource,
-                                                                                       new PmacctCollectionAttributeType(
-                                                                                                                         attribDef,
-                                                                                                                         groupType),
-                                                                                       attribDef.getAlias(),
-                                                                                       attribDef.getType(),
-                                                                                       num);
-                        log().debug("processResponse: adding found numeric attribute: "
-                                            + bute);
-                        butes.add(bute);
-                    } else {
-                        PmacctCollectionAttribute bute = new PmacctCollectionAttribute(
-                                                                                       collectionResource,
-                                                                                       new PmacctCollectionAttributeType(
-                                                                                                                         attribDef,
-                                                                                                                         groupType),
-                                                                                       attribDef.getAlias(),
-                                                                                       attribDef.getType(),
-                                                                                       line);
-                        log().debug("processResponse: adding found string attribute: "
-                                            + bute);
+    /**
+     * @return where the tables of a collection with a {@link #getTableScope(PmacctCompiledCollection)} are
+     *         read from, pipe by pipe for the attributes reading several pipes
+     */
+    private PmacctTableSource getTableSource(PmacctCompiledCollection collection) {
+        PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+        String mode = collection.getMode();
+        PmacctTableSource source;
+        if ("netflow".equals(mode)) {
+            return new PmacctMeteredTableSource(m_netflowAggregator, m_metrics.getCollection(collection.getName()));
+        } else if ("batch".equals(mode)) {
+            source = new PmacctBatchTableSource(m_executor, factory.getPmacctPath(), factory.getProcessTimeout(),
+                                                factory.getHostTableMemory(),
+                                                m_agentRegistry.getHosts(collection.getName()),
+                                                collection.getBatchSize());
+        } else {
+            source = new PmacctExecTableSource(m_executor, factory.getPmacctPath(), factory.getProcessTimeout(),
+                                               factory.getHostTableMemory(), getHostFilter(), m_tableParser);
+        }
+        return new PmacctMeteredTableSource(new PmacctShardedTableSource(source, m_shardExecutor,
+                                                                         factory.getHostTableMemory()),
+                                            m_metrics.getCollection(collection.getName()));
+    }
+
+    /**
+     * @return the hosts kept in the snapshots shared by the collections in
+     *         snapshot mode: every registered agent and the prefixes of those
+     *         collections, or null if the tables are not filtered
+     */
+    private HostFilter getHostFilter() {
+        PmacctCompiledConfig config = PmacctCollectionConfigFactory.getCompiledConfig();
+        if (!config.isHostFilter()) {
+            return null;
+        }
+        List<PrefixTrie> prefixes = new ArrayList<PrefixTrie>();
+        for (PmacctCompiledCollection collection : config.getCollections()) {
+            if ("snapshot".equals(collection.getMode()) && collection.getPrefixTrie() != null) {
+                prefixes.add(collection.getPrefixTrie());
+            }
+        }
+        HostFilter filter = m_agentRegistry.getFilter();
+        return prefixes.isEmpty() ? filter : filter.withPrefixes(prefixes);
+    }
+
+    /**
+     * @return where the tables of a collection in talkers mode are read from
+     */
+    private PmacctExecTableSource getTalkerSource() {
+        PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+        return new PmacctExecTableSource(m_executor, factory.getPmacctPath(), factory.getProcessTimeout(),
+                                         factory.getHostTableMemory());
+    }
+
+    /**
+     * @return the scope the talkers of an attribute are cached in
+     */
+    private static String getTalkerScope(PmacctCompiledCollection collection, PmacctOptions options) {
+        return "talkers:" + collection.getName() + ":" + options.getCounter();
+    }
+
+    /**
+     * Runs pmacct for one attribute of a collection in exec mode, unless
+     * the node is backed off for the pipe of the attribute.
+     *
+     * @return the attributes found, null if pmacct was not run
+     */
+    private List<PmacctCollectionAttribute> processAttribute(final PmacctCollectionResource resource,
+            final PmacctCompiledAttribute attribDef, final PmacctAttributeMetrics metrics, long processTimeout,
+            final long timestamp) throws IOException {
+        if (attribDef.getOptions().isSharded()) {
+            return processShardedAttribute(resource, attribDef, metrics, processTimeout, timestamp);
+        }
+        final PmacctOptions options = attribDef.getOptions();
+        String pipe = options.getPipe();
+        if (getBackoff(resource, options, pipe, System.currentTimeMillis()) != PmacctBackoffTable.NONE) {
+            return null;
+        }
+        final List<PmacctCollectionAttribute> butes = new ArrayList<PmacctCollectionAttribute>(1);
+        String[] lCmd = attribDef.getCommand().build(resource.m_ipAddress);
+        PmacctProcessExecutor.OutputHandler handler;
+        final long[] rows = new long[1];
+        if (attribDef.isNumeric()) {
+            final PmacctReplyParser.CounterHandler counterHandler = new PmacctReplyParser.CounterHandler() {
+                public void counter(long value) {
+                    if (rows[0]++ > 0) {
+                        // the attribute holds the first counter only
+                        return;
+                    }
+                    PmacctCollectionAttribute bute = computeAttribute(resource, attribDef, value, timestamp);
+                    if (bute == null) {
+                        return;
+                    }
+                    if (log().isDebugEnabled()) {
+                        log().debug("processResponse: adding found numeric attribute: " + bute);
+                    }
+                    butes.add(bute);
+                }
+            };
+            handler = new PmacctProcessExecutor.OutputHandler() {
+                public void handle(InputStream stdout) throws IOException {
+                    long started = System.nanoTime();
+                    PmacctReplyParser.getInstance().parseCounters(stdout, counterHandler);
+                    metrics.parsed(System.nanoTime() - started, rows[0]);
+                }
+            };
+        } else {
+            handler = new PmacctProcessExecutor.OutputHandler() {
+                public void handle(InputStream stdout) throws IOException {
+                    long started = System.nanoTime();
+                    BufferedReader brCleanUp = new BufferedReader(new InputStreamReader(stdout));
+                    String line;
+                    while ((line = brCleanUp.readLine()) != null) {
+                        if (rows[0]++ > 0) {
+                            // the attribute holds the first line only
+                            continue;
+                        }
+                        PmacctCollectionAttribute bute = resource.getAttribute(attribDef, attribDef.getAlias())
+                                                                 .setString(line);
+                        if (log().isDebugEnabled()) {
+                            log().debug("processResponse: adding found string attribute: " + bute);
+                        }
                         butes.add(bute);
                     }
+                    metrics.parsed(System.nanoTime() - started, rows[0]);
+                }
+            };
+        }
+        try {
+            m_executor.execute(lCmd, processTimeout, handler);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            updateBackoff(resource, options, pipe, PmacctBackoffTable.FAILED);
+            throw e;
+        }
+        updateBackoff(resource, options, pipe, rows[0] == 0 ? PmacctBackoffTable.EMPTY : PmacctBackoffTable.NONE);
+        return butes;
+    }
+
+    /**
+     * Runs pmacct on every pipe of an attribute reading a sharded table, in
+     * parallel, and stores the sum of the counters of the shards. A shard
+     * that fails is reported and left out of the sum, unless the attribute
+     * is computed from cumulative counters: a partial sum would then look
+     * like a counter reset, so nothing is stored for the interval. The
+     * shards the node is backed off for are not run: those that had no entry
+     * for it add nothing, those that failed count as failed.
+     *
+     * @return the attributes found, null if the node is backed off for every shard
+     */
+    private List<PmacctCollectionAttribute> processShardedAttribute(final PmacctCollectionResource resource,
+            final PmacctCompiledAttribute attribDef, final PmacctAttributeMetrics metrics, final long processTimeout,
+            long timestamp) throws IOException {
+        PmacctOptions options = attribDef.getOptions();
+        List<String> pipes = options.getPipes();
+        List<PmacctCommandTemplate> commands = attribDef.getShardCommands();
+        List<Future<long[]>> shards = new ArrayList<Future<long[]>>(pipes.size());
+        long now = System.currentTimeMillis();
+        int failures = 0;
+        int skipped = 0;
+        for (int i = 0; i < pipes.size(); i++) {
+            int state = getBackoff(resource, options, pipes.get(i), now);
+            if (state != PmacctBackoffTable.NONE) {
+                shards.add(null);
+                skipped++;
+                if (state == PmacctBackoffTable.FAILED) {
+                    failures++;
+                }
+                continue;
+            }
+            final String[] lCmd = commands.get(i).build(resource.m_ipAddress);
+            shards.add(m_shardExecutor.submit(new Callable<long[]>() {
+                public long[] call() throws IOException {
+                    final long[] sum = new long[2];
+                    m_executor.execute(lCmd, processTimeout, new PmacctProcessExecutor.OutputHandler() {
+                        public void handle(InputStream stdout) throws IOException {
+                            long started = System.nanoTime();
+                            PmacctReplyParser.getInstance().parseCounters(stdout, new PmacctReplyParser.CounterHandler() {
+                                public void counter(long value) {
+                                    sum[0] += value;
+                                    sum[1]++;
+                                }
+                            });
+                            metrics.parsed(System.nanoTime() - started, sum[1]);
+                        }
+                    });
+                    return sum;
+                }
+            }));
+        }
+        if (skipped == pipes.size()) {
+            return null;
+        }
+
+        long total = 0;
+        for (int i = 0; i < pipes.size(); i++) {
+            if (shards.get(i) == null) {
+                continue;
+            }
+            try {
+                long[] shard = shards.get(i).get();
+                total += shard[0];
+                updateBackoff(resource, options, pipes.get(i), shard[1] == 0 ? PmacctBackoffTable.EMPTY : PmacctBackoffTable.NONE);
+            } catch (InterruptedException e) {
+                for (Future<long[]> shard : shards) {
+                    if (shard != null) {
+                        shard.cancel(true);
+                    }
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while reading the shards of " + attribDef.getAlias());
+            } catch (ExecutionException e) {
+                log().warn("processShardedAttribute: unable to read " + attribDef.getAlias() + " of "
+                           + resource.m_ipAddress + " from shard " + pipes.get(i) + ": " + e.getCause().getMessage());
+                if (!(e.getCause() instanceof InterruptedIOException)) {
+                    updateBackoff(resource, options, pipes.get(i), PmacctBackoffTable.FAILED);
+                }
+                failures++;
+            }
+        }
+        if (failures == pipes.size() || (failures > 0 && attribDef.isCumulative())) {
+            throw new PmacctIOException(PmacctMetrics.FAILURE_SHARD, failures + " of " + pipes.size()
+                                        + " shards could not be read");
+        }
+        PmacctCollectionAttribute bute = computeAttribute(resource, attribDef, total, timestamp);
+        if (bute == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(bute);
+    }
+
+    /**
+     * @param options the options of the query, giving its aggregation key
+     * @param pipe a memory plugin pipe, null for the default one
+     * @param now the current time, in milliseconds
+     * @return the backoff state of the node for the query of the pipe,
+     *         {@link PmacctBackoffTable#NONE} if pmacct can be run for it
+     */
+    private int getBackoff(PmacctCollectionResource resource, PmacctOptions options, String pipe, long now) {
+        if (!resource.m_packed) {
+            return PmacctBackoffTable.NONE;
+        }
+        return m_backoff.getBackoff(m_backoff.getSeries(pipe, options.getAggregate()), resource.m_hostHi,
+                                    resource.m_hostLo, now);
+    }
+
+    /**
+     * Records the outcome of running pmacct for the node on a pipe: its
+     * backoff for the query is forgotten if the pipe had an entry for it,
+     * and extended otherwise.
+     *
+     * @param options the options of the query, giving its aggregation key
+     * @param state {@link PmacctBackoffTable#NONE} if the pipe had an entry for the node,
+     *        {@link PmacctBackoffTable#EMPTY} or {@link PmacctBackoffTable#FAILED} otherwise
+     */
+    private void updateBackoff(PmacctCollectionResource resource, PmacctOptions options, String pipe, int state) {
+        if (!resource.m_packed) {
+            return;
+        }
+        int series = m_backoff.getSeries(pipe, options.getAggregate());
+        if (state == PmacctBackoffTable.NONE) {
+            m_backoff.succeeded(series, resource.m_hostHi, resource.m_hostLo);
+            return;
+        }
+        long delay = m_backoff.missed(series, resource.m_hostHi, resource.m_hostLo, state, System.currentTimeMillis());
+        if (delay > 0 && log().isDebugEnabled()) {
+            log().debug("updateBackoff: " + (state == PmacctBackoffTable.EMPTY ? "no entry" : "failed") + " for "
+                        + resource.m_ipAddress + " in " + pipe + " by " + options.getAggregate() + ", backing off for "
+                        + delay + " ms");
+        }
+    }
+
+    /**
+     * @return true if the collection runs pmacct for each node and the node
+     *         is backed off for every pipe of every attribute
+     */
+    private boolean isBackingOff(PmacctCompiledCollection collection, PmacctCollectionResource resource) {
+        if (getTableScope(collection) != null || "talkers".equals(collection.getMode()) || !resource.m_packed) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (PmacctCompiledAttribute attribDef : collection.getAttributes()) {
+            List<String> pipes = attribDef.getOptions().getPipes();
+            for (String pipe : pipes.isEmpty() ? Collections.<String>singletonList(null) : pipes) {
+                if (getBackoff(resource, attribDef.getOptions(), pipe, now) == PmacctBackoffTable.NONE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answers every attribute of the collection from the shared table
+     * snapshots instead of querying pmacct once per attribute. The
+     * snapshots are read from <code>source</code> at most once per
+     * collection step and shared by every collection of the same scope.
+     */
+    private List<PmacctCollectionAttribute> processTableResponse(
+            final PmacctCollectionSet collectionSet,
+            final PmacctCollectionResource collectionResource, final String scope, final PmacctTableSource source) {
+        PmacctCompiledCollection lCollection = collectionSet.getCompiledCollection();
+        // below the step so that collectd jitter never hands a node the table it read last interval
+        final long maxAge = lCollection.getStep() * 1000L / 2;
+
+        List<Callable<List<PmacctCollectionAttribute>>> tasks = new ArrayList<Callable<List<PmacctCollectionAttribute>>>();
+        for (final PmacctCompiledAttribute attribDef : lCollection.getAttributes()) {
+            tasks.add(new Callable<List<PmacctCollectionAttribute>>() {
+                public List<PmacctCollectionAttribute> call() throws IOException {
+                    return processTableAttribute(collectionSet, collectionResource, attribDef, scope, source, maxAge);
+                }
+            });
+        }
+        return addAgeAttribute(lCollection, collectionResource, scope,
+                               collectAttributes(lCollection, collectionResource, tasks,
+                                                 PmacctCollectionConfigFactory.getInstance().getProcessTimeout()));
+    }
+
+    private List<PmacctCollectionAttribute> processTableAttribute(PmacctCollectionSet collectionSet,
+            PmacctCollectionResource collectionResource, PmacctCompiledAttribute attribDef, String scope,
+            PmacctTableSource source, long maxAge) throws IOException {
+        String lAddress = collectionResource.m_ipAddress;
+        PmacctOptions options = attribDef.getOptions();
+        PmacctCompiledCollection lCollection = collectionSet.getCompiledCollection();
+        PmacctTableSnapshot snapshot;
+        if (lCollection.isBackgroundRefresh()) {
+            snapshot = m_snapshotCache.getPublishedSnapshot(scope, options);
+            checkFresh(lCollection, snapshot == null ? -1 : snapshot.getTimestamp());
+        } else {
+            snapshot = m_snapshotCache.getSnapshot(scope, source, options, maxAge);
+            if (snapshot.isFilteredOut(lAddress)) {
+                // the agent registered after the table was read, so it was filtered out
+                snapshot = m_snapshotCache.getSnapshot(scope, source, options, 0);
+            }
+        }
+
+        if (!snapshot.getFailedPipes().isEmpty() && attribDef.isCumulative() && options.isSharded()) {
+            // a partial sum of cumulative counters would look like a counter reset, while an
+            // unsharded table missing a batch misses whole hosts, never part of their counters
+            throw new PmacctIOException(PmacctMetrics.FAILURE_SHARD, "shards " + snapshot.getFailedPipes().keySet()
+                                        + " could not be read");
+        }
+        List<PmacctCollectionAttribute> butes = new ArrayList<PmacctCollectionAttribute>(4);
+        PmacctTableSnapshot.Counters counters = snapshot.getCounters(lAddress);
+        if (counters == null) {
+            if (log().isDebugEnabled()) {
+                log().debug("processTableResponse: no entry for " + lAddress + " in " + options.getPipe());
+            }
+        } else {
+            long value = counters.get(options.getCounter());
+            PmacctCollectionAttribute bute;
+            if (!attribDef.isNumeric()) {
+                bute = collectionResource.getAttribute(attribDef, attribDef.getAlias()).setString(String.valueOf(value));
+            } else {
+                bute = computeAttribute(collectionResource, attribDef, value, snapshot.getTimestamp());
+            }
+            if (bute != null) {
+                log().debug("processTableResponse: adding found attribute: " + bute);
+                butes.add(bute);
+                if (collectionSet.getCompiledCollection().getSampleInterval() > 0 && attribDef.isRate()) {
+                    addSampledAttributes(collectionSet.getCompiledCollection(), collectionResource, attribDef, butes);
+                }
+            }
+        }
+        addPrefixAttributes(collectionSet, collectionResource, attribDef, snapshot, butes);
+        return butes;
+    }
+
+    /**
+     * Fails a background refreshed collection at once when the poller has
+     * not read its table recently enough, instead of waiting for a read.
+     *
+     * @param timestamp the time the table was read, -1 if it never was
+     */
+    private void checkFresh(PmacctCompiledCollection collection, long timestamp) throws IOException {
+        if (timestamp < 0) {
+            throw new PmacctIOException(PmacctMetrics.FAILURE_STALE,
+                                        "the table of " + collection.getName() + " was not read yet");
+        }
+        long age = System.currentTimeMillis() - timestamp;
+        if (age > collection.getStaleAge()) {
+            throw new PmacctIOException(PmacctMetrics.FAILURE_STALE, "the table of " + collection.getName()
+                                        + " is stale, read " + age + " ms ago");
+        }
+    }
+
+    /**
+     * Adds the age of the oldest table the attributes of the collection
+     * were answered from, if the collection stores it and the node got
+     * anything from them.
+     */
+    private List<PmacctCollectionAttribute> addAgeAttribute(PmacctCompiledCollection collection,
+            PmacctCollectionResource resource, String scope, List<PmacctCollectionAttribute> butes) {
+        CollectionAttributeType ageType = collection.getAgeAttributeType();
+        if (ageType == null || butes.isEmpty()) {
+            return butes;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (PmacctCompiledAttribute attribDef : collection.getAttributes()) {
+            if (scope == null) {
+                PmacctTalkerTable talkers = m_snapshotCache.getPublishedTalkers(getTalkerScope(collection, attribDef.getOptions()),
+                                                                                attribDef.getOptions());
+                if (talkers != null) {
+                    oldest = Math.min(oldest, talkers.getTimestamp());
+                }
+            } else {
+                PmacctTableSnapshot snapshot = m_snapshotCache.getPublishedSnapshot(scope, attribDef.getOptions());
+                if (snapshot != null) {
+                    oldest = Math.min(oldest, snapshot.getTimestamp());
                 }
-                brCleanUp.close();
+            }
+        }
+        if (oldest != Long.MAX_VALUE) {
+            double age = Math.max(0, System.currentTimeMillis() - oldest) / 1000.0;
+            butes.add(resource.getAttribute(ageType, ageType.getName()).setDouble(age));
+        }
+        return butes;
+    }
+
+    /**
+     * Adds the attribute of each prefix of the collection stored by the
+     * node, from the sums of the hosts of the snapshot per prefix.
+     */
+    private void addPrefixAttributes(PmacctCollectionSet collectionSet, PmacctCollectionResource collectionResource,
+            PmacctCompiledAttribute attribDef, PmacctTableSnapshot snapshot, List<PmacctCollectionAttribute> butes) {
+        PmacctCompiledCollection collection = collectionSet.getCompiledCollection();
+        PrefixTrie trie = collection.getPrefixTrie();
+        if (trie == null) {
+            return;
+        }
+        long[] rollup = snapshot.getRollup(trie);
+        String counter = attribDef.getOptions().getCounter();
+        int offset = "packets".equalsIgnoreCase(counter) ? PrefixTrie.PACKETS
+                : "flows".equalsIgnoreCase(counter) ? PrefixTrie.FLOWS : PrefixTrie.BYTES;
+        for (int id = 0; id < trie.size(); id++) {
+            if (!collection.isPrefixOf(id, collectionResource.m_ipAddress)) {
+                continue;
+            }
+            PmacctInstanceResource resource = collectionSet.getInstanceResource(collection.getPrefixResourceType(),
+                                                                                collection.getPrefixLabel(id));
+            long value = rollup[PrefixTrie.COUNTERS * id + offset];
+            PmacctCollectionAttribute bute;
+            if (attribDef.isNumeric()) {
+                bute = computeAttribute(resource, attribDef, value, snapshot.getTimestamp());
+                if (bute == null) {
+                    continue;
+                }
+            } else {
+                bute = resource.getAttribute(attribDef, attribDef.getAlias()).setString(String.valueOf(value));
+            }
+            butes.add(bute);
+        }
+    }
+
+    /**
+     * Adds the minimum, maximum and 95th percentile of the rates sampled
+     * for the attribute since the previous collection.
+     */
+    private void addSampledAttributes(PmacctCompiledCollection collection, PmacctCollectionResource resource,
+            PmacctCompiledAttribute attribDef, List<PmacctCollectionAttribute> butes) {
+        RateSampleTable samples = m_sampleTables.get(collection.getName());
+        CollectionAttributeType[] types = collection.getSampleAttributeTypes(attribDef);
+        if (samples == null || types == null || !resource.m_packed) {
+            return;
+        }
+        double[] stats = new double[4];
+        int series = samples.getSeries(attribDef.getAlias());
+        if (!samples.drain(series, resource.m_hostHi, resource.m_hostLo, stats)) {
+            if (log().isDebugEnabled()) {
+                log().debug("addSampledAttributes: no sample of " + attribDef.getAlias() + " for " + resource.m_ipAddress);
+            }
+            return;
+        }
+        butes.add(resource.getAttribute(types[0], types[0].getName()).setDouble(stats[RateSampleTable.MIN]));
+        butes.add(resource.getAttribute(types[1], types[1].getName()).setDouble(stats[RateSampleTable.MAX]));
+        butes.add(resource.getAttribute(types[2], types[2].getName()).setDouble(stats[RateSampleTable.P95]));
+    }
+
+    /**
+     * Reads the tables of every collection refreshed in the background or
+     * sampled, when its previous read is older than its step or sample
+     * interval. The tables go through the snapshot cache, so the
+     * collections that follow answer from the last read. Each sampled rate
+     * attribute also gets the rate of its counter since the previous
+     * sample, per registered host.
+     */
+    void pollTables() {
+        long now = System.currentTimeMillis();
+        for (PmacctCompiledCollection collection : PmacctCollectionConfigFactory.getCompiledConfig().getCollections()) {
+            long interval = collection.getSampleInterval() * 1000L;
+            if (interval <= 0 && collection.isBackgroundRefresh()) {
+                interval = collection.getStep() * 1000L;
+            }
+            if (interval <= 0) {
+                continue;
+            }
+            Long last = m_lastPolls.get(collection.getName());
+            if (last != null && now - last.longValue() < interval) {
+                continue;
+            }
+            m_lastPolls.put(collection.getName(), Long.valueOf(now));
+            String scope = getTableScope(collection);
+            if (scope != null) {
+                pollCollection(collection, scope, interval);
+            } else if ("talkers".equals(collection.getMode())) {
+                pollTalkers(collection, interval);
+            }
+        }
+    }
 
+    private void pollCollection(PmacctCompiledCollection collection, String scope, long interval) {
+        PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+        boolean sampled = collection.getSampleInterval() > 0;
+        RateSampleTable samples = m_sampleTables.get(collection.getName());
+        if (sampled && (samples == null || samples.getRingSize() != collection.getSamplesPerStep())) {
+            samples = new RateSampleTable(collection.getSamplesPerStep(), 1024, factory.getHostTableMemory(),
+                                          factory.getHostIdleTimeout());
+            m_sampleTables.put(collection.getName(), samples);
+        }
+        List<String> hosts = m_agentRegistry.getHosts(collection.getName());
+        PmacctTableSource source = getTableSource(collection);
+        long[] packed = new long[2];
+        long[] result = new long[2];
+        for (PmacctCompiledAttribute attribDef : collection.getAttributes()) {
+            boolean sampledAttribute = sampled && attribDef.isRate();
+            if (!sampledAttribute && !collection.isBackgroundRefresh()) {
+                continue;
+            }
+            PmacctTableSnapshot snapshot;
+            try {
+                // younger than the interval, so the snapshot of the previous poll is read again
+                snapshot = m_snapshotCache.getSnapshot(scope, source, attribDef.getOptions(), interval / 2);
+            } catch (IOException e) {
+                log().warn("pollCollection: unable to dump pmacct table for " + attribDef.getAlias()
+                           + " of " + collection.getName() + ": " + e.getMessage());
+                continue;
+            }
+            if (!sampledAttribute || (!snapshot.getFailedPipes().isEmpty() && attribDef.getOptions().isSharded())) {
+                continue;
+            }
+            HostCounterTable table = snapshot.getTable();
+            String counter = attribDef.getOptions().getCounter();
+            int deltaSeries = m_sampleDeltas.getSeries(collection.getName() + "/" + attribDef.getAlias());
+            int series = samples.getSeries(attribDef.getAlias());
+            for (String host : hosts) {
+                if (!HostAddress.pack(host, packed)) {
+                    continue;
+                }
+                int slot = table.find(packed[0], packed[1]);
+                if (slot < 0) {
+                    continue;
+                }
+                long value = "packets".equalsIgnoreCase(counter) ? table.getPackets(slot)
+                        : "flows".equalsIgnoreCase(counter) ? table.getFlows(slot) : table.getBytes(slot);
+                if (m_sampleDeltas.update(deltaSeries, packed[0], packed[1], value, snapshot.getTimestamp(), result)) {
+                    samples.add(series, packed[0], packed[1],
+                                result[CounterDeltaTable.DELTA] * 1000.0 / result[CounterDeltaTable.INTERVAL],
+                                snapshot.getTimestamp());
+                }
+            }
+        }
+    }
+
+    private void pollTalkers(PmacctCompiledCollection collection, long interval) {
+        List<String> hosts = m_agentRegistry.getHosts(collection.getName());
+        PmacctExecTableSource source = getTalkerSource();
+        for (PmacctCompiledAttribute attribDef : collection.getAttributes()) {
+            PmacctOptions options = attribDef.getOptions();
+            try {
+                m_snapshotCache.getTalkers(getTalkerScope(collection, options), source, options, hosts,
+                                           collection.getTalkerCapacity(), interval / 2);
+            } catch (IOException e) {
+                log().warn("pollTalkers: unable to dump pmacct table for " + attribDef.getAlias()
+                           + " of " + collection.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stores the heaviest peers of the agent, one resource per peer, from
+     * sketches of the table of each attribute. The tables are read at most
+     * once per collection step and shared by every node of the collection.
+     */
+    private List<PmacctCollectionAttribute> processTalkerResponse(
+            final PmacctCollectionSet collectionSet,
+            final PmacctCollectionResource collectionResource, final PmacctExecTableSource source) {
+        PmacctCompiledCollection lCollection = collectionSet.getCompiledCollection();
+        // below the step so that collectd jitter never hands a node the table it read last interval
+        final long maxAge = lCollection.getStep() * 1000L / 2;
+
+        List<Callable<List<PmacctCollectionAttribute>>> tasks = new ArrayList<Callable<List<PmacctCollectionAttribute>>>();
+        for (final PmacctCompiledAttribute attribDef : lCollection.getAttributes()) {
+            tasks.add(new Callable<List<PmacctCollectionAttribute>>() {
+                public List<PmacctCollectionAttribute> call() throws IOException {
+                    return processTalkerAttribute(collectionSet, collectionResource, attribDef, source, maxAge);
+                }
+            });
+        }
+        return addAgeAttribute(lCollection, collectionResource, null,
+                               collectAttributes(lCollection, collectionResource, tasks,
+                                                 PmacctCollectionConfigFactory.getInstance().getProcessTimeout()));
+    }
+
+    private List<PmacctCollectionAttribute> processTalkerAttribute(PmacctCollectionSet collectionSet,
+            PmacctCollectionResource collectionResource, PmacctCompiledAttribute attribDef,
+            PmacctExecTableSource source, long maxAge) throws IOException {
+        PmacctCompiledCollection lCollection = collectionSet.getCompiledCollection();
+        PmacctOptions options = attribDef.getOptions();
+        PmacctTalkerTable talkers;
+        if (lCollection.isBackgroundRefresh()) {
+            talkers = m_snapshotCache.getPublishedTalkers(getTalkerScope(lCollection, options), options);
+            checkFresh(lCollection, talkers == null ? -1 : talkers.getTimestamp());
+        } else {
+            talkers = m_snapshotCache.getTalkers(getTalkerScope(lCollection, options), source, options,
+                                                 m_agentRegistry.getHosts(lCollection.getName()),
+                                                 lCollection.getTalkerCapacity(), maxAge);
+        }
+
+        List<SpaceSavingSketch.Talker> top = talkers.getTopTalkers(collectionResource.m_ipAddress, lCollection.getTopN());
+        List<PmacctCollectionAttribute> butes = new ArrayList<PmacctCollectionAttribute>(top.size());
+        for (SpaceSavingSketch.Talker talker : top) {
+            PmacctInstanceResource resource = collectionSet.getInstanceResource(lCollection.getResourceType(),
+                                                                                talker.getPeer());
+            PmacctCollectionAttribute bute = resource.getAttribute(attribDef, attribDef.getAlias());
+            if (attribDef.isNumeric()) {
+                bute.setLong(talker.getCount());
+            } else {
+                bute.setString(String.valueOf(talker.getCount()));
+            }
+            if (log().isDebugEnabled()) {
+                log().debug("processTalkerResponse: adding talker " + talker + " of " + collectionResource.m_ipAddress);
+            }
+            butes.add(bute);
+        }
+        return butes;
+    }
+
+    /**
+     * Counts the rate stored for a billed attribute in the sketch of the
+     * month, and stores the 95th and 99th percentiles of the month so far
+     * next to it.
+     */
+    private void storeBilling(PmacctCompiledCollection collection, PmacctCollectionResource resource,
+            PmacctCollectionAttribute attrib) {
+        PmacctCompiledAttribute attribDef = (PmacctCompiledAttribute) attrib.m_attribType;
+        PmacctBillingStore billing = m_billing;
+        String alias = attribDef.getAlias();
+        CollectionAttributeType[] types = collection.getBillingAttributeTypes(attribDef);
+        if (billing == null || types == null || !resource.m_packed || !alias.equals(attrib.m_alias)) {
+            return;
+        }
+        if (!billing.record(collection.getName(), alias, resource.m_hostHi, resource.m_hostLo, attrib.m_double,
+                            System.currentTimeMillis())) {
+            log().warn("storeBilling: " + alias + " of " + resource.m_ipAddress + " not counted, billing sketches of "
+                       + collection.getName() + " full or month closed");
+            return;
+        }
+        double p95 = billing.getQuantile(collection.getName(), alias, resource.m_hostHi, resource.m_hostLo, 0.95);
+        double p99 = billing.getQuantile(collection.getName(), alias, resource.m_hostHi, resource.m_hostLo, 0.99);
+        resource.store(resource.getAttribute(types[0], types[0].getName()).setDouble(p95));
+        resource.store(resource.getAttribute(types[1], types[1].getName()).setDouble(p99));
+    }
+
+    /**
+     * Turns a counter read for an attribute into the value to store: as is
+     * for <code>raw</code> attributes, otherwise the increase since the
+     * previous reading of the same host, or that increase per second.
+     *
+     * @return the attribute of the resource holding the value to store, or
+     *         null on the first reading of a cumulative counter
+     */
+    private PmacctCollectionAttribute computeAttribute(PmacctCollectionResource resource,
+            PmacctCompiledAttribute attribDef, long value, long timestamp) {
+        PmacctCollectionAttribute bute = resource.getAttribute(attribDef, attribDef.getAlias());
+        if (!attribDef.isCumulative()) {
+            return bute.setLong(value);
+        }
+        if (!resource.m_packed) {
+            return null;
+        }
+        long[] result = new long[2];
+        if (!m_deltas.update(bute.getDeltaSeries(), resource.m_hostHi, resource.m_hostLo, value, timestamp, result)) {
+            if (log().isDebugEnabled()) {
+                log().debug("computeAttribute: first reading of " + attribDef.getAlias() + " for " + resource.m_ipAddress);
+            }
+            return null;
+        }
+        if (attribDef.isRate()) {
+            return bute.setDouble(result[CounterDeltaTable.DELTA] * 1000.0 / result[CounterDeltaTable.INTERVAL]);
+        }
+        return bute.setLong(result[CounterDeltaTable.DELTA]);
+    }
+
+    /**
+     * Runs the per attribute <code>tasks</code> of a collection concurrently
+     * and merges their results in configuration order. The whole collection
+     * shares one deadline: attributes still running when it expires are
+     * left out of this interval. A single attribute runs on the calling
+     * thread. Every attribute is timed and its outcome recorded in the
+     * metrics of the attribute; one that fails is logged and left out.
+     */
+    private List<PmacctCollectionAttribute> collectAttributes(PmacctCompiledCollection collection,
+            PmacctCollectionResource resource, List<Callable<List<PmacctCollectionAttribute>>> tasks, long timeout) {
+        List<PmacctCollectionAttribute> butes = new ArrayList<PmacctCollectionAttribute>(tasks.size());
+        List<Callable<List<PmacctCollectionAttribute>>> metered = new ArrayList<Callable<List<PmacctCollectionAttribute>>>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            metered.add(meter(collection, collection.getAttributes().get(i), resource, tasks.get(i)));
+        }
+        tasks = metered;
+        if (tasks.size() == 1) {
+            try {
+                butes.addAll(tasks.get(0).call());
             } catch (Exception e) {
-                System.out.println("erreur d'execution " + lCmd
-                        + e.toString());
+                log().warn("collectAttributes: unable to collect " + collection.getAttributes().get(0) + ": " + e, e);
             }
+            return butes;
+        }
 
+        List<Future<List<PmacctCollectionAttribute>>> results;
+        try {
+            results = m_attributeExecutor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log().warn("collectAttributes: interrupted while collecting " + collection.getName());
+            return butes;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            Future<List<PmacctCollectionAttribute>> result = results.get(i);
+            PmacctCompiledAttribute attribDef = collection.getAttributes().get(i);
+            if (result.isCancelled()) {
+                log().warn("collectAttributes: " + attribDef.getAlias() + " of " + collection.getName()
+                           + " did not complete within " + timeout + " ms");
+                m_metrics.getAttribute(collection.getName(), attribDef.getAlias()).failed(PmacctMetrics.FAILURE_TIMEOUT);
+                continue;
+            }
+            try {
+                butes.addAll(result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log().warn("collectAttributes: unable to collect " + attribDef + ": " + e.getCause(), e.getCause());
+            }
         }
         return butes;
     }
 
+    /**
+     * Times a per attribute task and records its outcome. A failure is
+     * logged and leaves the attribute out, unless the task was interrupted,
+     * which is recorded by whoever interrupted it.
+     */
+    private Callable<List<PmacctCollectionAttribute>> meter(PmacctCompiledCollection collection,
+            final PmacctCompiledAttribute attribDef, final PmacctCollectionResource resource,
+            final Callable<List<PmacctCollectionAttribute>> task) {
+        final PmacctAttributeMetrics metrics = m_metrics.getAttribute(collection.getName(), attribDef.getAlias());
+        return new Callable<List<PmacctCollectionAttribute>>() {
+            public List<PmacctCollectionAttribute> call() {
+                long started = System.nanoTime();
+                try {
+                    List<PmacctCollectionAttribute> butes = task.call();
+                    if (butes == null) {
+                        // the node is backed off, pmacct was not run
+                        metrics.suppressed();
+                        return Collections.emptyList();
+                    }
+                    metrics.produced(butes.size());
+                    return butes;
+                } catch (Exception e) {
+                    int cause = Thread.currentThread().isInterrupted() ? -1 : PmacctMetrics.getFailureCause(e);
+                    if (cause >= 0) {
+                        metrics.failed(cause);
+                    }
+                    String message = "collectAttributes: unable to collect " + attribDef.getAlias() + " of "
+                                     + resource.m_ipAddress + ": ";
+                    if (cause == PmacctMetrics.FAILURE_ERROR) {
+                        log().warn(message + e, e);
+                    } else if (cause < 0 || cause == PmacctMetrics.FAILURE_SHARD) {
+                        // the failed shards were reported as they were read
+                        log().debug(message + e.getMessage());
+                    } else {
+                        log().warn(message + e.getMessage());
+                    }
+                    return Collections.emptyList();
+                } finally {
+                    metrics.fetched(System.nanoTime() - started);
+                }
+            }
+        };
+    }
+
     public class PmacctCollectorException extends RuntimeException {
 
         private static final long serialVersionUID = 1L;
@@ -501,7 +1458,10 @@ public class PmacctCollector implements ServiceCollector {
 
         log().debug("initialize: Initializing PmacctCollector.");
 
+        m_metrics.register(ManagementFactory.getPlatformMBeanServer());
         initPmacctCollecionConfig();
+        initConfigWatcher();
+        initPmacctClients();
         initDatabaseConnectionFactory();
         initializeRrdRepository();
     }
@@ -525,6 +1485,175 @@ public class PmacctCollector implements ServiceCollector {
         }
     }
 
+    private void initConfigWatcher() {
+        long interval = PmacctCollectionConfigFactory.getInstance().getReloadInterval();
+        if (interval > 0 && m_configWatcher == null) {
+            m_configWatcher = new PmacctConfigWatcher(interval);
+            m_configWatcher.start();
+        }
+    }
+
+    /**
+     * Sets up the process executor and NetFlow receiver of the
+     * loaded configuration. Needs neither the database nor the RRD
+     * repository, so the benchmarks can call it on a configuration of
+     * their own.
+     */
+    void initPmacctClients() {
+        initBackoff();
+        initProcessExecutor();
+        initAttributeExecutor();
+        initTableParser();
+        initShardExecutor();
+        initDeltaTable();
+        initNetflowReceiver();
+        initBilling();
+        initHttpExporter();
+        initPoller();
+    }
+
+    private void initBackoff() {
+        PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+        m_backoff.setDelays(factory.getBackoffBase(), factory.getBackoffMax());
+    }
+
+    private void initProcessExecutor() {
+        if (m_executor == null) {
+            m_executor = new PmacctProcessExecutor(PmacctCollectionConfigFactory.getInstance().getMaxProcesses());
+            m_metrics.add("type=PmacctProcessExecutor", m_executor);
+        }
+    }
+
+    private void initAttributeExecutor() {
+        if (m_attributeExecutor == null) {
+            int threads = PmacctCollectionConfigFactory.getInstance().getMaxProcesses();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                                 new LinkedBlockingQueue<Runnable>(),
+                                                                 new ThreadFactory() {
+                private final AtomicInteger m_count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PmacctAttributeCollector-" + m_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            m_attributeExecutor = executor;
+        }
+    }
+
+    private void initTableParser() {
+        int threads = PmacctCollectionConfigFactory.getInstance().getParseThreads();
+        if (m_parseExecutor == null && threads > 1) {
+            m_parseExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger m_count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PmacctTableParser-" + m_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            m_tableParser = new PmacctParallelTableParser(m_parseExecutor, threads);
+        }
+    }
+
+    private void initShardExecutor() {
+        if (m_shardExecutor == null) {
+            // the shard count is bounded by the configuration, the pmacct runs by max-processes
+            m_shardExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger m_count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PmacctShardReader-" + m_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private void initDeltaTable() {
+        if (m_deltas == null) {
+            PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+            m_deltas = new CounterDeltaTable(1024, factory.getHostTableMemory(), factory.getHostIdleTimeout());
+        }
+    }
+
+    private void initPoller() {
+        if (m_poller != null) {
+            return;
+        }
+        PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+        m_sampleDeltas = new CounterDeltaTable(1024, factory.getHostTableMemory(), factory.getHostIdleTimeout());
+        m_poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PmacctPoller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // collections are checked every second, each is polled at its own interval
+        m_poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    pollTables();
+                } catch (Throwable t) {
+                    log().error("initPoller: unable to poll pmacct tables: " + t, t);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void initNetflowReceiver() {
+        PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+        if (m_netflowAggregator == null) {
+            m_netflowAggregator = new NetflowAggregator(factory.getHostTableMemory(), factory.getHostIdleTimeout());
+        }
+        NetflowListener listener = factory.getNetflowListener();
+        if (listener == null || m_netflowReceiver != null) {
+            return;
+        }
+        m_netflowReceiver = new NetflowReceiver(new InetSocketAddress(listener.getHost(), listener.getPort()),
+                                                listener.getReceiveBufferSize(), m_netflowAggregator);
+        try {
+            m_netflowReceiver.start();
+        } catch (IOException e) {
+            log().fatal("initNetflowReceiver: Unable to listen for NetFlow on "
+                        + listener.getHost() + ":" + listener.getPort(), e);
+            m_netflowReceiver = null;
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private void initBilling() {
+        PmacctCollectionConfigFactory factory = PmacctCollectionConfigFactory.getInstance();
+        if (m_billing != null || !factory.isBilling()) {
+            return;
+        }
+        m_billing = new PmacctBillingStore(new File(factory.getBillingDirectory()), factory.getBillingMemory(),
+                                           TimeZone.getDefault());
+        m_billing.start(factory.getBillingCheckpoint());
+    }
+
+    private void initHttpExporter() {
+        HttpListener listener = PmacctCollectionConfigFactory.getInstance().getHttpListener();
+        if (listener == null || m_httpExporter != null) {
+            return;
+        }
+        m_httpExporter = new PmacctHttpExporter(new InetSocketAddress(listener.getHost(), listener.getPort()));
+        m_httpExporter.setBillingStore(m_billing);
+        try {
+            m_httpExporter.start();
+        } catch (IOException e) {
+            log().fatal("initHttpExporter: Unable to listen for HTTP on "
+                        + listener.getHost() + ":" + listener.getPort(), e);
+            m_httpExporter = null;
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
     private void initializeRrdRepository() {
         log().debug("initializeRrdRepository: Initializing RRD repo from PmacctCollector...");
         initializeRrdDirs();
@@ -586,6 +1715,11 @@ public class PmacctCollector implements ServiceCollector {
         if (log().isDebugEnabled()) {
             log().debug("initialize: InetAddress=" + ipAddr.getHostAddress());
         }
+        String collectionName = ParameterMap.getKeyedString(parameters, "collection", null);
+        if (collectionName != null) {
+            m_agentRegistry.register(PmacctCollectionConfigFactory.getInstance().getPmacctCollection(collectionName).getName(),
+                                     agent.getHostAddress());
+        }
     }
 
     /**
@@ -594,14 +1728,99 @@ public class PmacctCollector implements ServiceCollector {
      * </p>
      */
     public void release() {
-        // TODO Auto-generated method stub
+        if (m_configWatcher != null) {
+            m_configWatcher.stop();
+            m_configWatcher = null;
+        }
+        if (m_poller != null) {
+            m_poller.shutdownNow();
+            m_poller = null;
+        }
+        if (m_netflowReceiver != null) {
+            m_netflowReceiver.stop();
+            m_netflowReceiver = null;
+        }
+        if (m_httpExporter != null) {
+            m_httpExporter.stop();
+            m_httpExporter = null;
+        }
+        if (m_billing != null) {
+            m_billing.stop();
+            m_billing = null;
+        }
+        if (m_attributeExecutor != null) {
+            m_attributeExecutor.shutdownNow();
+            m_attributeExecutor = null;
+        }
+        if (m_shardExecutor != null) {
+            m_shardExecutor.shutdownNow();
+            m_shardExecutor = null;
+        }
+        if (m_parseExecutor != null) {
+            m_parseExecutor.shutdownNow();
+            m_parseExecutor = null;
+            m_tableParser = null;
+        }
+        if (m_executor != null) {
+            m_executor.shutdown();
+            m_executor = null;
+        }
+        m_metrics.unregister();
+        m_resources.clear();
     }
 
     /** {@inheritDoc} */
     public void release(CollectionAgent agent) {
-        // TODO Auto-generated method stub
+        m_agentRegistry.unregister(agent.getHostAddress());
+        String prefix = agent.getNodeId() + "/" + agent.getHostAddress() + "/";
+        for (Iterator<String> it = m_resources.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+        PmacctHttpExporter exporter = m_httpExporter;
+        if (exporter != null) {
+            exporter.remove(prefix);
+        }
+        long[] packed = new long[2];
+        if (HostAddress.pack(agent.getHostAddress(), packed)) {
+            // the readings and the peer and prefix series of the node
+            if (m_deltas != null) {
+                m_deltas.removeHost(packed[0], packed[1]);
+            }
+            if (m_sampleDeltas != null) {
+                m_sampleDeltas.removeHost(packed[0], packed[1]);
+            }
+        }
     }
 
+    /**
+     * @return the key of the resource of the agent for the collection
+     */
+    private static String getResourceKey(CollectionAgent agent, PmacctCompiledCollection collection) {
+        return agent.getNodeId() + "/" + agent.getHostAddress() + "/" + collection.getName();
+    }
+
+    /**
+     * @return the resource of the agent for the collection, kept from one
+     *         collection to the next unless a reload changed the collection
+     */
+    private PmacctCollectionResource getCollectionResource(CollectionAgent agent,
+            PmacctCompiledCollection collection) {
+        String key = getResourceKey(agent, collection);
+        PmacctCollectionResource resource = m_resources.get(key);
+        if (resource == null || resource.m_groupType != collection.getGroupType()) {
+            resource = new PmacctCollectionResource(agent, collection.getName(), collection.getGroupType());
+            m_resources.put(key, resource);
+        }
+        return resource;
+    }
+
+    /**
+     * The resource of an agent for a collection. It keeps its attributes,
+     * and the resources of its peers and prefixes, from one collection to
+     * the next so that a collection only updates their values.
+     */
     class PmacctCollectionResource implements CollectionResource {
 
         int m_nodeId;
@@ -610,24 +1829,164 @@ public class PmacctCollector implements ServiceCollector {
 
         String m_resourceName;
 
+        /** The agent address packed as in the pmacct tables, valid if m_packed. */
+        long m_hostHi, m_hostLo;
+
+        boolean m_packed;
+
+        AttributeGroupType m_groupType;
+
         AttributeGroup m_attribGroup;
 
-        PmacctCollectionResource(CollectionAgent agent, String resourceName) {
+        /** The attributes of the resource by name, updated in place by each collection. */
+        private final ConcurrentMap<String, PmacctCollectionAttribute> m_attributes = new ConcurrentHashMap<String, PmacctCollectionAttribute>();
+
+        /** Resources of the peers (talkers mode) and prefixes of the agent, by type and instance. */
+        private Map<String, PmacctInstanceResource> m_instanceResources;
+
+        /** Whether the resource got attributes during the current collection. */
+        volatile boolean m_used;
+
+        PmacctCollectionResource(CollectionAgent agent, String resourceName, AttributeGroupType groupType) {
             m_ipAddress = agent.getHostAddress();
+            long[] packed = new long[2];
+            m_packed = HostAddress.pack(m_ipAddress, packed);
+            m_hostHi = packed[0];
+            m_hostLo = packed[1];
             m_nodeId = agent.getNodeId();
             m_resourceName = resourceName;
-            m_attribGroup = new AttributeGroup(
-                                               this,
-                                               new AttributeGroupType(
-                                                                      resourceName,
-                                                                      "all"));
+            m_groupType = groupType;
+            m_attribGroup = new AttributeGroup(this, groupType);
 
         }
 
+        PmacctCollectionResource(PmacctCollectionResource parent) {
+            m_ipAddress = parent.m_ipAddress;
+            m_packed = parent.m_packed;
+            m_hostHi = parent.m_hostHi;
+            m_hostLo = parent.m_hostLo;
+            m_nodeId = parent.m_nodeId;
+            m_resourceName = parent.m_resourceName;
+            m_groupType = parent.m_groupType;
+            m_attribGroup = new AttributeGroup(this, m_groupType);
+        }
+
+        /**
+         * @param attribType the type of the attribute
+         * @param name the name of the attribute
+         * @return the attribute of the resource, created on first use
+         */
+        PmacctCollectionAttribute getAttribute(CollectionAttributeType attribType, String name) {
+            PmacctCollectionAttribute attrib = m_attributes.get(name);
+            if (attrib == null) {
+                attrib = new PmacctCollectionAttribute(this, attribType, name, attribType.getType());
+                PmacctCollectionAttribute previous = m_attributes.putIfAbsent(name, attrib);
+                if (previous != null) {
+                    attrib = previous;
+                }
+            }
+            return attrib;
+        }
+
+        /**
+         * Forgets the values stored by the previous collection, and the
+         * resources of the peers and prefixes that got none.
+         */
+        synchronized void startCollection() {
+            m_attribGroup = new AttributeGroup(this, m_groupType);
+            m_used = false;
+            if (m_instanceResources == null) {
+                return;
+            }
+            for (Iterator<PmacctInstanceResource> it = m_instanceResources.values().iterator(); it.hasNext();) {
+                PmacctInstanceResource resource = it.next();
+                if (!resource.m_used) {
+                    it.remove();
+                } else {
+                    resource.startCollection();
+                }
+            }
+        }
+
+        /**
+         * @param resourceType the resource type of the instance
+         * @param instance a peer of the agent, or a prefix
+         * @return the resource of the instance, created on first use
+         */
+        synchronized PmacctInstanceResource getInstanceResource(String resourceType, String instance) {
+            if (m_instanceResources == null) {
+                m_instanceResources = new HashMap<String, PmacctInstanceResource>();
+            }
+            String key = resourceType + "/" + instance;
+            PmacctInstanceResource resource = m_instanceResources.get(key);
+            if (resource == null) {
+                resource = new PmacctInstanceResource(this, resourceType, instance);
+                m_instanceResources.put(key, resource);
+            }
+            return resource;
+        }
+
+        /**
+         * @return the resources of the peers and prefixes which got attributes during the collection
+         */
+        synchronized List<PmacctInstanceResource> getInstanceResources() {
+            if (m_instanceResources == null) {
+                return Collections.emptyList();
+            }
+            List<PmacctInstanceResource> used = new ArrayList<PmacctInstanceResource>();
+            for (PmacctInstanceResource resource : m_instanceResources.values()) {
+                if (resource.m_used) {
+                    used.add(resource);
+                }
+            }
+            return used;
+        }
+
+        /**
+         * @param alias the alias of an attribute
+         * @return the name the previous readings of the attribute are kept under
+         */
+        String getSeriesName(String alias) {
+            return m_resourceName + "/" + alias;
+        }
+
         public void storeResults(List<PmacctCollectionAttribute> results) {
             for (PmacctCollectionAttribute attrib : results) {
-                m_attribGroup.addAttribute(attrib);
+                store(attrib);
+            }
+        }
+
+        /**
+         * @param collection the name of the collection
+         * @return the values stored by the collection for the resource and
+         *         those of its peers and prefixes, as served over HTTP
+         */
+        PmacctHttpExporter.Values getValues(String collection) {
+            PmacctHttpExporter.Values values = new PmacctHttpExporter.Values(m_nodeId, m_ipAddress, collection,
+                                                                             System.currentTimeMillis());
+            addValues(values.resource(null, null));
+            for (PmacctInstanceResource resource : getInstanceResources()) {
+                resource.addValues(values.resource(resource.m_resourceType, resource.m_instance));
             }
+            return values;
+        }
+
+        synchronized void addValues(PmacctHttpExporter.Values values) {
+            for (CollectionAttribute attrib : m_attribGroup.getAttributes()) {
+                if (PmacctCollectionConfigFactory.isStringType(attrib.getType())) {
+                    values.string(attrib.getName(), attrib.getStringValue());
+                    continue;
+                }
+                String value = attrib.getNumericValue();
+                if (value != null) {
+                    values.number(attrib.getName(), value);
+                }
+            }
+        }
+
+        synchronized void store(PmacctCollectionAttribute attrib) {
+            m_attribGroup.addAttribute(attrib);
+            m_used = true;
         }
 
         // A rescan is never needed for the PmacctCollector
@@ -686,35 +2045,68 @@ public class PmacctCollector implements ServiceCollector {
         }
     }
 
-    class PmacctCollectionAttributeType implements CollectionAttributeType {
+    /**
+     * A peer of an agent in talkers mode, or a prefix, stored as an instance
+     * of its resource type under the node directory.
+     */
+    class PmacctInstanceResource extends PmacctCollectionResource {
 
-        Attrib m_attribute;
+        String m_resourceType;
 
-        AttributeGroupType m_groupType;
+        String m_instance;
 
-        protected PmacctCollectionAttributeType(Attrib attribute,
-                AttributeGroupType groupType) {
-            m_groupType = groupType;
-            m_attribute = attribute;
+        PmacctInstanceResource(PmacctCollectionResource parent, String resourceType, String instance) {
+            super(parent);
+            m_resourceType = resourceType;
+            m_instance = instance;
         }
 
-        public AttributeGroupType getGroupType() {
-            return m_groupType;
+        @Override
+        String getSeriesName(String alias) {
+            return super.getSeriesName(alias) + "/" + m_resourceType + "/" + m_instance;
         }
 
-        public void storeAttribute(CollectionAttribute attribute,
-                Persister persister) {
-            persister.persistNumericAttribute(attribute);
+        @Override
+        public File getResourceDir(RrdRepository repository) {
+            return new File(repository.getRrdBaseDir(), m_nodeId + File.separator + m_resourceType
+                    + File.separator + m_instance.replaceAll("[^A-Za-z0-9._-]", "_"));
         }
 
-        public String getName() {
-            return m_attribute.getAlias();
+        @Override
+        public int getType() {
+            return -1;
         }
 
-        public String getType() {
-            return m_attribute.getType();
+        @Override
+        public String getResourceTypeName() {
+            return m_resourceType;
         }
 
+        @Override
+        public String getInstance() {
+            return m_instance;
+        }
+
+        @Override
+        public String getLabel() {
+            return m_instance;
+        }
+
+        @Override
+        public String toString() {
+            return m_resourceName + "@" + m_ipAddress + "->" + m_instance;
+        }
+    }
+
+    /**
+     * <p>getBillingStore</p>
+     *
+     * @return the monthly rate sketches of the billed attributes, to query
+     *         percentiles of any host and month; null before initialize or
+     *         when no attribute has billing="true"
+     */
+    public PmacctBillingStore getBillingStore() {
+        return m_billing;
     }
 
     /** {@inheritDoc} */
@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The {@link org.opennms.netmgt.collectd.pmacct.QuantileSketch} of the
+ * rates of each series (a collection attribute, i.e. a direction) and host
+ * over one billing period.</p>
+ *
+ * <p>Like {@link org.opennms.netmgt.collectd.pmacct.CounterDeltaTable} the
+ * table is an open addressing hash table over parallel arrays, keyed by
+ * series id and packed host address. Entries are never evicted, since
+ * their values are billed: once the sketches reach the memory budget new
+ * hosts are dropped and counted.</p>
+ *
+ * <p>The table is thread safe.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class BillingSketchTable {
+
+    /** Bytes used by one slot of the table, its sketch aside. */
+    public static final int SLOT_SIZE = 4 + 2 * 8 + 4 + 1;
+
+    private static final int MAGIC = 0x504d4253;
+
+    private static final int VERSION = 1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final String m_period;
+
+    private final long m_memoryBudget;
+
+    private final Map<String, Integer> m_series = new HashMap<String, Integer>();
+
+    private final List<String> m_seriesNames = new ArrayList<String>();
+
+    private int[] m_seriesIds;
+
+    private long[] m_hi, m_lo;
+
+    private QuantileSketch[] m_sketches;
+
+    private boolean[] m_used;
+
+    private int m_size = 0;
+
+    private long m_memory = 0, m_dropped = 0, m_modCount = 0;
+
+    /**
+     * <p>Constructor for BillingSketchTable.</p>
+     *
+     * @param period the billing period, e.g. <code>2012-03</code>
+     * @param memoryBudget maximum memory used by the slots and sketches, in bytes
+     */
+    public BillingSketchTable(String period, long memoryBudget) {
+        m_period = period;
+        m_memoryBudget = memoryBudget;
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        m_seriesIds = new int[capacity];
+        m_hi = new long[capacity];
+        m_lo = new long[capacity];
+        m_sketches = new QuantileSketch[capacity];
+        m_used = new boolean[capacity];
+    }
+
+    /**
+     * @return the billing period of the table
+     */
+    public String getPeriod() {
+        return m_period;
+    }
+
+    /**
+     * @param name a name identifying the series, e.g. the alias of an attribute
+     * @return the series id of the name, the same for as long as the table lives
+     */
+    public synchronized int getSeries(String name) {
+        Integer series = m_series.get(name);
+        if (series == null) {
+            series = Integer.valueOf(m_seriesNames.size());
+            m_series.put(name, series);
+            m_seriesNames.add(name);
+        }
+        return series.intValue();
+    }
+
+    /**
+     * Count the rate of an interval.
+     *
+     * @param series the series id of the rate
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param rate the rate
+     * @return false if the host is new and the table is full
+     */
+    public synchronized boolean add(int series, long hi, long lo, double rate) {
+        QuantileSketch sketch = getOrCreate(series, hi, lo);
+        if (sketch == null) {
+            return false;
+        }
+        long size = sketch.getMemorySize();
+        sketch.add(rate);
+        m_memory += sketch.getMemorySize() - size;
+        m_modCount++;
+        return true;
+    }
+
+    /**
+     * @param series the series id
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param q the quantile, between 0 and 1
+     * @return the quantile of the rates of the host over the period, NaN if none was counted
+     */
+    public synchronized double getQuantile(int series, long hi, long lo, double q) {
+        int slot = find(series, hi, lo);
+        return slot < 0 ? Double.NaN : m_sketches[slot].getQuantile(q);
+    }
+
+    /**
+     * @param series the name of the series
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @return a copy of the sketch of the host, null if none was counted
+     */
+    public synchronized QuantileSketch getSketch(String series, long hi, long lo) {
+        Integer id = m_series.get(series);
+        int slot = id == null ? -1 : find(id.intValue(), hi, lo);
+        if (slot < 0) {
+            return null;
+        }
+        QuantileSketch copy = new QuantileSketch();
+        copy.merge(m_sketches[slot]);
+        return copy;
+    }
+
+    /**
+     * @param series the name of the series
+     * @return copies of the sketches of every host of the series, by host address
+     */
+    public synchronized Map<String, QuantileSketch> getSketches(String series) {
+        Map<String, QuantileSketch> sketches = new HashMap<String, QuantileSketch>();
+        Integer id = m_series.get(series);
+        if (id == null) {
+            return sketches;
+        }
+        for (int slot = 0; slot < m_used.length; slot++) {
+            if (m_used[slot] && m_seriesIds[slot] == id.intValue()) {
+                QuantileSketch copy = new QuantileSketch();
+                copy.merge(m_sketches[slot]);
+                sketches.put(HostAddress.toString(m_hi[slot], m_lo[slot]), copy);
+            }
+        }
+        return sketches;
+    }
+
+    /**
+     * Add the rates counted by another table, e.g. one read back from disk
+     * or filled by another collector, to this one.
+     *
+     * @param other the table to merge, left unchanged
+     */
+    public void merge(BillingSketchTable other) {
+        List<String> names;
+        List<long[]> keys = new ArrayList<long[]>();
+        List<QuantileSketch> sketches = new ArrayList<QuantileSketch>();
+        synchronized (other) {
+            names = new ArrayList<String>(other.m_seriesNames);
+            for (int slot = 0; slot < other.m_used.length; slot++) {
+                if (other.m_used[slot]) {
+                    keys.add(new long[] { other.m_seriesIds[slot], other.m_hi[slot], other.m_lo[slot] });
+                    QuantileSketch copy = new QuantileSketch();
+                    copy.merge(other.m_sketches[slot]);
+                    sketches.add(copy);
+                }
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < keys.size(); i++) {
+                long[] key = keys.get(i);
+                QuantileSketch sketch = getOrCreate(getSeries(names.get((int) key[0])), key[1], key[2]);
+                if (sketch != null) {
+                    long size = sketch.getMemorySize();
+                    sketch.merge(sketches.get(i));
+                    m_memory += sketch.getMemorySize() - size;
+                }
+            }
+            m_modCount++;
+        }
+    }
+
+    /**
+     * @return the number of sketches in the table
+     */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * @return an estimate of the memory used by the table, in bytes
+     */
+    public synchronized long getMemorySize() {
+        return m_memory + (long) m_used.length * SLOT_SIZE;
+    }
+
+    /**
+     * @return the number of new hosts dropped because the table was full
+     */
+    public synchronized long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * @return a number changing whenever a rate is counted, to tell if the table needs saving
+     */
+    public synchronized long getModCount() {
+        return m_modCount;
+    }
+
+    /**
+     * Write the period, series names and sketches of the table.
+     *
+     * @param out where to write
+     * @throws java.io.IOException if writing fails
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(m_period);
+        QuantileSketch.writeVarLong(out, m_seriesNames.size());
+        for (String name : m_seriesNames) {
+            out.writeUTF(name);
+        }
+        QuantileSketch.writeVarLong(out, m_size);
+        for (int slot = 0; slot < m_used.length; slot++) {
+            if (m_used[slot]) {
+                QuantileSketch.writeVarLong(out, m_seriesIds[slot]);
+                out.writeLong(m_hi[slot]);
+                out.writeLong(m_lo[slot]);
+                m_sketches[slot].writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Read a table written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in where to read
+     * @param memoryBudget maximum memory used by the table, in bytes
+     * @return the table
+     * @throws java.io.IOException if reading fails or the data is corrupt
+     */
+    public static BillingSketchTable readFrom(DataInput in, long memoryBudget) throws IOException {
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("not a billing sketch table");
+        }
+        BillingSketchTable table = new BillingSketchTable(in.readUTF(), memoryBudget);
+        long names = QuantileSketch.readVarLong(in);
+        for (long i = 0; i < names; i++) {
+            table.getSeries(in.readUTF());
+        }
+        long entries = QuantileSketch.readVarLong(in);
+        for (long i = 0; i < entries; i++) {
+            long series = QuantileSketch.readVarLong(in);
+            if (series >= names) {
+                throw new IOException("corrupt billing sketch table");
+            }
+            long hi = in.readLong();
+            long lo = in.readLong();
+            QuantileSketch sketch = QuantileSketch.readFrom(in);
+            QuantileSketch slot = table.getOrCreate((int) series, hi, lo);
+            if (slot != null) {
+                long size = slot.getMemorySize();
+                slot.merge(sketch);
+                table.m_memory += slot.getMemorySize() - size;
+            }
+        }
+        return table;
+    }
+
+    private QuantileSketch getOrCreate(int series, long hi, long lo) {
+        int slot = find(series, hi, lo);
+        if (slot >= 0) {
+            return m_sketches[slot];
+        }
+        if (getMemorySize() + SLOT_SIZE + 1024 > m_memoryBudget) {
+            m_dropped++;
+            return null;
+        }
+        if ((m_size + 1) * 4 > m_used.length * 3) {
+            resize(m_used.length << 1);
+        }
+        slot = insert(series, hi, lo);
+        m_sketches[slot] = new QuantileSketch();
+        m_memory += m_sketches[slot].getMemorySize();
+        return m_sketches[slot];
+    }
+
+    private int find(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        for (int slot = hash(series, hi, lo) & mask; m_used[slot]; slot = (slot + 1) & mask) {
+            if (m_lo[slot] == lo && m_hi[slot] == hi && m_seriesIds[slot] == series) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        int slot = hash(series, hi, lo) & mask;
+        while (m_used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        m_used[slot] = true;
+        m_seriesIds[slot] = series;
+        m_hi[slot] = hi;
+        m_lo[slot] = lo;
+        m_size++;
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        int[] seriesIds = m_seriesIds;
+        long[] his = m_hi, los = m_lo;
+        QuantileSketch[] sketches = m_sketches;
+        boolean[] used = m_used;
+        allocate(capacity);
+        m_size = 0;
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot]) {
+                m_sketches[insert(seriesIds[slot], his[slot], los[slot])] = sketches[slot];
+            }
+        }
+    }
+
+    private static int hash(int series, long hi, long lo) {
+        long h = ((hi * 0x9e3779b97f4a7c15L) ^ lo) + series * 0xc2b2ae3d27d4eb4fL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
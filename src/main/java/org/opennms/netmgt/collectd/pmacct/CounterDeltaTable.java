@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Last value read from a cumulative pmacct counter, per series (a
+ * collection attribute) and host, used to turn the counters into deltas
+ * and rates without resetting the memory tables.</p>
+ *
+ * <p>Like {@link org.opennms.netmgt.collectd.pmacct.HostCounterTable}, the
+ * table is an open addressing hash table with linear probing over parallel
+ * primitive arrays, bounded by a memory budget, evicting entries not
+ * updated for longer than the idle timeout when full.</p>
+ *
+ * <p>pmacct counters are 64 bit and do not wrap, so a counter lower than
+ * its previous value is taken as a restart of the daemon (or a reset of the
+ * table) and the whole current value is counted as the delta.</p>
+ *
+ * <p>The table is thread safe.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class CounterDeltaTable {
+
+    /** Bytes used by one slot of the table. */
+    public static final int SLOT_SIZE = 4 + 4 * 8 + 1;
+
+    /** Index of the delta in the result of {@link #update(int, long, long, long, long, long[])}. */
+    public static final int DELTA = 0;
+
+    /** Index of the interval in the result of {@link #update(int, long, long, long, long, long[])}. */
+    public static final int INTERVAL = 1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int m_maxCapacity;
+
+    private final long m_idleTimeout;
+
+    private final Map<String, Integer> m_series = new HashMap<String, Integer>();
+
+    private int m_nextSeries = 0;
+
+    private int[] m_seriesIds;
+
+    private long[] m_hi, m_lo, m_values, m_times;
+
+    private boolean[] m_used;
+
+    private int m_size = 0;
+
+    private long m_restarts = 0, m_dropped = 0;
+
+    /**
+     * <p>Constructor for CounterDeltaTable.</p>
+     *
+     * @param initialCapacity number of slots to start with
+     * @param memoryBudget maximum memory used by the slots, in bytes
+     * @param idleTimeout entries not updated for that long (in milliseconds) can be
+     *        evicted when the table is full, 0 never evicts
+     */
+    public CounterDeltaTable(int initialCapacity, long memoryBudget, long idleTimeout) {
+        m_maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, memoryBudget / SLOT_SIZE)));
+        m_idleTimeout = idleTimeout;
+        allocate(Math.min(m_maxCapacity, Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, initialCapacity - 1)) << 1)));
+    }
+
+    private void allocate(int capacity) {
+        m_seriesIds = new int[capacity];
+        m_hi = new long[capacity];
+        m_lo = new long[capacity];
+        m_values = new long[capacity];
+        m_times = new long[capacity];
+        m_used = new boolean[capacity];
+    }
+
+    /**
+     * @param name a name identifying the counter, e.g. collection and attribute
+     * @return the series id of the name, the same until the last host of the
+     *         series is removed with {@link #removeHost(long, long)}
+     */
+    public synchronized int getSeries(String name) {
+        Integer series = m_series.get(name);
+        if (series == null) {
+            // ids are never reused, so that a stale id cannot read another series
+            series = Integer.valueOf(m_nextSeries++);
+            m_series.put(name, series);
+        }
+        return series.intValue();
+    }
+
+    /**
+     * Record a new reading of a cumulative counter.
+     *
+     * @param series the series id of the counter
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param value the counter read
+     * @param timestamp the time the counter was read, in milliseconds
+     * @param result receives the delta since the previous reading at {@link #DELTA}
+     *        and the milliseconds elapsed at {@link #INTERVAL}
+     * @return false if there is no previous reading, or it is not older than <code>timestamp</code>
+     */
+    public synchronized boolean update(int series, long hi, long lo, long value, long timestamp, long[] result) {
+        int slot = find(series, hi, lo);
+        if (slot < 0) {
+            if (!ensureRoom(timestamp)) {
+                m_dropped++;
+                return false;
+            }
+            slot = insert(series, hi, lo);
+            m_values[slot] = value;
+            m_times[slot] = timestamp;
+            return false;
+        }
+        long interval = timestamp - m_times[slot];
+        if (interval <= 0) {
+            return false;
+        }
+        long previous = m_values[slot];
+        long delta;
+        if (value >= previous) {
+            delta = value - previous;
+        } else {
+            delta = Math.max(0, value);
+            m_restarts++;
+        }
+        m_values[slot] = value;
+        m_times[slot] = timestamp;
+        result[DELTA] = delta;
+        result[INTERVAL] = interval;
+        return true;
+    }
+
+    /**
+     * @return the number of counters in the table
+     */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * @return the number of counter restarts seen
+     */
+    public synchronized long getRestartCount() {
+        return m_restarts;
+    }
+
+    /**
+     * @return the number of new counters dropped because the table was full
+     */
+    public synchronized long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * @return the number of series names the table knows
+     */
+    public synchronized int getSeriesCount() {
+        return m_series.size();
+    }
+
+    /**
+     * Forget the readings of a host in every series, and the names of the
+     * series left without any reading.
+     *
+     * @param hi the high word of the packed address
+     * @param lo the low word of the packed address
+     * @return the number of readings removed
+     */
+    public synchronized int removeHost(long hi, long lo) {
+        int removed = 0;
+        for (int slot = 0; slot < m_used.length; slot++) {
+            // a shifted entry may land on the current slot, check it again
+            while (m_used[slot] && m_hi[slot] == hi && m_lo[slot] == lo) {
+                remove(slot);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            Set<Integer> used = new HashSet<Integer>();
+            for (int slot = 0; slot < m_used.length; slot++) {
+                if (m_used[slot]) {
+                    used.add(Integer.valueOf(m_seriesIds[slot]));
+                }
+            }
+            for (Iterator<Integer> it = m_series.values().iterator(); it.hasNext();) {
+                if (!used.contains(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Forget every previous reading.
+     */
+    public synchronized void clear() {
+        java.util.Arrays.fill(m_used, false);
+        m_size = 0;
+    }
+
+    private int find(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        for (int slot = hash(series, hi, lo) & mask; m_used[slot]; slot = (slot + 1) & mask) {
+            if (m_lo[slot] == lo && m_hi[slot] == hi && m_seriesIds[slot] == series) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean ensureRoom(long now) {
+        if ((m_size + 1) * 4 <= m_used.length * 3) {
+            return true;
+        }
+        if (m_used.length < m_maxCapacity) {
+            resize(m_used.length << 1);
+            return true;
+        }
+        if (m_idleTimeout > 0 && evictIdle(now - m_idleTimeout) > 0) {
+            return (m_size + 1) * 4 <= m_used.length * 3;
+        }
+        return false;
+    }
+
+    private int evictIdle(long before) {
+        int evicted = 0;
+        for (int slot = 0; slot < m_used.length; slot++) {
+            // a shifted entry may land on the current slot, check it again
+            while (m_used[slot] && m_times[slot] < before) {
+                remove(slot);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private int insert(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        int slot = hash(series, hi, lo) & mask;
+        while (m_used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        m_used[slot] = true;
+        m_seriesIds[slot] = series;
+        m_hi[slot] = hi;
+        m_lo[slot] = lo;
+        m_size++;
+        return slot;
+    }
+
+    private void remove(int slot) {
+        int mask = m_used.length - 1;
+        m_used[slot] = false;
+        m_size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; m_used[next]; next = (next + 1) & mask) {
+            int home = hash(m_seriesIds[next], m_hi[next], m_lo[next]) & mask;
+            // move the entry into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+    }
+
+    private void move(int from, int to) {
+        m_used[to] = true;
+        m_seriesIds[to] = m_seriesIds[from];
+        m_hi[to] = m_hi[from];
+        m_lo[to] = m_lo[from];
+        m_values[to] = m_values[from];
+        m_times[to] = m_times[from];
+        m_used[from] = false;
+    }
+
+    private void resize(int capacity) {
+        int[] seriesIds = m_seriesIds;
+        long[] hi = m_hi, lo = m_lo, values = m_values, times = m_times;
+        boolean[] used = m_used;
+        allocate(capacity);
+        m_size = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                int slot = insert(seriesIds[i], hi[i], lo[i]);
+                m_values[slot] = values[i];
+                m_times[slot] = times[i];
+            }
+        }
+    }
+
+    private static int hash(int series, long hi, long lo) {
+        long h = ((hi * 0x9e3779b97f4a7c15L) ^ lo) + series * 0xc2b2ae3d27d4eb4fL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * <p>Packs IPv4 and IPv6 addresses into two <code>long</code>s so they can
+ * be used as primitive keys. IPv4 addresses are stored in their IPv4-mapped
+ * IPv6 form (<code>::ffff:a.b.c.d</code>).</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public final class HostAddress {
+
+    private static final long IPV4_MAPPED = 0x0000ffff00000000L;
+
+    private HostAddress() {
+    }
+
+    /**
+     * @param ipv4 an IPv4 address as an int, most significant byte first
+     * @return the low word of the packed address (the high word is 0)
+     */
+    public static long packIpv4(int ipv4) {
+        return IPV4_MAPPED | (ipv4 & 0xffffffffL);
+    }
+
+    /**
+     * @param hi the high word of a packed address
+     * @param lo the low word of a packed address
+     * @return true if the packed address is an IPv4 address
+     */
+    public static boolean isIpv4(long hi, long lo) {
+        return hi == 0 && (lo & 0xffffffff00000000L) == IPV4_MAPPED;
+    }
+
+    /**
+     * @param raw 4 or 16 bytes, network order
+     * @return the high word of the packed address
+     */
+    public static long hi(byte[] raw) {
+        return raw.length == 4 ? 0 : word(raw, 0);
+    }
+
+    /**
+     * @param raw 4 or 16 bytes, network order
+     * @return the low word of the packed address
+     */
+    public static long lo(byte[] raw) {
+        if (raw.length == 4) {
+            return packIpv4(((raw[0] & 0xff) << 24) | ((raw[1] & 0xff) << 16) | ((raw[2] & 0xff) << 8) | (raw[3] & 0xff));
+        }
+        return word(raw, 8);
+    }
+
+    private static long word(byte[] raw, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (raw[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Pack a textual address. Dotted quads are parsed by hand, anything else
+     * goes through {@link java.net.InetAddress#getByName(String)}, which does
+     * not resolve literal addresses.
+     *
+     * @param host a literal IPv4 or IPv6 address
+     * @param packed receives the high and low words
+     * @return false if host is not a literal address
+     */
+    public static boolean pack(String host, long[] packed) {
+        int ipv4 = 0, octet = -1, dots = 0;
+        int i = 0;
+        for (; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    break;
+                }
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                ipv4 = (ipv4 << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                break;
+            }
+        }
+        if (i == host.length() && dots == 3 && octet >= 0) {
+            packed[0] = 0;
+            packed[1] = packIpv4((ipv4 << 8) | octet);
+            return true;
+        }
+        if (host.indexOf(':') < 0) {
+            return false;
+        }
+        try {
+            byte[] raw = InetAddress.getByName(host).getAddress();
+            packed[0] = hi(raw);
+            packed[1] = lo(raw);
+            return true;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param hi the high word of a packed address
+     * @param lo the low word of a packed address
+     * @return the 4 or 16 raw bytes of the address
+     */
+    public static byte[] toBytes(long hi, long lo) {
+        if (isIpv4(hi, lo)) {
+            return new byte[] { (byte) (lo >>> 24), (byte) (lo >>> 16), (byte) (lo >>> 8), (byte) lo };
+        }
+        byte[] raw = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            raw[i] = (byte) (hi >>> (56 - 8 * i));
+            raw[8 + i] = (byte) (lo >>> (56 - 8 * i));
+        }
+        return raw;
+    }
+
+    /**
+     * @param hi the high word of a packed address
+     * @param lo the low word of a packed address
+     * @return the textual form of the address
+     */
+    public static String toString(long hi, long lo) {
+        try {
+            return InetAddress.getByAddress(toBytes(hi, lo)).getHostAddress();
+        } catch (UnknownHostException e) {
+            // cannot happen with 4 or 16 bytes
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Per host packet, byte and flow counters keyed by packed address (see
+ * {@link org.opennms.netmgt.collectd.pmacct.HostAddress}).</p>
+ *
+ * <p>The table is an open addressing hash table with linear probing over
+ * parallel primitive arrays, so it holds no object per host and costs the
+ * garbage collector nothing but its arrays. It grows by doubling up to a
+ * maximum capacity derived from a memory budget. When the budget is reached,
+ * entries not updated for longer than the idle timeout are evicted; if none
+ * can be, new hosts are dropped and counted. Removal uses backward shifting,
+ * so lookups never walk over tombstones.</p>
+ *
+ * <p>The table is not thread safe.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class HostCounterTable {
+
+    /** Bytes used by one slot of the table. */
+    public static final int SLOT_SIZE = 6 * 8 + 1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int m_maxCapacity;
+
+    private final long m_idleTimeout;
+
+    private long[] m_hi, m_lo, m_packets, m_bytes, m_flows, m_lastSeen;
+
+    private boolean[] m_used;
+
+    private int m_size = 0;
+
+    private long m_dropped = 0;
+
+    private long m_clock = 0;
+
+    /**
+     * <p>Constructor for HostCounterTable.</p>
+     *
+     * @param initialCapacity number of slots to start with
+     * @param memoryBudget maximum memory used by the slots, in bytes
+     * @param idleTimeout entries not updated for that long (in milliseconds) can be
+     *        evicted when the table is full, 0 never evicts
+     */
+    public HostCounterTable(int initialCapacity, long memoryBudget, long idleTimeout) {
+        m_maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, memoryBudget / SLOT_SIZE)));
+        m_idleTimeout = idleTimeout;
+        allocate(Math.min(m_maxCapacity, Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, initialCapacity - 1)) << 1)));
+    }
+
+    private void allocate(int capacity) {
+        m_hi = new long[capacity];
+        m_lo = new long[capacity];
+        m_packets = new long[capacity];
+        m_bytes = new long[capacity];
+        m_flows = new long[capacity];
+        m_lastSeen = new long[capacity];
+        m_used = new boolean[capacity];
+    }
+
+    /**
+     * Set the time stamped on the entries updated from now on.
+     *
+     * @param now the current time, in milliseconds
+     */
+    public void setClock(long now) {
+        m_clock = now;
+    }
+
+    /**
+     * Add to the counters of a host, creating its entry if needed.
+     *
+     * @param hi the high word of the packed address
+     * @param lo the low word of the packed address
+     * @param packets packets to add
+     * @param bytes bytes to add
+     * @param flows flows to add
+     * @return false if the host is new and the table is full
+     */
+    public boolean add(long hi, long lo, long packets, long bytes, long flows) {
+        int slot = find(hi, lo);
+        if (slot < 0) {
+            if (!ensureRoom()) {
+                m_dropped++;
+                return false;
+            }
+            slot = insert(hi, lo);
+        }
+        m_packets[slot] += packets;
+        m_bytes[slot] += bytes;
+        m_flows[slot] += flows;
+        m_lastSeen[slot] = m_clock;
+        return true;
+    }
+
+    /**
+     * @param hi the high word of the packed address
+     * @param lo the low word of the packed address
+     * @return the slot of the host, or -1 if it is not in the table
+     */
+    public int find(long hi, long lo) {
+        int mask = m_used.length - 1;
+        for (int slot = hash(hi, lo) & mask; m_used[slot]; slot = (slot + 1) & mask) {
+            if (m_hi[slot] == hi && m_lo[slot] == lo) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param host the textual host address
+     * @return the slot of the host, or -1 if it is not in the table
+     */
+    public int find(String host) {
+        long[] packed = new long[2];
+        if (!HostAddress.pack(host, packed)) {
+            return -1;
+        }
+        return find(packed[0], packed[1]);
+    }
+
+    public long getPackets(int slot) {
+        return m_packets[slot];
+    }
+
+    public long getBytes(int slot) {
+        return m_bytes[slot];
+    }
+
+    public long getFlows(int slot) {
+        return m_flows[slot];
+    }
+
+    public long getLastSeen(int slot) {
+        return m_lastSeen[slot];
+    }
+
+    public long getHi(int slot) {
+        return m_hi[slot];
+    }
+
+    public long getLo(int slot) {
+        return m_lo[slot];
+    }
+
+    /**
+     * @param slot a slot index, between 0 and {@link #capacity()}
+     * @return true if the slot holds a host
+     */
+    public boolean isUsed(int slot) {
+        return m_used[slot];
+    }
+
+    /**
+     * @return the number of slots, to iterate with {@link #isUsed(int)}
+     */
+    public int capacity() {
+        return m_used.length;
+    }
+
+    /**
+     * @return the number of hosts in the table
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @return the number of new hosts dropped because the table was full
+     */
+    public long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * Remove every host, keeping the current capacity.
+     */
+    public void clear() {
+        java.util.Arrays.fill(m_used, false);
+        m_size = 0;
+    }
+
+    /**
+     * @return a copy of the table, with the same budget and idle timeout
+     */
+    public HostCounterTable copy() {
+        HostCounterTable copy = new HostCounterTable(capacity(), (long) m_maxCapacity * SLOT_SIZE, m_idleTimeout);
+        copy.m_hi = m_hi.clone();
+        copy.m_lo = m_lo.clone();
+        copy.m_packets = m_packets.clone();
+        copy.m_bytes = m_bytes.clone();
+        copy.m_flows = m_flows.clone();
+        copy.m_lastSeen = m_lastSeen.clone();
+        copy.m_used = m_used.clone();
+        copy.m_size = m_size;
+        copy.m_clock = m_clock;
+        return copy;
+    }
+
+    /**
+     * Remove the entries not updated since <code>before</code>.
+     *
+     * @param before a time, in milliseconds
+     * @return the number of entries removed
+     */
+    public int evictIdle(long before) {
+        int evicted = 0;
+        for (int slot = 0; slot < m_used.length; slot++) {
+            // a shifted entry may land on the current slot, check it again
+            while (m_used[slot] && m_lastSeen[slot] < before) {
+                remove(slot);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private boolean ensureRoom() {
+        if ((m_size + 1) * 4 <= m_used.length * 3) {
+            return true;
+        }
+        if (m_used.length < m_maxCapacity) {
+            resize(m_used.length << 1);
+            return true;
+        }
+        if (m_idleTimeout > 0 && evictIdle(m_clock - m_idleTimeout) > 0) {
+            return (m_size + 1) * 4 <= m_used.length * 3;
+        }
+        return false;
+    }
+
+    private int insert(long hi, long lo) {
+        int mask = m_used.length - 1;
+        int slot = hash(hi, lo) & mask;
+        while (m_used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        m_used[slot] = true;
+        m_hi[slot] = hi;
+        m_lo[slot] = lo;
+        m_packets[slot] = 0;
+        m_bytes[slot] = 0;
+        m_flows[slot] = 0;
+        m_size++;
+        return slot;
+    }
+
+    private void remove(int slot) {
+        int mask = m_used.length - 1;
+        m_used[slot] = false;
+        m_size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; m_used[next]; next = (next + 1) & mask) {
+            int home = hash(m_hi[next], m_lo[next]) & mask;
+            // move the entry into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+    }
+
+    private void move(int from, int to) {
+        m_used[to] = true;
+        m_hi[to] = m_hi[from];
+        m_lo[to] = m_lo[from];
+        m_packets[to] = m_packets[from];
+        m_bytes[to] = m_bytes[from];
+        m_flows[to] = m_flows[from];
+        m_lastSeen[to] = m_lastSeen[from];
+        m_used[from] = false;
+    }
+
+    private void resize(int capacity) {
+        long[] hi = m_hi, lo = m_lo, packets = m_packets, bytes = m_bytes, flows = m_flows, lastSeen = m_lastSeen;
+        boolean[] used = m_used;
+        allocate(capacity);
+        m_size = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                int slot = insert(hi[i], lo[i]);
+                m_packets[slot] = packets[i];
+                m_bytes[slot] = bytes[i];
+                m_flows[slot] = flows[i];
+                m_lastSeen[slot] = lastSeen[i];
+            }
+        }
+    }
+
+    private static int hash(long hi, long lo) {
+        long h = (hi * 0x9e3779b97f4a7c15L) ^ lo;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
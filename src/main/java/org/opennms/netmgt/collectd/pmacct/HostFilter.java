@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Membership filter of the hosts worth keeping when scanning a pmacct
+ * table, keyed by packed address (see
+ * {@link org.opennms.netmgt.collectd.pmacct.HostAddress}).</p>
+ *
+ * <p>A table dump holds every host the daemon saw, while only the agents
+ * collected from are read out of it. The filter is a Bloom filter in front
+ * of an exact open addressing set: most rows of a busy table miss the Bloom
+ * filter after a few bit tests on a small array, and its false positives
+ * are settled by the exact set. Hosts are added and removed one at a time;
+ * a removal leaves its Bloom bits set, which only costs false positives, and
+ * the bits are rebuilt from the exact set once removals pile up. Hosts
+ * inside the prefixes of a {@link org.opennms.netmgt.collectd.pmacct.PrefixTrie}
+ * can be accepted as well, so prefix rollups still see them.</p>
+ *
+ * <p>A filter is not thread safe. Readers work on a {@link #copy()} that is
+ * never modified once published.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class HostFilter {
+
+    /** Bloom filter bits per host. */
+    private static final int BITS_PER_HOST = 16;
+
+    /** Bits tested per host in the Bloom filter. */
+    private static final int HASHES = 3;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int MIN_BITS = 1024;
+
+    private long[] m_hi, m_lo;
+
+    private boolean[] m_used;
+
+    private int m_size = 0;
+
+    private long[] m_bloom;
+
+    /** Removals since the Bloom bits were last rebuilt. */
+    private int m_removed = 0;
+
+    private PrefixTrie[] m_prefixes = new PrefixTrie[0];
+
+    /**
+     * <p>Constructor for HostFilter.</p>
+     */
+    public HostFilter() {
+        m_hi = new long[MIN_CAPACITY];
+        m_lo = new long[MIN_CAPACITY];
+        m_used = new boolean[MIN_CAPACITY];
+        m_bloom = new long[MIN_BITS / 64];
+    }
+
+    /**
+     * @param host the textual host address
+     * @return false if the address is invalid or already in the filter
+     */
+    public boolean add(String host) {
+        long[] packed = new long[2];
+        return HostAddress.pack(host, packed) && add(packed[0], packed[1]);
+    }
+
+    /**
+     * @param hi the high word of the packed address
+     * @param lo the low word of the packed address
+     * @return false if the host is already in the filter
+     */
+    public boolean add(long hi, long lo) {
+        if (find(hi, lo) >= 0) {
+            return false;
+        }
+        if ((m_size + 1) * 4 > m_used.length * 3) {
+            resize(m_used.length << 1);
+        }
+        insert(hi, lo);
+        if ((long) m_size * BITS_PER_HOST > (long) m_bloom.length * 64) {
+            rebuildBloom();
+        } else {
+            setBits(hi, lo);
+        }
+        return true;
+    }
+
+    /**
+     * @param host the textual host address
+     * @return false if the host is not in the filter
+     */
+    public boolean remove(String host) {
+        long[] packed = new long[2];
+        return HostAddress.pack(host, packed) && remove(packed[0], packed[1]);
+    }
+
+    /**
+     * @param hi the high word of the packed address
+     * @param lo the low word of the packed address
+     * @return false if the host is not in the filter
+     */
+    public boolean remove(long hi, long lo) {
+        int slot = find(hi, lo);
+        if (slot < 0) {
+            return false;
+        }
+        remove(slot);
+        // stale bits only make the exact set answer more often
+        if (++m_removed > m_size / 2 + MIN_CAPACITY) {
+            rebuildBloom();
+        }
+        return true;
+    }
+
+    /**
+     * @param hi the high word of the packed address
+     * @param lo the low word of the packed address
+     * @return true if rows of the host are to be kept
+     */
+    public boolean accepts(long hi, long lo) {
+        if (mightContain(hi, lo) && find(hi, lo) >= 0) {
+            return true;
+        }
+        for (PrefixTrie prefixes : m_prefixes) {
+            if (prefixes.lookup(hi, lo) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param host the textual host address
+     * @return true if rows of the host are to be kept, false for an invalid address
+     */
+    public boolean accepts(String host) {
+        long[] packed = new long[2];
+        return HostAddress.pack(host, packed) && accepts(packed[0], packed[1]);
+    }
+
+    /**
+     * @param hi the high word of the packed address
+     * @param lo the low word of the packed address
+     * @return false if the host is certainly not in the filter
+     */
+    public boolean mightContain(long hi, long lo) {
+        long h = hash(hi, lo);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        int mask = m_bloom.length * 64 - 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((m_bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of hosts in the filter, prefixes apart
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @return the number of prefix tries accepted besides the hosts
+     */
+    public int getPrefixCount() {
+        return m_prefixes.length;
+    }
+
+    /**
+     * @return a copy of the filter, sharing nothing with it
+     */
+    public HostFilter copy() {
+        HostFilter copy = new HostFilter();
+        copy.m_hi = m_hi.clone();
+        copy.m_lo = m_lo.clone();
+        copy.m_used = m_used.clone();
+        copy.m_size = m_size;
+        copy.m_bloom = m_bloom.clone();
+        copy.m_removed = m_removed;
+        copy.m_prefixes = m_prefixes;
+        return copy;
+    }
+
+    /**
+     * @param prefixes tries whose prefixes are accepted besides the hosts, may be empty
+     * @return a filter sharing the hosts of this one, which must not be modified any more
+     */
+    public HostFilter withPrefixes(List<PrefixTrie> prefixes) {
+        HostFilter filter = new HostFilter();
+        filter.m_hi = m_hi;
+        filter.m_lo = m_lo;
+        filter.m_used = m_used;
+        filter.m_size = m_size;
+        filter.m_bloom = m_bloom;
+        filter.m_removed = m_removed;
+        filter.m_prefixes = prefixes.toArray(new PrefixTrie[prefixes.size()]);
+        return filter;
+    }
+
+    private void setBits(long hi, long lo) {
+        long h = hash(hi, lo);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        int mask = m_bloom.length * 64 - 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            m_bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private void rebuildBloom() {
+        int bits = Math.max(MIN_BITS, Integer.highestOneBit(Math.max(1, m_size * BITS_PER_HOST - 1)) << 1);
+        if (bits == m_bloom.length * 64) {
+            Arrays.fill(m_bloom, 0);
+        } else {
+            m_bloom = new long[bits / 64];
+        }
+        for (int slot = 0; slot < m_used.length; slot++) {
+            if (m_used[slot]) {
+                setBits(m_hi[slot], m_lo[slot]);
+            }
+        }
+        m_removed = 0;
+    }
+
+    private int find(long hi, long lo) {
+        int mask = m_used.length - 1;
+        for (int slot = (int) hash(hi, lo) & mask; m_used[slot]; slot = (slot + 1) & mask) {
+            if (m_hi[slot] == hi && m_lo[slot] == lo) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long hi, long lo) {
+        int mask = m_used.length - 1;
+        int slot = (int) hash(hi, lo) & mask;
+        while (m_used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        m_used[slot] = true;
+        m_hi[slot] = hi;
+        m_lo[slot] = lo;
+        m_size++;
+    }
+
+    private void remove(int slot) {
+        int mask = m_used.length - 1;
+        m_used[slot] = false;
+        m_size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; m_used[next]; next = (next + 1) & mask) {
+            int home = (int) hash(m_hi[next], m_lo[next]) & mask;
+            // move the entry into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                m_used[hole] = true;
+                m_hi[hole] = m_hi[next];
+                m_lo[hole] = m_lo[next];
+                m_used[next] = false;
+                hole = next;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] hi = m_hi, lo = m_lo;
+        boolean[] used = m_used;
+        m_hi = new long[capacity];
+        m_lo = new long[capacity];
+        m_used = new boolean[capacity];
+        m_size = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                insert(hi[i], lo[i]);
+            }
+        }
+    }
+
+    private static long hash(long hi, long lo) {
+        long h = (hi * 0x9e3779b97f4a7c15L) ^ lo;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Histogram of durations with power of two microsecond buckets, recorded
+ * without locks.</p>
+ *
+ * <p>Bucket <code>i</code> counts the durations under 2<sup>i</sup>
+ * microseconds, the last one everything longer, so percentiles are known to
+ * within a factor of two from one microsecond to half an hour. Like a
+ * {@link StripedCounter}, every thread records into a stripe of its own:
+ * the buckets, count and total of a stripe are contiguous and stripes start
+ * on separate cache lines. Recording is two or three atomic adds.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets. */
+    public static final int BUCKETS = 32;
+
+    private static final int COUNT = BUCKETS, TOTAL = BUCKETS + 1;
+
+    /** Longs per stripe, rounded up to whole cache lines. */
+    private static final int STRIDE = (TOTAL + StripedCounter.PAD) / StripedCounter.PAD * StripedCounter.PAD;
+
+    private final AtomicLongArray m_cells = new AtomicLongArray(StripedCounter.STRIPES * STRIDE);
+
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * @param nanos a duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        int base = StripedCounter.stripe() * STRIDE;
+        m_cells.incrementAndGet(base + bucket);
+        m_cells.incrementAndGet(base + COUNT);
+        m_cells.addAndGet(base + TOTAL, nanos);
+        long max;
+        while (nanos > (max = m_max.get()) && !m_max.compareAndSet(max, nanos)) {
+            // retry until the max is ours or larger
+        }
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+        return sum(COUNT);
+    }
+
+    /**
+     * @return the sum of the durations recorded, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return sum(TOTAL);
+    }
+
+    /**
+     * @return the longest duration recorded, in nanoseconds
+     */
+    public long getMaxNanos() {
+        return m_max.get();
+    }
+
+    /**
+     * @return the mean duration, in milliseconds, 0 if none was recorded
+     */
+    public double getMeanMillis() {
+        long count = getCount();
+        return count == 0 ? 0 : getTotalNanos() / 1e6 / count;
+    }
+
+    /**
+     * @return the count of each bucket
+     */
+    public long[] getBuckets() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = sum(i);
+        }
+        return buckets;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the upper bound of the bucket holding the quantile, in
+     *         milliseconds (the max for the last bucket), 0 if none was recorded
+     */
+    public double getPercentileMillis(double quantile) {
+        long[] buckets = getBuckets();
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) / 1000.0, getMaxNanos() / 1e6);
+            }
+        }
+        return getMaxNanos() / 1e6;
+    }
+
+    private long sum(int offset) {
+        long sum = 0;
+        for (int i = 0; i < StripedCounter.STRIPES; i++) {
+            sum += m_cells.get(i * STRIDE + offset);
+        }
+        return sum;
+    }
+}
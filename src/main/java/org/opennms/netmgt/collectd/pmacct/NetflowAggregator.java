@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+
+/**
+ * <p>In-JVM replacement for the nfacctd memory plugin: accumulates the
+ * bytes, packets and flows of decoded NetFlow records per source and per
+ * destination host, and hands them to the collector as table snapshots.</p>
+ *
+ * <p>Counters live in two {@link org.opennms.netmgt.collectd.pmacct.HostCounterTable}s
+ * sharing the configured memory budget; hosts idle for longer than the
+ * idle timeout are evicted when a table is full.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class NetflowAggregator implements PmacctTableSource {
+
+    private final long m_memoryBudget;
+
+    private final HostCounterTable m_sources;
+
+    private final HostCounterTable m_destinations;
+
+    private long m_records = 0;
+
+    /**
+     * <p>Constructor for NetflowAggregator.</p>
+     *
+     * @param memoryBudget maximum memory used by the host tables, in bytes
+     * @param idleTimeout hosts idle for that long (in milliseconds) can be evicted
+     */
+    public NetflowAggregator(long memoryBudget, long idleTimeout) {
+        m_memoryBudget = memoryBudget;
+        m_sources = new HostCounterTable(1024, memoryBudget / 2, idleTimeout);
+        m_destinations = new HostCounterTable(1024, memoryBudget / 2, idleTimeout);
+    }
+
+    /**
+     * Set the time stamped on the hosts updated from now on.
+     *
+     * @param now the current time, in milliseconds
+     */
+    public synchronized void setClock(long now) {
+        m_sources.setClock(now);
+        m_destinations.setClock(now);
+    }
+
+    /**
+     * Account one flow record.
+     *
+     * @param src raw source address, 4 or 16 bytes
+     * @param dst raw destination address, 4 or 16 bytes
+     * @param packets packets of the flow
+     * @param bytes bytes of the flow
+     * @param flows number of flows the record stands for
+     */
+    public synchronized void account(byte[] src, byte[] dst, long packets, long bytes, long flows) {
+        m_sources.add(HostAddress.hi(src), HostAddress.lo(src), packets, bytes, flows);
+        m_destinations.add(HostAddress.hi(dst), HostAddress.lo(dst), packets, bytes, flows);
+        m_records++;
+    }
+
+    /**
+     * @return the number of flow records accounted so far
+     */
+    public synchronized long getRecordCount() {
+        return m_records;
+    }
+
+    /**
+     * @return the number of new hosts dropped because a table was full
+     */
+    public synchronized long getDroppedCount() {
+        return m_sources.getDroppedCount() + m_destinations.getDroppedCount();
+    }
+
+    /** {@inheritDoc} */
+    public PmacctTableSnapshot dump(PmacctOptions options, long timestamp) throws IOException {
+        String column = PmacctTableSnapshot.getHostColumn(options.getAggregate());
+        if (column == null) {
+            throw new IOException("aggregate '" + options.getAggregate() + "' has no host primitive");
+        }
+        HostCounterTable table;
+        // only copy the arrays while holding the lock, the receiver thread waits on it in account()
+        synchronized (this) {
+            HostCounterTable live = "SRC_IP".equals(column) ? m_sources : m_destinations;
+            table = live.copy();
+            if (options.isReset()) {
+                live.clear();
+            }
+        }
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder(m_memoryBudget / 2);
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isUsed(slot)) {
+                builder.add(table.getHi(slot), table.getLo(slot), table.getPackets(slot),
+                            table.getBytes(slot), table.getFlows(slot));
+            }
+        }
+        return builder.build(timestamp);
+    }
+}
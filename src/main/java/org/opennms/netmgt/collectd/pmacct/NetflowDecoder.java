@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Decodes NetFlow v5 and v9 export packets and feeds their records to a
+ * {@link org.opennms.netmgt.collectd.pmacct.NetflowAggregator}.</p>
+ *
+ * <p>v9 data flowsets are decoded with the templates previously received
+ * from the same exporter and source id; data arriving before its template
+ * is dropped. Only the fields needed for host accounting are read
+ * (addresses, bytes, packets, flows). A decoder is not thread safe, each
+ * receiving thread owns one.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class NetflowDecoder {
+
+    private static final int V5_HEADER_SIZE = 24;
+    private static final int V5_RECORD_SIZE = 48;
+    private static final int V9_HEADER_SIZE = 20;
+
+    private static final int IN_BYTES = 1;
+    private static final int IN_PKTS = 2;
+    private static final int FLOWS = 3;
+    private static final int IPV4_SRC_ADDR = 8;
+    private static final int IPV4_DST_ADDR = 12;
+    private static final int OUT_BYTES = 23;
+    private static final int OUT_PKTS = 24;
+    private static final int IPV6_SRC_ADDR = 27;
+    private static final int IPV6_DST_ADDR = 28;
+
+    /** Field offsets of a v9 template, -1 when the field is absent. */
+    static class Template {
+        int m_length;
+        int m_srcOffset = -1, m_srcLength;
+        int m_dstOffset = -1, m_dstLength;
+        int m_bytesOffset = -1, m_bytesLength;
+        int m_packetsOffset = -1, m_packetsLength;
+        int m_flowsOffset = -1, m_flowsLength;
+    }
+
+    private final NetflowAggregator m_aggregator;
+
+    private final Map<Integer, Map<Long, Template>> m_templates = new HashMap<Integer, Map<Long, Template>>();
+
+    private final byte[] m_src4 = new byte[4], m_dst4 = new byte[4];
+
+    private final byte[] m_src16 = new byte[16], m_dst16 = new byte[16];
+
+    private long m_packets = 0;
+
+    private long m_errors = 0;
+
+    /**
+     * <p>Constructor for NetflowDecoder.</p>
+     *
+     * @param aggregator where decoded records are accounted
+     */
+    public NetflowDecoder(NetflowAggregator aggregator) {
+        m_aggregator = aggregator;
+    }
+
+    /**
+     * Decode one export packet, from the position to the limit of <code>buffer</code>.
+     *
+     * @param buffer the packet, in network byte order
+     * @param exporter an identifier of the exporter the packet came from
+     */
+    public void decode(ByteBuffer buffer, int exporter) {
+        m_packets++;
+        m_aggregator.setClock(System.currentTimeMillis());
+        try {
+            int version = buffer.getShort(buffer.position()) & 0xffff;
+            if (version == 5) {
+                decodeV5(buffer);
+            } else if (version == 9) {
+                decodeV9(buffer, exporter);
+            } else {
+                m_errors++;
+            }
+        } catch (RuntimeException e) {
+            // truncated or malformed packet
+            m_errors++;
+        }
+    }
+
+    /**
+     * @return the number of packets handed to the decoder
+     */
+    public long getPacketCount() {
+        return m_packets;
+    }
+
+    /**
+     * @return the number of packets that could not be decoded
+     */
+    public long getErrorCount() {
+        return m_errors;
+    }
+
+    private void decodeV5(ByteBuffer buffer) {
+        int base = buffer.position();
+        int count = buffer.getShort(base + 2) & 0xffff;
+        int record = base + V5_HEADER_SIZE;
+        if (record + count * V5_RECORD_SIZE > buffer.limit()) {
+            m_errors++;
+            return;
+        }
+        for (int i = 0; i < count; i++, record += V5_RECORD_SIZE) {
+            readAddress(buffer, record, m_src4);
+            readAddress(buffer, record + 4, m_dst4);
+            long packets = buffer.getInt(record + 16) & 0xffffffffL;
+            long bytes = buffer.getInt(record + 20) & 0xffffffffL;
+            m_aggregator.account(m_src4, m_dst4, packets, bytes, 1);
+        }
+    }
+
+    private void decodeV9(ByteBuffer buffer, int exporter) {
+        int base = buffer.position();
+        int end = buffer.limit();
+        long sourceId = buffer.getInt(base + 16) & 0xffffffffL;
+        int flowset = base + V9_HEADER_SIZE;
+        while (flowset + 4 <= end) {
+            int id = buffer.getShort(flowset) & 0xffff;
+            int length = buffer.getShort(flowset + 2) & 0xffff;
+            if (length < 4 || flowset + length > end) {
+                m_errors++;
+                return;
+            }
+            if (id == 0) {
+                readTemplates(buffer, flowset + 4, flowset + length, exporter, sourceId);
+            } else if (id >= 256) {
+                Map<Long, Template> templates = m_templates.get(Integer.valueOf(exporter));
+                Template template = templates == null ? null : templates.get(templateKey(sourceId, id));
+                if (template != null && template.m_length > 0) {
+                    readData(buffer, flowset + 4, flowset + length, template);
+                }
+            }
+            // id 1 is an options template, not needed for host accounting
+            flowset += length;
+        }
+    }
+
+    private void readTemplates(ByteBuffer buffer, int offset, int end, int exporter, long sourceId) {
+        while (offset + 4 <= end) {
+            int templateId = buffer.getShort(offset) & 0xffff;
+            int fieldCount = buffer.getShort(offset + 2) & 0xffff;
+            offset += 4;
+            if (offset + fieldCount * 4 > end) {
+                m_errors++;
+                return;
+            }
+            Template template = new Template();
+            int position = 0;
+            for (int i = 0; i < fieldCount; i++, offset += 4) {
+                int type = buffer.getShort(offset) & 0xffff;
+                int length = buffer.getShort(offset + 2) & 0xffff;
+                switch (type) {
+                case IPV4_SRC_ADDR:
+                case IPV6_SRC_ADDR:
+                    template.m_srcOffset = position;
+                    template.m_srcLength = length;
+                    break;
+                case IPV4_DST_ADDR:
+                case IPV6_DST_ADDR:
+                    template.m_dstOffset = position;
+                    template.m_dstLength = length;
+                    break;
+                case IN_BYTES:
+                case OUT_BYTES:
+                    if (template.m_bytesOffset < 0) {
+                        template.m_bytesOffset = position;
+                        template.m_bytesLength = length;
+                    }
+                    break;
+                case IN_PKTS:
+                case OUT_PKTS:
+                    if (template.m_packetsOffset < 0) {
+                        template.m_packetsOffset = position;
+                        template.m_packetsLength = length;
+                    }
+                    break;
+                case FLOWS:
+                    template.m_flowsOffset = position;
+                    template.m_flowsLength = length;
+                    break;
+                default:
+                    break;
+                }
+                position += length;
+            }
+            template.m_length = position;
+            if (template.m_srcOffset >= 0 && template.m_dstOffset >= 0) {
+                Map<Long, Template> templates = m_templates.get(Integer.valueOf(exporter));
+                if (templates == null) {
+                    templates = new HashMap<Long, Template>();
+                    m_templates.put(Integer.valueOf(exporter), templates);
+                }
+                templates.put(templateKey(sourceId, templateId), template);
+            }
+        }
+    }
+
+    private void readData(ByteBuffer buffer, int offset, int end, Template template) {
+        byte[] src = template.m_srcLength == 16 ? m_src16 : m_src4;
+        byte[] dst = template.m_dstLength == 16 ? m_dst16 : m_dst4;
+        for (; offset + template.m_length <= end; offset += template.m_length) {
+            readAddress(buffer, offset + template.m_srcOffset, src);
+            readAddress(buffer, offset + template.m_dstOffset, dst);
+            long bytes = readUnsigned(buffer, offset, template.m_bytesOffset, template.m_bytesLength, 0);
+            long packets = readUnsigned(buffer, offset, template.m_packetsOffset, template.m_packetsLength, 0);
+            long flows = readUnsigned(buffer, offset, template.m_flowsOffset, template.m_flowsLength, 1);
+            m_aggregator.account(src, dst, packets, bytes, flows);
+        }
+    }
+
+    private static void readAddress(ByteBuffer buffer, int offset, byte[] address) {
+        for (int i = 0; i < address.length; i++) {
+            address[i] = buffer.get(offset + i);
+        }
+    }
+
+    private static long readUnsigned(ByteBuffer buffer, int record, int offset, int length, long absent) {
+        if (offset < 0) {
+            return absent;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer.get(record + offset + i) & 0xff);
+        }
+        return value;
+    }
+
+    private static Long templateKey(long sourceId, int templateId) {
+        return Long.valueOf((sourceId << 16) | templateId);
+    }
+}
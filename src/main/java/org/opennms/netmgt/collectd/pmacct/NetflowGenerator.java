@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * <p>Synthetic NetFlow v5 traffic generator, to load and benchmark the
+ * embedded receiver.</p>
+ *
+ * <pre>
+ *   NetflowGenerator send &lt;host&gt; &lt;port&gt; &lt;packets&gt; [hosts]
+ *   NetflowGenerator decode &lt;packets&gt; [hosts]
+ * </pre>
+ *
+ * <p><code>send</code> replays the packets over UDP to a running receiver;
+ * <code>decode</code> runs the decoder and aggregator on the current thread
+ * without any socket and reports the packets per second one core sustains.
+ * Each packet carries 30 records between random pairs among
+ * <code>hosts</code> addresses of 10.0.0.0/8.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class NetflowGenerator {
+
+    private static final int RECORDS_PER_PACKET = 30;
+
+    private int m_sequence = 0;
+
+    private long m_seed = 42;
+
+    private final int m_hosts;
+
+    /**
+     * <p>Constructor for NetflowGenerator.</p>
+     *
+     * @param hosts number of distinct host addresses to draw from
+     */
+    public NetflowGenerator(int hosts) {
+        m_hosts = hosts;
+    }
+
+    /**
+     * Write the next v5 packet at the position of <code>buffer</code>.
+     *
+     * @param buffer a buffer with room for a full packet
+     */
+    public void next(ByteBuffer buffer) {
+        long now = System.currentTimeMillis();
+        buffer.putShort((short) 5);
+        buffer.putShort((short) RECORDS_PER_PACKET);
+        buffer.putInt(0);
+        buffer.putInt((int) (now / 1000));
+        buffer.putInt(0);
+        buffer.putInt(m_sequence);
+        buffer.putInt(0);
+        m_sequence += RECORDS_PER_PACKET;
+        for (int i = 0; i < RECORDS_PER_PACKET; i++) {
+            buffer.putInt(0x0a000000 | random(m_hosts));
+            buffer.putInt(0x0a000000 | random(m_hosts));
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(1 + random(100));
+            buffer.putInt(64 + random(1400));
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(0);
+        }
+    }
+
+    private int random(int bound) {
+        m_seed ^= m_seed << 13;
+        m_seed ^= m_seed >>> 7;
+        m_seed ^= m_seed << 17;
+        return (int) ((m_seed >>> 1) % bound);
+    }
+
+    /**
+     * <p>main</p>
+     *
+     * @param args see the class description
+     * @throws java.lang.Exception if any.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 4 && "send".equals(args[0])) {
+            int packets = Integer.parseInt(args[3]);
+            NetflowGenerator generator = new NetflowGenerator(args.length > 4 ? Integer.parseInt(args[4]) : 10000);
+            DatagramChannel channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(args[1], Integer.parseInt(args[2])));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1500);
+            long start = System.nanoTime();
+            for (int i = 0; i < packets; i++) {
+                buffer.clear();
+                generator.next(buffer);
+                buffer.flip();
+                channel.write(buffer);
+            }
+            report("sent", packets, System.nanoTime() - start);
+            channel.close();
+        } else if (args.length >= 2 && "decode".equals(args[0])) {
+            int packets = Integer.parseInt(args[1]);
+            NetflowGenerator generator = new NetflowGenerator(args.length > 2 ? Integer.parseInt(args[2]) : 10000);
+            NetflowDecoder decoder = new NetflowDecoder(new NetflowAggregator(PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, 0));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1500);
+            long start = System.nanoTime();
+            for (int i = 0; i < packets; i++) {
+                buffer.clear();
+                generator.next(buffer);
+                buffer.flip();
+                decoder.decode(buffer, 0);
+            }
+            report("decoded", packets, System.nanoTime() - start);
+        } else {
+            System.err.println("usage: NetflowGenerator send <host> <port> <packets> [hosts]");
+            System.err.println("       NetflowGenerator decode <packets> [hosts]");
+            System.exit(1);
+        }
+    }
+
+    private static void report(String what, int packets, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println(what + " " + packets + " packets (" + (packets * RECORDS_PER_PACKET) + " flows) in "
+                           + seconds + "s: " + (long) (packets / seconds) + " packets/s on one core");
+    }
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Receives NetFlow v5/v9 export packets on a UDP port and accounts them
+ * into a {@link org.opennms.netmgt.collectd.pmacct.NetflowAggregator}, so
+ * that collections in <code>netflow</code> mode need neither nfacctd nor
+ * any IPC.</p>
+ *
+ * <p>Packets are read on a single daemon thread into one direct buffer and
+ * decoded in place.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class NetflowReceiver implements Runnable {
+
+    private static final int MAX_PACKET_SIZE = 65535;
+
+    private final InetSocketAddress m_bindAddress;
+
+    private final int m_receiveBufferSize;
+
+    private final NetflowDecoder m_decoder;
+
+    private DatagramChannel m_channel;
+
+    private Thread m_thread;
+
+    private volatile boolean m_running = false;
+
+    /**
+     * <p>Constructor for NetflowReceiver.</p>
+     *
+     * @param bindAddress the address to listen on
+     * @param receiveBufferSize the socket receive buffer size, 0 keeps the system default
+     * @param aggregator where decoded records are accounted
+     */
+    public NetflowReceiver(InetSocketAddress bindAddress, int receiveBufferSize, NetflowAggregator aggregator) {
+        m_bindAddress = bindAddress;
+        m_receiveBufferSize = receiveBufferSize;
+        m_decoder = new NetflowDecoder(aggregator);
+    }
+
+    /**
+     * Bind the port and start receiving.
+     *
+     * @throws java.io.IOException if the port cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        m_channel = DatagramChannel.open();
+        if (m_receiveBufferSize > 0) {
+            m_channel.socket().setReceiveBufferSize(m_receiveBufferSize);
+        }
+        m_channel.socket().bind(m_bindAddress);
+        m_running = true;
+        m_thread = new Thread(this, "NetflowReceiver-" + m_channel.socket().getLocalPort());
+        m_thread.setDaemon(true);
+        m_thread.start();
+        log().info("start: receiving NetFlow on " + m_channel.socket().getLocalSocketAddress());
+    }
+
+    /**
+     * Stop receiving and release the port.
+     */
+    public synchronized void stop() {
+        m_running = false;
+        if (m_channel != null) {
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * @return the port the receiver listens on
+     */
+    public int getPort() {
+        return m_channel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the decoder fed by this receiver
+     */
+    public NetflowDecoder getDecoder() {
+        return m_decoder;
+    }
+
+    /**
+     * <p>run</p>
+     */
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        while (m_running) {
+            try {
+                buffer.clear();
+                SocketAddress from = m_channel.receive(buffer);
+                buffer.flip();
+                int exporter = from instanceof InetSocketAddress ? ((InetSocketAddress) from).getAddress().hashCode() : 0;
+                m_decoder.decode(buffer, exporter);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                log().warn("run: error receiving NetFlow packet: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
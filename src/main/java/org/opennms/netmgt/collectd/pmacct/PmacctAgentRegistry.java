@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Addresses of the agents scheduled for each pmacct collection, as
+ * announced to the collector through
+ * <code>initialize(CollectionAgent, Map)</code> and
+ * <code>release(CollectionAgent)</code>.</p>
+ *
+ * <p>The addresses of every collection are also kept in a
+ * {@link org.opennms.netmgt.collectd.pmacct.HostFilter}, updated one agent
+ * at a time, that table dumps are filtered with.</p>
+ *
+ * <p>Every collection cycle registers its agent again, in case it was
+ * released in between; an agent already registered is recognized without
+ * taking the registry lock, so the cycles of a large schedule do not queue
+ * on it.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctAgentRegistry {
+
+    private final Map<String, Set<String>> m_hosts = new HashMap<String, Set<String>>();
+
+    /** The registered agents, by {@link #key(String, String)}, read without the lock. */
+    private final ConcurrentMap<String, Boolean> m_registered = new ConcurrentHashMap<String, Boolean>();
+
+    private final HostFilter m_filter = new HostFilter();
+
+    /** Copy of the filter handed to readers, null when the filter changed since. */
+    private HostFilter m_published;
+
+    /**
+     * @param collection the collection name
+     * @param host the agent address
+     * @return true if the agent was not registered yet
+     */
+    public boolean register(String collection, String host) {
+        String key = key(collection, host);
+        if (m_registered.containsKey(key)) {
+            return false;
+        }
+        synchronized (this) {
+            Set<String> hosts = m_hosts.get(collection);
+            if (hosts == null) {
+                hosts = new LinkedHashSet<String>();
+                m_hosts.put(collection, hosts);
+            }
+            if (!hosts.add(host)) {
+                return false;
+            }
+            m_registered.put(key, Boolean.TRUE);
+            if (m_filter.add(host)) {
+                m_published = null;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Forget an agent in every collection.
+     *
+     * @param host the agent address
+     */
+    public synchronized void unregister(String host) {
+        for (Map.Entry<String, Set<String>> hosts : m_hosts.entrySet()) {
+            if (hosts.getValue().remove(host)) {
+                m_registered.remove(key(hosts.getKey(), host));
+            }
+        }
+        if (m_filter.remove(host)) {
+            m_published = null;
+        }
+    }
+
+    /**
+     * @param collection the collection name
+     * @return a copy of the addresses registered for the collection
+     */
+    public synchronized List<String> getHosts(String collection) {
+        Set<String> hosts = m_hosts.get(collection);
+        return hosts == null ? new ArrayList<String>() : new ArrayList<String>(hosts);
+    }
+
+    /**
+     * @return the addresses registered in any collection, not to be modified
+     */
+    public synchronized HostFilter getFilter() {
+        if (m_published == null) {
+            m_published = m_filter.copy();
+        }
+        return m_published;
+    }
+
+    private static String key(String collection, String host) {
+        return collection + ' ' + host;
+    }
+}
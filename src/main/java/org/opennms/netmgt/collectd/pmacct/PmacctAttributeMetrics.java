@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Metrics of one attribute of a pmacct collection: how long reading it
+ * for a node takes, what it produced and why it failed. Results and
+ * failures are added to those of the collection as well.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctAttributeMetrics extends PmacctResultMetrics implements PmacctAttributeMetricsMBean {
+
+    private final PmacctCollectionMetrics m_collection;
+
+    private final String m_alias;
+
+    private final LatencyHistogram m_fetches = new LatencyHistogram();
+
+    private final LatencyHistogram m_parses = new LatencyHistogram();
+
+    /**
+     * <p>Constructor for PmacctAttributeMetrics.</p>
+     *
+     * @param collection the metrics of the collection of the attribute
+     * @param alias the alias of the attribute
+     */
+    public PmacctAttributeMetrics(PmacctCollectionMetrics collection, String alias) {
+        m_collection = collection;
+        m_alias = alias;
+    }
+
+    /**
+     * @param nanos the time taken to read the attribute for a node, whatever the outcome
+     */
+    public void fetched(long nanos) {
+        m_fetches.record(nanos);
+    }
+
+    /**
+     * @param nanos the time taken to parse a pmacct output
+     * @param rows the number of counters or lines parsed
+     */
+    public void parsed(long nanos, long rows) {
+        m_parses.record(nanos);
+        scanned(rows);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void produced(int attributes) {
+        super.produced(attributes);
+        m_collection.produced(attributes);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void scanned(long rows) {
+        super.scanned(rows);
+        m_collection.scanned(rows);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void suppressed() {
+        super.suppressed();
+        m_collection.suppressed();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void failed(int cause) {
+        super.failed(cause);
+        m_collection.failed(cause);
+    }
+
+    /** {@inheritDoc} */
+    public String getCollection() {
+        return m_collection.getName();
+    }
+
+    /** {@inheritDoc} */
+    public String getAlias() {
+        return m_alias;
+    }
+
+    /** {@inheritDoc} */
+    public long getFetchCount() {
+        return m_fetches.getCount();
+    }
+
+    /** {@inheritDoc} */
+    public double getFetchMeanMillis() {
+        return m_fetches.getMeanMillis();
+    }
+
+    /** {@inheritDoc} */
+    public double getFetchP50Millis() {
+        return m_fetches.getPercentileMillis(0.5);
+    }
+
+    /** {@inheritDoc} */
+    public double getFetchP95Millis() {
+        return m_fetches.getPercentileMillis(0.95);
+    }
+
+    /** {@inheritDoc} */
+    public double getFetchP99Millis() {
+        return m_fetches.getPercentileMillis(0.99);
+    }
+
+    /** {@inheritDoc} */
+    public double getFetchMaxMillis() {
+        return m_fetches.getMaxNanos() / 1e6;
+    }
+
+    /** {@inheritDoc} */
+    public long[] getFetchHistogram() {
+        return m_fetches.getBuckets();
+    }
+
+    /** {@inheritDoc} */
+    public long getParseCount() {
+        return m_parses.getCount();
+    }
+
+    /** {@inheritDoc} */
+    public double getParseMeanMillis() {
+        return m_parses.getMeanMillis();
+    }
+
+    /** {@inheritDoc} */
+    public double getParseP95Millis() {
+        return m_parses.getPercentileMillis(0.95);
+    }
+
+    /** {@inheritDoc} */
+    public double getParseMaxMillis() {
+        return m_parses.getMaxNanos() / 1e6;
+    }
+}
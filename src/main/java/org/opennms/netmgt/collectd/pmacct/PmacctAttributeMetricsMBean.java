@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Management interface of the metrics of one attribute of a pmacct
+ * collection.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public interface PmacctAttributeMetricsMBean extends PmacctResultMetricsMBean {
+
+    /**
+     * @return the name of the collection of the attribute
+     */
+    String getCollection();
+
+    /**
+     * @return the alias of the attribute
+     */
+    String getAlias();
+
+    /**
+     * @return the number of reads of the attribute for a node, failed ones included
+     */
+    long getFetchCount();
+
+    /**
+     * @return the mean time to read the attribute for a node, in milliseconds
+     */
+    double getFetchMeanMillis();
+
+    /**
+     * @return the median time to read the attribute for a node, in milliseconds
+     */
+    double getFetchP50Millis();
+
+    /**
+     * @return the 95th percentile of the time to read the attribute for a node, in milliseconds
+     */
+    double getFetchP95Millis();
+
+    /**
+     * @return the 99th percentile of the time to read the attribute for a node, in milliseconds
+     */
+    double getFetchP99Millis();
+
+    /**
+     * @return the longest time to read the attribute for a node, in milliseconds
+     */
+    double getFetchMaxMillis();
+
+    /**
+     * @return the reads by duration, bucket <code>i</code> counting those
+     *         under 2<sup>i</sup> microseconds
+     */
+    long[] getFetchHistogram();
+
+    /**
+     * @return the number of pmacct outputs parsed, in exec mode
+     */
+    long getParseCount();
+
+    /**
+     * @return the mean time to parse a pmacct output, in milliseconds
+     */
+    double getParseMeanMillis();
+
+    /**
+     * @return the 95th percentile of the time to parse a pmacct output, in milliseconds
+     */
+    double getParseP95Millis();
+
+    /**
+     * @return the longest time to parse a pmacct output, in milliseconds
+     */
+    double getParseMaxMillis();
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Backoff state of the hosts that pmacct had nothing for, per query and
+ * host, so the collections in exec mode stop running pmacct for them at
+ * every interval. A query is a pipe with the aggregation key given with
+ * <code>-c</code>: a host missing from the <code>dst_host</code> entries
+ * of a pipe may still have <code>src_host</code> ones.</p>
+ *
+ * <p>A host whose query of a pipe found no entry ({@link #EMPTY}) or failed
+ * ({@link #FAILED}) is not read again before a delay, doubled at every
+ * consecutive miss from the base delay up to the max delay, less up to a
+ * quarter picked from the host so that hosts that went missing together do
+ * not come back together. A read that finds the host forgets its state, and
+ * so does any table snapshot of the pipe and key holding the host, see
+ * {@link #reset(PmacctOptions, PmacctTableSnapshot)}.</p>
+ *
+ * <p>Like {@link org.opennms.netmgt.collectd.pmacct.CounterDeltaTable},
+ * the table is an open addressing hash table with linear probing over
+ * parallel primitive arrays, bounded by a memory budget. When full, the
+ * entries whose delay ran out longer than the max delay ago are evicted,
+ * and new misses are not backed off if that is not enough.</p>
+ *
+ * <p>The table is thread safe.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctBackoffTable {
+
+    /** Bytes used by one slot of the table. */
+    public static final int SLOT_SIZE = 4 + 3 * 8 + 4 + 1 + 1;
+
+    /** The host is not backed off. */
+    public static final int NONE = 0;
+
+    /** The pipe had no entry for the host. */
+    public static final int EMPTY = 1;
+
+    /** The pipe could not be read for the host. */
+    public static final int FAILED = 2;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int m_maxCapacity;
+
+    private long m_baseDelay, m_maxDelay;
+
+    private final Map<String, Integer> m_series = new HashMap<String, Integer>();
+
+    private int[] m_seriesIds, m_misses;
+
+    private long[] m_hi, m_lo, m_until;
+
+    private byte[] m_states;
+
+    private boolean[] m_used;
+
+    private int m_size = 0;
+
+    private long m_resets = 0, m_dropped = 0;
+
+    /**
+     * <p>Constructor for PmacctBackoffTable.</p>
+     *
+     * @param initialCapacity number of slots to start with
+     * @param memoryBudget maximum memory used by the slots, in bytes
+     * @param baseDelay delay after a first miss, in milliseconds, 0 never backs off
+     * @param maxDelay longest delay, in milliseconds
+     */
+    public PmacctBackoffTable(int initialCapacity, long memoryBudget, long baseDelay, long maxDelay) {
+        m_maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, memoryBudget / SLOT_SIZE)));
+        setDelays(baseDelay, maxDelay);
+        allocate(Math.min(m_maxCapacity, Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, initialCapacity - 1)) << 1)));
+    }
+
+    private void allocate(int capacity) {
+        m_seriesIds = new int[capacity];
+        m_misses = new int[capacity];
+        m_hi = new long[capacity];
+        m_lo = new long[capacity];
+        m_until = new long[capacity];
+        m_states = new byte[capacity];
+        m_used = new boolean[capacity];
+    }
+
+    /**
+     * Change the delays of the next misses.
+     *
+     * @param baseDelay delay after a first miss, in milliseconds, 0 never backs off
+     * @param maxDelay longest delay, in milliseconds
+     */
+    public synchronized void setDelays(long baseDelay, long maxDelay) {
+        m_baseDelay = baseDelay;
+        m_maxDelay = Math.max(baseDelay, maxDelay);
+    }
+
+    /**
+     * @param pipe a memory plugin pipe, null for the default one
+     * @param aggregate the aggregation key of the query, null for the default one
+     * @return the series id of the query, the same for as long as the table lives
+     */
+    public synchronized int getSeries(String pipe, String aggregate) {
+        String name = getSeriesName(pipe, aggregate);
+        Integer series = m_series.get(name);
+        if (series == null) {
+            series = Integer.valueOf(m_series.size());
+            m_series.put(name, series);
+        }
+        return series.intValue();
+    }
+
+    /**
+     * @param series the series id of a query
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param now the current time, in milliseconds
+     * @return the state of the host if it must not be read yet, {@link #NONE} if it can be
+     */
+    public synchronized int getBackoff(int series, long hi, long lo, long now) {
+        int slot = find(series, hi, lo);
+        if (slot < 0 || m_until[slot] <= now) {
+            return NONE;
+        }
+        return m_states[slot];
+    }
+
+    /**
+     * Record a read of the host that found an entry.
+     *
+     * @param series the series id of a query
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     */
+    public synchronized void succeeded(int series, long hi, long lo) {
+        if (m_size > 0) {
+            int slot = find(series, hi, lo);
+            if (slot >= 0) {
+                remove(slot);
+            }
+        }
+    }
+
+    /**
+     * Record a read of the host that found nothing or failed, and back it off.
+     *
+     * @param series the series id of a query
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param state {@link #EMPTY} or {@link #FAILED}
+     * @param now the current time, in milliseconds
+     * @return the delay before the next read of the host, in milliseconds, 0 if not backed off
+     */
+    public synchronized long missed(int series, long hi, long lo, int state, long now) {
+        if (m_baseDelay <= 0) {
+            return 0;
+        }
+        int slot = find(series, hi, lo);
+        if (slot < 0) {
+            if (!ensureRoom(now)) {
+                m_dropped++;
+                return 0;
+            }
+            slot = insert(series, hi, lo);
+            m_misses[slot] = 0;
+        }
+        int misses = ++m_misses[slot];
+        long delay = m_baseDelay << Math.min(misses - 1, 62 - (64 - Long.numberOfLeadingZeros(m_baseDelay)));
+        delay = Math.min(m_maxDelay, delay);
+        delay -= (hash(series, hi, lo) & Integer.MAX_VALUE) % (delay / 4 + 1);
+        m_until[slot] = now + delay;
+        m_states[slot] = (byte) state;
+        return delay;
+    }
+
+    /**
+     * Forget the state of the hosts present in a snapshot of the pipes of
+     * <code>options</code>, for the queries of its aggregation key.
+     *
+     * @param options the options the snapshot was read with
+     * @param snapshot the snapshot read
+     * @return the number of hosts no longer backed off
+     */
+    public synchronized int reset(PmacctOptions options, PmacctTableSnapshot snapshot) {
+        if (m_size == 0) {
+            return 0;
+        }
+        List<String> pipes = options.getPipes().isEmpty() ? Collections.<String>singletonList(null) : options.getPipes();
+        HostCounterTable table = snapshot.getTable();
+        int reset = 0;
+        for (String pipe : pipes) {
+            Integer series = m_series.get(getSeriesName(pipe, options.getAggregate()));
+            if (series == null) {
+                continue;
+            }
+            for (int slot = 0; slot < m_used.length; slot++) {
+                // a shifted entry may land on the current slot, check it again
+                while (m_used[slot] && m_seriesIds[slot] == series.intValue()
+                        && table.find(m_hi[slot], m_lo[slot]) >= 0) {
+                    remove(slot);
+                    reset++;
+                }
+            }
+        }
+        m_resets += reset;
+        return reset;
+    }
+
+    /**
+     * @return the number of hosts with a backoff state
+     */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * @return the number of hosts no longer backed off because a snapshot held them
+     */
+    public synchronized long getResetCount() {
+        return m_resets;
+    }
+
+    /**
+     * @return the number of misses not backed off because the table was full
+     */
+    public synchronized long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * Forget every state.
+     */
+    public synchronized void clear() {
+        java.util.Arrays.fill(m_used, false);
+        m_size = 0;
+    }
+
+    private static String getSeriesName(String pipe, String aggregate) {
+        // options are split on blanks, a tab cannot be part of either
+        return (pipe == null ? "" : pipe) + '\t' + (aggregate == null ? "" : aggregate);
+    }
+
+    private int find(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        for (int slot = hash(series, hi, lo) & mask; m_used[slot]; slot = (slot + 1) & mask) {
+            if (m_lo[slot] == lo && m_hi[slot] == hi && m_seriesIds[slot] == series) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean ensureRoom(long now) {
+        if ((m_size + 1) * 4 <= m_used.length * 3) {
+            return true;
+        }
+        if (m_used.length < m_maxCapacity) {
+            resize(m_used.length << 1);
+            return true;
+        }
+        if (evictExpired(now - m_maxDelay) > 0) {
+            return (m_size + 1) * 4 <= m_used.length * 3;
+        }
+        return false;
+    }
+
+    private int evictExpired(long before) {
+        int evicted = 0;
+        for (int slot = 0; slot < m_used.length; slot++) {
+            // a shifted entry may land on the current slot, check it again
+            while (m_used[slot] && m_until[slot] < before) {
+                remove(slot);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private int insert(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        int slot = hash(series, hi, lo) & mask;
+        while (m_used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        m_used[slot] = true;
+        m_seriesIds[slot] = series;
+        m_hi[slot] = hi;
+        m_lo[slot] = lo;
+        m_size++;
+        return slot;
+    }
+
+    private void remove(int slot) {
+        int mask = m_used.length - 1;
+        m_used[slot] = false;
+        m_size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; m_used[next]; next = (next + 1) & mask) {
+            int home = hash(m_seriesIds[next], m_hi[next], m_lo[next]) & mask;
+            // move the entry into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+    }
+
+    private void move(int from, int to) {
+        m_used[to] = true;
+        m_seriesIds[to] = m_seriesIds[from];
+        m_misses[to] = m_misses[from];
+        m_hi[to] = m_hi[from];
+        m_lo[to] = m_lo[from];
+        m_until[to] = m_until[from];
+        m_states[to] = m_states[from];
+        m_used[from] = false;
+    }
+
+    private void resize(int capacity) {
+        int[] seriesIds = m_seriesIds, misses = m_misses;
+        long[] hi = m_hi, lo = m_lo, until = m_until;
+        byte[] states = m_states;
+        boolean[] used = m_used;
+        allocate(capacity);
+        m_size = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                int slot = insert(seriesIds[i], hi[i], lo[i]);
+                m_misses[slot] = misses[i];
+                m_until[slot] = until[i];
+                m_states[slot] = states[i];
+            }
+        }
+    }
+
+    private static int hash(int series, long hi, long lo) {
+        long h = ((hi * 0x9e3779b97f4a7c15L) ^ lo) + series * 0xc2b2ae3d27d4eb4fL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Reads the entries of a known set of hosts with multi-key
+ * <code>pmacct -M "ip1;ip2;..."</code> queries, one per batch of hosts,
+ * instead of one <code>-N</code> query per host.</p>
+ *
+ * <p>The attribute options are rewritten with
+ * {@link org.opennms.netmgt.collectd.pmacct.PmacctOptions#getMatchTokens(String)};
+ * the table formatted reply of every batch is indexed on the host column,
+ * so it splits back onto each host whatever order pmacct answers in.
+ * Resets (<code>-r</code>) apply to the matched entries only.</p>
+ *
+ * <p>A batch that cannot be read is left out and reported in the snapshot
+ * (see {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot#getFailedPipes()}),
+ * its hosts then have no entry; the dump only fails when no batch could be
+ * read.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctBatchTableSource implements PmacctTableSource {
+
+    private final PmacctProcessExecutor m_executor;
+
+    private final String m_pmacctPath;
+
+    private final long m_timeout;
+
+    private final long m_memoryBudget;
+
+    private final List<String> m_hosts;
+
+    private final int m_batchSize;
+
+    /**
+     * <p>Constructor for PmacctBatchTableSource.</p>
+     *
+     * @param executor runs the pmacct clients
+     * @param pmacctPath path to the pmacct client
+     * @param timeout deadline of a pmacct run, in milliseconds
+     * @param memoryBudget maximum memory used by the host table of a snapshot, in bytes
+     * @param hosts the hosts to query
+     * @param batchSize maximum number of hosts per query
+     */
+    public PmacctBatchTableSource(PmacctProcessExecutor executor, String pmacctPath, long timeout, long memoryBudget,
+            List<String> hosts, int batchSize) {
+        m_executor = executor;
+        m_pmacctPath = pmacctPath;
+        m_timeout = timeout;
+        m_memoryBudget = memoryBudget;
+        m_hosts = hosts;
+        m_batchSize = Math.max(1, batchSize);
+    }
+
+    /** {@inheritDoc} */
+    public PmacctTableSnapshot dump(PmacctOptions options, long timestamp) throws IOException {
+        List<String> batches = new ArrayList<String>();
+        StringBuffer keys = new StringBuffer();
+        int count = 0;
+        for (String host : m_hosts) {
+            if (count > 0) {
+                keys.append(';');
+            }
+            keys.append(host);
+            if (++count == m_batchSize) {
+                batches.add(keys.toString());
+                keys.setLength(0);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            batches.add(keys.toString());
+        }
+
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder(m_memoryBudget);
+        StringBuffer failures = new StringBuffer();
+        for (int i = 0; i < batches.size(); i++) {
+            // a batch failing half way through its reply must not leave part of its entries behind
+            PmacctTableSnapshot.Builder batch = new PmacctTableSnapshot.Builder(m_memoryBudget);
+            try {
+                query(options, batches.get(i), batch);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                String name = (options.getPipe() == null ? "" : options.getPipe() + " ") + "batch " + (i + 1);
+                log().warn("dump: unable to read " + name + " of " + options + ": " + e.getMessage());
+                builder.failed(name, String.valueOf(e.getMessage()));
+                failures.append(failures.length() > 0 ? "; " : "").append(name).append(": ").append(e.getMessage());
+                continue;
+            }
+            builder.add(batch.build(timestamp));
+        }
+        PmacctTableSnapshot snapshot = builder.build(timestamp);
+        if (!batches.isEmpty() && snapshot.getFailedPipes().size() == batches.size()) {
+            throw new IOException("no batch could be read: " + failures);
+        }
+        return snapshot;
+    }
+
+    private void query(final PmacctOptions options, String keys, final PmacctTableSnapshot.Builder builder) throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(m_pmacctPath);
+        cmd.addAll(options.getMatchTokens(keys));
+        if (log().isDebugEnabled()) {
+            log().debug("query: " + cmd);
+        }
+        m_executor.execute(cmd.toArray(new String[cmd.size()]), m_timeout, new PmacctProcessExecutor.OutputHandler() {
+            public void handle(InputStream stdout) throws IOException {
+                PmacctTableSnapshot.parse(stdout, options.getAggregate(), builder);
+            }
+        });
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Rates of the billed attributes of each collection, kept as one
+ * {@link org.opennms.netmgt.collectd.pmacct.BillingSketchTable} per
+ * calendar month: the 95th (or any) percentile of a host over the month
+ * is answered from memory, without reading months of RRD data.</p>
+ *
+ * <p>The table of the current month is saved every checkpoint interval,
+ * when closing the month and on {@link #stop()}, to
+ * <code>&lt;directory&gt;/&lt;collection&gt;/&lt;yyyy-MM&gt;.sketch</code>,
+ * and read back on the first rate of the month after a restart. Past months
+ * are read from those files for queries. Periods are checked and collection
+ * names sanitized before they are used as file names.</p>
+ *
+ * <p>The store is thread safe.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctBillingStore implements Runnable {
+
+    private static final String SUFFIX = ".sketch";
+
+    private static final Pattern PERIOD = Pattern.compile("\\d{4}-\\d{2}");
+
+    private static final int PAST_TABLES = 4;
+
+    private final File m_directory;
+
+    private final long m_memoryBudget;
+
+    private final TimeZone m_timeZone;
+
+    /** Table of the current period of each collection. */
+    private final Map<String, BillingSketchTable> m_current = new HashMap<String, BillingSketchTable>();
+
+    /** Modification count of each current table when last saved. */
+    private final Map<String, Long> m_saved = new HashMap<String, Long>();
+
+    /** Tables of past periods read for queries, by collection and period, least recently used first. */
+    private final Map<String, BillingSketchTable> m_past = new LinkedHashMap<String, BillingSketchTable>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BillingSketchTable> eldest) {
+            return size() > PAST_TABLES;
+        }
+    };
+
+    /** Held while writing a file, so that a checkpoint and the close of a period do not write at once. */
+    private final Object m_saveLock = new Object();
+
+    private ScheduledExecutorService m_checkpointer;
+
+    /**
+     * <p>Constructor for PmacctBillingStore.</p>
+     *
+     * @param directory where the tables are saved
+     * @param memoryBudget maximum memory used by the table of each collection, in bytes
+     * @param timeZone the time zone the billing months start in
+     */
+    public PmacctBillingStore(File directory, long memoryBudget, TimeZone timeZone) {
+        m_directory = directory;
+        m_memoryBudget = memoryBudget;
+        m_timeZone = timeZone;
+    }
+
+    /**
+     * Save the current tables every <code>interval</code> milliseconds.
+     *
+     * @param interval the checkpoint interval, in milliseconds
+     */
+    public synchronized void start(long interval) {
+        if (m_checkpointer != null) {
+            return;
+        }
+        m_checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PmacctBillingStore");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_checkpointer.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the checkpoints and save the current tables a last time.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (m_checkpointer != null) {
+                m_checkpointer.shutdownNow();
+                m_checkpointer = null;
+            }
+        }
+        run();
+    }
+
+    /**
+     * <p>run</p>
+     */
+    public void run() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            log().warn("run: unable to save billing sketches in " + m_directory + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Save the current tables changed since they were last saved.
+     *
+     * @throws java.io.IOException if a table cannot be saved
+     */
+    public void checkpoint() throws IOException {
+        Map<String, BillingSketchTable> tables;
+        synchronized (this) {
+            tables = new HashMap<String, BillingSketchTable>(m_current);
+        }
+        IOException failure = null;
+        for (Map.Entry<String, BillingSketchTable> entry : tables.entrySet()) {
+            try {
+                save(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param timestamp a time, in milliseconds
+     * @return the billing period of the time, <code>yyyy-MM</code>
+     */
+    public String getPeriod(long timestamp) {
+        Calendar calendar = Calendar.getInstance(m_timeZone);
+        calendar.setTimeInMillis(timestamp);
+        int month = calendar.get(Calendar.MONTH) + 1;
+        return calendar.get(Calendar.YEAR) + (month < 10 ? "-0" : "-") + month;
+    }
+
+    /**
+     * Count the rate of an interval for a host. The first rate of a new
+     * period saves and closes the table of the previous one.
+     *
+     * @param collection the name of the collection
+     * @param series the billed series, the alias of the attribute
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param rate the rate of the interval
+     * @param timestamp the end of the interval, in milliseconds
+     * @return false if the rate was dropped: the table is full, or the period closed
+     */
+    public boolean record(String collection, String series, long hi, long lo, double rate, long timestamp) {
+        BillingSketchTable table = getCurrentTable(collection, getPeriod(timestamp));
+        return table != null && table.add(table.getSeries(series), hi, lo, rate);
+    }
+
+    /**
+     * Answer a quantile of the current period from memory.
+     *
+     * @param collection the name of the collection
+     * @param series the billed series, the alias of the attribute
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param q the quantile, e.g. 0.95
+     * @return the quantile of the rates of the host in the current period, NaN if none was counted
+     */
+    public double getQuantile(String collection, String series, long hi, long lo, double q) {
+        BillingSketchTable table;
+        synchronized (this) {
+            table = m_current.get(collection);
+        }
+        return table == null ? Double.NaN : table.getQuantile(table.getSeries(series), hi, lo, q);
+    }
+
+    /**
+     * @param collection the name of the collection
+     * @param period a billing period, <code>yyyy-MM</code>
+     * @param series the billed series, the alias of the attribute
+     * @param host the address of a host
+     * @return the sketch of the rates of the host over the period, null if none was counted
+     * @throws java.io.IOException if the table of a past period cannot be read
+     * @throws java.lang.IllegalArgumentException if the period is not a <code>yyyy-MM</code> period
+     */
+    public QuantileSketch getSketch(String collection, String period, String series, String host) throws IOException {
+        long[] packed = new long[2];
+        BillingSketchTable table = getTable(collection, period);
+        if (table == null || !HostAddress.pack(host, packed)) {
+            return null;
+        }
+        return table.getSketch(series, packed[0], packed[1]);
+    }
+
+    /**
+     * @param collection the name of the collection
+     * @param period a billing period, <code>yyyy-MM</code>
+     * @param series the billed series, the alias of the attribute
+     * @return the sketches of the rates of every host over the period, by host address
+     * @throws java.io.IOException if the table of a past period cannot be read
+     * @throws java.lang.IllegalArgumentException if the period is not a <code>yyyy-MM</code> period
+     */
+    public Map<String, QuantileSketch> getSketches(String collection, String period, String series) throws IOException {
+        BillingSketchTable table = getTable(collection, period);
+        if (table == null) {
+            return Collections.emptyMap();
+        }
+        return table.getSketches(series);
+    }
+
+    /**
+     * @param collection the name of the collection
+     * @return the periods with rates for the collection, oldest first
+     */
+    public List<String> getPeriods(String collection) {
+        List<String> periods = new ArrayList<String>();
+        String[] files = getCollectionDirectory(collection).list();
+        if (files != null) {
+            for (String file : files) {
+                String period = file.substring(0, Math.max(0, file.length() - SUFFIX.length()));
+                if (file.endsWith(SUFFIX) && isPeriod(period)) {
+                    periods.add(period);
+                }
+            }
+        }
+        synchronized (this) {
+            BillingSketchTable table = m_current.get(collection);
+            if (table != null && !periods.contains(table.getPeriod())) {
+                periods.add(table.getPeriod());
+            }
+        }
+        Collections.sort(periods);
+        return periods;
+    }
+
+    private BillingSketchTable getCurrentTable(String collection, String period) {
+        BillingSketchTable closed;
+        BillingSketchTable table;
+        synchronized (this) {
+            table = m_current.get(collection);
+            if (table != null && table.getPeriod().equals(period)) {
+                return table;
+            }
+            if (table != null && table.getPeriod().compareTo(period) > 0) {
+                // a late rate of a closed period
+                return null;
+            }
+            closed = table;
+            table = read(collection, period);
+            if (table == null) {
+                table = new BillingSketchTable(period, m_memoryBudget);
+            }
+            m_current.put(collection, table);
+            m_saved.put(collection, Long.valueOf(table.getModCount()));
+        }
+        if (closed != null) {
+            try {
+                save(collection, closed);
+            } catch (IOException e) {
+                log().warn("getCurrentTable: unable to save billing sketches of " + collection + " for "
+                           + closed.getPeriod() + ": " + e.getMessage(), e);
+            }
+        }
+        return table;
+    }
+
+    private BillingSketchTable getTable(String collection, String period) throws IOException {
+        if (!isPeriod(period)) {
+            throw new IllegalArgumentException("invalid billing period " + period + ", expected yyyy-MM");
+        }
+        synchronized (this) {
+            BillingSketchTable table = m_current.get(collection);
+            if (table != null && table.getPeriod().equals(period)) {
+                return table;
+            }
+            table = m_past.get(collection + "/" + period);
+            if (table != null) {
+                return table;
+            }
+        }
+        File file = getFile(collection, period);
+        if (!file.exists()) {
+            return null;
+        }
+        BillingSketchTable table = load(file);
+        synchronized (this) {
+            m_past.put(collection + "/" + period, table);
+        }
+        return table;
+    }
+
+    /**
+     * @return the saved table of a period, null if there is none or it cannot be read
+     */
+    private BillingSketchTable read(String collection, String period) {
+        File file = getFile(collection, period);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BillingSketchTable table = load(file);
+            log().info("read: " + table.size() + " billing sketches of " + collection + " for " + period + " read back");
+            return table;
+        } catch (IOException e) {
+            File corrupt = new File(file.getPath() + ".corrupt");
+            log().error("read: unable to read " + file + ", moved to " + corrupt + ": " + e.getMessage(), e);
+            file.renameTo(corrupt);
+            return null;
+        }
+    }
+
+    private BillingSketchTable load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        try {
+            return BillingSketchTable.readFrom(in, m_memoryBudget);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save(String collection, BillingSketchTable table) throws IOException {
+        synchronized (m_saveLock) {
+            doSave(collection, table);
+        }
+    }
+
+    private void doSave(String collection, BillingSketchTable table) throws IOException {
+        long modCount = table.getModCount();
+        synchronized (this) {
+            Long saved = m_saved.get(collection);
+            if (saved != null && saved.longValue() == modCount && m_current.get(collection) == table) {
+                return;
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        synchronized (table) {
+            modCount = table.getModCount();
+            table.writeTo(new DataOutputStream(bytes));
+        }
+        File file = getFile(collection, table.getPeriod());
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create " + directory);
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(temporary));
+        try {
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("unable to rename " + temporary + " to " + file);
+        }
+        synchronized (this) {
+            if (m_current.get(collection) == table) {
+                m_saved.put(collection, Long.valueOf(modCount));
+            }
+        }
+    }
+
+    /**
+     * @param period a string, e.g. a query parameter
+     * @return true if it is a billing period, <code>yyyy-MM</code>
+     */
+    public static boolean isPeriod(String period) {
+        return period != null && PERIOD.matcher(period).matches();
+    }
+
+    private File getCollectionDirectory(String collection) {
+        String name = collection.replaceAll("[^A-Za-z0-9._-]", "_");
+        // neither "." nor ".." nor a hidden directory
+        return new File(m_directory, name.length() == 0 || name.charAt(0) == '.' ? "_" + name : name);
+    }
+
+    private File getFile(String collection, String period) {
+        return new File(getCollectionDirectory(collection), period + SUFFIX);
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
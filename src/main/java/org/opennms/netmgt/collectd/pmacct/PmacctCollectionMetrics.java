@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Metrics of a pmacct collection: the duration of its cycles, the
+ * tables read for it, and the results and failures of its attributes.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctCollectionMetrics extends PmacctResultMetrics implements PmacctCollectionMetricsMBean {
+
+    private final String m_name;
+
+    private final LatencyHistogram m_cycles = new LatencyHistogram();
+
+    private final StripedCounter m_failedCycles = new StripedCounter();
+
+    private volatile long m_lastCycleNanos;
+
+    private final LatencyHistogram m_dumps = new LatencyHistogram();
+
+    private final StripedCounter m_skippedRows = new StripedCounter();
+
+    private final StripedCounter m_droppedRows = new StripedCounter();
+
+    private final StripedCounter m_invalidRows = new StripedCounter();
+
+    private final ConcurrentMap<String, PmacctAttributeMetrics> m_attributes = new ConcurrentHashMap<String, PmacctAttributeMetrics>();
+
+    /**
+     * <p>Constructor for PmacctCollectionMetrics.</p>
+     *
+     * @param name the name of the collection
+     */
+    public PmacctCollectionMetrics(String name) {
+        m_name = name;
+    }
+
+    /**
+     * @param nanos the duration of the collection of a node
+     * @param succeeded whether the collection succeeded
+     */
+    public void cycle(long nanos, boolean succeeded) {
+        m_cycles.record(nanos);
+        m_lastCycleNanos = nanos;
+        if (!succeeded) {
+            m_failedCycles.increment();
+        }
+    }
+
+    /**
+     * @param nanos the time taken to read and parse a whole table
+     * @param snapshot the table read
+     */
+    public void dumped(long nanos, PmacctTableSnapshot snapshot) {
+        m_dumps.record(nanos);
+        scanned(snapshot.getRowCount());
+        m_skippedRows.add(snapshot.getSkippedCount());
+        m_droppedRows.add(snapshot.getDroppedCount());
+        m_invalidRows.add(snapshot.getInvalidCount());
+    }
+
+    /**
+     * @return the metrics of the attributes of the collection, by alias
+     */
+    ConcurrentMap<String, PmacctAttributeMetrics> getAttributes() {
+        return m_attributes;
+    }
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return m_name;
+    }
+
+    /** {@inheritDoc} */
+    public long getCycleCount() {
+        return m_cycles.getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getFailedCycleCount() {
+        return m_failedCycles.get();
+    }
+
+    /** {@inheritDoc} */
+    public double getLastCycleMillis() {
+        return m_lastCycleNanos / 1e6;
+    }
+
+    /** {@inheritDoc} */
+    public double getCycleMeanMillis() {
+        return m_cycles.getMeanMillis();
+    }
+
+    /** {@inheritDoc} */
+    public double getCycleP95Millis() {
+        return m_cycles.getPercentileMillis(0.95);
+    }
+
+    /** {@inheritDoc} */
+    public double getCycleP99Millis() {
+        return m_cycles.getPercentileMillis(0.99);
+    }
+
+    /** {@inheritDoc} */
+    public double getCycleMaxMillis() {
+        return m_cycles.getMaxNanos() / 1e6;
+    }
+
+    /** {@inheritDoc} */
+    public long[] getCycleHistogram() {
+        return m_cycles.getBuckets();
+    }
+
+    /** {@inheritDoc} */
+    public long getDumpCount() {
+        return m_dumps.getCount();
+    }
+
+    /** {@inheritDoc} */
+    public double getDumpMeanMillis() {
+        return m_dumps.getMeanMillis();
+    }
+
+    /** {@inheritDoc} */
+    public double getDumpP95Millis() {
+        return m_dumps.getPercentileMillis(0.95);
+    }
+
+    /** {@inheritDoc} */
+    public double getDumpMaxMillis() {
+        return m_dumps.getMaxNanos() / 1e6;
+    }
+
+    /** {@inheritDoc} */
+    public long getSkippedRowCount() {
+        return m_skippedRows.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getDroppedRowCount() {
+        return m_droppedRows.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getInvalidRowCount() {
+        return m_invalidRows.get();
+    }
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Management interface of the metrics of a pmacct collection.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public interface PmacctCollectionMetricsMBean extends PmacctResultMetricsMBean {
+
+    /**
+     * @return the name of the collection
+     */
+    String getName();
+
+    /**
+     * @return the number of collections of a node
+     */
+    long getCycleCount();
+
+    /**
+     * @return the number of collections of a node that failed
+     */
+    long getFailedCycleCount();
+
+    /**
+     * @return the duration of the last collection of a node, in milliseconds
+     */
+    double getLastCycleMillis();
+
+    /**
+     * @return the mean duration of the collection of a node, in milliseconds
+     */
+    double getCycleMeanMillis();
+
+    /**
+     * @return the 95th percentile of the duration of the collection of a node, in milliseconds
+     */
+    double getCycleP95Millis();
+
+    /**
+     * @return the 99th percentile of the duration of the collection of a node, in milliseconds
+     */
+    double getCycleP99Millis();
+
+    /**
+     * @return the longest collection of a node, in milliseconds
+     */
+    double getCycleMaxMillis();
+
+    /**
+     * @return the collections of a node by duration, bucket <code>i</code>
+     *         counting those under 2<sup>i</sup> microseconds
+     */
+    long[] getCycleHistogram();
+
+    /**
+     * @return the number of whole tables read for the collection
+     */
+    long getDumpCount();
+
+    /**
+     * @return the mean time to read and parse a whole table, in milliseconds
+     */
+    double getDumpMeanMillis();
+
+    /**
+     * @return the 95th percentile of the time to read and parse a whole table, in milliseconds
+     */
+    double getDumpP95Millis();
+
+    /**
+     * @return the longest time to read and parse a whole table, in milliseconds
+     */
+    double getDumpMaxMillis();
+
+    /**
+     * @return the number of table rows skipped by the host filter
+     */
+    long getSkippedRowCount();
+
+    /**
+     * @return the number of table rows left out because the host-table-memory was exhausted
+     */
+    long getDroppedRowCount();
+
+    /**
+     * @return the number of table rows left out because they could not be parsed
+     */
+    long getInvalidRowCount();
+}
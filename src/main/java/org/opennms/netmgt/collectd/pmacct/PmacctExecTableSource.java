@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Reads pmacct memory tables by running the pmacct client:
+ * <code>pmacct -s -p &lt;pipe&gt;</code> to dump the table and
+ * <code>pmacct -e -p &lt;pipe&gt;</code> to clear it when a reset is asked.
+ * The <code>-O</code> output format of the options is passed on.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctExecTableSource implements PmacctTableSource {
+
+    private final PmacctProcessExecutor m_executor;
+
+    private final String m_pmacctPath;
+
+    private final long m_timeout;
+
+    private final long m_memoryBudget;
+
+    private final HostFilter m_filter;
+
+    private final PmacctParallelTableParser m_parser;
+
+    /**
+     * <p>Constructor for PmacctExecTableSource.</p>
+     *
+     * @param executor runs the pmacct clients
+     * @param pmacctPath path to the pmacct client
+     * @param timeout deadline of a pmacct run, in milliseconds
+     * @param memoryBudget maximum memory used by the host table of a snapshot, in bytes
+     */
+    public PmacctExecTableSource(PmacctProcessExecutor executor, String pmacctPath, long timeout, long memoryBudget) {
+        this(executor, pmacctPath, timeout, memoryBudget, null);
+    }
+
+    /**
+     * <p>Constructor for PmacctExecTableSource.</p>
+     *
+     * @param executor runs the pmacct clients
+     * @param pmacctPath path to the pmacct client
+     * @param timeout deadline of a pmacct run, in milliseconds
+     * @param memoryBudget maximum memory used by the host table of a snapshot, in bytes
+     * @param filter the hosts kept in the snapshots, null to keep them all
+     */
+    public PmacctExecTableSource(PmacctProcessExecutor executor, String pmacctPath, long timeout, long memoryBudget,
+            HostFilter filter) {
+        this(executor, pmacctPath, timeout, memoryBudget, filter, null);
+    }
+
+    /**
+     * <p>Constructor for PmacctExecTableSource.</p>
+     *
+     * @param executor runs the pmacct clients
+     * @param pmacctPath path to the pmacct client
+     * @param timeout deadline of a pmacct run, in milliseconds
+     * @param memoryBudget maximum memory used by the host table of a snapshot, in bytes
+     * @param filter the hosts kept in the snapshots, null to keep them all
+     * @param parser parses the dumps on several threads, null to parse them on the caller
+     */
+    public PmacctExecTableSource(PmacctProcessExecutor executor, String pmacctPath, long timeout, long memoryBudget,
+            HostFilter filter, PmacctParallelTableParser parser) {
+        m_executor = executor;
+        m_pmacctPath = pmacctPath;
+        m_timeout = timeout;
+        m_memoryBudget = memoryBudget;
+        m_filter = filter;
+        m_parser = parser;
+    }
+
+    /** {@inheritDoc} */
+    public PmacctTableSnapshot dump(final PmacctOptions options, final long timestamp) throws IOException {
+        final PmacctTableSnapshot[] snapshot = new PmacctTableSnapshot[1];
+        dump(options, new PmacctProcessExecutor.OutputHandler() {
+            public void handle(InputStream stdout) throws IOException {
+                if (m_parser != null) {
+                    snapshot[0] = m_parser.parse(stdout, options.getAggregate(), timestamp, m_memoryBudget, m_filter);
+                } else {
+                    snapshot[0] = PmacctTableSnapshot.parse(stdout, options.getAggregate(), timestamp, m_memoryBudget, m_filter);
+                }
+            }
+        });
+        return snapshot[0];
+    }
+
+    /**
+     * Dump the table behind <code>options</code> into per host sketches of
+     * their heaviest peers, ranked by the <code>-n</code> counter. The shards
+     * of a table sharded across several pipes are read one after the other
+     * into the same sketches; a shard that cannot be read is skipped.
+     *
+     * @param options the parsed attribute options, must name a pipe
+     * @param hosts the textual addresses of the hosts to keep talkers for
+     * @param capacity the number of peers monitored per host
+     * @param timestamp the time the dump is taken
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTalkerTable} object.
+     * @throws java.io.IOException if no shard of the table can be read
+     */
+    public PmacctTalkerTable dumpTalkers(final PmacctOptions options, Collection<String> hosts, int capacity,
+            long timestamp) throws IOException {
+        final PmacctTalkerTable talkers = new PmacctTalkerTable(hosts, capacity, options.getCounter(), timestamp);
+        PmacctProcessExecutor.OutputHandler handler = new PmacctProcessExecutor.OutputHandler() {
+            public void handle(InputStream stdout) throws IOException {
+                int invalid = PmacctReplyParser.getInstance().parseFlows(stdout, talkers);
+                if (invalid > 0) {
+                    log().warn("dumpTalkers: " + invalid + " rows of " + options.getPipes()
+                               + " left out, they could not be parsed");
+                }
+            }
+        };
+        if (!options.isSharded()) {
+            dump(options, handler);
+            return talkers;
+        }
+        IOException failure = null;
+        int failures = 0;
+        for (String pipe : options.getPipes()) {
+            try {
+                dump(options.forPipe(pipe), handler);
+            } catch (IOException e) {
+                log().warn("dumpTalkers: unable to read shard " + pipe + " of " + options + ": " + e.getMessage());
+                failure = e;
+                failures++;
+            }
+        }
+        if (failures == options.getPipes().size()) {
+            throw failure;
+        }
+        return talkers;
+    }
+
+    private void dump(PmacctOptions options, PmacctProcessExecutor.OutputHandler handler) throws IOException {
+        if (options.getPipe() == null) {
+            throw new IOException("table modes need -p in pmacct-options: " + options);
+        }
+        String[] cmd = options.getOutput() == null ? new String[] { m_pmacctPath, "-s", "-p", options.getPipe() }
+                : new String[] { m_pmacctPath, "-s", "-p", options.getPipe(), "-O", options.getOutput() };
+        m_executor.execute(cmd, m_timeout, handler);
+
+        if (options.isReset()) {
+            m_executor.execute(new String[] { m_pmacctPath, "-e", "-p", options.getPipe() }, m_timeout,
+                               new PmacctProcessExecutor.OutputHandler() {
+                public void handle(InputStream stdout) throws IOException {
+                    // nothing to read
+                }
+            });
+        }
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
@@ -0,0 +1,585 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Embedded HTTP endpoint serving the latest values collected for each
+ * node, in the Prometheus text format on {@link #METRICS_PATH} and as JSON
+ * on {@link #JSON_PATH}, and the billing percentiles of a month on
+ * {@link #BILLING_PATH}.</p>
+ *
+ * <p>The values of a node are serialized in both formats once, when its
+ * collection completes, and the documents are assembled from those pieces
+ * at most once per change. A scrape only writes a byte array: it never
+ * runs pmacct nor reads an RRD.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctHttpExporter implements HttpHandler {
+
+    /** Path of the Prometheus text exposition. */
+    public static final String METRICS_PATH = "/metrics";
+
+    /** Path of the JSON document. */
+    public static final String JSON_PATH = "/values.json";
+
+    /**
+     * Path of the billing percentiles, queried with the <code>collection</code>,
+     * <code>attribute</code> and optionally <code>period</code> (the current
+     * month by default, <code>yyyy-MM</code>) and <code>address</code>
+     * parameters. A missing parameter or another period form is a 400.
+     */
+    public static final String BILLING_PATH = "/billing";
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private static final byte[] VALUE_HEADER = utf8("# HELP pmacct_value Latest value collected for a pmacct attribute, as stored in the RRD.\n"
+                                                    + "# TYPE pmacct_value gauge\n");
+
+    private static final byte[] TIMESTAMP_HEADER = utf8("# HELP pmacct_collection_timestamp_seconds Time of the latest collection of a node.\n"
+                                                        + "# TYPE pmacct_collection_timestamp_seconds gauge\n");
+
+    private final InetSocketAddress m_bindAddress;
+
+    /** Serialized values of each node and collection, ordered by key. */
+    private final ConcurrentSkipListMap<String, Values> m_values = new ConcurrentSkipListMap<String, Values>();
+
+    /** Incremented at each change of m_values. */
+    private final AtomicLong m_version = new AtomicLong();
+
+    private volatile Documents m_documents = new Documents(-1, new byte[0], new byte[0]);
+
+    private volatile PmacctBillingStore m_billing;
+
+    private HttpServer m_server;
+
+    private ExecutorService m_executor;
+
+    /**
+     * <p>Constructor for PmacctHttpExporter.</p>
+     *
+     * @param bindAddress the address to listen on, port 0 picks a free port
+     */
+    public PmacctHttpExporter(InetSocketAddress bindAddress) {
+        m_bindAddress = bindAddress;
+    }
+
+    /**
+     * Start serving requests on a daemon thread.
+     *
+     * @throws java.io.IOException if the address cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        m_server = HttpServer.create(m_bindAddress, 0);
+        m_server.createContext(METRICS_PATH, this);
+        m_server.createContext(JSON_PATH, this);
+        m_server.createContext(BILLING_PATH, this);
+        m_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PmacctHttpExporter-" + m_bindAddress.getPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_server.setExecutor(m_executor);
+        m_server.start();
+    }
+
+    /**
+     * Stop serving requests.
+     */
+    public synchronized void stop() {
+        if (m_server != null) {
+            m_server.stop(0);
+            m_server = null;
+        }
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+            m_executor = null;
+        }
+    }
+
+    /**
+     * @param billing the store answering {@link #BILLING_PATH} queries, null if billing is not kept
+     */
+    public void setBillingStore(PmacctBillingStore billing) {
+        m_billing = billing;
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return m_server.getAddress().getPort();
+    }
+
+    /**
+     * Replace the values served for a node and collection.
+     *
+     * @param key identifies the node and collection
+     * @param values the values of its latest collection
+     */
+    public void publish(String key, Values values) {
+        values.finish();
+        m_values.put(key, values);
+        m_version.incrementAndGet();
+    }
+
+    /**
+     * Stop serving the values of every key starting with a prefix.
+     *
+     * @param prefix a key prefix, e.g. the node and address of a released agent
+     */
+    public void remove(String prefix) {
+        boolean removed = false;
+        for (Iterator<String> it = m_values.tailMap(prefix).keySet().iterator(); it.hasNext();) {
+            if (!it.next().startsWith(prefix)) {
+                break;
+            }
+            it.remove();
+            removed = true;
+        }
+        if (removed) {
+            m_version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop serving any value.
+     */
+    public void clear() {
+        m_values.clear();
+        m_version.incrementAndGet();
+    }
+
+    /**
+     * @return the Prometheus text exposition of the latest values
+     */
+    public byte[] getPrometheus() {
+        return getDocuments().m_prometheus;
+    }
+
+    /**
+     * @return the JSON document of the latest values
+     */
+    public byte[] getJson() {
+        return getDocuments().m_json;
+    }
+
+    private Documents getDocuments() {
+        Documents documents = m_documents;
+        if (documents.m_version == m_version.get()) {
+            return documents;
+        }
+        synchronized (this) {
+            long version = m_version.get();
+            documents = m_documents;
+            if (documents.m_version == version) {
+                return documents;
+            }
+            ByteArrayOutputStream prometheus = new ByteArrayOutputStream(documents.m_prometheus.length + 1024);
+            ByteArrayOutputStream json = new ByteArrayOutputStream(documents.m_json.length + 1024);
+            prometheus.write(VALUE_HEADER, 0, VALUE_HEADER.length);
+            json.write('{');
+            writeAscii(json, "\"timestamp\":" + System.currentTimeMillis() + ",\"nodes\":[");
+            boolean first = true;
+            for (Values values : m_values.values()) {
+                prometheus.write(values.m_prometheus, 0, values.m_prometheus.length);
+                if (!first) {
+                    json.write(',');
+                }
+                json.write(values.m_json, 0, values.m_json.length);
+                first = false;
+            }
+            json.write(']');
+            json.write('}');
+            prometheus.write(TIMESTAMP_HEADER, 0, TIMESTAMP_HEADER.length);
+            for (Values values : m_values.values()) {
+                prometheus.write(values.m_timestampLine, 0, values.m_timestampLine.length);
+            }
+            documents = new Documents(version, prometheus.toByteArray(), json.toByteArray());
+            m_documents = documents;
+            return documents;
+        }
+    }
+
+    /**
+     * <p>handle</p>
+     *
+     * @param exchange a request for one of the documents
+     * @throws java.io.IOException if the reply cannot be sent
+     */
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            byte[] body;
+            if (METRICS_PATH.equals(path)) {
+                exchange.getResponseHeaders().set("Content-Type", PROMETHEUS_CONTENT_TYPE);
+                body = getPrometheus();
+            } else if (JSON_PATH.equals(path)) {
+                exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+                body = getJson();
+            } else if (BILLING_PATH.equals(path) && m_billing != null) {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                if (query.get("collection") == null || query.get("attribute") == null
+                        || (query.get("period") != null && !PmacctBillingStore.isPeriod(query.get("period")))) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                try {
+                    body = getBilling(m_billing, query);
+                } catch (IllegalArgumentException e) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                } catch (IOException e) {
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if ("HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the percentiles of the hosts (or host) asked for, as JSON
+     */
+    private static byte[] getBilling(PmacctBillingStore billing, Map<String, String> query) throws IOException {
+        String collection = query.get("collection");
+        String attribute = query.get("attribute");
+        String period = query.get("period");
+        if (period == null) {
+            period = billing.getPeriod(System.currentTimeMillis());
+        }
+        String address = query.get("address");
+        Map<String, QuantileSketch> sketches = new TreeMap<String, QuantileSketch>();
+        if (address == null) {
+            sketches.putAll(billing.getSketches(collection, period, attribute));
+        } else {
+            QuantileSketch sketch = billing.getSketch(collection, period, attribute, address);
+            if (sketch != null) {
+                sketches.put(address, sketch);
+            }
+        }
+        StringBuilder json = new StringBuilder(128 + sketches.size() * 128);
+        json.append("{\"collection\":");
+        appendJsonString(json, collection);
+        json.append(",\"attribute\":");
+        appendJsonString(json, attribute);
+        json.append(",\"period\":");
+        appendJsonString(json, period);
+        json.append(",\"hosts\":[");
+        boolean first = true;
+        for (Map.Entry<String, QuantileSketch> entry : sketches.entrySet()) {
+            QuantileSketch sketch = entry.getValue();
+            json.append(first ? "{\"address\":" : ",{\"address\":");
+            appendJsonString(json, entry.getKey());
+            json.append(",\"count\":").append(sketch.getCount());
+            json.append(",\"min\":").append(PmacctValueFormat.format(sketch.getMin()));
+            json.append(",\"max\":").append(PmacctValueFormat.format(sketch.getMax()));
+            json.append(",\"p95\":").append(PmacctValueFormat.format(sketch.getQuantile(0.95)));
+            json.append(",\"p99\":").append(PmacctValueFormat.format(sketch.getQuantile(0.99)));
+            json.append('}');
+            first = false;
+        }
+        json.append("]}");
+        return utf8(json.toString());
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                               URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            out.write(text.charAt(i));
+        }
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00");
+                sb.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /** The documents assembled for a version of the values. */
+    private static final class Documents {
+
+        final long m_version;
+
+        final byte[] m_prometheus;
+
+        final byte[] m_json;
+
+        Documents(long version, byte[] prometheus, byte[] json) {
+            m_version = version;
+            m_prometheus = prometheus;
+            m_json = json;
+        }
+    }
+
+    /**
+     * <p>The values of a collection of a node, serialized as they are
+     * added. Resources are added in turn, the node itself first, each
+     * followed by its values.</p>
+     */
+    public static final class Values {
+
+        private final String m_nodeLabels;
+
+        private final StringBuilder m_text = new StringBuilder(256);
+
+        private final StringBuilder m_jsonText = new StringBuilder(256);
+
+        private String m_labels;
+
+        private boolean m_firstResource = true;
+
+        private boolean m_firstValue;
+
+        byte[] m_prometheus;
+
+        byte[] m_timestampLine;
+
+        byte[] m_json;
+
+        /**
+         * <p>Constructor for Values.</p>
+         *
+         * @param nodeId the node collected
+         * @param address the address collected from
+         * @param collection the name of the collection
+         * @param timestamp the time of the collection, in milliseconds
+         */
+        public Values(int nodeId, String address, String collection, long timestamp) {
+            StringBuilder labels = new StringBuilder();
+            labels.append("node=\"").append(nodeId).append("\",address=\"");
+            appendLabel(labels, address);
+            labels.append("\",collection=\"");
+            appendLabel(labels, collection);
+            labels.append('"');
+            m_nodeLabels = labels.toString();
+            m_timestampLine = utf8("pmacct_collection_timestamp_seconds{" + m_nodeLabels + "} "
+                                   + PmacctValueFormat.format(timestamp / 1000.0) + "\n");
+
+            m_jsonText.append("{\"node\":").append(nodeId).append(",\"address\":");
+            appendJsonString(m_jsonText, address);
+            m_jsonText.append(",\"collection\":");
+            appendJsonString(m_jsonText, collection);
+            m_jsonText.append(",\"timestamp\":").append(timestamp).append(",\"resources\":[");
+        }
+
+        /**
+         * Start the values of a resource.
+         *
+         * @param type the resource type of a peer or prefix, null for the node itself
+         * @param instance the peer or prefix
+         * @return this
+         */
+        public Values resource(String type, String instance) {
+            if (!m_firstResource) {
+                m_jsonText.append("}},");
+            }
+            m_firstResource = false;
+            m_firstValue = true;
+            m_jsonText.append("{\"type\":");
+            if (type == null) {
+                m_labels = m_nodeLabels;
+                m_jsonText.append("null,\"instance\":null");
+            } else {
+                StringBuilder labels = new StringBuilder(m_nodeLabels);
+                labels.append(",resource_type=\"");
+                appendLabel(labels, type);
+                labels.append("\",instance=\"");
+                appendLabel(labels, instance);
+                labels.append('"');
+                m_labels = labels.toString();
+                appendJsonString(m_jsonText, type);
+                m_jsonText.append(",\"instance\":");
+                appendJsonString(m_jsonText, instance);
+            }
+            m_jsonText.append(",\"values\":{");
+            return this;
+        }
+
+        /**
+         * Add a numeric value to the current resource.
+         *
+         * @param name the name of the attribute
+         * @param value the value as formatted by {@link PmacctValueFormat}
+         * @return this
+         */
+        public Values number(String name, String value) {
+            m_text.append("pmacct_value{").append(m_labels).append(",attribute=\"");
+            appendLabel(m_text, name);
+            m_text.append("\"} ");
+            if ("NaN".equals(value)) {
+                m_text.append("NaN");
+            } else if ("Infinity".equals(value)) {
+                m_text.append("+Inf");
+            } else if ("-Infinity".equals(value)) {
+                m_text.append("-Inf");
+            } else {
+                m_text.append(value);
+            }
+            m_text.append('\n');
+
+            appendJsonName(name);
+            if (value.endsWith("NaN") || value.endsWith("Infinity")) {
+                m_jsonText.append("null");
+            } else {
+                m_jsonText.append(value);
+            }
+            return this;
+        }
+
+        /**
+         * Add a string value to the current resource, served in JSON only.
+         *
+         * @param name the name of the attribute
+         * @param value the value
+         * @return this
+         */
+        public Values string(String name, String value) {
+            appendJsonName(name);
+            appendJsonString(m_jsonText, value);
+            return this;
+        }
+
+        void finish() {
+            if (m_json != null) {
+                return;
+            }
+            if (!m_firstResource) {
+                m_jsonText.append("}}");
+            }
+            m_jsonText.append("]}");
+            m_prometheus = utf8(m_text.toString());
+            m_json = utf8(m_jsonText.toString());
+        }
+
+        private void appendJsonName(String name) {
+            if (!m_firstValue) {
+                m_jsonText.append(',');
+            }
+            m_firstValue = false;
+            appendJsonString(m_jsonText, name);
+            m_jsonText.append(':');
+        }
+
+        private static void appendLabel(StringBuilder sb, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+
+/**
+ * <p>A pmacct table or counter that could not be read, for a known reason.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctIOException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int m_reason;
+
+    /**
+     * <p>Constructor for PmacctIOException.</p>
+     *
+     * @param reason one of the <code>FAILURE_</code> constants of {@link PmacctMetrics}
+     * @param message the detail message
+     */
+    public PmacctIOException(int reason, String message) {
+        super(message);
+        m_reason = reason;
+    }
+
+    /**
+     * @return one of the <code>FAILURE_</code> constants of {@link PmacctMetrics}
+     */
+    public int getReason() {
+        return m_reason;
+    }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Times the tables read by another source and counts their rows in the
+ * metrics of a collection. Tables that did not fit in the
+ * host-table-memory are logged once each.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctMeteredTableSource implements PmacctTableSource {
+
+    private final PmacctTableSource m_delegate;
+
+    private final PmacctCollectionMetrics m_metrics;
+
+    /**
+     * <p>Constructor for PmacctMeteredTableSource.</p>
+     *
+     * @param delegate reads the tables
+     * @param metrics where to record the reads
+     */
+    public PmacctMeteredTableSource(PmacctTableSource delegate, PmacctCollectionMetrics metrics) {
+        m_delegate = delegate;
+        m_metrics = metrics;
+    }
+
+    /** {@inheritDoc} */
+    public PmacctTableSnapshot dump(PmacctOptions options, long timestamp) throws IOException {
+        long started = System.nanoTime();
+        PmacctTableSnapshot snapshot = m_delegate.dump(options, timestamp);
+        m_metrics.dumped(System.nanoTime() - started, snapshot);
+        if (snapshot.getDroppedCount() > 0) {
+            log().warn("dump: " + snapshot.getDroppedCount() + " rows of " + options.getPipes() + " for collection "
+                       + m_metrics.getName() + " dropped, the host-table-memory is exhausted");
+        }
+        if (snapshot.getInvalidCount() > 0) {
+            log().warn("dump: " + snapshot.getInvalidCount() + " rows of " + options.getPipes() + " for collection "
+                       + m_metrics.getName() + " left out, they could not be parsed");
+        }
+        return snapshot;
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
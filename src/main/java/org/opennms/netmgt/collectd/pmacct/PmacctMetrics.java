@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Metrics of the pmacct collections and of their attributes, published
+ * as MBeans.</p>
+ *
+ * <p>Metrics are created on first use and recorded whether or not they are
+ * registered. Once {@link #register(MBeanServer)} is called, every MBean
+ * created so far and every one created afterwards is registered under the
+ * {@link #DOMAIN} domain, until {@link #unregister()}.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctMetrics {
+
+    /** Domain of the MBeans. */
+    public static final String DOMAIN = "org.opennms.netmgt.collectd";
+
+    /** The read did not complete in time. */
+    public static final int FAILURE_TIMEOUT = 0;
+
+    /** pmacct exited with a non zero status. */
+    public static final int FAILURE_EXIT_STATUS = 1;
+
+    /** The background poller had not read the table recently enough. */
+    public static final int FAILURE_STALE = 2;
+
+    /** Shards of the table could not be read. */
+    public static final int FAILURE_SHARD = 3;
+
+    /** Any other I/O error. */
+    public static final int FAILURE_IO = 4;
+
+    /** Anything else. */
+    public static final int FAILURE_ERROR = 5;
+
+    /** Number of failure causes. */
+    public static final int FAILURE_CAUSES = 6;
+
+    private final ConcurrentMap<String, PmacctCollectionMetrics> m_collections = new ConcurrentHashMap<String, PmacctCollectionMetrics>();
+
+    /** Every MBean, registered or not. */
+    private final Map<ObjectName, Object> m_beans = new LinkedHashMap<ObjectName, Object>();
+
+    private MBeanServer m_server;
+
+    /**
+     * @param collection the name of a collection
+     * @return its metrics, created on first use
+     */
+    public PmacctCollectionMetrics getCollection(String collection) {
+        PmacctCollectionMetrics metrics = m_collections.get(collection);
+        if (metrics == null) {
+            PmacctCollectionMetrics created = new PmacctCollectionMetrics(collection);
+            metrics = m_collections.putIfAbsent(collection, created);
+            if (metrics == null) {
+                metrics = created;
+                add("type=PmacctCollection,name=" + quote(collection), created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @param collection the name of a collection
+     * @param alias the alias of one of its attributes
+     * @return the metrics of the attribute, created on first use
+     */
+    public PmacctAttributeMetrics getAttribute(String collection, String alias) {
+        PmacctCollectionMetrics parent = getCollection(collection);
+        PmacctAttributeMetrics metrics = parent.getAttributes().get(alias);
+        if (metrics == null) {
+            PmacctAttributeMetrics created = new PmacctAttributeMetrics(parent, alias);
+            metrics = parent.getAttributes().putIfAbsent(alias, created);
+            if (metrics == null) {
+                metrics = created;
+                add("type=PmacctAttribute,collection=" + quote(collection) + ",name=" + quote(alias), created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Publish another MBean along with the metrics.
+     *
+     * @param properties the key properties of its name, such as <code>type=Foo</code>
+     * @param mbean a compliant MBean
+     */
+    public void add(String properties, Object mbean) {
+        ObjectName name;
+        try {
+            name = new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException e) {
+            log().warn("add: invalid MBean name " + properties + ": " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            m_beans.put(name, mbean);
+            if (m_server != null) {
+                register(name, mbean);
+            }
+        }
+    }
+
+    /**
+     * Register every MBean with <code>server</code>, and the ones created later.
+     *
+     * @param server where to register the MBeans
+     */
+    public synchronized void register(MBeanServer server) {
+        unregister();
+        m_server = server;
+        for (Map.Entry<ObjectName, Object> bean : m_beans.entrySet()) {
+            register(bean.getKey(), bean.getValue());
+        }
+    }
+
+    /**
+     * Unregister every MBean registered, their metrics keep being recorded.
+     */
+    public synchronized void unregister() {
+        if (m_server == null) {
+            return;
+        }
+        for (ObjectName name : m_beans.keySet()) {
+            try {
+                if (m_server.isRegistered(name)) {
+                    m_server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                log().warn("unregister: unable to unregister " + name + ": " + e.getMessage());
+            }
+        }
+        m_server = null;
+    }
+
+    private void register(ObjectName name, Object mbean) {
+        try {
+            if (m_server.isRegistered(name)) {
+                // left behind by a previous instance of the collector
+                m_server.unregisterMBean(name);
+            }
+            m_server.registerMBean(mbean, name);
+        } catch (JMException e) {
+            log().warn("register: unable to register " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param e why a read failed
+     * @return the <code>FAILURE_</code> constant of the cause, or -1 if the
+     *         read was interrupted, which is accounted for by whoever interrupted it
+     */
+    public static int getFailureCause(Throwable e) {
+        if (e instanceof PmacctIOException) {
+            return ((PmacctIOException) e).getReason();
+        } else if (e instanceof SocketTimeoutException) {
+            return FAILURE_TIMEOUT;
+        } else if (e instanceof InterruptedIOException) {
+            return -1;
+        } else if (e instanceof IOException) {
+            return FAILURE_IO;
+        }
+        return FAILURE_ERROR;
+    }
+
+    private static String quote(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (",=:*?\"\n".indexOf(value.charAt(i)) >= 0) {
+                return ObjectName.quote(value);
+            }
+        }
+        return value;
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Parsed form of the <code>pmacct-options</code> attribute of an
+ * <code>attrib</code> definition.</p>
+ *
+ * <p>Only the options the collector needs to reason about are extracted
+ * (pipe, aggregate, counter selection, output format and reset flag); the raw tokens are
+ * kept so the original command line can still be rebuilt.</p>
+ *
+ * <p><code>-p</code> can be given several times to read a table sharded
+ * across several pmacct daemons; the counters of the shards are summed.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctOptions {
+
+    /** Placeholder substituted with the agent address in pmacct options. */
+    public static final String HOST_PLACEHOLDER = "%h";
+
+    private final List<String> m_tokens;
+
+    private final List<String> m_pipes = new ArrayList<String>();
+
+    private String m_aggregate;
+
+    private String m_counter = "bytes";
+
+    private String m_output;
+
+    private boolean m_reset = false;
+
+    private PmacctOptions(List<String> tokens) {
+        m_tokens = Collections.unmodifiableList(tokens);
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            String next = (i + 1 < tokens.size()) ? tokens.get(i + 1) : null;
+            if ("-p".equals(token) && next != null) {
+                if (!m_pipes.contains(next)) {
+                    m_pipes.add(next);
+                }
+                i++;
+            } else if ("-c".equals(token) && next != null) {
+                m_aggregate = next;
+                i++;
+            } else if ("-n".equals(token) && next != null) {
+                m_counter = next;
+                i++;
+            } else if ("-O".equals(token) && next != null) {
+                m_output = next.toLowerCase();
+                i++;
+            } else if ("-r".equals(token)) {
+                m_reset = true;
+            }
+        }
+    }
+
+    /**
+     * <p>parse</p>
+     *
+     * @param options the raw <code>pmacct-options</code> string, may be null.
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctOptions} object.
+     */
+    public static PmacctOptions parse(String options) {
+        List<String> tokens = new ArrayList<String>();
+        if (options != null) {
+            String trimmed = options.trim();
+            if (trimmed.length() > 0) {
+                tokens.addAll(Arrays.asList(trimmed.split("\\s+")));
+            }
+        }
+        return new PmacctOptions(tokens);
+    }
+
+    /**
+     * @return the whitespace separated option tokens, in order
+     */
+    public List<String> getTokens() {
+        return m_tokens;
+    }
+
+    /**
+     * @return the memory plugin pipe given with <code>-p</code>, the first one if sharded, or null
+     */
+    public String getPipe() {
+        return m_pipes.isEmpty() ? null : m_pipes.get(0);
+    }
+
+    /**
+     * @return the distinct memory plugin pipes given with <code>-p</code>, in order
+     */
+    public List<String> getPipes() {
+        return Collections.unmodifiableList(m_pipes);
+    }
+
+    /**
+     * @return true if the options read more than one pipe
+     */
+    public boolean isSharded() {
+        return m_pipes.size() > 1;
+    }
+
+    /**
+     * @param pipe one of the pipes of the options
+     * @return the options reading only <code>pipe</code>, in place of the first <code>-p</code>
+     */
+    public PmacctOptions forPipe(String pipe) {
+        List<String> tokens = new ArrayList<String>(m_tokens.size());
+        boolean added = false;
+        for (int i = 0; i < m_tokens.size(); i++) {
+            if ("-p".equals(m_tokens.get(i)) && i + 1 < m_tokens.size()) {
+                if (!added) {
+                    tokens.add("-p");
+                    tokens.add(pipe);
+                    added = true;
+                }
+                i++;
+            } else {
+                tokens.add(m_tokens.get(i));
+            }
+        }
+        return new PmacctOptions(tokens);
+    }
+
+    /**
+     * @return the aggregation primitive given with <code>-c</code>, or null
+     */
+    public String getAggregate() {
+        return m_aggregate;
+    }
+
+    /**
+     * @return the counter selected with <code>-n</code>, <code>bytes</code> by default
+     */
+    public String getCounter() {
+        return m_counter;
+    }
+
+    /**
+     * @return the output format given with <code>-O</code>, lower case, or null
+     */
+    public String getOutput() {
+        return m_output;
+    }
+
+    /**
+     * @return true if the options reset the counters on read (<code>-r</code>)
+     */
+    public boolean isReset() {
+        return m_reset;
+    }
+
+    /**
+     * Rewrite the options into a multi-key table query: <code>-N</code>
+     * becomes <code>-M</code>, the <code>-n</code> counter selection is
+     * dropped (table entries carry every counter) and the host placeholder
+     * is replaced with <code>keys</code>.
+     *
+     * @param keys the <code>;</code> separated hosts to match
+     * @return the rewritten option tokens
+     */
+    public List<String> getMatchTokens(String keys) {
+        List<String> tokens = new ArrayList<String>(m_tokens.size());
+        for (int i = 0; i < m_tokens.size(); i++) {
+            String token = m_tokens.get(i);
+            if ("-N".equals(token)) {
+                tokens.add("-M");
+            } else if ("-n".equals(token)) {
+                i++;
+            } else {
+                tokens.add(token.replace(HOST_PLACEHOLDER, keys));
+            }
+        }
+        return tokens;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer buffer = new StringBuffer();
+        for (String token : m_tokens) {
+            if (buffer.length() > 0) {
+                buffer.append(' ');
+            }
+            buffer.append(token);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Parses a large table dump on several threads.</p>
+ *
+ * <p>The output of the client is read into chunks of about
+ * {@link #DEFAULT_CHUNK_SIZE} bytes cut on line boundaries. Each chunk is
+ * parsed on the executor into a partial snapshot, as soon as it is read,
+ * while the caller goes on reading the next one. The header line is put
+ * back in front of every chunk but the first, so each chunk parses as a
+ * table of its own. Partial snapshots are summed into the result in chunk
+ * order. At most <code>parallelism</code> chunks are in flight at once, so
+ * the memory used stays bounded by the chunks and partial tables in flight
+ * rather than by the size of the dump.</p>
+ *
+ * <p>Tasks run on an executor of their own: running them on a pool whose
+ * threads wait for the dump could deadlock.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctParallelTableParser {
+
+    /** Default size of a chunk of output parsed by one task, in bytes. */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final ExecutorService m_executor;
+
+    private final int m_parallelism;
+
+    private final int m_chunkSize;
+
+    /**
+     * <p>Constructor for PmacctParallelTableParser.</p>
+     *
+     * @param executor runs the chunk parsers
+     * @param parallelism maximum number of chunks parsed at once
+     */
+    public PmacctParallelTableParser(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * <p>Constructor for PmacctParallelTableParser.</p>
+     *
+     * @param executor runs the chunk parsers
+     * @param parallelism maximum number of chunks parsed at once
+     * @param chunkSize size of a chunk of output, in bytes, longer lines make longer chunks
+     */
+    public PmacctParallelTableParser(ExecutorService executor, int parallelism, int chunkSize) {
+        m_executor = executor;
+        m_parallelism = Math.max(1, parallelism);
+        m_chunkSize = Math.max(1024, chunkSize);
+    }
+
+    /**
+     * @return the maximum number of chunks parsed at once
+     */
+    public int getParallelism() {
+        return m_parallelism;
+    }
+
+    /**
+     * Parse the output of <code>pmacct -s</code>, keeping the hosts accepted by <code>filter</code>.
+     *
+     * @param in the client standard output
+     * @param aggregate the aggregate the table was built with
+     * @param timestamp the time the dump was taken
+     * @param memoryBudget maximum memory used by the host table, in bytes
+     * @param filter the hosts to keep, null to keep them all
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot} object.
+     * @throws java.io.IOException if the output cannot be read or has no usable header
+     * @see org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot#parse(InputStream, String, long, long, HostFilter)
+     */
+    public PmacctTableSnapshot parse(InputStream in, String aggregate, long timestamp, long memoryBudget,
+            HostFilter filter) throws IOException {
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder(memoryBudget, filter);
+        LinkedList<Future<PmacctTableSnapshot>> pending = new LinkedList<Future<PmacctTableSnapshot>>();
+        try {
+            byte[] header = null;
+            byte[] chunk = new byte[m_chunkSize];
+            int length = 0;
+            boolean eof = false;
+            while (!eof) {
+                int read = in.read(chunk, length, chunk.length - length);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    length += read;
+                    if (length < chunk.length) {
+                        continue;
+                    }
+                }
+                int cut = eof ? length : lastLineEnd(chunk, length);
+                if (cut < 0) {
+                    // a line longer than the chunk
+                    byte[] grown = new byte[chunk.length * 2];
+                    System.arraycopy(chunk, 0, grown, 0, length);
+                    chunk = grown;
+                    continue;
+                }
+                if (cut == 0) {
+                    continue;
+                }
+                byte[] next = new byte[Math.max(m_chunkSize, length - cut)];
+                System.arraycopy(chunk, cut, next, 0, length - cut);
+                if (header == null) {
+                    pending.add(submit(chunk, cut, null, aggregate, memoryBudget, filter));
+                    header = getHeader(chunk, cut);
+                } else {
+                    pending.add(submit(chunk, cut, header, aggregate, memoryBudget, filter));
+                }
+                chunk = next;
+                length -= cut;
+                while (pending.size() >= m_parallelism) {
+                    merge(builder, pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                merge(builder, pending.removeFirst());
+            }
+        } finally {
+            for (Future<PmacctTableSnapshot> future : pending) {
+                future.cancel(true);
+            }
+        }
+        return builder.build(timestamp);
+    }
+
+    private Future<PmacctTableSnapshot> submit(final byte[] chunk, final int length, final byte[] header,
+            final String aggregate, final long memoryBudget, final HostFilter filter) {
+        return m_executor.submit(new Callable<PmacctTableSnapshot>() {
+            public PmacctTableSnapshot call() throws IOException {
+                PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder(memoryBudget, filter);
+                InputStream in = new ByteArrayInputStream(chunk, 0, length);
+                if (header != null && header.length > 0) {
+                    in = new SequenceInputStream(new ByteArrayInputStream(header), in);
+                }
+                PmacctReplyParser.getInstance().parseTable(in, aggregate, builder);
+                return builder.build(0);
+            }
+        });
+    }
+
+    private static void merge(PmacctTableSnapshot.Builder builder, Future<PmacctTableSnapshot> future) throws IOException {
+        try {
+            builder.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while parsing a pmacct table");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("unable to parse a pmacct table: " + e.getCause());
+        }
+    }
+
+    /**
+     * @return the offset after the last newline of the chunk, or -1 if it has none
+     */
+    private static int lastLineEnd(byte[] chunk, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (chunk[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first non blank line of the first chunk, with its newline,
+     *         an empty header for json output, whose lines stand alone, or
+     *         null if the chunk is blank
+     */
+    private static byte[] getHeader(byte[] chunk, int length) {
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && chunk[end] != '\n') {
+                end++;
+            }
+            int pos = start;
+            while (pos < end && (chunk[pos] == ' ' || chunk[pos] == '\t' || chunk[pos] == '\r')) {
+                pos++;
+            }
+            if (pos < end) {
+                if (chunk[pos] == '{') {
+                    return new byte[0];
+                }
+                byte[] header = new byte[end - start + 1];
+                System.arraycopy(chunk, start, header, 0, end - start);
+                header[header.length - 1] = '\n';
+                return header;
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+}
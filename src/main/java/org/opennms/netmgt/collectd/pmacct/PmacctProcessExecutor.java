@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Runs pmacct client processes with a cap on how many run at once and a
+ * deadline for each of them.</p>
+ *
+ * <p>A caller waits for a free slot, starts the process from a
+ * pre-tokenized argument array and consumes its standard output through an
+ * {@link OutputHandler}. Standard error is drained on a pooled thread so a
+ * chatty client can never block on a full pipe, and a watchdog destroys
+ * the process once its deadline has passed, which ends the read of the
+ * caller. Every process is waited for and its streams closed.</p>
+ *
+ * <p>Spawn latency, queue wait, queue timeouts, kills and failures are counted and
+ * available through the getters, and as an MBean. Timeouts and non zero
+ * exit statuses are reported as {@link PmacctIOException}s.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctProcessExecutor implements PmacctProcessExecutorMBean {
+
+    /** Consumes the standard output of a process. */
+    public interface OutputHandler {
+        /**
+         * @param stdout the standard output of the process
+         * @throws java.io.IOException if the output cannot be read or parsed
+         */
+        void handle(InputStream stdout) throws IOException;
+    }
+
+    private static final int MAX_STDERR = 4096;
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String m_prefix;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            m_prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, m_prefix + "-" + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private final Semaphore m_slots;
+
+    private final int m_maxProcesses;
+
+    private final ScheduledExecutorService m_watchdog;
+
+    private final ExecutorService m_drainers;
+
+    private final AtomicLong m_spawns = new AtomicLong();
+
+    private final AtomicLong m_spawnNanos = new AtomicLong();
+
+    private final AtomicLong m_maxSpawnNanos = new AtomicLong();
+
+    private final AtomicLong m_queueNanos = new AtomicLong();
+
+    private final AtomicLong m_maxQueueNanos = new AtomicLong();
+
+    private final AtomicLong m_kills = new AtomicLong();
+
+    private final AtomicLong m_queueTimeouts = new AtomicLong();
+
+    private final AtomicLong m_failures = new AtomicLong();
+
+    /**
+     * <p>Constructor for PmacctProcessExecutor.</p>
+     *
+     * @param maxProcesses maximum number of processes running at once
+     */
+    public PmacctProcessExecutor(int maxProcesses) {
+        m_maxProcesses = Math.max(1, maxProcesses);
+        m_slots = new Semaphore(m_maxProcesses, true);
+        m_watchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("PmacctWatchdog"));
+        m_drainers = Executors.newCachedThreadPool(new DaemonThreadFactory("PmacctStderr"));
+    }
+
+    /**
+     * Run a process and hand its standard output to <code>handler</code>.
+     *
+     * @param argv the program and its arguments
+     * @param timeout deadline of the whole run, queue wait included, in milliseconds
+     * @param handler consumes the standard output
+     * @throws java.io.IOException if the process cannot be started, times out,
+     *         exits with a non zero status or its output cannot be handled
+     */
+    public void execute(String[] argv, long timeout, OutputHandler handler) throws IOException {
+        long queued = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            if (!m_slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                // nothing was started, so nothing was killed
+                m_queueTimeouts.incrementAndGet();
+                record(m_queueNanos, m_maxQueueNanos, System.nanoTime() - queued);
+                throw new PmacctIOException(PmacctMetrics.FAILURE_TIMEOUT, "timed out after " + timeout
+                                            + "ms waiting for one of " + m_maxProcesses + " pmacct slots: "
+                                            + Arrays.asList(argv));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a pmacct slot");
+        }
+        try {
+            long started = System.nanoTime();
+            record(m_queueNanos, m_maxQueueNanos, started - queued);
+            run(argv, deadline, started, handler);
+        } finally {
+            m_slots.release();
+        }
+    }
+
+    private void run(String[] argv, long deadline, long started, OutputHandler handler) throws IOException {
+        final Process child;
+        try {
+            child = new ProcessBuilder(argv).start();
+        } catch (IOException e) {
+            m_failures.incrementAndGet();
+            throw e;
+        }
+        m_spawns.incrementAndGet();
+        record(m_spawnNanos, m_maxSpawnNanos, System.nanoTime() - started);
+
+        final boolean[] killed = new boolean[1];
+        ScheduledFuture<?> watchdog = m_watchdog.schedule(new Runnable() {
+            public void run() {
+                synchronized (killed) {
+                    killed[0] = true;
+                }
+                child.destroy();
+            }
+        }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        Future<?> drainer = m_drainers.submit(new Runnable() {
+            public void run() {
+                drain(child.getErrorStream(), stderr);
+            }
+        });
+
+        InputStream stdout = child.getInputStream();
+        IOException failure = null;
+        int status = -1;
+        boolean exited = false;
+        try {
+            try {
+                handler.handle(stdout);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                m_failures.incrementAndGet();
+                throw e;
+            } finally {
+                IOUtils.closeQuietly(stdout);
+                IOUtils.closeQuietly(child.getOutputStream());
+            }
+            status = child.waitFor();
+            exited = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + argv[0]);
+        } finally {
+            watchdog.cancel(false);
+            if (!exited) {
+                // do not leave the child to the watchdog, it would count as a kill
+                destroy(child);
+            }
+        }
+
+        synchronized (killed) {
+            if (killed[0]) {
+                m_kills.incrementAndGet();
+                throw new PmacctIOException(PmacctMetrics.FAILURE_TIMEOUT,
+                                            "killed after its deadline: " + Arrays.asList(argv));
+            }
+        }
+        if (failure != null) {
+            m_failures.incrementAndGet();
+            throw failure;
+        }
+        if (status != 0) {
+            m_failures.incrementAndGet();
+            try {
+                drainer.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // report whatever was drained so far
+            }
+            String message;
+            synchronized (stderr) {
+                message = stderr.toString().trim();
+            }
+            throw new PmacctIOException(PmacctMetrics.FAILURE_EXIT_STATUS, "exit status " + status + " (" + message
+                                        + "): " + Arrays.asList(argv));
+        }
+    }
+
+    /**
+     * Destroys a process and waits for it to exit, even when interrupted.
+     */
+    private static void destroy(Process child) {
+        child.destroy();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                child.waitFor();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(InputStream stream, ByteArrayOutputStream sink) {
+        byte[] buffer = new byte[1024];
+        try {
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                synchronized (sink) {
+                    int room = MAX_STDERR - sink.size();
+                    if (room > 0) {
+                        sink.write(buffer, 0, Math.min(room, read));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log().debug("drain: stderr closed: " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retry until the max is ours or larger
+        }
+    }
+
+    /**
+     * Stop the watchdog and drainer threads.
+     */
+    public void shutdown() {
+        m_watchdog.shutdownNow();
+        m_drainers.shutdownNow();
+    }
+
+    /** {@inheritDoc} */
+    public long getSpawnCount() {
+        return m_spawns.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getSpawnNanos() {
+        return m_spawnNanos.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMaxSpawnNanos() {
+        return m_maxSpawnNanos.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getQueueNanos() {
+        return m_queueNanos.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMaxQueueNanos() {
+        return m_maxQueueNanos.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getKillCount() {
+        return m_kills.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getQueueTimeoutCount() {
+        return m_queueTimeouts.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getFailureCount() {
+        return m_failures.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getMaxProcesses() {
+        return m_maxProcesses;
+    }
+
+    /** {@inheritDoc} */
+    public int getActiveCount() {
+        return m_maxProcesses - m_slots.availablePermits();
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Management interface of the {@link PmacctProcessExecutor}.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public interface PmacctProcessExecutorMBean {
+
+    /**
+     * @return the number of processes started
+     */
+    long getSpawnCount();
+
+    /**
+     * @return the total time spent starting processes, in nanoseconds
+     */
+    long getSpawnNanos();
+
+    /**
+     * @return the longest time spent starting a process, in nanoseconds
+     */
+    long getMaxSpawnNanos();
+
+    /**
+     * @return the total time spent waiting for a slot, in nanoseconds
+     */
+    long getQueueNanos();
+
+    /**
+     * @return the longest time spent waiting for a slot, in nanoseconds
+     */
+    long getMaxQueueNanos();
+
+    /**
+     * @return the number of processes killed at their deadline
+     */
+    long getKillCount();
+
+    /**
+     * @return the number of runs that reached their deadline waiting for a slot, never started
+     */
+    long getQueueTimeoutCount();
+
+    /**
+     * @return the number of runs that failed otherwise
+     */
+    long getFailureCount();
+
+    /**
+     * @return the number of processes that can run at once
+     */
+    int getMaxProcesses();
+
+    /**
+     * @return the number of processes running
+     */
+    int getActiveCount();
+}
@@ -0,0 +1,729 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Byte level parser for the output of the pmacct client.</p>
+ *
+ * <p>Output is read in chunks into a buffer owned by the parser and
+ * tokenized in place: counters are accumulated straight into
+ * <code>long</code>s and IPv4 addresses packed without going through a
+ * <code>String</code>, so the numeric path creates no object per line and
+ * does not depend on the default locale. A parser keeps its buffer between
+ * calls and is not thread safe; keep one per thread.</p>
+ *
+ * <p>Tables are read in any of the <code>-O</code> output formats of the
+ * client, told apart by their first line: <code>formatted</code> (blank
+ * separated columns under a header), <code>csv</code> (comma separated
+ * columns under a header) and <code>json</code> (one flat object per line,
+ * keyed by primitive). Only the buffer holding the current line is kept, so
+ * the memory used does not depend on the size of the table.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctReplyParser {
+
+    /** Receives the counters parsed from <code>pmacct -N</code> output. */
+    public interface CounterHandler {
+        /**
+         * @param value the counter of one output line
+         */
+        void counter(long value);
+    }
+
+    /** Receives the entries parsed from <code>pmacct -s</code> output. */
+    public interface FlowHandler {
+        /**
+         * Addresses are packed as by {@link HostAddress#pack(String, long[])}.
+         * An address the aggregate has no primitive for is all zeroes, a
+         * missing port is {@link PmacctReplyParser#NO_PORT}.
+         *
+         * @param srcHi the high word of the source address
+         * @param srcLo the low word of the source address
+         * @param srcPort the source port
+         * @param dstHi the high word of the destination address
+         * @param dstLo the low word of the destination address
+         * @param dstPort the destination port
+         * @param packets the packet counter of the entry
+         * @param bytes the byte counter of the entry
+         * @param flows the flow counter of the entry
+         */
+        void flow(long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort,
+                long packets, long bytes, long flows);
+    }
+
+    /** Port handed to a {@link FlowHandler} when the aggregate has no port primitive. */
+    public static final int NO_PORT = -1;
+
+    private static final int OTHER = 0, SRC_IP = 1, DST_IP = 2, SRC_PORT = 3, DST_PORT = 4,
+            PACKETS = 5, BYTES = 6, FLOWS = 7;
+
+    /** Table output formats. */
+    private static final int FORMATTED = 0, CSV = 1, JSON = 2;
+
+    /** Outcomes of parsing a table entry. */
+    private static final int ROW_INVALID = 0, ROW_OK = 1, ROW_SKIPPED = 2;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** Returned by {@link #parseLong(int, int)} for a number out of the range of a long. */
+    private static final int OUT_OF_RANGE = -2;
+
+    private static final long MAX_TENTH = Long.MAX_VALUE / 10;
+
+    private static final int MAX_LAST_DIGIT = (int) (Long.MAX_VALUE % 10);
+
+    private static final byte[] TOTAL = "For a total of".getBytes();
+
+    /** Keys of the json output and the role of their values. */
+    private static final byte[][] JSON_KEYS = {
+        "ip_src".getBytes(), "net_src".getBytes(), "ip_dst".getBytes(), "net_dst".getBytes(),
+        "port_src".getBytes(), "port_dst".getBytes(), "packets".getBytes(), "bytes".getBytes(), "flows".getBytes()
+    };
+
+    private static final int[] JSON_ROLES = { SRC_IP, SRC_IP, DST_IP, DST_IP, SRC_PORT, DST_PORT, PACKETS, BYTES, FLOWS };
+
+    private static final ThreadLocal<PmacctReplyParser> PARSERS = new ThreadLocal<PmacctReplyParser>() {
+        @Override
+        protected PmacctReplyParser initialValue() {
+            return new PmacctReplyParser();
+        }
+    };
+
+    private byte[] m_buffer;
+
+    private int m_start, m_end;
+
+    private InputStream m_in;
+
+    private long m_value;
+
+    private final long[] m_packed = new long[2];
+
+    /** Fields of the table entry being parsed. */
+    private long m_srcHi, m_srcLo, m_dstHi, m_dstLo, m_packets, m_bytes, m_flows;
+
+    private int m_srcPort, m_dstPort;
+
+    /** Rows of the last table parsed left out because they could not be parsed. */
+    private int m_invalid;
+
+    private boolean m_hasSrc, m_hasDst, m_hasBytes;
+
+    /**
+     * <p>Constructor for PmacctReplyParser.</p>
+     */
+    public PmacctReplyParser() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * <p>Constructor for PmacctReplyParser.</p>
+     *
+     * @param bufferSize initial size of the read buffer, it grows for longer lines
+     */
+    public PmacctReplyParser(int bufferSize) {
+        m_buffer = new byte[Math.max(64, bufferSize)];
+    }
+
+    /**
+     * @return the parser of the calling thread, its buffer is reused from one reply to the next
+     */
+    public static PmacctReplyParser getInstance() {
+        return PARSERS.get();
+    }
+
+    /**
+     * Parse one counter per non empty line, as printed by <code>pmacct -N</code>.
+     *
+     * @param in the client standard output
+     * @param handler receives each counter
+     * @return the number of counters parsed
+     * @throws java.io.IOException if the output cannot be read or a line is not a counter,
+     *         or a counter beyond the range of a long
+     */
+    public int parseCounters(InputStream in, CounterHandler handler) throws IOException {
+        reset(in);
+        try {
+            int count = 0;
+            int line;
+            while ((line = nextLine()) >= 0) {
+                int from = skipBlanks(line, m_start);
+                if (from == m_start) {
+                    continue;
+                }
+                int to = parseLong(from, m_start - 1);
+                if (to == OUT_OF_RANGE) {
+                    throw new IOException("pmacct counter out of range: " + new String(m_buffer, line, m_start - line - 1).trim());
+                }
+                if (to < 0 || skipBlanks(to, m_start) != m_start) {
+                    throw new IOException("pmacct output is not a counter: " + new String(m_buffer, line, m_start - line - 1).trim());
+                }
+                handler.counter(m_value);
+                count++;
+            }
+            return count;
+        } finally {
+            m_in = null;
+        }
+    }
+
+    /**
+     * Parse a formatted table, as printed by <code>pmacct -s</code> or
+     * <code>pmacct -M</code>, adding its entries to <code>builder</code>.
+     * When the builder has a {@link HostFilter}, the rest of a row whose host
+     * the filter rejects is skipped as soon as its host column is read. Rows
+     * that cannot be parsed, a counter out of the range of a long among
+     * them, are left out and counted as invalid.
+     *
+     * @param in the client standard output
+     * @param aggregate the aggregate the table was built with
+     * @param builder the snapshot being built
+     * @throws java.io.IOException if the output cannot be read or has no usable header
+     */
+    public void parseTable(InputStream in, String aggregate, final PmacctTableSnapshot.Builder builder) throws IOException {
+        String hostColumn = PmacctTableSnapshot.getHostColumn(aggregate);
+        if (hostColumn == null) {
+            throw new IOException("aggregate '" + aggregate + "' has no host primitive to index the table on");
+        }
+        final boolean source = "SRC_IP".equals(hostColumn);
+        builder.skipped(parseRows(in, hostColumn, builder.getFilter(), new FlowHandler() {
+            public void flow(long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort,
+                    long packets, long bytes, long flows) {
+                if (source) {
+                    builder.add(srcHi, srcLo, packets, bytes, flows);
+                } else {
+                    builder.add(dstHi, dstLo, packets, bytes, flows);
+                }
+            }
+        }));
+        builder.invalid(m_invalid);
+    }
+
+    /**
+     * Parse a formatted table, as printed by <code>pmacct -s</code>, handing
+     * every entry to <code>handler</code> with both of its ends. Unlike
+     * {@link #parseTable(InputStream, String, PmacctTableSnapshot.Builder)}
+     * entries are not summed per host, so multi-primitive aggregates such as
+     * <code>src_host,dst_host</code> keep their peers.
+     *
+     * @param in the client standard output
+     * @param handler receives each table entry
+     * @return the number of entries left out because they could not be parsed
+     * @throws java.io.IOException if the output cannot be read or has no usable header
+     */
+    public int parseFlows(InputStream in, FlowHandler handler) throws IOException {
+        parseRows(in, null, null, handler);
+        return m_invalid;
+    }
+
+    /**
+     * @param requiredColumn a host column the header must have, null if either is enough
+     * @param filter the hosts of the required column to keep, null to keep every row
+     * @return the number of rows skipped by the filter, the rows that could
+     *         not be parsed are counted in <code>m_invalid</code>
+     */
+    private int parseRows(InputStream in, String requiredColumn, HostFilter filter, FlowHandler handler) throws IOException {
+        reset(in);
+        m_invalid = 0;
+        try {
+            int filterRole = "SRC_IP".equals(requiredColumn) ? SRC_IP : DST_IP;
+            int skipped = 0;
+            int format = -1;
+            int[] roles = null;
+            int line;
+            while ((line = nextLine()) >= 0) {
+                int eol = m_start;
+                int pos = skipBlanks(line, eol);
+                if (pos == eol) {
+                    continue;
+                }
+                if (format < 0) {
+                    if (m_buffer[pos] == '{') {
+                        format = JSON;
+                    } else {
+                        format = indexOf(pos, eol, (byte) ',') >= 0 ? CSV : FORMATTED;
+                        roles = parseHeader(pos, eol, requiredColumn, format == CSV);
+                        continue;
+                    }
+                }
+                if (format != JSON && startsWith(pos, eol, TOTAL)) {
+                    break;
+                }
+
+                m_srcHi = m_srcLo = m_dstHi = m_dstLo = m_packets = m_bytes = m_flows = 0;
+                m_srcPort = m_dstPort = NO_PORT;
+                m_hasSrc = m_hasDst = m_hasBytes = false;
+                int row = format == JSON ? parseObject(pos, eol, filter, filterRole)
+                        : parseColumns(pos, eol, roles, format == CSV, filter, filterRole);
+                if (row == ROW_SKIPPED) {
+                    skipped++;
+                } else if (row == ROW_INVALID) {
+                    m_invalid++;
+                } else if (row == ROW_OK) {
+                    if (format == JSON && !hasRequiredKeys(requiredColumn)) {
+                        throw new IOException("unexpected pmacct json entry: " + new String(m_buffer, pos, eol - pos).trim());
+                    }
+                    handler.flow(m_srcHi, m_srcLo, m_srcPort, m_dstHi, m_dstLo, m_dstPort, m_packets, m_bytes, m_flows);
+                }
+            }
+            return skipped;
+        } finally {
+            m_in = null;
+        }
+    }
+
+    /**
+     * Parse the blank or comma separated columns of a table entry.
+     *
+     * @return one of {@link #ROW_OK}, {@link #ROW_INVALID} or {@link #ROW_SKIPPED}
+     */
+    private int parseColumns(int pos, int eol, int[] roles, boolean csv, HostFilter filter, int filterRole) {
+        int column = 0;
+        while (pos < eol) {
+            int tokenEnd = pos;
+            int valueEnd;
+            if (csv) {
+                while (tokenEnd < eol && m_buffer[tokenEnd] != ',') {
+                    tokenEnd++;
+                }
+                valueEnd = tokenEnd;
+                while (valueEnd > pos && isBlank(m_buffer[valueEnd - 1])) {
+                    valueEnd--;
+                }
+            } else {
+                while (tokenEnd < eol && !isBlank(m_buffer[tokenEnd])) {
+                    tokenEnd++;
+                }
+                valueEnd = tokenEnd;
+            }
+            int row = parseField(column < roles.length ? roles[column] : OTHER, pos, valueEnd, filter, filterRole);
+            if (row != ROW_OK) {
+                // a skipped row leaves its remaining columns unread
+                return row;
+            }
+            column++;
+            if (csv && tokenEnd < eol) {
+                // past the comma, an empty last column still counts
+                pos = skipBlanks(tokenEnd + 1, eol);
+                if (pos == eol) {
+                    if (column < roles.length && roles[column] != OTHER) {
+                        return ROW_INVALID;
+                    }
+                    column++;
+                }
+            } else {
+                pos = skipBlanks(tokenEnd, eol);
+            }
+        }
+        return column == roles.length ? ROW_OK : ROW_INVALID;
+    }
+
+    /**
+     * Parse a flat json object holding one table entry. Keys are compared
+     * as bytes and values parsed where they lie; nested values are skipped.
+     *
+     * @return one of {@link #ROW_OK}, {@link #ROW_INVALID} or {@link #ROW_SKIPPED}
+     */
+    private int parseObject(int pos, int eol, HostFilter filter, int filterRole) {
+        pos = skipBlanks(pos + 1, eol);
+        while (pos < eol && m_buffer[pos] != '}') {
+            if (m_buffer[pos] != '"') {
+                return ROW_INVALID;
+            }
+            int keyEnd = skipString(pos + 1, eol);
+            if (keyEnd < 0) {
+                return ROW_INVALID;
+            }
+            int role = getJsonRole(pos + 1, keyEnd);
+            pos = skipBlanks(keyEnd + 1, eol);
+            if (pos == eol || m_buffer[pos] != ':') {
+                return ROW_INVALID;
+            }
+            pos = skipBlanks(pos + 1, eol);
+            if (pos == eol) {
+                return ROW_INVALID;
+            }
+            int valueStart, valueEnd, next;
+            byte c = m_buffer[pos];
+            if (c == '"') {
+                valueStart = pos + 1;
+                valueEnd = skipString(valueStart, eol);
+                if (valueEnd < 0) {
+                    return ROW_INVALID;
+                }
+                next = valueEnd + 1;
+            } else if (c == '{' || c == '[') {
+                next = skipNested(pos, eol);
+                if (next < 0) {
+                    return ROW_INVALID;
+                }
+                role = OTHER;
+                valueStart = valueEnd = pos;
+            } else {
+                valueStart = valueEnd = pos;
+                while (valueEnd < eol && m_buffer[valueEnd] != ',' && m_buffer[valueEnd] != '}'
+                        && !isBlank(m_buffer[valueEnd])) {
+                    valueEnd++;
+                }
+                next = valueEnd;
+            }
+            int row = parseField(role, valueStart, valueEnd, filter, filterRole);
+            if (row != ROW_OK) {
+                return row;
+            }
+            pos = skipBlanks(next, eol);
+            if (pos < eol && m_buffer[pos] == ',') {
+                pos = skipBlanks(pos + 1, eol);
+            }
+        }
+        return pos < eol ? ROW_OK : ROW_INVALID;
+    }
+
+    /**
+     * Store the value at <code>[from, to)</code> in the field of the entry
+     * its column or key is for.
+     *
+     * @return one of {@link #ROW_OK}, {@link #ROW_INVALID} or {@link #ROW_SKIPPED}
+     */
+    private int parseField(int role, int from, int to, HostFilter filter, int filterRole) {
+        switch (role) {
+        case OTHER:
+            return ROW_OK;
+        case SRC_IP:
+        case DST_IP:
+            if (!parseAddress(from, to)) {
+                return ROW_INVALID;
+            }
+            if (role == SRC_IP) {
+                m_srcHi = m_packed[0];
+                m_srcLo = m_packed[1];
+                m_hasSrc = true;
+            } else {
+                m_dstHi = m_packed[0];
+                m_dstLo = m_packed[1];
+                m_hasDst = true;
+            }
+            if (filter != null && role == filterRole && !filter.accepts(m_packed[0], m_packed[1])) {
+                return ROW_SKIPPED;
+            }
+            return ROW_OK;
+        default:
+            if (parseLong(from, to) != to) {
+                return ROW_INVALID;
+            }
+            switch (role) {
+            case SRC_PORT:
+                m_srcPort = (int) m_value;
+                break;
+            case DST_PORT:
+                m_dstPort = (int) m_value;
+                break;
+            case PACKETS:
+                m_packets = m_value;
+                break;
+            case BYTES:
+                m_bytes = m_value;
+                m_hasBytes = true;
+                break;
+            default:
+                m_flows = m_value;
+            }
+            return ROW_OK;
+        }
+    }
+
+    /**
+     * @return true if the json entry just parsed has the keys a table needs
+     */
+    private boolean hasRequiredKeys(String requiredColumn) {
+        boolean host = requiredColumn == null ? m_hasSrc || m_hasDst
+                : "SRC_IP".equals(requiredColumn) ? m_hasSrc : m_hasDst;
+        return host && m_hasBytes;
+    }
+
+    private int getJsonRole(int from, int to) {
+        for (int i = 0; i < JSON_KEYS.length; i++) {
+            if (to - from == JSON_KEYS[i].length && startsWith(from, to, JSON_KEYS[i])) {
+                return JSON_ROLES[i];
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * @param pos the offset after the opening quote
+     * @return the offset of the closing quote, or -1 if the string is not terminated
+     */
+    private int skipString(int pos, int end) {
+        for (; pos < end; pos++) {
+            if (m_buffer[pos] == '\\') {
+                pos++;
+            } else if (m_buffer[pos] == '"') {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param pos the offset of the opening bracket
+     * @return the offset after the matching bracket, or -1 if there is none on the line
+     */
+    private int skipNested(int pos, int end) {
+        int depth = 0;
+        for (; pos < end; pos++) {
+            byte c = m_buffer[pos];
+            if (c == '"') {
+                pos = skipString(pos + 1, end);
+                if (pos < 0) {
+                    return -1;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if ((c == '}' || c == ']') && --depth == 0) {
+                return pos + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the role of each column of the table
+     */
+    private int[] parseHeader(int pos, int eol, String requiredColumn, boolean csv) throws IOException {
+        String header = new String(m_buffer, pos, eol - pos).trim();
+        String[] names = header.split(csv ? "\\s*,\\s*" : "\\s+");
+        int[] roles = new int[names.length];
+        boolean host = false, required = requiredColumn == null, bytes = false;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].toUpperCase();
+            if ("SRC_IP".equals(name)) {
+                roles[i] = SRC_IP;
+            } else if ("DST_IP".equals(name)) {
+                roles[i] = DST_IP;
+            } else if ("SRC_PORT".equals(name)) {
+                roles[i] = SRC_PORT;
+            } else if ("DST_PORT".equals(name)) {
+                roles[i] = DST_PORT;
+            } else if ("PACKETS".equals(name)) {
+                roles[i] = PACKETS;
+            } else if ("BYTES".equals(name)) {
+                roles[i] = BYTES;
+                bytes = true;
+            } else if ("FLOWS".equals(name)) {
+                roles[i] = FLOWS;
+            } else {
+                roles[i] = OTHER;
+            }
+            host |= roles[i] == SRC_IP || roles[i] == DST_IP;
+            required |= name.equals(requiredColumn);
+        }
+        if (!host || !required || !bytes) {
+            throw new IOException("unexpected pmacct table header: " + header);
+        }
+        return roles;
+    }
+
+    private void reset(InputStream in) {
+        m_in = in;
+        m_start = 0;
+        m_end = 0;
+    }
+
+    /**
+     * Find the next line. On return the line spans from the returned offset
+     * to <code>m_start - 1</code> (the newline, or the end of the stream).
+     *
+     * @return the offset of the line in the buffer, -1 at the end of the stream
+     */
+    private int nextLine() throws IOException {
+        int scan = m_start;
+        while (true) {
+            for (; scan < m_end; scan++) {
+                if (m_buffer[scan] == '\n') {
+                    int line = m_start;
+                    m_start = scan + 1;
+                    return line;
+                }
+            }
+            int pending = scan - m_start;
+            if (!fill()) {
+                if (m_start == m_end) {
+                    return -1;
+                }
+                // last line without a newline
+                if (m_end == m_buffer.length) {
+                    grow();
+                }
+                m_buffer[m_end++] = '\n';
+                int line = m_start;
+                m_start = m_end;
+                return line;
+            }
+            // fill() moved the pending line to the start of the buffer
+            scan = m_start + pending;
+        }
+    }
+
+    /**
+     * Read more output, first moving the pending partial line to the start
+     * of the buffer and growing it if the line fills it.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (m_start > 0) {
+            System.arraycopy(m_buffer, m_start, m_buffer, 0, m_end - m_start);
+            m_end -= m_start;
+            m_start = 0;
+        }
+        if (m_end == m_buffer.length) {
+            grow();
+        }
+        int read = m_in.read(m_buffer, m_end, m_buffer.length - m_end);
+        if (read < 0) {
+            return false;
+        }
+        m_end += read;
+        return true;
+    }
+
+    private void grow() {
+        byte[] buffer = new byte[m_buffer.length * 2];
+        System.arraycopy(m_buffer, 0, buffer, 0, m_end);
+        m_buffer = buffer;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return the offset of the first non blank byte from <code>pos</code>, or <code>end</code>
+     */
+    private int skipBlanks(int pos, int end) {
+        while (pos < end && isBlank(m_buffer[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Parse a decimal integer at <code>pos</code> into <code>m_value</code>.
+     *
+     * @param pos the offset of the number
+     * @param end the end of the parsable bytes
+     * @return the offset after the last digit, -1 if there is no digit, or
+     *         {@link #OUT_OF_RANGE} if the number does not fit in a long
+     */
+    private int parseLong(int pos, int end) {
+        boolean negative = false;
+        if (pos < end && m_buffer[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        int digits = pos;
+        long value = 0;
+        while (pos < end && m_buffer[pos] >= '0' && m_buffer[pos] <= '9') {
+            int digit = m_buffer[pos] - '0';
+            // value * 10 + digit > Long.MAX_VALUE, an unsigned counter past 2^63 among others
+            if (value >= MAX_TENTH && (value > MAX_TENTH || digit > MAX_LAST_DIGIT)) {
+                return OUT_OF_RANGE;
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        if (pos == digits) {
+            return -1;
+        }
+        m_value = negative ? -value : value;
+        return pos;
+    }
+
+    /**
+     * Pack the address at <code>[pos, end)</code> into <code>m_packed</code>.
+     * Dotted quads are parsed in place, other forms go through
+     * {@link org.opennms.netmgt.collectd.pmacct.HostAddress#pack(String, long[])}.
+     */
+    private boolean parseAddress(int pos, int end) {
+        int ipv4 = 0, octet = -1, dots = 0;
+        int i = pos;
+        for (; i < end; i++) {
+            byte c = m_buffer[i];
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    break;
+                }
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                ipv4 = (ipv4 << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                break;
+            }
+        }
+        if (i == end && dots == 3 && octet >= 0) {
+            m_packed[0] = 0;
+            m_packed[1] = HostAddress.packIpv4((ipv4 << 8) | octet);
+            return true;
+        }
+        return HostAddress.pack(new String(m_buffer, pos, end - pos), m_packed);
+    }
+
+    /**
+     * @return the offset of the first <code>b</code> in <code>[pos, end)</code>, or -1
+     */
+    private int indexOf(int pos, int end, byte b) {
+        for (; pos < end; pos++) {
+            if (m_buffer[pos] == b) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int pos, int end, byte[] prefix) {
+        if (end - pos < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (m_buffer[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Counts the results and failures of reading pmacct, without locks.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public abstract class PmacctResultMetrics implements PmacctResultMetricsMBean {
+
+    private final StripedCounter m_attributes = new StripedCounter();
+
+    private final StripedCounter m_empty = new StripedCounter();
+
+    private final StripedCounter m_rows = new StripedCounter();
+
+    private final StripedCounter m_suppressed = new StripedCounter();
+
+    private final StripedCounter[] m_failures = new StripedCounter[PmacctMetrics.FAILURE_CAUSES];
+
+    /**
+     * <p>Constructor for PmacctResultMetrics.</p>
+     */
+    protected PmacctResultMetrics() {
+        for (int i = 0; i < m_failures.length; i++) {
+            m_failures[i] = new StripedCounter();
+        }
+    }
+
+    /**
+     * @param attributes the number of attributes produced by a read, 0 if it found nothing
+     */
+    public void produced(int attributes) {
+        if (attributes == 0) {
+            m_empty.increment();
+        } else {
+            m_attributes.add(attributes);
+        }
+    }
+
+    /**
+     * @param rows the number of rows or counters read from pmacct
+     */
+    public void scanned(long rows) {
+        m_rows.add(rows);
+    }
+
+    /**
+     * Count a read skipped because its node was backed off.
+     */
+    public void suppressed() {
+        m_suppressed.increment();
+    }
+
+    /**
+     * @param cause one of the <code>FAILURE_</code> constants of {@link PmacctMetrics}
+     */
+    public void failed(int cause) {
+        m_failures[cause].increment();
+    }
+
+    /** {@inheritDoc} */
+    public long getAttributeCount() {
+        return m_attributes.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getEmptyCount() {
+        return m_empty.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getRowCount() {
+        return m_rows.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getSuppressedCount() {
+        return m_suppressed.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getFailureCount() {
+        long sum = 0;
+        for (StripedCounter failures : m_failures) {
+            sum += failures.get();
+        }
+        return sum;
+    }
+
+    /** {@inheritDoc} */
+    public long getTimeoutCount() {
+        return m_failures[PmacctMetrics.FAILURE_TIMEOUT].get();
+    }
+
+    /** {@inheritDoc} */
+    public long getExitStatusCount() {
+        return m_failures[PmacctMetrics.FAILURE_EXIT_STATUS].get();
+    }
+
+    /** {@inheritDoc} */
+    public long getStaleCount() {
+        return m_failures[PmacctMetrics.FAILURE_STALE].get();
+    }
+
+    /** {@inheritDoc} */
+    public long getShardFailureCount() {
+        return m_failures[PmacctMetrics.FAILURE_SHARD].get();
+    }
+
+    /** {@inheritDoc} */
+    public long getIoErrorCount() {
+        return m_failures[PmacctMetrics.FAILURE_IO].get();
+    }
+
+    /** {@inheritDoc} */
+    public long getErrorCount() {
+        return m_failures[PmacctMetrics.FAILURE_ERROR].get();
+    }
+}
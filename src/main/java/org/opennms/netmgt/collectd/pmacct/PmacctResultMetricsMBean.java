@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Results and failures of reading pmacct, shared by the collection and
+ * attribute MBeans.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public interface PmacctResultMetricsMBean {
+
+    /**
+     * @return the number of attributes produced
+     */
+    long getAttributeCount();
+
+    /**
+     * @return the number of reads that succeeded without producing anything
+     */
+    long getEmptyCount();
+
+    /**
+     * @return the number of rows or counters read from pmacct
+     */
+    long getRowCount();
+
+    /**
+     * @return the number of reads skipped because their node was backed off
+     */
+    long getSuppressedCount();
+
+    /**
+     * @return the number of failed reads, whatever the cause
+     */
+    long getFailureCount();
+
+    /**
+     * @return the number of reads that did not complete in time
+     */
+    long getTimeoutCount();
+
+    /**
+     * @return the number of pmacct runs that exited with a non zero status
+     */
+    long getExitStatusCount();
+
+    /**
+     * @return the number of reads refused because the background poller
+     *         had not read the table recently enough
+     */
+    long getStaleCount();
+
+    /**
+     * @return the number of reads dropped because shards of the table failed
+     */
+    long getShardFailureCount();
+
+    /**
+     * @return the number of reads that failed on other I/O errors
+     */
+    long getIoErrorCount();
+
+    /**
+     * @return the number of reads that failed on unexpected errors
+     */
+    long getErrorCount();
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Reads a table sharded across several pmacct daemons, one pipe each.</p>
+ *
+ * <p>When the options name several pipes (see
+ * {@link org.opennms.netmgt.collectd.pmacct.PmacctOptions#getPipes()}),
+ * the table of every pipe is read from the delegate source in parallel and
+ * the counters of each host are summed across the shards. A shard that
+ * cannot be read is left out of the sum and reported in the snapshot (see
+ * {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot#getFailedPipes()});
+ * the dump only fails when no shard could be read. Options naming a single
+ * pipe go straight to the delegate.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctShardedTableSource implements PmacctTableSource {
+
+    private final PmacctTableSource m_delegate;
+
+    private final ExecutorService m_executor;
+
+    private final long m_memoryBudget;
+
+    /**
+     * <p>Constructor for PmacctShardedTableSource.</p>
+     *
+     * @param delegate reads the table of one pipe
+     * @param executor reads the shards, not the pool of the caller
+     * @param memoryBudget maximum memory used by the summed host table, in bytes
+     */
+    public PmacctShardedTableSource(PmacctTableSource delegate, ExecutorService executor, long memoryBudget) {
+        m_delegate = delegate;
+        m_executor = executor;
+        m_memoryBudget = memoryBudget;
+    }
+
+    /** {@inheritDoc} */
+    public PmacctTableSnapshot dump(PmacctOptions options, final long timestamp) throws IOException {
+        if (!options.isSharded()) {
+            return m_delegate.dump(options, timestamp);
+        }
+        List<String> pipes = options.getPipes();
+        List<Future<PmacctTableSnapshot>> shards = new ArrayList<Future<PmacctTableSnapshot>>(pipes.size());
+        for (String pipe : pipes) {
+            final PmacctOptions shard = options.forPipe(pipe);
+            shards.add(m_executor.submit(new Callable<PmacctTableSnapshot>() {
+                public PmacctTableSnapshot call() throws IOException {
+                    return m_delegate.dump(shard, timestamp);
+                }
+            }));
+        }
+
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder(m_memoryBudget);
+        StringBuffer failures = new StringBuffer();
+        int read = 0;
+        for (int i = 0; i < pipes.size(); i++) {
+            String pipe = pipes.get(i);
+            try {
+                builder.add(shards.get(i).get());
+                read++;
+            } catch (InterruptedException e) {
+                for (Future<PmacctTableSnapshot> future : shards) {
+                    future.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while reading the shards of " + options);
+            } catch (ExecutionException e) {
+                String message = String.valueOf(e.getCause().getMessage());
+                log().warn("dump: unable to read shard " + pipe + " of " + options + ": " + message);
+                builder.failed(pipe, message);
+                failures.append(failures.length() > 0 ? "; " : "").append(pipe).append(": ").append(message);
+            }
+        }
+        if (read == 0) {
+            throw new IOException("no shard could be read: " + failures);
+        }
+        // the failures of a shard read in batches come along with it
+        return builder.build(timestamp);
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
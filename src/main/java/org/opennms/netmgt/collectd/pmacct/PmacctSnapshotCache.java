@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Per collection cycle cache of pmacct memory tables.</p>
+ *
+ * <p>Each distinct pipe/aggregate pair is read once from a
+ * {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSource} and the
+ * resulting {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot} is
+ * shared by every node collected while it is younger than half the
+ * collection step, so that a node collected a little early never gets the
+ * table it already read in the previous interval. When the attribute asked for a reset (<code>-r</code>), the source
+ * clears the table right after reading it so the next cycle only sees the
+ * traffic of its own interval. Flows accounted between the read and the clear
+ * are lost, which is the price of reading once per pipe instead of once per
+ * node and attribute.</p>
+ *
+ * <p>Every snapshot read resets the {@link PmacctBackoffTable} state of the
+ * hosts it holds, if the cache was given one.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctSnapshotCache {
+
+    private static class Entry {
+        // written under the entry lock, published to readers that do not take it
+        volatile PmacctTableSnapshot m_snapshot;
+        volatile PmacctTalkerTable m_talkers;
+    }
+
+    private final Map<String, Entry> m_entries = new HashMap<String, Entry>();
+
+    private final PmacctBackoffTable m_backoff;
+
+    /**
+     * <p>Constructor for PmacctSnapshotCache.</p>
+     */
+    public PmacctSnapshotCache() {
+        this(null);
+    }
+
+    /**
+     * <p>Constructor for PmacctSnapshotCache.</p>
+     *
+     * @param backoff the backoff state to reset from the snapshots read, may be null
+     */
+    public PmacctSnapshotCache(PmacctBackoffTable backoff) {
+        m_backoff = backoff;
+    }
+
+    /**
+     * Return the snapshot of the table behind <code>options</code>, reading it
+     * if there is none yet or if the cached one is older than <code>maxAge</code>.
+     * Concurrent callers asking for the same table wait for a single read.
+     *
+     * @param scope tables read for different scopes are cached apart, even for the same pipe
+     * @param source where to read the table from
+     * @param options the parsed attribute options, must name an aggregate
+     * @param maxAge maximum age of a reusable snapshot, in milliseconds
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot} object.
+     * @throws java.io.IOException if the table cannot be read
+     */
+    public PmacctTableSnapshot getSnapshot(String scope, PmacctTableSource source, PmacctOptions options, long maxAge) throws IOException {
+        if (options.getAggregate() == null) {
+            throw new IOException("table modes need -c in pmacct-options: " + options);
+        }
+        Entry entry = getEntry(scope, options);
+        synchronized (entry) {
+            long now = System.currentTimeMillis();
+            if (entry.m_snapshot == null || now - entry.m_snapshot.getTimestamp() >= maxAge) {
+                entry.m_snapshot = source.dump(options, now);
+                if (log().isDebugEnabled()) {
+                    log().debug("getSnapshot: read " + entry.m_snapshot.getRowCount() + " entries for "
+                                + entry.m_snapshot.getHostCount() + " hosts from " + options.getPipe());
+                }
+                if (m_backoff != null) {
+                    int reset = m_backoff.reset(options, entry.m_snapshot);
+                    if (reset > 0 && log().isDebugEnabled()) {
+                        log().debug("getSnapshot: " + reset + " hosts back in " + options.getPipes());
+                    }
+                }
+            }
+            return entry.m_snapshot;
+        }
+    }
+
+    /**
+     * Return the top talkers of the hosts of <code>hosts</code> in the table
+     * behind <code>options</code>, reading it if there are none yet or if the
+     * cached ones are older than <code>maxAge</code>. Concurrent callers
+     * asking for the same table wait for a single read.
+     *
+     * @param scope tables read for different scopes are cached apart, even for the same pipe
+     * @param source where to read the table from
+     * @param options the parsed attribute options, must name a pipe
+     * @param hosts the textual addresses of the hosts to keep talkers for
+     * @param capacity the number of peers monitored per host
+     * @param maxAge maximum age of reusable talkers, in milliseconds
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTalkerTable} object.
+     * @throws java.io.IOException if the table cannot be read
+     */
+    public PmacctTalkerTable getTalkers(String scope, PmacctExecTableSource source, PmacctOptions options,
+            Collection<String> hosts, int capacity, long maxAge) throws IOException {
+        Entry entry = getEntry(scope, options);
+        synchronized (entry) {
+            long now = System.currentTimeMillis();
+            if (entry.m_talkers == null || now - entry.m_talkers.getTimestamp() >= maxAge) {
+                entry.m_talkers = source.dumpTalkers(options, hosts, capacity, now);
+                if (log().isDebugEnabled()) {
+                    log().debug("getTalkers: read " + entry.m_talkers.getRowCount() + " entries for "
+                                + entry.m_talkers.getHostCount() + " hosts from " + options.getPipe());
+                }
+            }
+            return entry.m_talkers;
+        }
+    }
+
+    /**
+     * Return the latest snapshot of the table behind <code>options</code>
+     * without reading it, nor waiting for a read in progress.
+     *
+     * @param scope the scope the table is cached in
+     * @param options the parsed attribute options
+     * @return the latest snapshot, null if the table was never read
+     */
+    public PmacctTableSnapshot getPublishedSnapshot(String scope, PmacctOptions options) {
+        return getEntry(scope, options).m_snapshot;
+    }
+
+    /**
+     * Return the latest talkers of the table behind <code>options</code>
+     * without reading it, nor waiting for a read in progress.
+     *
+     * @param scope the scope the table is cached in
+     * @param options the parsed attribute options
+     * @return the latest talkers, null if the table was never read
+     */
+    public PmacctTalkerTable getPublishedTalkers(String scope, PmacctOptions options) {
+        return getEntry(scope, options).m_talkers;
+    }
+
+    /**
+     * Drop every cached snapshot.
+     */
+    public synchronized void clear() {
+        m_entries.clear();
+    }
+
+    private synchronized Entry getEntry(String scope, PmacctOptions options) {
+        String key = scope + "|" + options.getPipes() + "|" + options.getAggregate() + "|" + options.isReset();
+        Entry entry = m_entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            m_entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
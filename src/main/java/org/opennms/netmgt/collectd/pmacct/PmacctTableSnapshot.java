@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Immutable, host indexed copy of a pmacct memory table as dumped by
+ * <code>pmacct -s</code>.</p>
+ *
+ * <p>The default (formatted) output of the client is a header line naming
+ * the columns, one line per table entry, and a trailing
+ * <code>For a total of: N entries</code> line. Entries are indexed by the
+ * host column matching the aggregate the table was built with; entries
+ * sharing a host (multi-primitive aggregates) are summed. The index is a
+ * {@link org.opennms.netmgt.collectd.pmacct.HostCounterTable}, so a snapshot
+ * holds no object per host. A snapshot built with a
+ * {@link org.opennms.netmgt.collectd.pmacct.HostFilter} only holds the hosts
+ * the filter accepted.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctTableSnapshot {
+
+    /** Default memory budget of the host table of a snapshot. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /** Counters accumulated for one host of the table. */
+    public static class Counters {
+        long m_packets;
+        long m_bytes;
+        long m_flows;
+
+        public long getPackets() {
+            return m_packets;
+        }
+
+        public long getBytes() {
+            return m_bytes;
+        }
+
+        public long getFlows() {
+            return m_flows;
+        }
+
+        /**
+         * @param counter one of <code>bytes</code>, <code>packets</code> or <code>flows</code>
+         * @return the value of the requested counter
+         */
+        public long get(String counter) {
+            if ("packets".equalsIgnoreCase(counter)) {
+                return m_packets;
+            } else if ("flows".equalsIgnoreCase(counter)) {
+                return m_flows;
+            }
+            return m_bytes;
+        }
+    }
+
+    /**
+     * Accumulates table entries before publishing an immutable snapshot.
+     */
+    public static class Builder {
+        private final HostCounterTable m_hosts;
+        private final HostFilter m_filter;
+        private final long[] m_packed = new long[2];
+        private int m_rows = 0;
+        private int m_skipped = 0;
+        private int m_dropped = 0;
+        private int m_invalid = 0;
+        private Map<String, String> m_failedPipes;
+
+        /**
+         * <p>Constructor for Builder, using {@link PmacctTableSnapshot#DEFAULT_MEMORY_BUDGET}.</p>
+         */
+        public Builder() {
+            this(DEFAULT_MEMORY_BUDGET);
+        }
+
+        /**
+         * <p>Constructor for Builder.</p>
+         *
+         * @param memoryBudget maximum memory used by the host table, in bytes
+         */
+        public Builder(long memoryBudget) {
+            this(memoryBudget, null);
+        }
+
+        /**
+         * <p>Constructor for Builder.</p>
+         *
+         * @param memoryBudget maximum memory used by the host table, in bytes
+         * @param filter the hosts to keep when parsing, null to keep them all
+         */
+        public Builder(long memoryBudget, HostFilter filter) {
+            m_hosts = new HostCounterTable(1024, memoryBudget, 0);
+            m_filter = filter;
+        }
+
+        /**
+         * Add the entries of a snapshot, summing them with the entries already seen for their host.
+         *
+         * @param partial a snapshot of part of the same table
+         */
+        public void add(PmacctTableSnapshot partial) {
+            HostCounterTable hosts = partial.m_hosts;
+            for (int slot = 0; slot < hosts.capacity(); slot++) {
+                if (hosts.isUsed(slot) && !m_hosts.add(hosts.getHi(slot), hosts.getLo(slot), hosts.getPackets(slot),
+                                                       hosts.getBytes(slot), hosts.getFlows(slot))) {
+                    m_dropped++;
+                }
+            }
+            m_rows += partial.m_rows;
+            m_skipped += partial.m_skipped;
+            m_dropped += partial.m_dropped;
+            m_invalid += partial.m_invalid;
+            for (Map.Entry<String, String> failure : partial.getFailedPipes().entrySet()) {
+                failed(failure.getKey(), failure.getValue());
+            }
+        }
+
+        /**
+         * Record a shard of the table that could not be read.
+         *
+         * @param pipe the pipe of the shard
+         * @param message why it could not be read
+         */
+        public void failed(String pipe, String message) {
+            if (m_failedPipes == null) {
+                m_failedPipes = new LinkedHashMap<String, String>();
+            }
+            m_failedPipes.put(pipe, message);
+        }
+
+        /**
+         * @return the hosts to keep when parsing, null to keep them all
+         */
+        public HostFilter getFilter() {
+            return m_filter;
+        }
+
+        /**
+         * @param rows table entries skipped by the filter
+         */
+        public void skipped(int rows) {
+            m_skipped += rows;
+        }
+
+        /**
+         * @param rows table entries left out because they could not be parsed
+         */
+        public void invalid(int rows) {
+            m_invalid += rows;
+        }
+
+        /**
+         * Add one table entry, summing it with the entries already seen for the host.
+         *
+         * @param host the textual host address
+         * @param packets the packet counter of the entry
+         * @param bytes the byte counter of the entry
+         * @param flows the flow counter of the entry
+         */
+        public void add(String host, long packets, long bytes, long flows) {
+            if (HostAddress.pack(host, m_packed)) {
+                add(m_packed[0], m_packed[1], packets, bytes, flows);
+            }
+        }
+
+        /**
+         * Add one table entry, summing it with the entries already seen for the host.
+         *
+         * @param hi the high word of the packed host address
+         * @param lo the low word of the packed host address
+         * @param packets the packet counter of the entry
+         * @param bytes the byte counter of the entry
+         * @param flows the flow counter of the entry
+         */
+        public void add(long hi, long lo, long packets, long bytes, long flows) {
+            if (!m_hosts.add(hi, lo, packets, bytes, flows)) {
+                m_dropped++;
+            }
+            m_rows++;
+        }
+
+        /**
+         * @param timestamp the time the table was read
+         * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot} object.
+         */
+        public PmacctTableSnapshot build(long timestamp) {
+            PmacctTableSnapshot snapshot = new PmacctTableSnapshot(timestamp, m_hosts, m_rows, m_filter, m_skipped, m_dropped,
+                                                                m_invalid);
+            if (m_failedPipes != null) {
+                snapshot.m_failedPipes = Collections.unmodifiableMap(m_failedPipes);
+            }
+            return snapshot;
+        }
+    }
+
+    private final long m_timestamp;
+
+    private final HostCounterTable m_hosts;
+
+    private final int m_rows;
+
+    private final HostFilter m_filter;
+
+    private final int m_skipped;
+
+    private final int m_dropped;
+
+    private final int m_invalid;
+
+    private Map<String, String> m_failedPipes = Collections.emptyMap();
+
+    /** Last prefix rollup computed, shared by the nodes collected from the snapshot. */
+    private PrefixTrie m_rollupTrie;
+
+    private long[] m_rollup;
+
+    private PmacctTableSnapshot(long timestamp, HostCounterTable hosts, int rows, HostFilter filter, int skipped,
+            int dropped, int invalid) {
+        m_timestamp = timestamp;
+        m_hosts = hosts;
+        m_rows = rows;
+        m_filter = filter;
+        m_skipped = skipped;
+        m_dropped = dropped;
+        m_invalid = invalid;
+    }
+
+    /**
+     * Map an aggregation primitive to the column header pmacct prints for it.
+     *
+     * @param aggregate the <code>-c</code> aggregate of the table
+     * @return the header of the host column, or null if the aggregate has no host primitive
+     */
+    public static String getHostColumn(String aggregate) {
+        if (aggregate == null) {
+            return null;
+        }
+        for (String primitive : aggregate.split(",")) {
+            String p = primitive.trim().toLowerCase();
+            if ("src_host".equals(p) || "sum_host".equals(p) || "src_net".equals(p) || "sum_net".equals(p)) {
+                return "SRC_IP";
+            } else if ("dst_host".equals(p) || "dst_net".equals(p)) {
+                return "DST_IP";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse the output of <code>pmacct -s</code>.
+     *
+     * @param in the client standard output
+     * @param aggregate the aggregate the table was built with
+     * @param timestamp the time the dump was taken
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot} object.
+     * @throws java.io.IOException if the output cannot be read or has no usable header
+     */
+    public static PmacctTableSnapshot parse(InputStream in, String aggregate, long timestamp) throws IOException {
+        return parse(in, aggregate, timestamp, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Parse the output of <code>pmacct -s</code>.
+     *
+     * @param in the client standard output
+     * @param aggregate the aggregate the table was built with
+     * @param timestamp the time the dump was taken
+     * @param memoryBudget maximum memory used by the host table, in bytes
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot} object.
+     * @throws java.io.IOException if the output cannot be read or has no usable header
+     */
+    public static PmacctTableSnapshot parse(InputStream in, String aggregate, long timestamp, long memoryBudget) throws IOException {
+        return parse(in, aggregate, timestamp, memoryBudget, null);
+    }
+
+    /**
+     * Parse the output of <code>pmacct -s</code>, keeping the hosts accepted by <code>filter</code>.
+     *
+     * @param in the client standard output
+     * @param aggregate the aggregate the table was built with
+     * @param timestamp the time the dump was taken
+     * @param memoryBudget maximum memory used by the host table, in bytes
+     * @param filter the hosts to keep, null to keep them all
+     * @return a {@link org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot} object.
+     * @throws java.io.IOException if the output cannot be read or has no usable header
+     */
+    public static PmacctTableSnapshot parse(InputStream in, String aggregate, long timestamp, long memoryBudget,
+            HostFilter filter) throws IOException {
+        Builder builder = new Builder(memoryBudget, filter);
+        parse(in, aggregate, builder);
+        return builder.build(timestamp);
+    }
+
+    /**
+     * Parse the output of <code>pmacct -s</code> or <code>pmacct -M</code>,
+     * adding its entries to <code>builder</code>.
+     *
+     * @param in the client standard output
+     * @param aggregate the aggregate the table was built with
+     * @param builder the snapshot being built
+     * @throws java.io.IOException if the output cannot be read or has no usable header
+     * @see org.opennms.netmgt.collectd.pmacct.PmacctReplyParser#parseTable(InputStream, String, Builder)
+     */
+    public static void parse(InputStream in, String aggregate, Builder builder) throws IOException {
+        PmacctReplyParser.getInstance().parseTable(in, aggregate, builder);
+    }
+
+    /**
+     * @return the time the table was dumped, in milliseconds
+     */
+    public long getTimestamp() {
+        return m_timestamp;
+    }
+
+    /**
+     * @return the number of table entries read
+     */
+    public int getRowCount() {
+        return m_rows;
+    }
+
+    /**
+     * @return the number of table entries skipped by the filter
+     */
+    public int getSkippedCount() {
+        return m_skipped;
+    }
+
+    /**
+     * @return the number of table entries left out because the host table
+     *         was full, see {@link HostCounterTable#getDroppedCount()}
+     */
+    public int getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * @return the number of table entries left out because they could not be parsed
+     */
+    public int getInvalidCount() {
+        return m_invalid;
+    }
+
+    /**
+     * @return the shards of the table that could not be read and why, by pipe, empty if none
+     */
+    public Map<String, String> getFailedPipes() {
+        return m_failedPipes;
+    }
+
+    /**
+     * @param host the textual host address
+     * @return true if the host was left out of the snapshot by its filter, so
+     *         a snapshot without it says nothing about its traffic
+     */
+    public boolean isFilteredOut(String host) {
+        return m_filter != null && !m_filter.accepts(host);
+    }
+
+    /**
+     * @return the number of distinct hosts in the table
+     */
+    public int getHostCount() {
+        return m_hosts.size();
+    }
+
+    /**
+     * @return the textual addresses of the hosts in the table
+     */
+    public Set<String> getHosts() {
+        Set<String> hosts = new LinkedHashSet<String>();
+        for (int slot = 0; slot < m_hosts.capacity(); slot++) {
+            if (m_hosts.isUsed(slot)) {
+                hosts.add(HostAddress.toString(m_hosts.getHi(slot), m_hosts.getLo(slot)));
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * @return the host table backing the snapshot, not to be modified
+     */
+    public HostCounterTable getTable() {
+        return m_hosts;
+    }
+
+    /**
+     * Sum the hosts of the snapshot per prefix, once per trie.
+     *
+     * @param trie the prefixes to sum the hosts into
+     * @return the counters of each prefix, see {@link PrefixTrie#rollup(HostCounterTable)}, not to be modified
+     */
+    public synchronized long[] getRollup(PrefixTrie trie) {
+        if (m_rollupTrie != trie) {
+            m_rollup = trie.rollup(m_hosts);
+            m_rollupTrie = trie;
+        }
+        return m_rollup;
+    }
+
+    /**
+     * @param host the textual host address
+     * @return the counters of the host, or null if the host is not in the table
+     */
+    public Counters getCounters(String host) {
+        int slot = m_hosts.find(host);
+        if (slot < 0) {
+            return null;
+        }
+        Counters counters = new Counters();
+        counters.m_packets = m_hosts.getPackets(slot);
+        counters.m_bytes = m_hosts.getBytes(slot);
+        counters.m_flows = m_hosts.getFlows(slot);
+        return counters;
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Heaviest peers of the monitored hosts in one pmacct memory table.</p>
+ *
+ * <p>Every entry of a table aggregated on both ends of the traffic
+ * (<code>src_host,dst_host</code>, or a host and the port of the other end)
+ * is charged to the {@link org.opennms.netmgt.collectd.pmacct.SpaceSavingSketch}
+ * of its source host with the destination as peer, and to the sketch of its
+ * destination host with the source as peer. Only the hosts given when the
+ * table is created get a sketch, so its memory is bounded by the number of
+ * monitored hosts times the sketch capacity however many peers they talk
+ * to.</p>
+ *
+ * <p>A table is filled by a single thread, then only read.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctTalkerTable implements PmacctReplyParser.FlowHandler {
+
+    private final HostCounterTable m_hosts;
+
+    private final SpaceSavingSketch[] m_sketches;
+
+    private final int m_capacity;
+
+    /** Rank by packets, flows, or bytes when both are false. */
+    private final boolean m_packets, m_flows;
+
+    private final long m_timestamp;
+
+    private int m_rows = 0;
+
+    /**
+     * <p>Constructor for PmacctTalkerTable.</p>
+     *
+     * @param hosts the textual addresses of the monitored hosts
+     * @param capacity the number of peers monitored per host
+     * @param counter the counter talkers are ranked by: <code>bytes</code>, <code>packets</code> or <code>flows</code>
+     * @param timestamp the time the table was read
+     */
+    public PmacctTalkerTable(Collection<String> hosts, int capacity, String counter, long timestamp) {
+        m_hosts = new HostCounterTable(2 * hosts.size(), Long.MAX_VALUE, 0);
+        long[] packed = new long[2];
+        for (String host : hosts) {
+            if (HostAddress.pack(host, packed)) {
+                m_hosts.add(packed[0], packed[1], 0, 0, 0);
+            }
+        }
+        // the host index is complete, its slots no longer move
+        m_sketches = new SpaceSavingSketch[m_hosts.capacity()];
+        m_capacity = capacity;
+        m_packets = "packets".equalsIgnoreCase(counter);
+        m_flows = "flows".equalsIgnoreCase(counter);
+        m_timestamp = timestamp;
+    }
+
+    /**
+     * @param aggregate the <code>-c</code> aggregate of a table
+     * @return true if the entries of the table name a host and something of the other end
+     */
+    public static boolean isTalkerAggregate(String aggregate) {
+        if (aggregate == null) {
+            return false;
+        }
+        boolean srcHost = false, dstHost = false, srcPort = false, dstPort = false;
+        for (String primitive : aggregate.split(",")) {
+            String p = primitive.trim().toLowerCase();
+            srcHost |= "src_host".equals(p);
+            dstHost |= "dst_host".equals(p);
+            srcPort |= "src_port".equals(p);
+            dstPort |= "dst_port".equals(p);
+        }
+        return (srcHost && (dstHost || dstPort)) || (dstHost && srcPort);
+    }
+
+    /** {@inheritDoc} */
+    public void flow(long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort,
+            long packets, long bytes, long flows) {
+        m_rows++;
+        long weight = m_packets ? packets : m_flows ? flows : bytes;
+        int slot = m_hosts.find(srcHi, srcLo);
+        if (slot >= 0) {
+            getSketch(slot).add(dstHi, dstLo, dstPort, weight);
+        }
+        slot = m_hosts.find(dstHi, dstLo);
+        if (slot >= 0) {
+            getSketch(slot).add(srcHi, srcLo, srcPort, weight);
+        }
+    }
+
+    private SpaceSavingSketch getSketch(int slot) {
+        if (m_sketches[slot] == null) {
+            m_sketches[slot] = new SpaceSavingSketch(m_capacity);
+        }
+        return m_sketches[slot];
+    }
+
+    /**
+     * @param host the textual address of a monitored host
+     * @param n the number of talkers wanted
+     * @return the <code>n</code> heaviest peers of the host, heaviest first
+     */
+    public List<SpaceSavingSketch.Talker> getTopTalkers(String host, int n) {
+        int slot = m_hosts.find(host);
+        if (slot < 0 || m_sketches[slot] == null) {
+            return Collections.emptyList();
+        }
+        return m_sketches[slot].top(n);
+    }
+
+    /**
+     * @param host the textual address of a monitored host
+     * @return the traffic of the host with all of its peers, 0 if it had none
+     */
+    public long getTotal(String host) {
+        int slot = m_hosts.find(host);
+        if (slot < 0 || m_sketches[slot] == null) {
+            return 0;
+        }
+        return m_sketches[slot].getTotal();
+    }
+
+    /**
+     * @return the time the table was read, in milliseconds
+     */
+    public long getTimestamp() {
+        return m_timestamp;
+    }
+
+    /**
+     * @return the number of table entries read
+     */
+    public int getRowCount() {
+        return m_rows;
+    }
+
+    /**
+     * @return the number of monitored hosts
+     */
+    public int getHostCount() {
+        return m_hosts.size();
+    }
+}
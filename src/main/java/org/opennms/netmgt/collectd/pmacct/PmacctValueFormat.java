@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+/**
+ * <p>Formats collected values the way they are written to the RRD files:
+ * plain decimal notation, a dot as decimal separator whatever the locale,
+ * no grouping and no exponent.</p>
+ *
+ * <p>Integers are formatted directly. Other doubles keep the digits of
+ * {@link Double#toString(double)}, which read back to the same value,
+ * without trailing zeros and moved around the decimal point instead of
+ * followed by an exponent. The methods are static and keep no state, so
+ * they can be called from any thread, unlike a shared
+ * {@link java.text.NumberFormat}.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public final class PmacctValueFormat {
+
+    /** Doubles below this are integers formatted as longs when they have no fraction. */
+    private static final double EXACT_LONG = 1L << 53;
+
+    private PmacctValueFormat() {
+    }
+
+    /**
+     * @param value a counter or a delta
+     * @return its decimal representation
+     */
+    public static String format(long value) {
+        return Long.toString(value);
+    }
+
+    /**
+     * @param value a rate or any other computed value
+     * @return its decimal representation, <code>NaN</code> or
+     *         <code>Infinity</code> for those values
+     */
+    public static String format(double value) {
+        if (Math.abs(value) < EXACT_LONG && value == Math.rint(value)) {
+            return Long.toString((long) value);
+        }
+        String text = Double.toString(value);
+        int exponent = text.indexOf('E');
+        return exponent < 0 ? text : expand(text, exponent);
+    }
+
+    /**
+     * @param text the output of {@link Double#toString(double)}, with an exponent
+     * @param exponent the index of the exponent marker
+     */
+    private static String expand(String text, int exponent) {
+        int start = text.charAt(0) == '-' ? 1 : 0;
+        int scale = 0;
+        boolean negativeScale = text.charAt(exponent + 1) == '-';
+        for (int i = exponent + (negativeScale ? 2 : 1); i < text.length(); i++) {
+            scale = scale * 10 + (text.charAt(i) - '0');
+        }
+        if (negativeScale) {
+            scale = -scale;
+        }
+        // the mantissa is one digit, a dot and at least one digit: drop the
+        // trailing zeros, down to the dot for a single significant digit
+        int last = exponent - 1;
+        while (last > start + 1 && text.charAt(last) == '0') {
+            last--;
+        }
+        int digits = last - start;
+        int point = 1 + scale;
+        StringBuilder buffer = new StringBuilder(digits + Math.abs(scale) + 3);
+        if (start > 0) {
+            buffer.append('-');
+        }
+        if (point <= 0) {
+            buffer.append("0.");
+            for (int i = point; i < 0; i++) {
+                buffer.append('0');
+            }
+            appendDigits(buffer, text, start, last, 0, digits);
+        } else if (point >= digits) {
+            appendDigits(buffer, text, start, last, 0, digits);
+            for (int i = digits; i < point; i++) {
+                buffer.append('0');
+            }
+        } else {
+            appendDigits(buffer, text, start, last, 0, point);
+            buffer.append('.');
+            appendDigits(buffer, text, start, last, point, digits);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Append the mantissa digits <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive), skipping its dot.
+     */
+    private static void appendDigits(StringBuilder buffer, String text, int start, int last, int from, int to) {
+        for (int i = from; i < to; i++) {
+            buffer.append(text.charAt(i == 0 ? start : start + 1 + i));
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Longest prefix match over a fixed list of IPv4 and IPv6 prefixes.</p>
+ *
+ * <p>Prefixes are stored in a binary trie over the packed 128 bit form of
+ * {@link org.opennms.netmgt.collectd.pmacct.HostAddress}, IPv4 prefixes
+ * below the IPv4 mapped <code>::ffff:0:0/96</code> branch. The nodes are
+ * two parallel <code>int</code> arrays, so a lookup walks at most 128
+ * array entries and allocates nothing. Each prefix also knows the nearest
+ * prefix enclosing it, so a host can be charged to its most specific
+ * prefix and to every parent prefix.</p>
+ *
+ * <p>A trie is immutable once built and can be shared between threads.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PrefixTrie {
+
+    /** Offset of the packets of a prefix in the result of {@link #rollup(HostCounterTable)}. */
+    public static final int PACKETS = 0;
+
+    /** Offset of the bytes of a prefix in the result of {@link #rollup(HostCounterTable)}. */
+    public static final int BYTES = 1;
+
+    /** Offset of the flows of a prefix in the result of {@link #rollup(HostCounterTable)}. */
+    public static final int FLOWS = 2;
+
+    /** Number of counters per prefix in the result of {@link #rollup(HostCounterTable)}. */
+    public static final int COUNTERS = 3;
+
+    /** Children of each node, two per node, 0 when there is none (the root is no one's child). */
+    private int[] m_children;
+
+    /** Prefix ending at each node, -1 if none. */
+    private int[] m_prefixes;
+
+    private int m_nodes;
+
+    /** Nearest prefix enclosing each prefix, -1 if none. */
+    private final int[] m_parents;
+
+    /**
+     * <p>Constructor for PrefixTrie.</p>
+     *
+     * @param cidrs the prefixes, as <code>address/length</code>; the id of a prefix is its index in the list
+     * @throws java.lang.IllegalArgumentException if a prefix is not valid or is listed twice
+     */
+    public PrefixTrie(List<String> cidrs) {
+        m_children = new int[64];
+        m_prefixes = new int[32];
+        Arrays.fill(m_prefixes, -1);
+        m_nodes = 1;
+
+        long[] packed = new long[2];
+        int[] lengths = new int[cidrs.size()];
+        long[] his = new long[cidrs.size()], los = new long[cidrs.size()];
+        for (int id = 0; id < cidrs.size(); id++) {
+            lengths[id] = parse(cidrs.get(id), packed);
+            his[id] = packed[0];
+            los[id] = packed[1];
+            int node = 0;
+            for (int depth = 0; depth < lengths[id]; depth++) {
+                int child = 2 * node + bit(packed[0], packed[1], depth);
+                if (m_children[child] == 0) {
+                    // newNode() may reallocate m_children
+                    int created = newNode();
+                    m_children[child] = created;
+                }
+                node = m_children[child];
+            }
+            if (m_prefixes[node] >= 0) {
+                throw new IllegalArgumentException("prefix " + cidrs.get(id) + " is listed twice");
+            }
+            m_prefixes[node] = id;
+        }
+        m_children = Arrays.copyOf(m_children, 2 * m_nodes);
+        m_prefixes = Arrays.copyOf(m_prefixes, m_nodes);
+
+        m_parents = new int[cidrs.size()];
+        for (int id = 0; id < cidrs.size(); id++) {
+            int parent = m_prefixes[0] == id ? -1 : m_prefixes[0];
+            int node = 0;
+            for (int depth = 0; depth < lengths[id] - 1; depth++) {
+                node = m_children[2 * node + bit(his[id], los[id], depth)];
+                if (m_prefixes[node] >= 0) {
+                    parent = m_prefixes[node];
+                }
+            }
+            m_parents[id] = parent;
+        }
+    }
+
+    /**
+     * Pack a prefix, clearing the bits past its length.
+     *
+     * @return the length of the prefix in the 128 bit packed form
+     */
+    private static int parse(String cidr, long[] packed) {
+        int slash = cidr.indexOf('/');
+        String address = (slash < 0 ? cidr : cidr.substring(0, slash)).trim();
+        if (!HostAddress.pack(address, packed)) {
+            throw new IllegalArgumentException("prefix " + cidr + " has no valid address");
+        }
+        boolean ipv4 = HostAddress.isIpv4(packed[0], packed[1]);
+        int length = ipv4 ? 32 : 128;
+        if (slash >= 0) {
+            try {
+                length = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("prefix " + cidr + " has no valid length");
+            }
+            if (length < 0 || length > (ipv4 ? 32 : 128)) {
+                throw new IllegalArgumentException("prefix " + cidr + " has no valid length");
+            }
+        }
+        if (ipv4) {
+            length += 96;
+        }
+        if (length < 64) {
+            packed[0] &= length == 0 ? 0 : -1L << (64 - length);
+            packed[1] = 0;
+        } else if (length < 128) {
+            packed[1] &= length == 64 ? 0 : -1L << (128 - length);
+        }
+        return length;
+    }
+
+    private int newNode() {
+        if (m_nodes == m_prefixes.length) {
+            m_children = Arrays.copyOf(m_children, 4 * m_nodes);
+            m_prefixes = Arrays.copyOf(m_prefixes, 2 * m_nodes);
+            Arrays.fill(m_prefixes, m_nodes, m_prefixes.length, -1);
+        }
+        return m_nodes++;
+    }
+
+    private static int bit(long hi, long lo, int depth) {
+        return depth < 64 ? (int) (hi >>> (63 - depth)) & 1 : (int) (lo >>> (127 - depth)) & 1;
+    }
+
+    /**
+     * @param hi the high word of a packed address
+     * @param lo the low word of a packed address
+     * @return the id of the longest prefix containing the address, -1 if none does
+     */
+    public int lookup(long hi, long lo) {
+        int best = m_prefixes[0];
+        int node = 0;
+        for (int depth = 0; depth < 128; depth++) {
+            node = m_children[2 * node + bit(hi, lo, depth)];
+            if (node == 0) {
+                break;
+            }
+            if (m_prefixes[node] >= 0) {
+                best = m_prefixes[node];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param id the id of a prefix
+     * @return the id of the nearest prefix enclosing it, -1 if none does
+     */
+    public int getParent(int id) {
+        return m_parents[id];
+    }
+
+    /**
+     * @return the number of prefixes
+     */
+    public int size() {
+        return m_parents.length;
+    }
+
+    /**
+     * @return the number of nodes of the trie
+     */
+    public int getNodeCount() {
+        return m_nodes;
+    }
+
+    /**
+     * Sum the counters of every host of a table into its longest prefix and
+     * all the prefixes enclosing it, in a single pass over the table.
+     *
+     * @param table a host table, not modified while summed
+     * @return the counters of prefix <code>id</code> at <code>id * COUNTERS</code> + {@link #PACKETS},
+     *         {@link #BYTES} and {@link #FLOWS}
+     */
+    public long[] rollup(HostCounterTable table) {
+        long[] sums = new long[COUNTERS * size()];
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (!table.isUsed(slot)) {
+                continue;
+            }
+            for (int id = lookup(table.getHi(slot), table.getLo(slot)); id >= 0; id = m_parents[id]) {
+                sums[COUNTERS * id + PACKETS] += table.getPackets(slot);
+                sums[COUNTERS * id + BYTES] += table.getBytes(slot);
+                sums[COUNTERS * id + FLOWS] += table.getFlows(slot);
+            }
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Mergeable quantile sketch of non negative values, a log-linear
+ * histogram in the manner of HdrHistogram: values are counted in buckets
+ * at most 1/64 of their size wide (one thousandth wide below 0.128), so a
+ * quantile is known within 0.8% whatever the number of values added.</p>
+ *
+ * <p>Only the range of buckets between the smallest and largest values
+ * is allocated, a few hundred counters for a link whose rate spans a few
+ * decades. There are at most {@link #MAX_KEYS} buckets, so a quantile is
+ * found in bounded time. Two sketches merge by adding their counters.</p>
+ *
+ * <p>The sketch is not thread safe.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class QuantileSketch {
+
+    /** Bits of the sub-buckets of a power of two: buckets are 1/2^(SUB_BUCKET_BITS - 1) of their values wide at most. */
+    public static final int SUB_BUCKET_BITS = 7;
+
+    /** Values are counted in thousandths. */
+    public static final double SCALE = 1000.0;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+
+    /** Number of buckets covering every value. */
+    public static final int MAX_KEYS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private static final int GROWTH = 32;
+
+    /** Key of the bucket counted by m_counts[0]. */
+    private int m_offset;
+
+    private int[] m_counts;
+
+    private long m_count;
+
+    private double m_min = Double.POSITIVE_INFINITY, m_max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Count a value.
+     *
+     * @param value the value, negative values and NaN are counted as 0
+     */
+    public void add(double value) {
+        if (!(value > 0)) {
+            value = 0;
+        }
+        int key = getKey(value);
+        ensure(key, key + 1);
+        m_counts[key - m_offset]++;
+        m_count++;
+        m_min = Math.min(m_min, value);
+        m_max = Math.max(m_max, value);
+    }
+
+    /**
+     * Add the values counted by another sketch to this one.
+     *
+     * @param other the sketch to merge, left unchanged
+     */
+    public void merge(QuantileSketch other) {
+        if (other.m_count == 0) {
+            return;
+        }
+        int first = -1, last = -1;
+        for (int i = 0; i < other.m_counts.length; i++) {
+            if (other.m_counts[i] != 0) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        ensure(other.m_offset + first, other.m_offset + last + 1);
+        for (int i = first; i <= last; i++) {
+            m_counts[other.m_offset + i - m_offset] += other.m_counts[i];
+        }
+        m_count += other.m_count;
+        m_min = Math.min(m_min, other.m_min);
+        m_max = Math.max(m_max, other.m_max);
+    }
+
+    /**
+     * The value below which a fraction <code>q</code> of the values lie,
+     * computed the way 95th percentile billing does: the values sorted, the
+     * one of rank <code>ceil(q * count)</code>.
+     *
+     * @param q the quantile, between 0 and 1
+     * @return the value of that rank within 0.8%, NaN if the sketch is empty
+     */
+    public double getQuantile(double q) {
+        if (m_count == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, Math.min(m_count, (long) Math.ceil(q * m_count)));
+        if (rank == m_count) {
+            return m_max;
+        }
+        long seen = 0;
+        for (int i = 0; i < m_counts.length; i++) {
+            seen += m_counts[i];
+            if (seen >= rank) {
+                int key = m_offset + i;
+                double value = (getLowerBound(key) + (getWidth(key) - 1) / 2.0) / SCALE;
+                return Math.max(m_min, Math.min(m_max, value));
+            }
+        }
+        return m_max;
+    }
+
+    /**
+     * @return the number of values counted
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * @return the smallest value counted, NaN if the sketch is empty
+     */
+    public double getMin() {
+        return m_count == 0 ? Double.NaN : m_min;
+    }
+
+    /**
+     * @return the largest value counted, NaN if the sketch is empty
+     */
+    public double getMax() {
+        return m_count == 0 ? Double.NaN : m_max;
+    }
+
+    /**
+     * @return an estimate of the memory used by the sketch, in bytes
+     */
+    public long getMemorySize() {
+        return 48 + (m_counts == null ? 0 : 16 + 4L * m_counts.length);
+    }
+
+    /**
+     * Write the sketch compactly: its non empty buckets only, as variable
+     * length integers.
+     *
+     * @param out where to write
+     * @throws java.io.IOException if writing fails
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeVarLong(out, m_count);
+        if (m_count == 0) {
+            return;
+        }
+        out.writeDouble(m_min);
+        out.writeDouble(m_max);
+        int buckets = 0;
+        for (int i = 0; i < m_counts.length; i++) {
+            if (m_counts[i] != 0) {
+                buckets++;
+            }
+        }
+        writeVarLong(out, buckets);
+        int previous = 0;
+        for (int i = 0; i < m_counts.length; i++) {
+            if (m_counts[i] != 0) {
+                writeVarLong(out, m_offset + i - previous);
+                writeVarLong(out, m_counts[i] & 0xffffffffL);
+                previous = m_offset + i;
+            }
+        }
+    }
+
+    /**
+     * Read a sketch written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in where to read
+     * @return the sketch
+     * @throws java.io.IOException if reading fails or the data is corrupt
+     */
+    public static QuantileSketch readFrom(DataInput in) throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        long count = readVarLong(in);
+        if (count == 0) {
+            return sketch;
+        }
+        double min = in.readDouble();
+        double max = in.readDouble();
+        long buckets = readVarLong(in);
+        if (count < 0 || buckets > MAX_KEYS || !(min <= max)) {
+            throw new IOException("corrupt quantile sketch");
+        }
+        long total = 0;
+        int key = 0;
+        for (long i = 0; i < buckets; i++) {
+            long delta = readVarLong(in);
+            long counter = readVarLong(in);
+            if (delta < 0 || key + delta >= MAX_KEYS || counter <= 0 || counter > 0xffffffffL) {
+                throw new IOException("corrupt quantile sketch");
+            }
+            key += (int) delta;
+            sketch.ensure(key, key + 1);
+            sketch.m_counts[key - sketch.m_offset] = (int) counter;
+            total += counter;
+        }
+        if (total != count) {
+            throw new IOException("corrupt quantile sketch");
+        }
+        sketch.m_count = count;
+        sketch.m_min = min;
+        sketch.m_max = max;
+        return sketch;
+    }
+
+    /**
+     * @param value a non negative value
+     * @return the key of the bucket counting it
+     */
+    static int getKey(double value) {
+        double scaled = value * SCALE;
+        long x = scaled >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) scaled;
+        if (x < SUB_BUCKETS) {
+            return (int) x;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(x) - SUB_BUCKET_BITS;
+        return shift * HALF_SUB_BUCKETS + (int) (x >>> shift);
+    }
+
+    /**
+     * @return the smallest scaled value counted by a bucket
+     */
+    static long getLowerBound(int key) {
+        if (key < SUB_BUCKETS) {
+            return key;
+        }
+        int shift = key / HALF_SUB_BUCKETS - 1;
+        return (long) (key - shift * HALF_SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return the number of scaled values counted by a bucket
+     */
+    static long getWidth(int key) {
+        return key < SUB_BUCKETS ? 1 : 1L << (key / HALF_SUB_BUCKETS - 1);
+    }
+
+    /**
+     * Make room for the keys from <code>from</code> to <code>to</code>
+     * excluded, with some slack in the direction the range grows.
+     */
+    private void ensure(int from, int to) {
+        if (m_counts == null) {
+            m_offset = Math.max(0, from - GROWTH / 2);
+            m_counts = new int[Math.min(MAX_KEYS, to + GROWTH / 2) - m_offset];
+            return;
+        }
+        int end = m_offset + m_counts.length;
+        if (from >= m_offset && to <= end) {
+            return;
+        }
+        int offset = from < m_offset ? Math.max(0, from - GROWTH) : m_offset;
+        int newEnd = to > end ? Math.min(MAX_KEYS, to + GROWTH) : end;
+        int[] counts = new int[newEnd - offset];
+        System.arraycopy(m_counts, 0, counts, m_offset - offset, m_counts.length);
+        m_offset = offset;
+        m_counts = counts;
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("corrupt variable length integer");
+    }
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Rates sampled several times per collection step, per series (a
+ * collection attribute) and host, so that a collection can store the
+ * minimum, maximum and 95th percentile of its interval next to the
+ * average.</p>
+ *
+ * <p>Each entry owns a ring of <code>ringSize</code> samples in one flat
+ * <code>double</code> array shared by the table; when a ring is full the
+ * oldest sample is overwritten. Like
+ * {@link org.opennms.netmgt.collectd.pmacct.CounterDeltaTable} the table is
+ * an open addressing hash table over parallel primitive arrays, bounded by
+ * a memory budget and evicting idle entries when full, so adding a sample
+ * allocates nothing.</p>
+ *
+ * <p>The table is thread safe.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class RateSampleTable {
+
+    /** Index of the minimum in the result of {@link #drain(int, long, long, double[])}. */
+    public static final int MIN = 0;
+
+    /** Index of the maximum in the result of {@link #drain(int, long, long, double[])}. */
+    public static final int MAX = 1;
+
+    /** Index of the average in the result of {@link #drain(int, long, long, double[])}. */
+    public static final int AVERAGE = 2;
+
+    /** Index of the 95th percentile in the result of {@link #drain(int, long, long, double[])}. */
+    public static final int P95 = 3;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int m_ringSize;
+
+    private final int m_maxCapacity;
+
+    private final long m_idleTimeout;
+
+    private final Map<String, Integer> m_series = new HashMap<String, Integer>();
+
+    private int[] m_seriesIds, m_heads, m_counts;
+
+    private long[] m_hi, m_lo, m_times;
+
+    private double[] m_samples;
+
+    private boolean[] m_used;
+
+    /** Sorted copy of a ring, for the percentile. */
+    private final double[] m_scratch;
+
+    private int m_size = 0;
+
+    private long m_dropped = 0;
+
+    /**
+     * <p>Constructor for RateSampleTable.</p>
+     *
+     * @param ringSize number of samples kept per entry
+     * @param initialCapacity number of slots to start with
+     * @param memoryBudget maximum memory used by the slots, in bytes
+     * @param idleTimeout entries not sampled for that long (in milliseconds) can be
+     *        evicted when the table is full, 0 never evicts
+     */
+    public RateSampleTable(int ringSize, int initialCapacity, long memoryBudget, long idleTimeout) {
+        m_ringSize = Math.max(1, ringSize);
+        m_maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, memoryBudget / getSlotSize(m_ringSize))));
+        m_idleTimeout = idleTimeout;
+        m_scratch = new double[m_ringSize];
+        allocate(Math.min(m_maxCapacity, Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, initialCapacity - 1)) << 1)));
+    }
+
+    /**
+     * @param ringSize number of samples kept per entry
+     * @return the bytes used by one slot of a table
+     */
+    public static long getSlotSize(int ringSize) {
+        return 3 * 4 + 3 * 8 + 1 + 8L * ringSize;
+    }
+
+    private void allocate(int capacity) {
+        m_seriesIds = new int[capacity];
+        m_heads = new int[capacity];
+        m_counts = new int[capacity];
+        m_hi = new long[capacity];
+        m_lo = new long[capacity];
+        m_times = new long[capacity];
+        m_samples = new double[capacity * m_ringSize];
+        m_used = new boolean[capacity];
+    }
+
+    /**
+     * @param name a name identifying the sampled rate, e.g. collection and attribute
+     * @return the series id of the name, the same for as long as the table lives
+     */
+    public synchronized int getSeries(String name) {
+        Integer series = m_series.get(name);
+        if (series == null) {
+            series = Integer.valueOf(m_series.size());
+            m_series.put(name, series);
+        }
+        return series.intValue();
+    }
+
+    /**
+     * @return the number of samples kept per entry
+     */
+    public int getRingSize() {
+        return m_ringSize;
+    }
+
+    /**
+     * Record a sample, overwriting the oldest one of the entry if its ring is full.
+     *
+     * @param series the series id of the rate
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param rate the sampled rate
+     * @param timestamp the time of the sample, in milliseconds
+     * @return false if the entry is new and the table is full
+     */
+    public synchronized boolean add(int series, long hi, long lo, double rate, long timestamp) {
+        int slot = find(series, hi, lo);
+        if (slot < 0) {
+            if (!ensureRoom(timestamp)) {
+                m_dropped++;
+                return false;
+            }
+            slot = insert(series, hi, lo);
+        }
+        int base = slot * m_ringSize;
+        m_samples[base + (m_heads[slot] + m_counts[slot]) % m_ringSize] = rate;
+        if (m_counts[slot] < m_ringSize) {
+            m_counts[slot]++;
+        } else {
+            m_heads[slot] = (m_heads[slot] + 1) % m_ringSize;
+        }
+        m_times[slot] = timestamp;
+        return true;
+    }
+
+    /**
+     * Summarize the samples of an entry recorded since the previous drain,
+     * and forget them.
+     *
+     * @param series the series id of the rate
+     * @param hi the high word of the packed host address
+     * @param lo the low word of the packed host address
+     * @param stats receives the {@link #MIN}, {@link #MAX}, {@link #AVERAGE} and {@link #P95} of the samples
+     * @return false if the entry has no sample
+     */
+    public synchronized boolean drain(int series, long hi, long lo, double[] stats) {
+        int slot = find(series, hi, lo);
+        if (slot < 0 || m_counts[slot] == 0) {
+            return false;
+        }
+        int count = m_counts[slot];
+        int base = slot * m_ringSize;
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            double sample = m_samples[base + (m_heads[slot] + i) % m_ringSize];
+            m_scratch[i] = sample;
+            sum += sample;
+        }
+        Arrays.sort(m_scratch, 0, count);
+        stats[MIN] = m_scratch[0];
+        stats[MAX] = m_scratch[count - 1];
+        stats[AVERAGE] = sum / count;
+        // nearest rank
+        stats[P95] = m_scratch[(int) Math.ceil(0.95 * count) - 1];
+        m_heads[slot] = 0;
+        m_counts[slot] = 0;
+        return true;
+    }
+
+    /**
+     * @return the number of entries in the table
+     */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * @return the number of new entries dropped because the table was full
+     */
+    public synchronized long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * Forget every sample.
+     */
+    public synchronized void clear() {
+        Arrays.fill(m_used, false);
+        m_size = 0;
+    }
+
+    private int find(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        for (int slot = hash(series, hi, lo) & mask; m_used[slot]; slot = (slot + 1) & mask) {
+            if (m_lo[slot] == lo && m_hi[slot] == hi && m_seriesIds[slot] == series) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean ensureRoom(long now) {
+        if ((m_size + 1) * 4 <= m_used.length * 3) {
+            return true;
+        }
+        if (m_used.length < m_maxCapacity) {
+            resize(m_used.length << 1);
+            return true;
+        }
+        if (m_idleTimeout > 0 && evictIdle(now - m_idleTimeout) > 0) {
+            return (m_size + 1) * 4 <= m_used.length * 3;
+        }
+        return false;
+    }
+
+    private int evictIdle(long before) {
+        int evicted = 0;
+        for (int slot = 0; slot < m_used.length; slot++) {
+            // a shifted entry may land on the current slot, check it again
+            while (m_used[slot] && m_times[slot] < before) {
+                remove(slot);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private int insert(int series, long hi, long lo) {
+        int mask = m_used.length - 1;
+        int slot = hash(series, hi, lo) & mask;
+        while (m_used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        m_used[slot] = true;
+        m_seriesIds[slot] = series;
+        m_hi[slot] = hi;
+        m_lo[slot] = lo;
+        m_heads[slot] = 0;
+        m_counts[slot] = 0;
+        m_size++;
+        return slot;
+    }
+
+    private void remove(int slot) {
+        int mask = m_used.length - 1;
+        m_used[slot] = false;
+        m_size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; m_used[next]; next = (next + 1) & mask) {
+            int home = hash(m_seriesIds[next], m_hi[next], m_lo[next]) & mask;
+            // move the entry into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+    }
+
+    private void move(int from, int to) {
+        m_used[to] = true;
+        m_seriesIds[to] = m_seriesIds[from];
+        m_hi[to] = m_hi[from];
+        m_lo[to] = m_lo[from];
+        m_times[to] = m_times[from];
+        m_heads[to] = m_heads[from];
+        m_counts[to] = m_counts[from];
+        System.arraycopy(m_samples, from * m_ringSize, m_samples, to * m_ringSize, m_ringSize);
+        m_used[from] = false;
+    }
+
+    private void resize(int capacity) {
+        int[] seriesIds = m_seriesIds, heads = m_heads, counts = m_counts;
+        long[] hi = m_hi, lo = m_lo, times = m_times;
+        double[] samples = m_samples;
+        boolean[] used = m_used;
+        allocate(capacity);
+        m_size = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                int slot = insert(seriesIds[i], hi[i], lo[i]);
+                m_times[slot] = times[i];
+                m_heads[slot] = heads[i];
+                m_counts[slot] = counts[i];
+                System.arraycopy(samples, i * m_ringSize, m_samples, slot * m_ringSize, m_ringSize);
+            }
+        }
+    }
+
+    private static int hash(int series, long hi, long lo) {
+        long h = ((hi * 0x9e3779b97f4a7c15L) ^ lo) + series * 0xc2b2ae3d27d4eb4fL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Space-Saving sketch of the heaviest peers of one host.</p>
+ *
+ * <p>The sketch monitors at most <code>capacity</code> peers. A peer that
+ * is not monitored when the sketch is full replaces the one with the lowest
+ * count and inherits that count as its overestimation error, so any peer
+ * weighing more than <code>total / capacity</code> is guaranteed to be
+ * monitored and the counts never underestimate. Monitored peers are kept in
+ * a min-heap of primitive arrays indexed by an open addressing table: the
+ * memory of a sketch is fixed when it is created and updates allocate
+ * nothing.</p>
+ *
+ * <p>A sketch is not thread safe; it can be read concurrently once it is
+ * no longer updated.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class SpaceSavingSketch {
+
+    /** Approximate memory used per monitored peer, in bytes. */
+    public static final int SLOT_SIZE = 4 * 8 + 2 * 4 + 4 * 4;
+
+    /** One of the heaviest peers of a sketch. */
+    public static class Talker {
+        private final long m_hi, m_lo;
+        private final int m_port;
+        private final long m_count, m_error;
+
+        Talker(long hi, long lo, int port, long count, long error) {
+            m_hi = hi;
+            m_lo = lo;
+            m_port = port;
+            m_count = count;
+            m_error = error;
+        }
+
+        public long getHi() {
+            return m_hi;
+        }
+
+        public long getLo() {
+            return m_lo;
+        }
+
+        /**
+         * @return true if the peer has an address, false for a port alone
+         */
+        public boolean hasAddress() {
+            return m_hi != 0 || m_lo != 0;
+        }
+
+        /**
+         * @return the port of the peer, or {@link PmacctReplyParser#NO_PORT}
+         */
+        public int getPort() {
+            return m_port;
+        }
+
+        /**
+         * @return the estimated weight of the peer, never below the exact one
+         */
+        public long getCount() {
+            return m_count;
+        }
+
+        /**
+         * @return the maximum overestimation of {@link #getCount()}
+         */
+        public long getError() {
+            return m_error;
+        }
+
+        /**
+         * @return the textual form of the peer: address, address:port or port
+         */
+        public String getPeer() {
+            if (!hasAddress()) {
+                return String.valueOf(m_port);
+            }
+            String address = HostAddress.toString(m_hi, m_lo);
+            if (m_port == PmacctReplyParser.NO_PORT) {
+                return address;
+            }
+            return address.indexOf(':') < 0 ? address + ":" + m_port : "[" + address + "]:" + m_port;
+        }
+
+        @Override
+        public String toString() {
+            return getPeer() + "=" + m_count + "(+/-" + m_error + ")";
+        }
+    }
+
+    private final long[] m_hi, m_lo, m_count, m_error;
+
+    private final int[] m_port;
+
+    /** Index slot of the peer at each heap position. */
+    private final int[] m_slot;
+
+    /** Heap position + 1 of the peer in each index slot, 0 if the slot is free. */
+    private final int[] m_index;
+
+    private int m_size = 0;
+
+    private long m_total = 0;
+
+    /**
+     * <p>Constructor for SpaceSavingSketch.</p>
+     *
+     * @param capacity the maximum number of peers monitored
+     */
+    public SpaceSavingSketch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        m_hi = new long[capacity];
+        m_lo = new long[capacity];
+        m_count = new long[capacity];
+        m_error = new long[capacity];
+        m_port = new int[capacity];
+        m_slot = new int[capacity];
+        m_index = new int[Integer.highestOneBit(capacity) << 2];
+    }
+
+    /**
+     * Add traffic with a peer.
+     *
+     * @param hi the high word of the packed peer address, 0 with <code>lo</code> if there is none
+     * @param lo the low word of the packed peer address
+     * @param port the peer port, or {@link PmacctReplyParser#NO_PORT}
+     * @param weight the traffic to add, ignored if not positive
+     */
+    public void add(long hi, long lo, int port, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        m_total += weight;
+        int mask = m_index.length - 1;
+        int slot = hash(hi, lo, port) & mask;
+        for (; m_index[slot] != 0; slot = (slot + 1) & mask) {
+            int pos = m_index[slot] - 1;
+            if (m_hi[pos] == hi && m_lo[pos] == lo && m_port[pos] == port) {
+                m_count[pos] += weight;
+                siftDown(pos);
+                return;
+            }
+        }
+
+        int pos;
+        long error;
+        if (m_size < m_count.length) {
+            pos = m_size++;
+            error = 0;
+        } else {
+            // replace the lightest peer, the heap root
+            pos = 0;
+            error = m_count[0];
+            unindex(m_slot[0]);
+            // the removal may have shifted the free slot found above
+            slot = hash(hi, lo, port) & mask;
+            while (m_index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        m_hi[pos] = hi;
+        m_lo[pos] = lo;
+        m_port[pos] = port;
+        m_count[pos] = error + weight;
+        m_error[pos] = error;
+        m_slot[pos] = slot;
+        m_index[slot] = pos + 1;
+        if (error == 0) {
+            siftUp(pos);
+        } else {
+            siftDown(pos);
+        }
+    }
+
+    /**
+     * @param n the number of peers wanted
+     * @return the <code>n</code> peers with the highest counts, heaviest first
+     */
+    public List<Talker> top(int n) {
+        n = Math.min(n, m_size);
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        int[] order = new int[m_size];
+        for (int pos = 0; pos < m_size; pos++) {
+            order[pos] = pos;
+        }
+        List<Talker> talkers = new ArrayList<Talker>(n);
+        // partial selection sort: n is small next to the capacity
+        for (int i = 0; i < n; i++) {
+            int max = i;
+            for (int j = i + 1; j < m_size; j++) {
+                if (m_count[order[j]] > m_count[order[max]]) {
+                    max = j;
+                }
+            }
+            int pos = order[max];
+            order[max] = order[i];
+            order[i] = pos;
+            talkers.add(new Talker(m_hi[pos], m_lo[pos], m_port[pos], m_count[pos], m_error[pos]));
+        }
+        return talkers;
+    }
+
+    /**
+     * @return the number of peers monitored
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @return the maximum number of peers monitored
+     */
+    public int capacity() {
+        return m_count.length;
+    }
+
+    /**
+     * @return the sum of the weights added
+     */
+    public long getTotal() {
+        return m_total;
+    }
+
+    /**
+     * Forget every peer, keeping the memory of the sketch.
+     */
+    public void clear() {
+        Arrays.fill(m_index, 0);
+        m_size = 0;
+        m_total = 0;
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (m_count[parent] <= m_count[pos]) {
+                break;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= m_size) {
+                break;
+            }
+            if (child + 1 < m_size && m_count[child + 1] < m_count[child]) {
+                child++;
+            }
+            if (m_count[pos] <= m_count[child]) {
+                break;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long hi = m_hi[a], lo = m_lo[a], count = m_count[a], error = m_error[a];
+        int port = m_port[a], slot = m_slot[a];
+        m_hi[a] = m_hi[b];
+        m_lo[a] = m_lo[b];
+        m_count[a] = m_count[b];
+        m_error[a] = m_error[b];
+        m_port[a] = m_port[b];
+        m_slot[a] = m_slot[b];
+        m_hi[b] = hi;
+        m_lo[b] = lo;
+        m_count[b] = count;
+        m_error[b] = error;
+        m_port[b] = port;
+        m_slot[b] = slot;
+        m_index[m_slot[a]] = a + 1;
+        m_index[m_slot[b]] = b + 1;
+    }
+
+    /**
+     * Free an index slot, shifting back the entries of its probe sequence.
+     */
+    private void unindex(int slot) {
+        int mask = m_index.length - 1;
+        m_index[slot] = 0;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; m_index[next] != 0; next = (next + 1) & mask) {
+            int pos = m_index[next] - 1;
+            int home = hash(m_hi[pos], m_lo[pos], m_port[pos]) & mask;
+            // move the entry into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                m_index[hole] = m_index[next];
+                m_index[next] = 0;
+                m_slot[pos] = hole;
+                hole = next;
+            }
+        }
+    }
+
+    private static int hash(long hi, long lo, int port) {
+        long h = (hi * 0x9e3779b97f4a7c15L) ^ lo ^ ((long) port << 48);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
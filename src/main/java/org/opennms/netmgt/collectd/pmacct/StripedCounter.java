@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counter updated by many threads at once without contending on a
+ * single cell.</p>
+ *
+ * <p>Updates go to one of several cells picked from the id of the calling
+ * thread, each cell on a cache line of its own, so threads rarely retry
+ * and never share a line; reads sum the cells. There is no lock, and an
+ * update is a single atomic add on a mostly uncontended cell.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class StripedCounter {
+
+    /** Longs per cache line, cells are this far apart. */
+    static final int PAD = 8;
+
+    /** Number of cells, a power of two. */
+    static final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+
+    private final AtomicLongArray m_cells = new AtomicLongArray(STRIPES * PAD);
+
+    /**
+     * @param delta the value to add
+     */
+    public void add(long delta) {
+        m_cells.addAndGet(stripe() * PAD, delta);
+    }
+
+    /**
+     * Add one.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @return the sum of the cells, not an atomic snapshot under concurrent updates
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += m_cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the cell of the calling thread
+     */
+    static int stripe() {
+        long h = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & (STRIPES - 1);
+    }
+}
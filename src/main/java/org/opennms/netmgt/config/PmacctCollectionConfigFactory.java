@@ -34,11 +34,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.IOUtils;
 import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
 import org.opennms.core.utils.ThreadCategory;
+import org.opennms.netmgt.config.pmacctdatacollection.HttpListener;
+import org.opennms.netmgt.config.pmacctdatacollection.NetflowListener;
 import org.opennms.netmgt.config.pmacctdatacollection.PmacctCollection;
 import org.opennms.netmgt.config.pmacctdatacollection.PmacctDatacollectionConfig;
 import org.opennms.core.xml.CastorUtils;
@@ -54,17 +57,28 @@ import org.opennms.netmgt.model.RrdRepository;
 public class PmacctCollectionConfigFactory {
 
     /** The singleton instance. */
-    private static PmacctCollectionConfigFactory m_instance;
+    private static volatile PmacctCollectionConfigFactory m_instance;
 
-    private static boolean m_loadedFromFile = false;
+    private static volatile boolean m_loadedFromFile = false;
 
     /** Boolean indicating if the init() method has been called. */
     protected boolean initialized = false;
 
     /** Timestamp of the pmacct collection config, used to know when to reload from disk. */
-    protected static long m_lastModified;
+    protected static volatile long m_lastModified;
 
-    private static PmacctDatacollectionConfig m_config;
+    /**
+     * The configuration compiled at load time, the only form read when
+     * collecting. A reload publishes a whole new configuration at once, so
+     * readers never lock and never see a half loaded one.
+     */
+    private static final AtomicReference<PmacctCompiledConfig> m_compiled = new AtomicReference<PmacctCompiledConfig>();
+
+    /** Duration of the last reload from disk in milliseconds, -1 before the first one. */
+    private static volatile long m_lastReloadDuration = -1;
+
+    /** Number of collections added, removed or modified by the last reload from disk. */
+    private static volatile int m_lastReloadChanges = 0;
 
     /**
      * <p>Constructor for PmacctCollectionConfigFactory.</p>
@@ -99,7 +113,26 @@ public class PmacctCollectionConfigFactory {
 
     private void initialize(InputStream stream) throws MarshalException, ValidationException {
         log().debug("initialize: initializing pmacct collection config factory.");
-        m_config = CastorUtils.unmarshal(PmacctDatacollectionConfig.class, stream, false);
+        m_compiled.set(PmacctCompiledConfig.compile(CastorUtils.unmarshal(PmacctDatacollectionConfig.class, stream, false)));
+    }
+
+    private static PmacctDatacollectionConfig unmarshal(File cfgFile) throws IOException, MarshalException, ValidationException {
+        InputStream is = new FileInputStream(cfgFile);
+        try {
+            return CastorUtils.unmarshal(PmacctDatacollectionConfig.class, is, false);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * <p>isStringType</p>
+     *
+     * @param type the <code>type</code> of an attribute
+     * @return true for the <code>string</code> and <code>octetstring</code> types
+     */
+    public static boolean isStringType(String type) {
+        return "string".equalsIgnoreCase(type) || "octetstring".equalsIgnoreCase(type);
     }
 
     /**
@@ -127,12 +160,12 @@ public class PmacctCollectionConfigFactory {
      * @throws java.lang.IllegalStateException
      *             if init has not been called
      */
-    public static synchronized PmacctCollectionConfigFactory getInstance() {
-
-        if (m_instance == null) {
+    public static PmacctCollectionConfigFactory getInstance() {
+        PmacctCollectionConfigFactory instance = m_instance;
+        if (instance == null) {
             throw new IllegalStateException("You must call PmacctCollectionConfigFactory.init() before calling getInstance().");
         }
-        return m_instance;
+        return instance;
     }
     
     /**
@@ -146,18 +179,40 @@ public class PmacctCollectionConfigFactory {
     }
 
     /**
-     * <p>reload</p>
+     * Parse, validate and compile the configuration file, then publish it
+     * in place of the current one. The current configuration stays in use
+     * until then, and if the new file is invalid.
      *
      * @throws java.io.IOException if any.
      * @throws java.io.FileNotFoundException if any.
      * @throws org.exolab.castor.xml.MarshalException if any.
      * @throws org.exolab.castor.xml.ValidationException if any.
      */
-    public synchronized void reload() throws IOException, FileNotFoundException, MarshalException, ValidationException {
-        m_instance = null;
-        init();
+    public void reload() throws IOException, FileNotFoundException, MarshalException, ValidationException {
+        reloadFromFile();
     }
 
+    private static synchronized void reloadFromFile() throws IOException, MarshalException, ValidationException {
+        long start = System.currentTimeMillis();
+        File cfgFile = PmacctConfigFileConstants.getFile(PmacctConfigFileConstants.PMACCT_COLLECTION_CONFIG_FILE_NAME);
+        // an invalid file is not retried until it changes again
+        m_lastModified = cfgFile.lastModified();
+        PmacctCompiledConfig previous = m_compiled.get();
+        PmacctCompiledConfig config = PmacctCompiledConfig.compile(unmarshal(cfgFile), previous);
+        m_compiled.set(config);
+        m_loadedFromFile = true;
+
+        m_lastReloadChanges = config.getChangedCollectionCount(previous);
+        m_lastReloadDuration = System.currentTimeMillis() - start;
+        ThreadCategory.getInstance(PmacctCollectionConfigFactory.class).info(
+            "reload: reloaded " + cfgFile + " in " + m_lastReloadDuration + " ms, "
+            + m_lastReloadChanges + " collection(s) changed");
+        List<String> restart = config.getRestartSettingChanges(previous);
+        if (!restart.isEmpty()) {
+            ThreadCategory.getInstance(PmacctCollectionConfigFactory.class).warn(
+                "reload: " + restart + " changed in " + cfgFile + ", restart OpenNMS to apply them");
+        }
+    }
 
     /**
      * Reload the pmacct-datacollection-config.xml file if it has been changed since we last
@@ -176,13 +231,32 @@ public class PmacctCollectionConfigFactory {
         }
     }
 
+    /**
+     * <p>getLastReloadDuration</p>
+     *
+     * @return the duration of the last reload from disk in milliseconds, -1 if there was none
+     */
+    public static long getLastReloadDuration() {
+        return m_lastReloadDuration;
+    }
+
+    /**
+     * <p>getLastReloadChanges</p>
+     *
+     * @return the number of collections added, removed or modified by the last reload from disk
+     */
+    public static int getLastReloadChanges() {
+        return m_lastReloadChanges;
+    }
+
     /**
      * <p>getConfig</p>
      *
      * @return a {@link org.opennms.netmgt.config.pmacctdatacollection.PmacctDatacollectionConfig} object.
      */
-    public synchronized static PmacctDatacollectionConfig getConfig() {
-        return m_config;
+    public static PmacctDatacollectionConfig getConfig() {
+        PmacctCompiledConfig config = m_compiled.get();
+        return config == null ? null : config.getConfig();
     }
 
     /**
@@ -190,8 +264,17 @@ public class PmacctCollectionConfigFactory {
      *
      * @param m_config a {@link org.opennms.netmgt.config.pmacctdatacollection.PmacctDatacollectionConfig} object.
      */
-    public synchronized static void setConfig(PmacctDatacollectionConfig m_config) {
-        PmacctCollectionConfigFactory.m_config = m_config;
+    public static void setConfig(PmacctDatacollectionConfig m_config) {
+        PmacctCollectionConfigFactory.m_compiled.set(m_config == null ? null : new PmacctCompiledConfig(m_config));
+    }
+
+    /**
+     * <p>getCompiledConfig</p>
+     *
+     * @return the compiled form of the current configuration
+     */
+    public static PmacctCompiledConfig getCompiledConfig() {
+        return m_compiled.get();
     }
 
     private ThreadCategory log() {
@@ -199,20 +282,13 @@ public class PmacctCollectionConfigFactory {
     }
 
     /**
-     * <p>getPmacctCollection</p>
+     * <p>getCompiledCollection</p>
      *
      * @param collectionName a {@link java.lang.String} object.
-     * @return a {@link org.opennms.netmgt.config.pmacctdatacollection.PmacctCollection} object.
+     * @return the compiled collection of that name, a {@link org.opennms.netmgt.config.PmacctCompiledCollection} object.
      */
-    public PmacctCollection getPmacctCollection(String collectionName) {
-        List<PmacctCollection> collections = m_config.getPmacctCollectionCollection();
-        PmacctCollection collection = null;
-        for (PmacctCollection coll : collections) {
-            if (coll.getName().equalsIgnoreCase(collectionName)) {
-                collection = coll;
-                break;
-            }
-        }
+    public PmacctCompiledCollection getCompiledCollection(String collectionName) {
+        PmacctCompiledCollection collection = getCompiledConfig().getCollection(collectionName);
         if (collection == null) {
             throw new IllegalArgumentException("getPmacctCollection: collection name: "
                                                        +collectionName+" specified in collectd configuration not found in pmacct collection configuration.");
@@ -220,19 +296,24 @@ public class PmacctCollectionConfigFactory {
         return collection;
     }
 
+    /**
+     * <p>getPmacctCollection</p>
+     *
+     * @param collectionName a {@link java.lang.String} object.
+     * @return a {@link org.opennms.netmgt.config.pmacctdatacollection.PmacctCollection} object.
+     */
+    public PmacctCollection getPmacctCollection(String collectionName) {
+        return getCompiledCollection(collectionName).getCollection();
+    }
+
     /**
      * <p>getRrdRepository</p>
      *
      * @param collectionName a {@link java.lang.String} object.
-     * @return a {@link org.opennms.netmgt.model.RrdRepository} object.
+     * @return the repository of the collection, shared and not to be modified
      */
     public RrdRepository getRrdRepository(String collectionName) {
-        RrdRepository repo = new RrdRepository();
-        repo.setRrdBaseDir(new File(getRrdPath()));
-        repo.setRraList(getRRAList(collectionName));
-        repo.setStep(getStep(collectionName));
-        repo.setHeartBeat((2 * getStep(collectionName)));
-        return repo;
+        return getCompiledCollection(collectionName).getRrdRepository();
     }
     
     /**
@@ -242,11 +323,7 @@ public class PmacctCollectionConfigFactory {
      * @return a int.
      */
     public int getStep(String cName) {
-        PmacctCollection collection = getPmacctCollection(cName);
-        if (collection != null)
-            return collection.getRrd().getStep();
-        else
-            return -1;
+        return getCompiledCollection(cName).getStep();
     }
     
     /**
@@ -256,12 +333,7 @@ public class PmacctCollectionConfigFactory {
      * @return a {@link java.util.List} object.
      */
     public List<String> getRRAList(String cName) {
-        PmacctCollection collection = getPmacctCollection(cName);
-        if (collection != null)
-            return collection.getRrd().getRraCollection();
-        else
-            return null;
-
+        return getCompiledCollection(cName).getRrdRepository().getRraList();
     }
     
     /**
@@ -270,35 +342,160 @@ public class PmacctCollectionConfigFactory {
      * @return a {@link java.lang.String} object.
      */
     public String getRrdPath() {
-        String rrdPath = m_config.getRrdRepository();
+        String rrdPath = getCompiledConfig().getRrdPath();
         if (rrdPath == null) {
             throw new RuntimeException("Configuration error, failed to "
                     + "retrieve path to RRD repository.");
         }
-    
-        /*
-         * TODO: make a path utils class that has the below in it strip the
-         * File.separator char off of the end of the path.
-         */
-        if (rrdPath.endsWith(File.separator)) {
-            rrdPath = rrdPath.substring(0, (rrdPath.length() - File.separator.length()));
-        }
-        
         return rrdPath;
     }
 
     public String getPmacctPath() {
-        String pmacctPath = m_config.getPmacctPath();
-        if (pmacctPath == null) {
-            throw new RuntimeException("Configuration error, failed to "
-                    + "retrieve path to Pmacct command.");
+        PmacctCompiledConfig config = getCompiledConfig();
+        if (config.getPmacctPathError() != null) {
+            throw new RuntimeException(config.getPmacctPathError());
         }
-        File pmacct = new File(pmacctPath);
-        if (!pmacct.exists()) {
+        return config.getPmacctPath();
+    }
+
+    /**
+     * <p>getHostTableMemory</p>
+     *
+     * @return the memory budget of a per host counter table, in bytes
+     */
+    public long getHostTableMemory() {
+        return getCompiledConfig().getHostTableMemory();
+    }
+
+    /**
+     * <p>getHostIdleTimeout</p>
+     *
+     * @return the time after which an idle host can be evicted, in milliseconds
+     */
+    public long getHostIdleTimeout() {
+        return getCompiledConfig().getHostIdleTimeout();
+    }
+
+    /**
+     * <p>getParseThreads</p>
+     *
+     * @return the number of threads parsing a table dump
+     */
+    public int getParseThreads() {
+        return getCompiledConfig().getParseThreads();
+    }
+
+    /**
+     * <p>getBackoffBase</p>
+     *
+     * @return the backoff of a node after a first miss, in milliseconds, 0 if nodes are never backed off
+     */
+    public long getBackoffBase() {
+        return getCompiledConfig().getBackoffBase();
+    }
+
+    /**
+     * <p>getBackoffMax</p>
+     *
+     * @return the longest backoff of a node, in milliseconds
+     */
+    public long getBackoffMax() {
+        return getCompiledConfig().getBackoffMax();
+    }
+
+    /**
+     * <p>isHostFilter</p>
+     *
+     * @return true if table dumps only keep the hosts collected from
+     */
+    public boolean isHostFilter() {
+        return getCompiledConfig().isHostFilter();
+    }
+
+    /**
+     * <p>getMaxProcesses</p>
+     *
+     * @return the maximum number of pmacct clients running at once
+     */
+    public int getMaxProcesses() {
+        return getCompiledConfig().getMaxProcesses();
+    }
+
+    /**
+     * <p>getProcessTimeout</p>
+     *
+     * @return the deadline of a pmacct client run, in milliseconds
+     */
+    public long getProcessTimeout() {
+        return getCompiledConfig().getProcessTimeout();
+    }
+
+    /**
+     * <p>getNetflowListener</p>
+     *
+     * @return the embedded NetFlow receiver settings, or null if it is not configured
+     */
+    public NetflowListener getNetflowListener() {
+        return getCompiledConfig().getNetflowListener();
+    }
+
+    /**
+     * <p>getBillingDirectory</p>
+     *
+     * @return the directory the billing sketches are saved in
+     */
+    public String getBillingDirectory() {
+        String directory = getCompiledConfig().getBillingDirectory();
+        if (directory == null) {
             throw new RuntimeException("Configuration error, failed to "
-                    + "find the Pmacct executable at : " + pmacctPath);
+                    + "retrieve the billing directory.");
         }
-        return pmacctPath;
+        return directory;
+    }
+
+    /**
+     * <p>getBillingMemory</p>
+     *
+     * @return the memory budget of the billing sketches of a collection, in bytes
+     */
+    public long getBillingMemory() {
+        return getCompiledConfig().getBillingMemory();
+    }
+
+    /**
+     * <p>isBilling</p>
+     *
+     * @return true if an attribute of a collection keeps billing sketches
+     */
+    public boolean isBilling() {
+        return getCompiledConfig().isBilling();
+    }
+
+    /**
+     * <p>getBillingCheckpoint</p>
+     *
+     * @return the interval between two saves of the billing sketches, in milliseconds
+     */
+    public long getBillingCheckpoint() {
+        return getCompiledConfig().getBillingCheckpoint();
+    }
+
+    /**
+     * <p>getHttpListener</p>
+     *
+     * @return the embedded HTTP endpoint settings, or null if it is not configured
+     */
+    public HttpListener getHttpListener() {
+        return getCompiledConfig().getHttpListener();
+    }
+
+    /**
+     * <p>getReloadInterval</p>
+     *
+     * @return the interval between two checks of the configuration file for changes, in milliseconds, 0 if disabled
+     */
+    public long getReloadInterval() {
+        return getCompiledConfig().getReloadInterval();
     }
 
 }
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.netmgt.collectd.pmacct.PmacctOptions;
+
+/**
+ * <p>Pre-tokenized pmacct command line of an <code>attrib</code>: the
+ * argument array is split once when the configuration is loaded and only
+ * the arguments holding the
+ * {@link org.opennms.netmgt.collectd.pmacct.PmacctOptions#HOST_PLACEHOLDER}
+ * are rebuilt for each host.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctCommandTemplate {
+
+    private final String[] m_argv;
+
+    private final int[] m_hostArgs;
+
+    /**
+     * <p>Constructor for PmacctCommandTemplate.</p>
+     *
+     * @param pmacctPath path to the pmacct client
+     * @param options the <code>pmacct-options</code> of the attribute, may be null
+     */
+    public PmacctCommandTemplate(String pmacctPath, String options) {
+        List<String> argv = new ArrayList<String>();
+        argv.add(pmacctPath);
+        if (options != null && options.trim().length() > 0) {
+            for (String token : options.trim().split("\\s+")) {
+                argv.add(token);
+            }
+        }
+        m_argv = argv.toArray(new String[argv.size()]);
+
+        int count = 0;
+        for (String arg : m_argv) {
+            if (arg.contains(PmacctOptions.HOST_PLACEHOLDER)) {
+                count++;
+            }
+        }
+        m_hostArgs = new int[count];
+        count = 0;
+        for (int i = 0; i < m_argv.length; i++) {
+            if (m_argv[i].contains(PmacctOptions.HOST_PLACEHOLDER)) {
+                m_hostArgs[count++] = i;
+            }
+        }
+    }
+
+    /**
+     * @param host the agent address
+     * @return the argument array for the host, a fresh copy
+     */
+    public String[] build(String host) {
+        String[] argv = m_argv.clone();
+        for (int i : m_hostArgs) {
+            argv[i] = argv[i].replace(PmacctOptions.HOST_PLACEHOLDER, host);
+        }
+        return argv;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer buffer = new StringBuffer();
+        for (String arg : m_argv) {
+            if (buffer.length() > 0) {
+                buffer.append(' ');
+            }
+            buffer.append(arg);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opennms.netmgt.collectd.pmacct.PmacctOptions;
+import org.opennms.netmgt.config.collector.AttributeGroupType;
+import org.opennms.netmgt.config.collector.CollectionAttribute;
+import org.opennms.netmgt.config.collector.CollectionAttributeType;
+import org.opennms.netmgt.config.collector.Persister;
+import org.opennms.netmgt.config.pmacctdatacollection.Attrib;
+
+/**
+ * <p>An <code>attrib</code> of a {@link org.opennms.netmgt.config.PmacctCompiledCollection}:
+ * its type is classified, its options parsed and its command line
+ * tokenized once at load time. It is also the attribute type shared by
+ * every value collected for it.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctCompiledAttribute implements CollectionAttributeType {
+
+    private final Attrib m_attrib;
+
+    private final AttributeGroupType m_groupType;
+
+    private final boolean m_numeric;
+
+    private final String m_compute;
+
+    private final PmacctOptions m_options;
+
+    private final PmacctCommandTemplate m_command;
+
+    private final List<PmacctCommandTemplate> m_shardCommands;
+
+    /**
+     * <p>Constructor for PmacctCompiledAttribute.</p>
+     *
+     * @param attrib the attribute configuration
+     * @param groupType the attribute group of its collection
+     * @param pmacctPath path to the pmacct client
+     */
+    public PmacctCompiledAttribute(Attrib attrib, AttributeGroupType groupType, String pmacctPath) {
+        m_attrib = attrib;
+        m_groupType = groupType;
+        m_numeric = !PmacctCollectionConfigFactory.isStringType(attrib.getType());
+        m_compute = attrib.getCompute() == null ? "raw" : attrib.getCompute();
+        m_options = PmacctOptions.parse(attrib.getPmacctOptions());
+        m_command = new PmacctCommandTemplate(pmacctPath, attrib.getPmacctOptions());
+        if (m_options.isSharded()) {
+            List<PmacctCommandTemplate> commands = new ArrayList<PmacctCommandTemplate>();
+            for (String pipe : m_options.getPipes()) {
+                commands.add(new PmacctCommandTemplate(pmacctPath, m_options.forPipe(pipe).toString()));
+            }
+            m_shardCommands = Collections.unmodifiableList(commands);
+        } else {
+            m_shardCommands = Collections.singletonList(m_command);
+        }
+    }
+
+    /**
+     * @return the attribute configuration, not to be modified
+     */
+    public Attrib getAttrib() {
+        return m_attrib;
+    }
+
+    /**
+     * @return the alias of the attribute
+     */
+    public String getAlias() {
+        return m_attrib.getAlias();
+    }
+
+    /**
+     * @return false if the attribute is collected as a string
+     */
+    public boolean isNumeric() {
+        return m_numeric;
+    }
+
+    /**
+     * @return what is stored for the attribute: <code>raw</code>, <code>delta</code> or <code>rate</code>
+     */
+    public String getCompute() {
+        return m_compute;
+    }
+
+    /**
+     * @return true if the attribute is computed from a cumulative counter
+     */
+    public boolean isCumulative() {
+        return m_numeric && !"raw".equals(m_compute);
+    }
+
+    /**
+     * @return true if the attribute is stored as a per second rate
+     */
+    public boolean isRate() {
+        return m_numeric && "rate".equals(m_compute);
+    }
+
+    /**
+     * @return true if the monthly percentiles of the rate are kept for billing
+     */
+    public boolean isBilling() {
+        return isRate() && m_attrib.getBilling();
+    }
+
+    /**
+     * @return the parsed <code>pmacct-options</code> of the attribute
+     */
+    public PmacctOptions getOptions() {
+        return m_options;
+    }
+
+    /**
+     * @return the pre-tokenized command line of the attribute
+     */
+    public PmacctCommandTemplate getCommand() {
+        return m_command;
+    }
+
+    /**
+     * @return the command line of each pipe of the attribute, in the order
+     *         of {@link PmacctOptions#getPipes()}, just {@link #getCommand()}
+     *         if it reads a single pipe
+     */
+    public List<PmacctCommandTemplate> getShardCommands() {
+        return m_shardCommands;
+    }
+
+    /** {@inheritDoc} */
+    public AttributeGroupType getGroupType() {
+        return m_groupType;
+    }
+
+    /** {@inheritDoc} */
+    public void storeAttribute(CollectionAttribute attribute, Persister persister) {
+        persister.persistNumericAttribute(attribute);
+    }
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return m_attrib.getAlias();
+    }
+
+    /** {@inheritDoc} */
+    public String getType() {
+        return m_attrib.getType();
+    }
+
+    @Override
+    public String toString() {
+        return getName() + ":" + getType() + " [" + m_command + "]";
+    }
+}
@@ -0,0 +1,388 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.netmgt.collectd.pmacct.HostAddress;
+import org.opennms.netmgt.collectd.pmacct.PrefixTrie;
+import org.opennms.netmgt.config.collector.AttributeGroupType;
+import org.opennms.netmgt.config.collector.CollectionAttribute;
+import org.opennms.netmgt.config.collector.CollectionAttributeType;
+import org.opennms.netmgt.config.collector.Persister;
+import org.opennms.netmgt.config.pmacctdatacollection.Attrib;
+import org.opennms.netmgt.config.pmacctdatacollection.PmacctCollection;
+import org.opennms.netmgt.config.pmacctdatacollection.Prefix;
+import org.opennms.netmgt.model.RrdRepository;
+
+/**
+ * <p>Immutable, load time compiled form of a <code>pmacct-collection</code>:
+ * its RRD repository, attribute group and attributes are built once and
+ * shared by every collection of every node.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctCompiledCollection {
+
+    private final PmacctCollection m_collection;
+
+    private final String m_mode;
+
+    private final RrdRepository m_repository;
+
+    private final AttributeGroupType m_groupType;
+
+    private final List<PmacctCompiledAttribute> m_attributes;
+
+    /** Type of the age of the tables, null if it is not stored. */
+    private final CollectionAttributeType m_ageType;
+
+    /** Types of the minimum, maximum and 95th percentile of the sampled rates, by attribute alias. */
+    private final Map<String, CollectionAttributeType[]> m_sampleTypes;
+
+    /** Types of the 95th and 99th percentiles of the month of the billed rates, by attribute alias. */
+    private final Map<String, CollectionAttributeType[]> m_billingTypes;
+
+    /** The prefixes of the collection, null if it has none. */
+    private final PrefixTrie m_prefixTrie;
+
+    /** Prefix, resource instance and normalized host of each prefix, by prefix id. */
+    private final String[] m_prefixCidrs, m_prefixLabels, m_prefixHosts;
+
+    /**
+     * <p>Constructor for PmacctCompiledCollection.</p>
+     *
+     * @param collection the collection configuration
+     * @param rrdPath the normalized path of the RRD repository
+     * @param pmacctPath path to the pmacct client
+     */
+    public PmacctCompiledCollection(PmacctCollection collection, String rrdPath, String pmacctPath) {
+        m_collection = collection;
+        m_mode = collection.getMode() == null ? "exec" : collection.getMode();
+
+        int step = collection.getRrd().getStep();
+        m_repository = new RrdRepository();
+        m_repository.setRrdBaseDir(new File(rrdPath));
+        m_repository.setRraList(Collections.unmodifiableList(new ArrayList<String>(collection.getRrd().getRraCollection())));
+        m_repository.setStep(step);
+        m_repository.setHeartBeat(2 * step);
+
+        m_groupType = new AttributeGroupType(collection.getName(), "all");
+
+        List<PmacctCompiledAttribute> attributes = new ArrayList<PmacctCompiledAttribute>();
+        if (collection.getAttributes() != null) {
+            for (Attrib attrib : collection.getAttributes().getAttribCollection()) {
+                attributes.add(new PmacctCompiledAttribute(attrib, m_groupType, pmacctPath));
+            }
+        }
+        m_attributes = Collections.unmodifiableList(attributes);
+        m_ageType = collection.getAgeAlias() == null ? null : new GaugeAttributeType(collection.getAgeAlias(), m_groupType);
+
+        // each derived value needs a type of its own: its name is the data source name
+        Map<String, CollectionAttributeType[]> sampleTypes = new HashMap<String, CollectionAttributeType[]>();
+        Map<String, CollectionAttributeType[]> billingTypes = new HashMap<String, CollectionAttributeType[]>();
+        for (PmacctCompiledAttribute attribute : m_attributes) {
+            String alias = attribute.getAlias();
+            if (attribute.isRate() && collection.getSampleInterval() > 0) {
+                sampleTypes.put(alias, new CollectionAttributeType[] {
+                    new GaugeAttributeType(alias + "Min", m_groupType),
+                    new GaugeAttributeType(alias + "Max", m_groupType),
+                    new GaugeAttributeType(alias + "P95", m_groupType) });
+            }
+            if (attribute.isBilling()) {
+                billingTypes.put(alias, new CollectionAttributeType[] {
+                    new GaugeAttributeType(alias + "Bill95", m_groupType),
+                    new GaugeAttributeType(alias + "Bill99", m_groupType) });
+            }
+        }
+        m_sampleTypes = sampleTypes;
+        m_billingTypes = billingTypes;
+
+        List<Prefix> prefixes = collection.getPrefixCollection();
+        m_prefixCidrs = new String[prefixes.size()];
+        m_prefixLabels = new String[prefixes.size()];
+        m_prefixHosts = new String[prefixes.size()];
+        long[] packed = new long[2];
+        for (int id = 0; id < prefixes.size(); id++) {
+            Prefix prefix = prefixes.get(id);
+            m_prefixCidrs[id] = prefix.getCidr();
+            m_prefixLabels[id] = prefix.getName() == null ? prefix.getCidr() : prefix.getName();
+            if (prefix.getHost() != null && HostAddress.pack(prefix.getHost(), packed)) {
+                // the form of CollectionAgent.getHostAddress()
+                m_prefixHosts[id] = HostAddress.toString(packed[0], packed[1]);
+            }
+        }
+        m_prefixTrie = prefixes.isEmpty() ? null : new PrefixTrie(Arrays.asList(m_prefixCidrs));
+    }
+
+    /**
+     * @return the collection configuration, not to be modified
+     */
+    public PmacctCollection getCollection() {
+        return m_collection;
+    }
+
+    /**
+     * @return the name of the collection
+     */
+    public String getName() {
+        return m_collection.getName();
+    }
+
+    /**
+     * @return the collection mode, <code>exec</code> when not set
+     */
+    public String getMode() {
+        return m_mode;
+    }
+
+    /**
+     * @return the number of hosts queried per pmacct run in batch mode
+     */
+    public int getBatchSize() {
+        return m_collection.getBatchSize();
+    }
+
+    /**
+     * @return true if the tables are read by the collector in the background
+     */
+    public boolean isBackgroundRefresh() {
+        return m_collection.getBackgroundRefresh();
+    }
+
+    /**
+     * @return the milliseconds after which the tables of a background refreshed collection are stale
+     */
+    public long getStaleAge() {
+        // older than the heartbeat, the value would not be stored anyway
+        return m_repository.getHeartBeat() * 1000L;
+    }
+
+    /**
+     * @return the type of the attribute the age of the tables is stored as, null if it is not stored
+     */
+    public CollectionAttributeType getAgeAttributeType() {
+        return m_ageType;
+    }
+
+    /**
+     * @param attribute an attribute of the collection
+     * @return the types of the minimum, maximum and 95th percentile of its
+     *         sampled rates, in that order, null if they are not stored; not
+     *         to be modified
+     */
+    public CollectionAttributeType[] getSampleAttributeTypes(PmacctCompiledAttribute attribute) {
+        return m_sampleTypes.get(attribute.getAlias());
+    }
+
+    /**
+     * @param attribute an attribute of the collection
+     * @return the types of the 95th and 99th percentiles of its rates over
+     *         the month, in that order, null if it is not billed; not to be
+     *         modified
+     */
+    public CollectionAttributeType[] getBillingAttributeTypes(PmacctCompiledAttribute attribute) {
+        return m_billingTypes.get(attribute.getAlias());
+    }
+
+    /**
+     * @return the seconds between two samples of the tables, 0 if the collection is not sampled
+     */
+    public int getSampleInterval() {
+        return m_collection.getSampleInterval();
+    }
+
+    /**
+     * @return the number of samples a step can hold, 0 if the collection is not sampled
+     */
+    public int getSamplesPerStep() {
+        int interval = getSampleInterval();
+        // a sample may land late, leave room for one more
+        return interval > 0 ? (getStep() + interval - 1) / interval + 1 : 0;
+    }
+
+    /**
+     * @return the prefixes of the collection, null if it has none
+     */
+    public PrefixTrie getPrefixTrie() {
+        return m_prefixTrie;
+    }
+
+    /**
+     * @param id the id of a prefix in {@link #getPrefixTrie()}
+     * @return the resource instance of the prefix
+     */
+    public String getPrefixLabel(int id) {
+        return m_prefixLabels[id];
+    }
+
+    /**
+     * @param id the id of a prefix in {@link #getPrefixTrie()}
+     * @param host the address of an agent
+     * @return true if the node of the agent stores the prefix
+     */
+    public boolean isPrefixOf(int id, String host) {
+        return m_prefixHosts[id] == null || m_prefixHosts[id].equals(host);
+    }
+
+    /**
+     * @return the resource type of the prefixes
+     */
+    public String getPrefixResourceType() {
+        return m_collection.getPrefixResourceType();
+    }
+
+    /**
+     * @return the number of peers stored per node in talkers mode
+     */
+    public int getTopN() {
+        return m_collection.getTopN();
+    }
+
+    /**
+     * @return the number of peers tracked per node in talkers mode
+     */
+    public int getTalkerCapacity() {
+        return m_collection.getTalkerCapacity();
+    }
+
+    /**
+     * @return the resource type of the peers stored in talkers mode
+     */
+    public String getResourceType() {
+        return m_collection.getResourceType();
+    }
+
+    /**
+     * @return the RRD step of the collection, in seconds
+     */
+    public int getStep() {
+        return m_repository.getStep();
+    }
+
+    /**
+     * @return the RRD repository of the collection, shared and not to be modified
+     */
+    public RrdRepository getRrdRepository() {
+        return m_repository;
+    }
+
+    /**
+     * @return the attribute group of the collection, the same across the
+     *         reloads that leave the collection equivalent
+     */
+    public AttributeGroupType getGroupType() {
+        return m_groupType;
+    }
+
+    /**
+     * @return the attributes of the collection, in configuration order
+     */
+    public List<PmacctCompiledAttribute> getAttributes() {
+        return m_attributes;
+    }
+
+    /**
+     * @param other a compiled collection
+     * @return true if collecting <code>other</code> gives the same attributes, stored the same way
+     */
+    public boolean isEquivalent(PmacctCompiledCollection other) {
+        if (!getName().equalsIgnoreCase(other.getName()) || !m_mode.equals(other.m_mode)
+                || getBatchSize() != other.getBatchSize() || getStep() != other.getStep()
+                || getSampleInterval() != other.getSampleInterval()
+                || isBackgroundRefresh() != other.isBackgroundRefresh()
+                || !String.valueOf(m_collection.getAgeAlias()).equals(String.valueOf(other.m_collection.getAgeAlias()))
+                || getTopN() != other.getTopN() || getTalkerCapacity() != other.getTalkerCapacity()
+                || !String.valueOf(getResourceType()).equals(String.valueOf(other.getResourceType()))
+                || !String.valueOf(getPrefixResourceType()).equals(String.valueOf(other.getPrefixResourceType()))
+                || !Arrays.equals(m_prefixCidrs, other.m_prefixCidrs)
+                || !Arrays.equals(m_prefixLabels, other.m_prefixLabels)
+                || !Arrays.equals(m_prefixHosts, other.m_prefixHosts)
+                || !m_repository.getRrdBaseDir().equals(other.m_repository.getRrdBaseDir())
+                || !m_repository.getRraList().equals(other.m_repository.getRraList())
+                || m_attributes.size() != other.m_attributes.size()) {
+            return false;
+        }
+        for (int i = 0; i < m_attributes.size(); i++) {
+            PmacctCompiledAttribute mine = m_attributes.get(i);
+            PmacctCompiledAttribute theirs = other.m_attributes.get(i);
+            if (!mine.getAlias().equals(theirs.getAlias()) || !mine.getType().equals(theirs.getType())
+                    || !mine.getCompute().equals(theirs.getCompute()) || mine.isBilling() != theirs.isBilling()
+                    || !mine.getCommand().toString().equals(theirs.getCommand().toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " (" + m_mode + ", " + m_attributes.size() + " attributes)";
+    }
+
+    /**
+     * A gauge stored next to the attributes of a collection: the age of
+     * its tables, or a value derived from one of its attributes.
+     */
+    private static class GaugeAttributeType implements CollectionAttributeType {
+
+        private final String m_alias;
+
+        private final AttributeGroupType m_groupType;
+
+        GaugeAttributeType(String alias, AttributeGroupType groupType) {
+            m_alias = alias;
+            m_groupType = groupType;
+        }
+
+        public AttributeGroupType getGroupType() {
+            return m_groupType;
+        }
+
+        public void storeAttribute(CollectionAttribute attribute, Persister persister) {
+            persister.persistNumericAttribute(attribute);
+        }
+
+        public String getName() {
+            return m_alias;
+        }
+
+        public String getType() {
+            return "gauge";
+        }
+    }
+}
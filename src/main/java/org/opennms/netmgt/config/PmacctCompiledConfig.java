@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.exolab.castor.xml.ValidationException;
+import org.opennms.netmgt.collectd.pmacct.HostAddress;
+import org.opennms.netmgt.collectd.pmacct.PmacctOptions;
+import org.opennms.netmgt.collectd.pmacct.PmacctTableSnapshot;
+import org.opennms.netmgt.collectd.pmacct.PmacctTalkerTable;
+import org.opennms.netmgt.collectd.pmacct.PrefixTrie;
+import org.opennms.netmgt.config.pmacctdatacollection.Attrib;
+import org.opennms.netmgt.config.pmacctdatacollection.HttpListener;
+import org.opennms.netmgt.config.pmacctdatacollection.NetflowListener;
+import org.opennms.netmgt.config.pmacctdatacollection.PmacctCollection;
+import org.opennms.netmgt.config.pmacctdatacollection.PmacctDatacollectionConfig;
+import org.opennms.netmgt.config.pmacctdatacollection.Prefix;
+
+/**
+ * <p>Immutable, load time compiled form of the pmacct data collection
+ * configuration. Collections are indexed by lower case name, paths are
+ * normalized and every collection is compiled into a
+ * {@link org.opennms.netmgt.config.PmacctCompiledCollection}, so that
+ * collecting only reads prebuilt objects.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctCompiledConfig {
+
+    private final PmacctDatacollectionConfig m_config;
+
+    private final String m_rrdPath;
+
+    private final String m_pmacctPath;
+
+    /** Why the pmacct client cannot be run, null if it was found. */
+    private final String m_pmacctPathError;
+
+    private final Map<String, PmacctCompiledCollection> m_collections;
+
+    private final List<PmacctCompiledCollection> m_collectionList;
+
+    /**
+     * <p>Constructor for PmacctCompiledConfig.</p>
+     *
+     * @param config the unmarshalled configuration, not to be modified afterwards
+     */
+    public PmacctCompiledConfig(PmacctDatacollectionConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * <p>Constructor for PmacctCompiledConfig.</p>
+     *
+     * @param config the unmarshalled configuration, not to be modified afterwards
+     * @param previous the configuration this one replaces, its collections are
+     *        kept where they are equivalent so that the collector keeps their
+     *        resources and attributes; may be null
+     */
+    public PmacctCompiledConfig(PmacctDatacollectionConfig config, PmacctCompiledConfig previous) {
+        m_config = config;
+        m_rrdPath = normalizeRrdPath(config.getRrdRepository());
+        m_pmacctPath = config.getPmacctPath();
+        m_pmacctPathError = checkPmacctPath(m_pmacctPath);
+
+        Map<String, PmacctCompiledCollection> collections = new HashMap<String, PmacctCompiledCollection>();
+        List<PmacctCompiledCollection> collectionList = new ArrayList<PmacctCompiledCollection>();
+        for (PmacctCollection collection : config.getPmacctCollectionCollection()) {
+            String key = collection.getName().toLowerCase();
+            if (collections.containsKey(key)) {
+                // the first collection of a name wins, as with the former linear lookup
+                continue;
+            }
+            PmacctCompiledCollection compiled = new PmacctCompiledCollection(collection, m_rrdPath, m_pmacctPath);
+            PmacctCompiledCollection before = previous == null ? null : previous.getCollection(collection.getName());
+            if (before != null && before.getName().equals(collection.getName()) && compiled.isEquivalent(before)) {
+                compiled = before;
+            }
+            collections.put(key, compiled);
+            collectionList.add(compiled);
+        }
+        m_collections = collections;
+        m_collectionList = Collections.unmodifiableList(collectionList);
+    }
+
+    /**
+     * Look the pmacct client up once per configuration rather than on every
+     * collection. A missing client only fails the collections running it, so
+     * that netflow collections keep working without pmacct installed.
+     *
+     * @return why the client cannot be run, null if it was found
+     */
+    private static String checkPmacctPath(String pmacctPath) {
+        if (pmacctPath == null) {
+            return "Configuration error, failed to retrieve path to Pmacct command.";
+        } else if (!new File(pmacctPath).exists()) {
+            return "Configuration error, failed to find the Pmacct executable at : " + pmacctPath;
+        }
+        return null;
+    }
+
+    /**
+     * Validate and compile an unmarshalled configuration.
+     *
+     * @param config the unmarshalled configuration, not to be modified afterwards
+     * @return the compiled configuration
+     * @throws org.exolab.castor.xml.ValidationException if the configuration cannot be collected with
+     */
+    public static PmacctCompiledConfig compile(PmacctDatacollectionConfig config) throws ValidationException {
+        return compile(config, null);
+    }
+
+    /**
+     * Validate and compile an unmarshalled configuration replacing <code>previous</code>.
+     *
+     * @param config the unmarshalled configuration, not to be modified afterwards
+     * @param previous the configuration being replaced, may be null
+     * @return the compiled configuration
+     * @throws org.exolab.castor.xml.ValidationException if the configuration cannot be collected with
+     * @see #PmacctCompiledConfig(PmacctDatacollectionConfig, PmacctCompiledConfig)
+     */
+    public static PmacctCompiledConfig compile(PmacctDatacollectionConfig config, PmacctCompiledConfig previous)
+            throws ValidationException {
+        if (config.getRrdRepository() == null) {
+            throw new ValidationException("rrdRepository is not set");
+        }
+        for (PmacctCollection collection : config.getPmacctCollectionCollection()) {
+            if (collection.getRrd() == null || collection.getRrd().getStep() <= 0) {
+                throw new ValidationException("pmacct-collection " + collection.getName() + " has no valid rrd step");
+            }
+            if (collection.getAttributes() == null) {
+                continue;
+            }
+            boolean table = collection.getMode() != null && !"exec".equals(collection.getMode());
+            if ("talkers".equals(collection.getMode())) {
+                validateTalkers(collection);
+            }
+            if (!collection.getPrefixCollection().isEmpty()) {
+                validatePrefixes(collection);
+            }
+            if (collection.getBackgroundRefresh() && !table) {
+                throw new ValidationException("pmacct-collection " + collection.getName()
+                                              + " can only refresh the tables of table modes in the background");
+            }
+            if (collection.getSampleInterval() > 0) {
+                if (!table || "talkers".equals(collection.getMode())) {
+                    throw new ValidationException("pmacct-collection " + collection.getName()
+                                                  + " can only sample the tables of snapshot, batch or netflow mode");
+                }
+                if (collection.getSampleInterval() * 2 > collection.getRrd().getStep()) {
+                    throw new ValidationException("pmacct-collection " + collection.getName() + " samples every "
+                                                  + collection.getSampleInterval() + " s, more than half its step");
+                }
+            }
+            for (Attrib attrib : collection.getAttributes().getAttribCollection()) {
+                PmacctOptions options = PmacctOptions.parse(attrib.getPmacctOptions());
+                if (attrib.getCompute() != null && !"raw".equals(attrib.getCompute()) && options.isReset()) {
+                    throw new ValidationException("attrib " + attrib.getAlias() + " of pmacct-collection "
+                                                  + collection.getName() + " computes a " + attrib.getCompute()
+                                                  + " from cumulative counters, remove -r from its options");
+                }
+                if (options.getOutput() != null && !"formatted".equals(options.getOutput())
+                        && !"csv".equals(options.getOutput()) && !"json".equals(options.getOutput())) {
+                    throw new ValidationException("attrib " + attrib.getAlias() + " of pmacct-collection "
+                                                  + collection.getName() + " asks for -O " + options.getOutput()
+                                                  + ", only formatted, csv and json output can be read");
+                }
+                if (options.isSharded() && ("netflow".equals(collection.getMode())
+                        || PmacctCollectionConfigFactory.isStringType(attrib.getType()))) {
+                    throw new ValidationException("attrib " + attrib.getAlias() + " of pmacct-collection "
+                                                  + collection.getName() + " reads several pipes (-p), only the numeric"
+                                                  + " attributes of the pmacct modes can sum shards");
+                }
+                if (table && PmacctTableSnapshot.getHostColumn(options.getAggregate()) == null) {
+                    throw new ValidationException("attrib " + attrib.getAlias() + " of pmacct-collection "
+                                                  + collection.getName() + " needs a src_host or dst_host aggregate (-c) in "
+                                                  + collection.getMode() + " mode");
+                }
+            }
+        }
+        return new PmacctCompiledConfig(config, previous);
+    }
+
+    private static void validatePrefixes(PmacctCollection collection) throws ValidationException {
+        String mode = collection.getMode();
+        if (!"snapshot".equals(mode) && !"netflow".equals(mode)) {
+            throw new ValidationException("pmacct-collection " + collection.getName()
+                                          + " can only sum prefixes from the whole tables of snapshot or netflow mode");
+        }
+        List<String> cidrs = new ArrayList<String>();
+        long[] packed = new long[2];
+        for (Prefix prefix : collection.getPrefixCollection()) {
+            cidrs.add(prefix.getCidr());
+            if (prefix.getHost() != null && !HostAddress.pack(prefix.getHost(), packed)) {
+                throw new ValidationException("prefix " + prefix.getCidr() + " of pmacct-collection "
+                                              + collection.getName() + " has an invalid host " + prefix.getHost());
+            }
+        }
+        try {
+            new PrefixTrie(cidrs);
+        } catch (IllegalArgumentException e) {
+            throw new ValidationException("pmacct-collection " + collection.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static void validateTalkers(PmacctCollection collection) throws ValidationException {
+        if (collection.getTalkerCapacity() < collection.getTopN()) {
+            throw new ValidationException("pmacct-collection " + collection.getName() + " tracks "
+                                          + collection.getTalkerCapacity() + " talkers, less than its top-n");
+        }
+        Map<String, String> counters = new HashMap<String, String>();
+        Set<String> resets = new HashSet<String>();
+        for (Attrib attrib : collection.getAttributes().getAttribCollection()) {
+            PmacctOptions options = PmacctOptions.parse(attrib.getPmacctOptions());
+            if (!PmacctTalkerTable.isTalkerAggregate(options.getAggregate())) {
+                throw new ValidationException("attrib " + attrib.getAlias() + " of pmacct-collection "
+                                              + collection.getName() + " needs both ends of the traffic in its aggregate (-c),"
+                                              + " e.g. src_host,dst_host, in talkers mode");
+            }
+            if (attrib.getCompute() != null && !"raw".equals(attrib.getCompute())) {
+                throw new ValidationException("attrib " + attrib.getAlias() + " of pmacct-collection "
+                                              + collection.getName() + " can only store raw values in talkers mode,"
+                                              + " use -r to rank the talkers of each interval");
+            }
+            // each attribute dumps the table with its own counter, a reset would empty it for the others
+            for (String pipe : options.getPipes()) {
+                String previous = counters.get(pipe);
+                if (previous != null && !previous.equalsIgnoreCase(options.getCounter())
+                        && (options.isReset() || resets.contains(pipe))) {
+                    throw new ValidationException("attrib " + attrib.getAlias() + " of pmacct-collection "
+                                                  + collection.getName() + " ranks reset pipe " + pipe
+                                                  + " by " + options.getCounter() + ", it is already ranked by " + previous);
+                }
+                counters.put(pipe, options.getCounter());
+                if (options.isReset()) {
+                    resets.add(pipe);
+                }
+            }
+        }
+    }
+
+    private static String normalizeRrdPath(String rrdPath) {
+        if (rrdPath == null) {
+            return null;
+        }
+        if (rrdPath.endsWith(File.separator)) {
+            rrdPath = rrdPath.substring(0, (rrdPath.length() - File.separator.length()));
+        }
+        return rrdPath;
+    }
+
+    /**
+     * @return the unmarshalled configuration, not to be modified
+     */
+    public PmacctDatacollectionConfig getConfig() {
+        return m_config;
+    }
+
+    /**
+     * @param name the name of a collection, in any case
+     * @return the compiled collection, or null if there is none of that name
+     */
+    public PmacctCompiledCollection getCollection(String name) {
+        if (name == null) {
+            return null;
+        }
+        return m_collections.get(name.toLowerCase());
+    }
+
+    /**
+     * @return the compiled collections, in configuration order
+     */
+    public List<PmacctCompiledCollection> getCollections() {
+        return m_collectionList;
+    }
+
+    /**
+     * @param previous the configuration this one replaces, may be null
+     * @return the settings the collector only reads when it starts that
+     *         differ from <code>previous</code>, empty if none
+     */
+    public List<String> getRestartSettingChanges(PmacctCompiledConfig previous) {
+        List<String> changed = new ArrayList<String>();
+        if (previous == null) {
+            return changed;
+        }
+        addIfChanged(changed, "max-processes", getMaxProcesses(), previous.getMaxProcesses());
+        addIfChanged(changed, "parse-threads", getParseThreads(), previous.getParseThreads());
+        addIfChanged(changed, "host-table-memory", getHostTableMemory(), previous.getHostTableMemory());
+        addIfChanged(changed, "host-idle-timeout", getHostIdleTimeout(), previous.getHostIdleTimeout());
+        addIfChanged(changed, "backoff-base", getBackoffBase(), previous.getBackoffBase());
+        addIfChanged(changed, "backoff-max", getBackoffMax(), previous.getBackoffMax());
+        addIfChanged(changed, "reload-interval", getReloadInterval(), previous.getReloadInterval());
+        addIfChanged(changed, "billing-directory", getBillingDirectory(), previous.getBillingDirectory());
+        addIfChanged(changed, "billing-checkpoint", getBillingCheckpoint(), previous.getBillingCheckpoint());
+        addIfChanged(changed, "billing-memory", getBillingMemory(), previous.getBillingMemory());
+        if (isBilling() && !previous.isBilling()) {
+            // the billing store is only started with a billed attribute
+            changed.add("billing");
+        }
+        NetflowListener netflow = getNetflowListener(), netflowBefore = previous.getNetflowListener();
+        addIfChanged(changed, "netflow-listener",
+                     netflow == null ? null : netflow.getHost() + ":" + netflow.getPort() + "/" + netflow.getReceiveBufferSize(),
+                     netflowBefore == null ? null : netflowBefore.getHost() + ":" + netflowBefore.getPort() + "/"
+                             + netflowBefore.getReceiveBufferSize());
+        HttpListener http = getHttpListener(), httpBefore = previous.getHttpListener();
+        addIfChanged(changed, "http-listener", http == null ? null : http.getHost() + ":" + http.getPort(),
+                     httpBefore == null ? null : httpBefore.getHost() + ":" + httpBefore.getPort());
+        return changed;
+    }
+
+    private static void addIfChanged(List<String> changed, String setting, Object value, Object before) {
+        if (value == null ? before != null : !value.equals(before)) {
+            changed.add(setting);
+        }
+    }
+
+    /**
+     * @param previous the configuration this one replaces, may be null
+     * @return the number of collections added, removed or modified since <code>previous</code>
+     */
+    public int getChangedCollectionCount(PmacctCompiledConfig previous) {
+        if (previous == null) {
+            return m_collectionList.size();
+        }
+        int changed = 0;
+        for (PmacctCompiledCollection collection : m_collectionList) {
+            PmacctCompiledCollection before = previous.getCollection(collection.getName());
+            if (before == null || !collection.isEquivalent(before)) {
+                changed++;
+            }
+        }
+        for (PmacctCompiledCollection before : previous.getCollections()) {
+            if (getCollection(before.getName()) == null) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the RRD repository path without trailing separator, or null if not configured
+     */
+    public String getRrdPath() {
+        return m_rrdPath;
+    }
+
+    /**
+     * @return the configured path to the pmacct client, or null
+     */
+    public String getPmacctPath() {
+        return m_pmacctPath;
+    }
+
+    /**
+     * @return why the pmacct client cannot be run, checked when the configuration was compiled, or null
+     */
+    public String getPmacctPathError() {
+        return m_pmacctPathError;
+    }
+
+    /**
+     * @return the memory budget of a per host counter table, in bytes
+     */
+    public long getHostTableMemory() {
+        return m_config.getHostTableMemory();
+    }
+
+    /**
+     * @return the time after which an idle host can be evicted, in milliseconds
+     */
+    public long getHostIdleTimeout() {
+        return m_config.getHostIdleTimeout() * 1000L;
+    }
+
+    /**
+     * @return the number of threads parsing a table dump
+     */
+    public int getParseThreads() {
+        return m_config.getParseThreads();
+    }
+
+    /**
+     * @return the backoff of a node after a first miss, in milliseconds, 0 if nodes are never backed off
+     */
+    public long getBackoffBase() {
+        return m_config.getBackoffBase() * 1000L;
+    }
+
+    /**
+     * @return the longest backoff of a node, in milliseconds
+     */
+    public long getBackoffMax() {
+        return m_config.getBackoffMax() * 1000L;
+    }
+
+    /**
+     * @return true if table dumps only keep the hosts collected from
+     */
+    public boolean isHostFilter() {
+        return m_config.getHostFilter();
+    }
+
+    /**
+     * @return the maximum number of pmacct clients running at once
+     */
+    public int getMaxProcesses() {
+        return m_config.getMaxProcesses();
+    }
+
+    /**
+     * @return the deadline of a pmacct client run, in milliseconds
+     */
+    public long getProcessTimeout() {
+        return m_config.getProcessTimeout();
+    }
+
+    /**
+     * @return the interval between two checks of the file for changes, in milliseconds, 0 if disabled
+     */
+    public long getReloadInterval() {
+        return m_config.getReloadInterval() * 1000L;
+    }
+
+    /**
+     * @return the directory the billing sketches are saved in, or null if
+     *         neither it nor the RRD repository is configured
+     */
+    public String getBillingDirectory() {
+        String directory = m_config.getBillingDirectory();
+        if (directory != null && directory.trim().length() > 0) {
+            return directory.trim();
+        }
+        return m_rrdPath == null ? null : m_rrdPath + File.separator + "pmacct-billing";
+    }
+
+    /**
+     * @return the memory budget of the billing sketches of a collection, in bytes
+     */
+    public long getBillingMemory() {
+        return m_config.getBillingMemory();
+    }
+
+    /**
+     * @return true if an attribute of a collection keeps billing sketches
+     */
+    public boolean isBilling() {
+        for (PmacctCompiledCollection collection : m_collectionList) {
+            for (PmacctCompiledAttribute attribute : collection.getAttributes()) {
+                if (attribute.isBilling()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the interval between two saves of the billing sketches, in milliseconds
+     */
+    public long getBillingCheckpoint() {
+        return m_config.getBillingCheckpoint() * 1000L;
+    }
+
+    /**
+     * @return the embedded NetFlow receiver settings, or null if it is not configured
+     */
+    public NetflowListener getNetflowListener() {
+        return m_config.getNetflowListener();
+    }
+
+    /**
+     * @return the embedded HTTP endpoint settings, or null if it is not configured
+     */
+    public HttpListener getHttpListener() {
+        return m_config.getHttpListener();
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.config;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.core.utils.ThreadCategory;
+
+/**
+ * <p>Checks pmacct-datacollection-config.xml for changes on a daemon thread
+ * and reloads it through
+ * {@link org.opennms.netmgt.config.PmacctCollectionConfigFactory#updateFromFile()}.
+ * Parsing and compiling happen on the watcher thread; collecting threads
+ * only see the new configuration once it is published.</p>
+ *
+ * <p>The file modification time is polled, as the collector has to run on
+ * JVMs without file system notifications.</p>
+ *
+ * @author <a href="mailto:yann@atomes.com">Yann Vigara</a>
+ * @version $Id: $
+ */
+public class PmacctConfigWatcher {
+
+    private final long m_interval;
+
+    private ScheduledExecutorService m_scheduler;
+
+    /**
+     * <p>Constructor for PmacctConfigWatcher.</p>
+     *
+     * @param interval milliseconds between two checks of the file
+     */
+    public PmacctConfigWatcher(long interval) {
+        m_interval = interval;
+    }
+
+    /**
+     * Start checking the file, does nothing if already started.
+     */
+    public synchronized void start() {
+        if (m_scheduler != null) {
+            return;
+        }
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PmacctConfigWatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, m_interval, m_interval, TimeUnit.MILLISECONDS);
+        log().debug("start: checking pmacct collection config for changes every " + m_interval + " ms");
+    }
+
+    /**
+     * Stop checking the file.
+     */
+    public synchronized void stop() {
+        if (m_scheduler != null) {
+            m_scheduler.shutdownNow();
+            m_scheduler = null;
+        }
+    }
+
+    private void check() {
+        try {
+            PmacctCollectionConfigFactory.getInstance().updateFromFile();
+        } catch (Throwable t) {
+            // keep collecting with the current configuration, retry on the next change
+            log().error("check: unable to reload pmacct collection config, keeping the current one: " + t, t);
+        }
+    }
+
+    private ThreadCategory log() {
+        return ThreadCategory.getInstance(getClass());
+    }
+}
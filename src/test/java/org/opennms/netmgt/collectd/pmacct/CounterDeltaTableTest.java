@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CounterDeltaTableTest {
+
+    private static final long HOST_A = HostAddress.packIpv4(0x0a000001);
+
+    private static final long HOST_B = HostAddress.packIpv4(0x0a000002);
+
+    @Test
+    public void testDeltaAndInterval() {
+        CounterDeltaTable table = new CounterDeltaTable(16, 1024 * 1024, 0);
+        int series = table.getSeries("pmacct-bandwidth/pmacctInbound");
+        long[] result = new long[2];
+        assertFalse(table.update(series, 0, HOST_A, 1000, 10000, result));
+        assertTrue(table.update(series, 0, HOST_A, 4000, 40000, result));
+        assertEquals(3000L, result[CounterDeltaTable.DELTA]);
+        assertEquals(30000L, result[CounterDeltaTable.INTERVAL]);
+        // a reading not newer than the previous one is ignored
+        assertFalse(table.update(series, 0, HOST_A, 5000, 40000, result));
+        assertTrue(table.update(series, 0, HOST_A, 5000, 50000, result));
+        assertEquals(1000L, result[CounterDeltaTable.DELTA]);
+    }
+
+    @Test
+    public void testSeriesAndHostsAreApart() {
+        CounterDeltaTable table = new CounterDeltaTable(16, 1024 * 1024, 0);
+        int in = table.getSeries("in");
+        int out = table.getSeries("out");
+        assertEquals(in, table.getSeries("in"));
+        assertFalse(in == out);
+        long[] result = new long[2];
+        table.update(in, 0, HOST_A, 100, 1000, result);
+        table.update(out, 0, HOST_A, 10, 1000, result);
+        table.update(in, 0, HOST_B, 1, 1000, result);
+        assertTrue(table.update(in, 0, HOST_A, 150, 2000, result));
+        assertEquals(50L, result[CounterDeltaTable.DELTA]);
+        assertTrue(table.update(out, 0, HOST_A, 30, 2000, result));
+        assertEquals(20L, result[CounterDeltaTable.DELTA]);
+        assertTrue(table.update(in, 0, HOST_B, 2, 2000, result));
+        assertEquals(1L, result[CounterDeltaTable.DELTA]);
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void testDecreaseIsRestart() {
+        CounterDeltaTable table = new CounterDeltaTable(16, 1024 * 1024, 0);
+        int series = table.getSeries("in");
+        long[] result = new long[2];
+        // close to the 32 bit limit, a decrease is still a restart and not a wrap
+        table.update(series, 0, HOST_A, 0xfffffff0L, 1000, result);
+        assertTrue(table.update(series, 0, HOST_A, 0x10, 2000, result));
+        assertEquals(0x10L, result[CounterDeltaTable.DELTA]);
+        assertEquals(1L, table.getRestartCount());
+        // large 64 bit counters
+        table.update(series, 0, HOST_A, 1L << 40, 3000, result);
+        assertTrue(table.update(series, 0, HOST_A, (1L << 40) + 5, 4000, result));
+        assertEquals(5L, result[CounterDeltaTable.DELTA]);
+        assertTrue(table.update(series, 0, HOST_A, 7, 5000, result));
+        assertEquals(7L, result[CounterDeltaTable.DELTA]);
+        assertEquals(2L, table.getRestartCount());
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        CounterDeltaTable table = new CounterDeltaTable(16, 16 * CounterDeltaTable.SLOT_SIZE, 0);
+        int series = table.getSeries("in");
+        long[] result = new long[2];
+        for (int i = 0; i < 20; i++) {
+            table.update(series, 0, HostAddress.packIpv4(i), i, 1000, result);
+        }
+        assertEquals(12, table.size());
+        assertEquals(8L, table.getDroppedCount());
+    }
+
+    @Test
+    public void testEvictsIdleWhenFull() {
+        CounterDeltaTable table = new CounterDeltaTable(16, 16 * CounterDeltaTable.SLOT_SIZE, 1000);
+        int series = table.getSeries("in");
+        long[] result = new long[2];
+        for (int i = 0; i < 12; i++) {
+            table.update(series, 0, HostAddress.packIpv4(i), i, 1000, result);
+        }
+        table.update(series, 0, HostAddress.packIpv4(0), 10, 1800, result);
+        table.update(series, 0, HostAddress.packIpv4(100), 1, 2500, result);
+        assertEquals(2, table.size());
+        assertEquals(0L, table.getDroppedCount());
+        assertTrue(table.update(series, 0, HostAddress.packIpv4(0), 20, 3000, result));
+        assertEquals(10L, result[CounterDeltaTable.DELTA]);
+    }
+
+    @Test
+    public void testRemoveHostForgetsItsSeries() {
+        CounterDeltaTable table = new CounterDeltaTable(16, 1024 * 1024, 0);
+        long[] result = new long[2];
+        int in = table.getSeries("pmacct-bandwidth/in");
+        table.update(in, 0, HOST_A, 1, 1000, result);
+        table.update(in, 0, HOST_B, 1, 1000, result);
+        for (int peer = 0; peer < 100; peer++) {
+            int series = table.getSeries("pmacct-talkers/bytes/pmacctTalker/10.1.0." + peer);
+            table.update(series, 0, HOST_A, peer, 1000, result);
+        }
+        assertEquals(101, table.getSeriesCount());
+        assertEquals(102, table.size());
+
+        assertEquals(101, table.removeHost(0, HOST_A));
+        assertEquals(1, table.size());
+        // still used by the other host
+        assertEquals(1, table.getSeriesCount());
+        assertEquals(in, table.getSeries("pmacct-bandwidth/in"));
+        assertTrue(table.update(in, 0, HOST_B, 3, 2000, result));
+        assertEquals(2L, result[CounterDeltaTable.DELTA]);
+        assertFalse(table.update(in, 0, HOST_A, 3, 2000, result));
+
+        // a name seen again gets an id of its own
+        int again = table.getSeries("pmacct-talkers/bytes/pmacctTalker/10.1.0.0");
+        assertTrue(again > in);
+        assertEquals(0, table.removeHost(0, HostAddress.packIpv4(0x0a0000ff)));
+    }
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HostCounterTableTest {
+
+    private static long ipv4(int i) {
+        return HostAddress.packIpv4(0x0a000000 | i);
+    }
+
+    @Test
+    public void testAddSums() {
+        HostCounterTable table = new HostCounterTable(16, 1024 * 1024, 0);
+        assertTrue(table.add(0, ipv4(1), 1, 100, 1));
+        assertTrue(table.add(0, ipv4(1), 2, 200, 1));
+        assertTrue(table.add(0, ipv4(2), 1, 50, 1));
+        assertEquals(2, table.size());
+        int slot = table.find("10.0.0.1");
+        assertEquals(3L, table.getPackets(slot));
+        assertEquals(300L, table.getBytes(slot));
+        assertEquals(2L, table.getFlows(slot));
+        assertEquals(-1, table.find("10.0.0.3"));
+        assertEquals(-1, table.find("not an address"));
+    }
+
+    @Test
+    public void testIpv6() {
+        long[] packed = new long[2];
+        assertTrue(HostAddress.pack("2001:db8::1", packed));
+        HostCounterTable table = new HostCounterTable(16, 1024 * 1024, 0);
+        table.add(packed[0], packed[1], 1, 64, 1);
+        table.add(0, ipv4(1), 1, 32, 1);
+        assertEquals(64L, table.getBytes(table.find("2001:db8::1")));
+        assertEquals(32L, table.getBytes(table.find("10.0.0.1")));
+    }
+
+    @Test
+    public void testGrowsToBudgetThenDrops() {
+        // 16 slots at most, 3/4 of them usable
+        HostCounterTable table = new HostCounterTable(4, 16 * HostCounterTable.SLOT_SIZE, 0);
+        for (int i = 0; i < 12; i++) {
+            assertTrue(table.add(0, ipv4(i), 1, 1, 1));
+        }
+        assertFalse(table.add(0, ipv4(12), 1, 1, 1));
+        assertEquals(12, table.size());
+        assertEquals(16, table.capacity());
+        assertEquals(1L, table.getDroppedCount());
+        // known hosts are still updated
+        assertTrue(table.add(0, ipv4(0), 1, 1, 1));
+        assertEquals(2L, table.getBytes(table.find("10.0.0.0")));
+    }
+
+    @Test
+    public void testSnapshotCountsDroppedRows() {
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder(16 * HostCounterTable.SLOT_SIZE);
+        for (int i = 0; i < 20; i++) {
+            builder.add(0, ipv4(i), 1, 1, 1);
+        }
+        PmacctTableSnapshot partial = builder.build(0);
+        assertEquals(12, partial.getHostCount());
+        assertEquals(8, partial.getDroppedCount());
+
+        PmacctTableSnapshot.Builder merged = new PmacctTableSnapshot.Builder(16 * HostCounterTable.SLOT_SIZE);
+        merged.add(0, ipv4(100), 1, 1, 1);
+        merged.add(partial);
+        assertEquals(9, merged.build(0).getDroppedCount());
+    }
+
+    @Test
+    public void testEvictsIdleWhenFull() {
+        HostCounterTable table = new HostCounterTable(16, 16 * HostCounterTable.SLOT_SIZE, 1000);
+        table.setClock(0);
+        for (int i = 0; i < 12; i++) {
+            table.add(0, ipv4(i), 1, 1, 1);
+        }
+        table.setClock(500);
+        table.add(0, ipv4(0), 1, 1, 1);
+        table.setClock(1200);
+        assertTrue(table.add(0, ipv4(100), 1, 1, 1));
+        assertEquals(2, table.size());
+        assertTrue(table.find("10.0.0.0") >= 0);
+        assertTrue(table.find("10.0.0.100") >= 0);
+        assertEquals(0L, table.getDroppedCount());
+    }
+
+    @Test
+    public void testRemovalKeepsProbeChains() {
+        Random random = new Random(42);
+        HostCounterTable table = new HostCounterTable(16, 64 * 1024 * HostCounterTable.SLOT_SIZE, 0);
+        Map<Integer, Long> expected = new HashMap<Integer, Long>();
+        for (int round = 0; round < 20; round++) {
+            table.setClock(round);
+            for (int i = 0; i < 500; i++) {
+                int host = random.nextInt(2000);
+                table.add(0, ipv4(host), 1, host, 1);
+                Long bytes = expected.get(host);
+                expected.put(host, (bytes == null ? 0 : bytes) + host);
+            }
+            // forget the hosts not seen in the last two rounds
+            table.evictIdle(round - 1);
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                assertFalse(table.isUsed(slot) && table.getLastSeen(slot) < round - 1);
+            }
+            int size = 0;
+            for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+                int slot = table.find(0, ipv4(entry.getKey()));
+                if (slot >= 0) {
+                    assertEquals(entry.getValue().longValue(), table.getBytes(slot));
+                    size++;
+                }
+            }
+            assertEquals(table.size(), size);
+            for (Integer host : expected.keySet().toArray(new Integer[0])) {
+                if (table.find(0, ipv4(host)) < 0) {
+                    expected.remove(host);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCopyAndClear() {
+        HostCounterTable table = new HostCounterTable(16, 1024 * 1024, 0);
+        table.add(0, ipv4(1), 1, 100, 1);
+        HostCounterTable copy = table.copy();
+        table.add(0, ipv4(1), 1, 100, 1);
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.find("10.0.0.1"));
+        assertEquals(1, copy.size());
+        assertEquals(100L, copy.getBytes(copy.find("10.0.0.1")));
+    }
+}
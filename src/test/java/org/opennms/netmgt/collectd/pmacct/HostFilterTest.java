@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class HostFilterTest {
+
+    private static String ipv4(int i) {
+        return "10." + ((i >>> 16) & 0xff) + "." + ((i >>> 8) & 0xff) + "." + (i & 0xff);
+    }
+
+    @Test
+    public void testAddRemove() {
+        HostFilter filter = new HostFilter();
+        assertTrue(filter.add("10.0.0.1"));
+        assertFalse(filter.add("10.0.0.1"));
+        assertFalse(filter.add("not an address"));
+        assertTrue(filter.add("2001:db8::1"));
+        assertEquals(2, filter.size());
+        assertTrue(filter.accepts("10.0.0.1"));
+        assertTrue(filter.accepts("2001:db8::1"));
+        assertFalse(filter.accepts("10.0.0.2"));
+        assertFalse(filter.accepts("not an address"));
+
+        assertTrue(filter.remove("10.0.0.1"));
+        assertFalse(filter.remove("10.0.0.1"));
+        assertFalse(filter.accepts("10.0.0.1"));
+        assertTrue(filter.accepts("2001:db8::1"));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void testGrowAndRebuild() {
+        HostFilter filter = new HostFilter();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.add(ipv4(i)));
+        }
+        assertEquals(10000, filter.size());
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(ipv4(i), filter.accepts(ipv4(i)));
+        }
+        // enough removals for the Bloom bits to be rebuilt several times
+        for (int i = 0; i < 9000; i++) {
+            assertTrue(filter.remove(ipv4(i)));
+        }
+        assertEquals(1000, filter.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(ipv4(i), i >= 9000, filter.accepts(ipv4(i)));
+        }
+        // a rebuild keeps every host left in the Bloom filter
+        long[] packed = new long[2];
+        for (int i = 9000; i < 10000; i++) {
+            HostAddress.pack(ipv4(i), packed);
+            assertTrue(filter.mightContain(packed[0], packed[1]));
+        }
+        for (int i = 0; i < 9000; i++) {
+            assertTrue(filter.add(ipv4(i)));
+        }
+        assertEquals(10000, filter.size());
+        assertTrue(filter.accepts(ipv4(0)));
+    }
+
+    @Test
+    public void testPrefixes() {
+        HostFilter filter = new HostFilter();
+        filter.add("192.168.0.1");
+        HostFilter withPrefixes = filter.withPrefixes(Collections.singletonList(
+                new PrefixTrie(Arrays.asList("10.1.0.0/16", "2001:db8::/32"))));
+        assertEquals(1, withPrefixes.getPrefixCount());
+        assertTrue(withPrefixes.accepts("192.168.0.1"));
+        assertTrue(withPrefixes.accepts("10.1.2.3"));
+        assertTrue(withPrefixes.accepts("2001:db8::5"));
+        assertFalse(withPrefixes.accepts("10.2.0.1"));
+        assertFalse(withPrefixes.accepts("192.168.0.2"));
+        assertEquals(0, filter.getPrefixCount());
+        assertFalse(filter.accepts("10.1.2.3"));
+    }
+
+    @Test
+    public void testCopySharesNothing() {
+        HostFilter filter = new HostFilter();
+        filter.add("10.0.0.1");
+        HostFilter copy = filter.copy();
+        filter.remove("10.0.0.1");
+        filter.add("10.0.0.2");
+        assertTrue(copy.accepts("10.0.0.1"));
+        assertFalse(copy.accepts("10.0.0.2"));
+        assertEquals(1, copy.size());
+    }
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NetflowDecoderTest {
+
+    private static final int TEMPLATE_ID = 256;
+
+    private NetflowAggregator m_aggregator;
+
+    private NetflowDecoder m_decoder;
+
+    @Before
+    public void setUp() {
+        m_aggregator = new NetflowAggregator(1024 * 1024, 0);
+        m_decoder = new NetflowDecoder(m_aggregator);
+    }
+
+    private static int ipv4(int i) {
+        return 0x0a000000 | i;
+    }
+
+    /**
+     * @param records source, destination, packets and bytes of each record
+     */
+    private static ByteBuffer v5(int count, int[]... records) {
+        ByteBuffer buffer = ByteBuffer.allocate(24 + records.length * 48);
+        buffer.putShort((short) 5).putShort((short) count).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0);
+        for (int[] record : records) {
+            buffer.putInt(record[0]).putInt(record[1]).putInt(0).putInt(0).putInt(record[2]).putInt(record[3]);
+            buffer.put(new byte[24]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer v9(long sourceId, ByteBuffer... flowsets) {
+        int length = 20;
+        for (ByteBuffer flowset : flowsets) {
+            length += flowset.remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putShort((short) 9).putShort((short) flowsets.length).putInt(0).putInt(0).putInt(0).putInt((int) sourceId);
+        for (ByteBuffer flowset : flowsets) {
+            buffer.put(flowset);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param fields type and length of each field
+     */
+    private static ByteBuffer template(int... fields) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + fields.length * 2);
+        buffer.putShort((short) 0).putShort((short) buffer.capacity());
+        buffer.putShort((short) TEMPLATE_ID).putShort((short) (fields.length / 2));
+        for (int field : fields) {
+            buffer.putShort((short) field);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** The template of the ipv4 records of {@link #data(int[]...)}. */
+    private static ByteBuffer ipv4Template() {
+        return template(8, 4, 12, 4, 1, 4, 2, 4);
+    }
+
+    /**
+     * @param records source, destination, bytes and packets of each record
+     */
+    private static ByteBuffer data(int[]... records) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + records.length * 16);
+        buffer.putShort((short) TEMPLATE_ID).putShort((short) buffer.capacity());
+        for (int[] record : records) {
+            buffer.putInt(record[0]).putInt(record[1]).putInt(record[2]).putInt(record[3]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private PmacctTableSnapshot dump(String aggregate) throws IOException {
+        return m_aggregator.dump(PmacctOptions.parse("-s -c " + aggregate), 0);
+    }
+
+    @Test
+    public void testV5() throws IOException {
+        m_decoder.decode(v5(2, new int[] { ipv4(1), ipv4(2), 3, 300 }, new int[] { ipv4(1), ipv4(3), 1, 100 }), 0);
+        assertEquals(0, m_decoder.getErrorCount());
+        assertEquals(2, m_aggregator.getRecordCount());
+        HostCounterTable sources = dump("src_host").getTable();
+        int slot = sources.find("10.0.0.1");
+        assertEquals(4L, sources.getPackets(slot));
+        assertEquals(400L, sources.getBytes(slot));
+        assertEquals(2L, sources.getFlows(slot));
+        HostCounterTable destinations = dump("dst_host").getTable();
+        assertEquals(300L, destinations.getBytes(destinations.find("10.0.0.2")));
+        assertEquals(100L, destinations.getBytes(destinations.find("10.0.0.3")));
+    }
+
+    @Test
+    public void testV5Truncated() {
+        m_decoder.decode(v5(3, new int[] { ipv4(1), ipv4(2), 3, 300 }, new int[] { ipv4(1), ipv4(3), 1, 100 }), 0);
+        assertEquals(1, m_decoder.getErrorCount());
+        assertEquals(0, m_aggregator.getRecordCount());
+    }
+
+    @Test
+    public void testV9TemplateBeforeData() throws IOException {
+        m_decoder.decode(v9(7, ipv4Template(), data(new int[] { ipv4(1), ipv4(2), 500, 5 })), 0);
+        m_decoder.decode(v9(7, data(new int[] { ipv4(1), ipv4(2), 100, 1 })), 0);
+        assertEquals(0, m_decoder.getErrorCount());
+        assertEquals(2, m_aggregator.getRecordCount());
+        HostCounterTable destinations = dump("dst_host").getTable();
+        int slot = destinations.find("10.0.0.2");
+        assertEquals(600L, destinations.getBytes(slot));
+        assertEquals(6L, destinations.getPackets(slot));
+        assertEquals(2L, destinations.getFlows(slot));
+    }
+
+    @Test
+    public void testV9DataBeforeTemplateIsDropped() {
+        m_decoder.decode(v9(7, data(new int[] { ipv4(1), ipv4(2), 500, 5 }), ipv4Template()), 0);
+        assertEquals(0, m_aggregator.getRecordCount());
+        m_decoder.decode(v9(7, data(new int[] { ipv4(1), ipv4(2), 500, 5 })), 0);
+        assertEquals(1, m_aggregator.getRecordCount());
+        assertEquals(0, m_decoder.getErrorCount());
+    }
+
+    @Test
+    public void testV9TemplatesPerExporterAndSource() {
+        m_decoder.decode(v9(7, ipv4Template()), 1);
+        m_decoder.decode(v9(7, data(new int[] { ipv4(1), ipv4(2), 500, 5 })), 2);
+        m_decoder.decode(v9(8, data(new int[] { ipv4(1), ipv4(2), 500, 5 })), 1);
+        assertEquals(0, m_aggregator.getRecordCount());
+    }
+
+    @Test
+    public void testV9Ipv6() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(4 + 40);
+        data.putShort((short) TEMPLATE_ID).putShort((short) data.capacity());
+        data.put(new byte[] { 0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 });
+        data.put(new byte[] { 0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2 });
+        data.putInt(1200).putInt(2);
+        data.flip();
+        m_decoder.decode(v9(7, template(27, 16, 28, 16, 23, 4, 24, 4), data), 0);
+        HostCounterTable sources = dump("src_host").getTable();
+        assertEquals(1200L, sources.getBytes(sources.find("2001:db8::1")));
+        // no FLOWS field, each record stands for one flow
+        assertEquals(1L, sources.getFlows(sources.find("2001:db8::1")));
+    }
+
+    @Test
+    public void testV9TemplateWithoutAddressesIsIgnored() {
+        m_decoder.decode(v9(7, template(1, 4, 2, 4), data(new int[] { ipv4(1), ipv4(2), 500, 5 })), 0);
+        assertEquals(0, m_aggregator.getRecordCount());
+        assertEquals(0, m_decoder.getErrorCount());
+    }
+
+    @Test
+    public void testMalformed() {
+        ByteBuffer flowset = data(new int[] { ipv4(1), ipv4(2), 500, 5 });
+        // longer than the packet
+        flowset.putShort(2, (short) 100);
+        m_decoder.decode(v9(7, ipv4Template(), flowset), 0);
+        assertEquals(1, m_decoder.getErrorCount());
+
+        ByteBuffer template = ipv4Template();
+        // more fields than the flowset holds
+        template.putShort(6, (short) 9);
+        m_decoder.decode(v9(7, template), 0);
+        assertEquals(2, m_decoder.getErrorCount());
+
+        ByteBuffer unknown = ByteBuffer.allocate(24);
+        unknown.putShort(0, (short) 7);
+        m_decoder.decode(unknown, 0);
+        assertEquals(3, m_decoder.getErrorCount());
+
+        // shorter than a v9 header
+        ByteBuffer truncated = v9(7, ipv4Template());
+        truncated.limit(10);
+        m_decoder.decode(truncated, 0);
+        assertEquals(4, m_decoder.getErrorCount());
+
+        m_decoder.decode(ByteBuffer.allocate(1), 0);
+        assertEquals(5, m_decoder.getErrorCount());
+        assertEquals(5, m_decoder.getPacketCount());
+        assertEquals(0, m_aggregator.getRecordCount());
+    }
+
+    @Test
+    public void testResetClearsTheTableDumped() throws IOException {
+        m_decoder.decode(v5(1, new int[] { ipv4(1), ipv4(2), 3, 300 }), 0);
+        PmacctTableSnapshot snapshot = m_aggregator.dump(PmacctOptions.parse("-s -r -c dst_host"), 0);
+        assertTrue(snapshot.getHosts().contains("10.0.0.2"));
+        assertFalse(dump("dst_host").getHosts().contains("10.0.0.2"));
+        assertTrue(dump("src_host").getHosts().contains("10.0.0.1"));
+    }
+}
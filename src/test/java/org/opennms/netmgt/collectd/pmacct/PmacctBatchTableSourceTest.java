@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PmacctBatchTableSourceTest {
+
+    /**
+     * Stands for the pmacct client: answers the hosts of its -M keys in
+     * reverse order, with 100 bytes per unit of their last byte, and fails
+     * for the keys holding 10.0.0.9.
+     */
+    private static final String PMACCT =
+        "#!/bin/sh\n"
+        + "for keys; do :; done\n"
+        + "case \"$keys\" in *10.0.0.9*) echo 'pipe not found' >&2; exit 1;; esac\n"
+        + "echo 'DST_IP PACKETS BYTES'\n"
+        + "echo \"$keys\" | tr ';' '\\n' | sort -r | while read host; do echo \"$host 1 ${host##*.}00\"; done\n";
+
+    private File m_pmacct;
+
+    private PmacctProcessExecutor m_executor;
+
+    @Before
+    public void setUp() throws IOException {
+        m_pmacct = File.createTempFile("pmacct", ".sh");
+        Writer writer = new FileWriter(m_pmacct);
+        try {
+            writer.write(PMACCT);
+        } finally {
+            writer.close();
+        }
+        assertTrue(m_pmacct.setExecutable(true));
+        m_executor = new PmacctProcessExecutor(2);
+    }
+
+    @After
+    public void tearDown() {
+        m_executor.shutdown();
+        m_pmacct.delete();
+    }
+
+    private PmacctTableSnapshot dump(int batchSize, String... hosts) throws IOException {
+        PmacctBatchTableSource source = new PmacctBatchTableSource(m_executor, m_pmacct.getAbsolutePath(), 10000,
+                                                                   1024 * 1024, Arrays.asList(hosts), batchSize);
+        return source.dump(PmacctOptions.parse("-p /tmp/in.pipe -c dst_host -N %h -n bytes"), 0);
+    }
+
+    private static long bytes(PmacctTableSnapshot snapshot, String host) {
+        return snapshot.getCounters(host).get("bytes");
+    }
+
+    @Test
+    public void testReplySplitsOntoEachHost() throws IOException {
+        PmacctTableSnapshot snapshot = dump(2, "10.0.0.1", "10.0.0.2", "10.0.0.3");
+        assertEquals(3, snapshot.getRowCount());
+        assertEquals(100L, bytes(snapshot, "10.0.0.1"));
+        assertEquals(200L, bytes(snapshot, "10.0.0.2"));
+        assertEquals(300L, bytes(snapshot, "10.0.0.3"));
+        assertTrue(snapshot.getFailedPipes().isEmpty());
+    }
+
+    @Test
+    public void testFailedBatchKeepsTheOthers() throws IOException {
+        PmacctTableSnapshot snapshot = dump(2, "10.0.0.1", "10.0.0.2", "10.0.0.9", "10.0.0.4", "10.0.0.5");
+        assertEquals(3, snapshot.getRowCount());
+        assertEquals(100L, bytes(snapshot, "10.0.0.1"));
+        assertEquals(200L, bytes(snapshot, "10.0.0.2"));
+        assertEquals(500L, bytes(snapshot, "10.0.0.5"));
+        assertFalse(snapshot.getHosts().contains("10.0.0.4"));
+        assertEquals(1, snapshot.getFailedPipes().size());
+        String message = snapshot.getFailedPipes().get("/tmp/in.pipe batch 2");
+        assertTrue(message, message.contains("pipe not found"));
+    }
+
+    @Test
+    public void testEveryBatchFailed() {
+        try {
+            dump(2, "10.0.0.9");
+            fail("no batch was read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("no batch could be read"));
+        }
+    }
+}
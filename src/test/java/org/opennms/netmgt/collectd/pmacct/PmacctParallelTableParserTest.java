@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PmacctParallelTableParserTest {
+
+    private ExecutorService m_executor;
+
+    private PmacctParallelTableParser m_parser;
+
+    @Before
+    public void setUp() {
+        m_executor = Executors.newFixedThreadPool(3);
+        // the smallest chunks, so that a small table spans many of them
+        m_parser = new PmacctParallelTableParser(m_executor, 3, 1024);
+    }
+
+    @After
+    public void tearDown() {
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * Hands out at most 100 bytes per read, as a pipe would.
+     */
+    private static class ShortReadInputStream extends ByteArrayInputStream {
+        public ShortReadInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 100));
+        }
+    }
+
+    private static String formattedTable(int rows, boolean longLines) {
+        StringBuilder table = new StringBuilder("\n  SRC_IP           DST_IP          PACKETS    BYTES\n");
+        for (int i = 0; i < rows; i++) {
+            table.append("10.0.").append(i % 40).append('.').append(i % 7).append("  192.168.").append(i % 3)
+                 .append(".1");
+            if (longLines && i % 100 == 0) {
+                // longer than a chunk
+                for (int pad = 0; pad < 3000; pad++) {
+                    table.append(' ');
+                }
+            }
+            table.append("  ").append(i).append("  ").append(i * 10L).append('\n');
+        }
+        return table.append("\nFor a total of: ").append(rows).append(" entries\n").toString();
+    }
+
+    private static void assertSameTable(PmacctTableSnapshot expected, PmacctTableSnapshot actual) {
+        assertEquals(expected.getRowCount(), actual.getRowCount());
+        assertEquals(expected.getHostCount(), actual.getHostCount());
+        assertEquals(expected.getSkippedCount(), actual.getSkippedCount());
+        for (String host : expected.getHosts()) {
+            HostCounterTable hosts = expected.getTable(), others = actual.getTable();
+            int slot = hosts.find(host), other = others.find(host);
+            assertTrue(host + " missing", other >= 0);
+            assertEquals(hosts.getBytes(slot), others.getBytes(other));
+            assertEquals(hosts.getPackets(slot), others.getPackets(other));
+        }
+    }
+
+    private void assertParsesAsSequential(String table, String aggregate, HostFilter filter) throws IOException {
+        byte[] data = table.getBytes();
+        PmacctTableSnapshot expected = PmacctTableSnapshot.parse(new ByteArrayInputStream(data), aggregate, 0,
+                                                                 PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, filter);
+        assertSameTable(expected, m_parser.parse(new ByteArrayInputStream(data), aggregate, 0,
+                                                 PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, filter));
+        assertSameTable(expected, m_parser.parse(new ShortReadInputStream(data), aggregate, 0,
+                                                 PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, filter));
+    }
+
+    @Test
+    public void testFormatted() throws IOException {
+        String table = formattedTable(2000, false);
+        assertTrue(table.length() > 20 * 1024);
+        assertParsesAsSequential(table, "src_host", null);
+        assertParsesAsSequential(table, "dst_host", null);
+    }
+
+    @Test
+    public void testLinesLongerThanChunks() throws IOException {
+        assertParsesAsSequential(formattedTable(500, true), "src_host", null);
+    }
+
+    @Test
+    public void testCsv() throws IOException {
+        StringBuilder table = new StringBuilder("SRC_IP,DST_IP,PACKETS,BYTES\n");
+        for (int i = 0; i < 2000; i++) {
+            table.append("10.0.").append(i % 50).append(".1,2001:db8::").append(Integer.toHexString(i % 9))
+                 .append(',').append(i).append(',').append(i * 3L).append('\n');
+        }
+        assertParsesAsSequential(table.toString(), "dst_host", null);
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        StringBuilder table = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            table.append("{\"ip_src\": \"10.0.").append(i % 50).append(".1\", \"packets\": ").append(i)
+                 .append(", \"bytes\": ").append(i * 3L).append("}\n");
+        }
+        assertParsesAsSequential(table.toString(), "src_host", null);
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        HostFilter filter = new HostFilter();
+        filter.add("10.0.3.3");
+        filter.add("10.0.7.0");
+        assertParsesAsSequential(formattedTable(2000, false), "src_host", filter);
+    }
+
+    @Test
+    public void testEmptyOutput() throws IOException {
+        assertEquals(0, m_parser.parse(new ByteArrayInputStream(new byte[0]), "src_host", 0,
+                                       PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, null).getRowCount());
+    }
+
+    @Test
+    public void testBadHeader() {
+        StringBuilder table = new StringBuilder("SRC_IP PACKETS\n");
+        for (int i = 0; i < 500; i++) {
+            table.append("10.0.0.").append(i % 200).append(" 1\n");
+        }
+        InputStream in = new ByteArrayInputStream(table.toString().getBytes());
+        try {
+            m_parser.parse(in, "src_host", 0, PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, null);
+            fail("the header has no BYTES column");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("header"));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class PmacctProcessExecutorTest {
+
+    private static final PmacctProcessExecutor.OutputHandler DISCARD = new PmacctProcessExecutor.OutputHandler() {
+        public void handle(InputStream stdout) throws IOException {
+            while (stdout.read() >= 0) {
+                // discard
+            }
+        }
+    };
+
+    @Test
+    public void testRun() throws IOException {
+        PmacctProcessExecutor executor = new PmacctProcessExecutor(2);
+        try {
+            executor.execute(new String[] { "sh", "-c", "echo 1" }, 10000, DISCARD);
+            try {
+                executor.execute(new String[] { "sh", "-c", "echo oops >&2; exit 3" }, 10000, DISCARD);
+                fail("exit status ignored");
+            } catch (PmacctIOException e) {
+                assertEquals(PmacctMetrics.FAILURE_EXIT_STATUS, e.getReason());
+                assertTrue(e.getMessage(), e.getMessage().contains("oops"));
+            }
+            assertEquals(2, executor.getSpawnCount());
+            assertEquals(1, executor.getFailureCount());
+            assertEquals(0, executor.getKillCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testKilledAtDeadline() throws IOException {
+        PmacctProcessExecutor executor = new PmacctProcessExecutor(1);
+        try {
+            executor.execute(new String[] { "sleep", "10" }, 200, DISCARD);
+            fail("deadline ignored");
+        } catch (PmacctIOException e) {
+            assertEquals(PmacctMetrics.FAILURE_TIMEOUT, e.getReason());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, executor.getKillCount());
+        assertEquals(0, executor.getActiveCount());
+    }
+
+    @Test
+    public void testHandlerFailureReapsTheChild() throws IOException {
+        PmacctProcessExecutor executor = new PmacctProcessExecutor(1);
+        long start = System.currentTimeMillis();
+        try {
+            executor.execute(new String[] { "yes" }, 10000, new PmacctProcessExecutor.OutputHandler() {
+                public void handle(InputStream stdout) throws IOException {
+                    stdout.read();
+                    throw new IllegalStateException("unparsable");
+                }
+            });
+            fail("handler failure swallowed");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            executor.shutdown();
+        }
+        // reaped at once, not by the watchdog at the deadline
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, executor.getFailureCount());
+        assertEquals(0, executor.getKillCount());
+        assertEquals(0, executor.getActiveCount());
+    }
+
+    @Test
+    public void testQueueTimeoutIsNoKill() throws Exception {
+        final PmacctProcessExecutor executor = new PmacctProcessExecutor(1);
+        final CountDownLatch running = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            public void run() {
+                try {
+                    executor.execute(new String[] { "sleep", "1" }, 10000, new PmacctProcessExecutor.OutputHandler() {
+                        public void handle(InputStream stdout) throws IOException {
+                            running.countDown();
+                            DISCARD.handle(stdout);
+                        }
+                    });
+                } catch (IOException e) {
+                    // checked below
+                }
+            }
+        };
+        holder.start();
+        try {
+            running.await();
+            try {
+                executor.execute(new String[] { "true" }, 100, DISCARD);
+                fail("slot wait not bounded");
+            } catch (PmacctIOException e) {
+                assertEquals(PmacctMetrics.FAILURE_TIMEOUT, e.getReason());
+            }
+            holder.join();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, executor.getQueueTimeoutCount());
+        assertEquals(0, executor.getKillCount());
+        assertEquals(1, executor.getSpawnCount());
+        assertTrue(executor.getMaxQueueNanos() >= 100 * 1000000L);
+    }
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PmacctReplyParserTest {
+
+    private static final String FORMATTED =
+        "DST_IP                                         PACKETS               BYTES\n"
+        + "10.0.0.1                                       12                    3400\n"
+        + "2001:db8::1                                    3                     900\n"
+        + "10.0.0.1                                       1                     100\n"
+        + "\n"
+        + "For a total of: 3 entries\n";
+
+    /**
+     * Hands out a few bytes per read, so that lines cross buffer refills.
+     */
+    private static class TricklingInputStream extends InputStream {
+        private final byte[] m_data;
+        private int m_pos = 0;
+        private int m_read = 0;
+
+        public TricklingInputStream(String data) {
+            m_data = data.getBytes();
+        }
+
+        @Override
+        public int read() {
+            return m_pos < m_data.length ? m_data[m_pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (m_pos == m_data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, 1 + m_read++ % 7), m_data.length - m_pos);
+            System.arraycopy(m_data, m_pos, b, off, n);
+            m_pos += n;
+            return n;
+        }
+    }
+
+    private static InputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes());
+    }
+
+    private static List<Long> parseCounters(PmacctReplyParser parser, InputStream in) throws IOException {
+        final List<Long> counters = new ArrayList<Long>();
+        parser.parseCounters(in, new PmacctReplyParser.CounterHandler() {
+            public void counter(long value) {
+                counters.add(value);
+            }
+        });
+        return counters;
+    }
+
+    private static PmacctTableSnapshot parseTable(PmacctReplyParser parser, InputStream in, String aggregate)
+            throws IOException {
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder();
+        parser.parseTable(in, aggregate, builder);
+        return builder.build(0);
+    }
+
+    private static long bytes(PmacctTableSnapshot snapshot, String host) {
+        int slot = snapshot.getTable().find(host);
+        assertTrue(host + " missing", slot >= 0);
+        return snapshot.getTable().getBytes(slot);
+    }
+
+    private static long packets(PmacctTableSnapshot snapshot, String host) {
+        return snapshot.getTable().getPackets(snapshot.getTable().find(host));
+    }
+
+    @Test
+    public void testCounters() throws IOException {
+        List<Long> counters = parseCounters(new PmacctReplyParser(), stream("12\n\n  34 \r\n-5\n9223372036854775807\n"));
+        assertEquals(4, counters.size());
+        assertEquals(12L, counters.get(0).longValue());
+        assertEquals(34L, counters.get(1).longValue());
+        assertEquals(-5L, counters.get(2).longValue());
+        assertEquals(Long.MAX_VALUE, counters.get(3).longValue());
+    }
+
+    @Test
+    public void testCounterWithoutNewline() throws IOException {
+        List<Long> counters = parseCounters(new PmacctReplyParser(), stream("1\n23"));
+        assertEquals(2, counters.size());
+        assertEquals(23L, counters.get(1).longValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotACounter() throws IOException {
+        parseCounters(new PmacctReplyParser(), stream("12\n12 bytes\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCounterOutOfRange() throws IOException {
+        parseCounters(new PmacctReplyParser(), stream("12\n9223372036854775808\n"));
+    }
+
+    @Test
+    public void testFormatted() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(), stream(FORMATTED), "dst_host");
+        assertEquals(3, snapshot.getRowCount());
+        assertEquals(2, snapshot.getHostCount());
+        assertEquals(3500L, bytes(snapshot, "10.0.0.1"));
+        assertEquals(13L, packets(snapshot, "10.0.0.1"));
+        assertEquals(900L, bytes(snapshot, "2001:db8::1"));
+    }
+
+    @Test
+    public void testTotalFooterEndsTable() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(),
+                                                  stream(FORMATTED + "10.0.0.9                 1     1\n"), "dst_host");
+        assertEquals(3, snapshot.getRowCount());
+        assertFalse(snapshot.getHosts().contains("10.0.0.9"));
+    }
+
+    @Test
+    public void testCsv() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(),
+                                                  stream("SRC_IP,DST_IP,PACKETS,BYTES\n"
+                                                         + "10.0.0.1,10.0.0.2,5,500\n"
+                                                         + "2001:db8::2 , 10.0.0.2 , 1 , 40\n"), "src_host");
+        assertEquals(2, snapshot.getRowCount());
+        assertEquals(500L, bytes(snapshot, "10.0.0.1"));
+        assertEquals(40L, bytes(snapshot, "2001:db8::2"));
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(),
+                                                  stream("{\"ip_dst\": \"10.0.0.1\", \"tag\": {\"a\": [1, 2]}, \"packets\": 3, \"bytes\": 120}\n"
+                                                         + "{\"bytes\": 80, \"ip_dst\": \"2001:db8::1\", \"packets\": 1}\n"), "dst_host");
+        assertEquals(2, snapshot.getRowCount());
+        assertEquals(120L, bytes(snapshot, "10.0.0.1"));
+        assertEquals(3L, packets(snapshot, "10.0.0.1"));
+        assertEquals(80L, bytes(snapshot, "2001:db8::1"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testJsonWithoutRequiredKey() throws IOException {
+        parseTable(new PmacctReplyParser(), stream("{\"ip_src\": \"10.0.0.1\", \"bytes\": 120}\n"), "dst_host");
+    }
+
+    @Test(expected = IOException.class)
+    public void testHeaderWithoutHostColumn() throws IOException {
+        parseTable(new PmacctReplyParser(), stream("SRC_IP PACKETS BYTES\n10.0.0.1 1 1\n"), "dst_host");
+    }
+
+    @Test
+    public void testColumnCountMismatchIsInvalid() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(),
+                                                  stream("DST_IP PACKETS BYTES\n"
+                                                         + "10.0.0.1 1 100\n"
+                                                         + "10.0.0.2 1 100 7\n"
+                                                         + "10.0.0.3 1\n"
+                                                         + "10.0.0.4 x 100\n"), "dst_host");
+        assertEquals(1, snapshot.getRowCount());
+        assertEquals(1, snapshot.getHostCount());
+        assertEquals(100L, bytes(snapshot, "10.0.0.1"));
+        assertEquals(3, snapshot.getInvalidCount());
+    }
+
+    @Test
+    public void testOverflowingCounterIsInvalid() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(),
+                                                  stream("DST_IP PACKETS BYTES\n"
+                                                         + "10.0.0.1 1 9223372036854775807\n"
+                                                         + "10.0.0.2 1 9223372036854775808\n"
+                                                         + "10.0.0.3 1 18446744073709551615\n"), "dst_host");
+        assertEquals(1, snapshot.getRowCount());
+        assertEquals(Long.MAX_VALUE, bytes(snapshot, "10.0.0.1"));
+        assertFalse(snapshot.getHosts().contains("10.0.0.2"));
+        assertEquals(2, snapshot.getInvalidCount());
+    }
+
+    @Test
+    public void testNegativeNumbers() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(),
+                                                  stream("DST_IP PACKETS BYTES\n10.0.0.1 -1 -100\n"), "dst_host");
+        assertEquals(-100L, bytes(snapshot, "10.0.0.1"));
+        assertEquals(-1L, packets(snapshot, "10.0.0.1"));
+    }
+
+    @Test
+    public void testLastLineWithoutNewline() throws IOException {
+        PmacctTableSnapshot snapshot = parseTable(new PmacctReplyParser(),
+                                                  stream("DST_IP PACKETS BYTES\n10.0.0.1 1 100\n10.0.0.2 2 200"), "dst_host");
+        assertEquals(2, snapshot.getRowCount());
+        assertEquals(200L, bytes(snapshot, "10.0.0.2"));
+    }
+
+    @Test
+    public void testLastLineWithoutNewlineFillingTheBuffer() throws IOException {
+        StringBuilder counters = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            counters.append('0');
+        }
+        // exactly the initial 64 byte buffer, leaving no room for the newline added at the end
+        List<Long> values = parseCounters(new PmacctReplyParser(64), stream(counters.toString()));
+        assertEquals(1, values.size());
+        assertEquals(0L, values.get(0).longValue());
+    }
+
+    @Test
+    public void testLinesAcrossRefills() throws IOException {
+        StringBuilder table = new StringBuilder("SRC_IP DST_IP PACKETS BYTES FLOWS\n");
+        long expected = 0;
+        for (int i = 0; i < 500; i++) {
+            // pad some lines past the 64 byte buffer so that it has to grow
+            String pad = i % 50 == 0 ? "                                                                    " : " ";
+            table.append("10.0.").append(i / 250).append('.').append(i % 250).append(pad).append("192.168.0.1 ")
+                 .append(i).append(' ').append(i * 1000L).append(" 1\n");
+            expected += i * 1000L;
+        }
+        table.append("For a total of: 500 entries\n");
+
+        PmacctReplyParser parser = new PmacctReplyParser(64);
+        PmacctTableSnapshot bySource = parseTable(parser, new TricklingInputStream(table.toString()), "src_host");
+        assertEquals(500, bySource.getRowCount());
+        assertEquals(500, bySource.getHostCount());
+        assertEquals(499000L, bytes(bySource, "10.0.1.249"));
+
+        // the grown buffer is kept for the next reply
+        PmacctTableSnapshot byDestination = parseTable(parser, new TricklingInputStream(table.toString()), "dst_host");
+        assertEquals(1, byDestination.getHostCount());
+        assertEquals(expected, bytes(byDestination, "192.168.0.1"));
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        HostFilter filter = new HostFilter();
+        filter.add("2001:db8::1");
+        PmacctTableSnapshot.Builder builder = new PmacctTableSnapshot.Builder(PmacctTableSnapshot.DEFAULT_MEMORY_BUDGET, filter);
+        new PmacctReplyParser().parseTable(stream(FORMATTED), "dst_host", builder);
+        PmacctTableSnapshot snapshot = builder.build(0);
+        assertEquals(1, snapshot.getHostCount());
+        assertEquals(2, snapshot.getSkippedCount());
+        assertEquals(900L, bytes(snapshot, "2001:db8::1"));
+    }
+
+    @Test
+    public void testFlows() throws IOException {
+        final List<String> flows = new ArrayList<String>();
+        new PmacctReplyParser().parseFlows(stream("SRC_IP DST_IP DST_PORT PACKETS BYTES\n"
+                                                  + "10.0.0.1 10.0.0.2 443 1 60\n"
+                                                  + "10.0.0.1 2001:db8::1 80 2 120\n"),
+                                           new PmacctReplyParser.FlowHandler() {
+            public void flow(long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort,
+                    long packets, long bytes, long count) {
+                flows.add(HostAddress.toString(srcHi, srcLo) + ":" + srcPort + " " + HostAddress.toString(dstHi, dstLo)
+                          + ":" + dstPort + " " + bytes);
+            }
+        });
+        assertEquals(2, flows.size());
+        assertEquals("10.0.0.1:-1 10.0.0.2:443 60", flows.get(0));
+        long[] packed = new long[2];
+        HostAddress.pack("2001:db8::1", packed);
+        assertEquals("10.0.0.1:-1 " + HostAddress.toString(packed[0], packed[1]) + ":80 120", flows.get(1));
+    }
+
+    @Test
+    public void testAggregateWithoutHost() throws IOException {
+        try {
+            parseTable(new PmacctReplyParser(), stream(FORMATTED), "src_port");
+            fail("src_port has no host column");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("src_port"));
+        }
+    }
+}
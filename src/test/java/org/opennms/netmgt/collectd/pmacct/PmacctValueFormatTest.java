@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PmacctValueFormatTest {
+
+    /**
+     * @return the shortest digits of {@link Double#toString(double)} in plain notation
+     */
+    private static String expected(double value) {
+        return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+    }
+
+    private static void assertRoundTrip(double value) {
+        String text = PmacctValueFormat.format(value);
+        assertEquals(expected(value), text);
+        assertEquals(Double.doubleToLongBits(value == 0 ? 0.0 : value), Double.doubleToLongBits(Double.parseDouble(text)));
+    }
+
+    @Test
+    public void testLongs() {
+        assertEquals("0", PmacctValueFormat.format(0L));
+        assertEquals("-42", PmacctValueFormat.format(-42L));
+        assertEquals("9223372036854775807", PmacctValueFormat.format(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testDoubles() {
+        assertEquals("0", PmacctValueFormat.format(0.0));
+        assertEquals("0", PmacctValueFormat.format(-0.0));
+        assertEquals("12", PmacctValueFormat.format(12.0));
+        assertEquals("0.5", PmacctValueFormat.format(0.5));
+        assertEquals("-1234.5678", PmacctValueFormat.format(-1234.5678));
+        assertEquals("0.001", PmacctValueFormat.format(0.001));
+        assertEquals("0.0000001", PmacctValueFormat.format(1e-7));
+        assertEquals("-0.0000001", PmacctValueFormat.format(-1e-7));
+        assertEquals("0.00000125", PmacctValueFormat.format(1.25e-6));
+        assertEquals("12345678.9", PmacctValueFormat.format(12345678.9));
+        assertEquals("100000000000000000000", PmacctValueFormat.format(1e20));
+        assertEquals("15000000000000000000000", PmacctValueFormat.format(1.5e22));
+        assertEquals("NaN", PmacctValueFormat.format(Double.NaN));
+        assertEquals("Infinity", PmacctValueFormat.format(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", PmacctValueFormat.format(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testRoundTripRandomBits() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                assertRoundTrip(value);
+            }
+        }
+        assertRoundTrip(Double.MIN_VALUE);
+        assertRoundTrip(Double.MAX_VALUE);
+        assertRoundTrip(Double.MIN_NORMAL);
+    }
+
+    @Test
+    public void testRoundTripRates() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100000; i++) {
+            // bytes per second over a step, from a few bytes to hundreds of gigabits
+            double value = random.nextDouble() * Math.pow(10, random.nextInt(24) - 9);
+            assertRoundTrip(random.nextBoolean() ? value : -value);
+        }
+        for (int power = -20; power <= 25; power++) {
+            assertRoundTrip(Math.pow(10, power));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PrefixTrieTest {
+
+    private static long[] pack(String host) {
+        long[] packed = new long[2];
+        assertTrue(HostAddress.pack(host, packed));
+        return packed;
+    }
+
+    private static int lookup(PrefixTrie trie, String host) {
+        long[] packed = pack(host);
+        return trie.lookup(packed[0], packed[1]);
+    }
+
+    @Test
+    public void testLongestMatch() {
+        PrefixTrie trie = new PrefixTrie(Arrays.asList("10.0.0.0/8", "10.1.0.0/16", "10.1.2.0/24", "10.1.2.7",
+                                                       "2001:db8::/32", "2001:db8:1::/48"));
+        assertEquals(6, trie.size());
+        assertEquals(3, lookup(trie, "10.1.2.7"));
+        assertEquals(2, lookup(trie, "10.1.2.8"));
+        assertEquals(1, lookup(trie, "10.1.3.1"));
+        assertEquals(0, lookup(trie, "10.200.0.1"));
+        assertEquals(-1, lookup(trie, "192.168.0.1"));
+        assertEquals(5, lookup(trie, "2001:db8:1::5"));
+        assertEquals(4, lookup(trie, "2001:db8:2::5"));
+        assertEquals(-1, lookup(trie, "2001:db9::1"));
+    }
+
+    @Test
+    public void testParents() {
+        PrefixTrie trie = new PrefixTrie(Arrays.asList("10.1.2.0/24", "10.0.0.0/8", "10.1.0.0/16", "192.168.0.0/16"));
+        assertEquals(2, trie.getParent(0));
+        assertEquals(-1, trie.getParent(1));
+        assertEquals(1, trie.getParent(2));
+        assertEquals(-1, trie.getParent(3));
+    }
+
+    @Test
+    public void testHostBitsAreCleared() {
+        PrefixTrie trie = new PrefixTrie(Arrays.asList("10.1.2.3/16"));
+        assertEquals(0, lookup(trie, "10.1.200.1"));
+    }
+
+    @Test
+    public void testDefaultRoutes() {
+        PrefixTrie trie = new PrefixTrie(Arrays.asList("::/0", "10.0.0.0/8"));
+        assertEquals(0, lookup(trie, "192.168.0.1"));
+        assertEquals(0, lookup(trie, "2001:db8::1"));
+        assertEquals(1, lookup(trie, "10.0.0.1"));
+        assertEquals(0, trie.getParent(1));
+    }
+
+    @Test
+    public void testInvalidPrefixes() {
+        for (String cidr : new String[] { "10.0.0.0/33", "2001:db8::/129", "10.0.0.0/x", "not-an-address/8" }) {
+            try {
+                new PrefixTrie(Arrays.asList(cidr));
+                fail(cidr + " is not valid");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(cidr));
+            }
+        }
+        try {
+            new PrefixTrie(Arrays.asList("10.0.0.0/8", "10.1.2.3/8"));
+            fail("the same prefix is listed twice");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("twice"));
+        }
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(7);
+        List<String> cidrs = new ArrayList<String>();
+        List<int[]> prefixes = new ArrayList<int[]>();
+        while (cidrs.size() < 200) {
+            int length = 8 + random.nextInt(25);
+            int address = random.nextInt(4) << 30 | random.nextInt(1 << 12) << 18;
+            address &= length == 32 ? -1 : ~(-1 >>> length);
+            String cidr = ((address >>> 24) & 0xff) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff)
+                    + "." + (address & 0xff) + "/" + length;
+            if (!cidrs.contains(cidr)) {
+                cidrs.add(cidr);
+                prefixes.add(new int[] { address, length });
+            }
+        }
+        PrefixTrie trie = new PrefixTrie(cidrs);
+        for (int i = 0; i < 10000; i++) {
+            int host = random.nextInt(4) << 30 | random.nextInt(1 << 12) << 18 | random.nextInt(1 << 18);
+            int expected = -1, longest = -1;
+            for (int id = 0; id < prefixes.size(); id++) {
+                int length = prefixes.get(id)[1];
+                int mask = length == 32 ? -1 : ~(-1 >>> length);
+                if ((host & mask) == prefixes.get(id)[0] && length > longest) {
+                    expected = id;
+                    longest = length;
+                }
+            }
+            assertEquals(expected, trie.lookup(0, HostAddress.packIpv4(host)));
+        }
+    }
+
+    @Test
+    public void testRollup() {
+        PrefixTrie trie = new PrefixTrie(Arrays.asList("10.1.0.0/16", "10.1.2.0/24", "2001:db8::/32"));
+        HostCounterTable table = new HostCounterTable(16, 1024 * 1024, 0);
+        long[] packed = pack("10.1.2.7");
+        table.add(packed[0], packed[1], 1, 100, 1);
+        packed = pack("10.1.3.7");
+        table.add(packed[0], packed[1], 2, 200, 1);
+        packed = pack("2001:db8::7");
+        table.add(packed[0], packed[1], 3, 300, 1);
+        packed = pack("192.168.0.1");
+        table.add(packed[0], packed[1], 4, 400, 1);
+        long[] sums = trie.rollup(table);
+        assertEquals(3 * PrefixTrie.COUNTERS, sums.length);
+        assertEquals(300L, sums[0 * PrefixTrie.COUNTERS + PrefixTrie.BYTES]);
+        assertEquals(3L, sums[0 * PrefixTrie.COUNTERS + PrefixTrie.PACKETS]);
+        assertEquals(2L, sums[0 * PrefixTrie.COUNTERS + PrefixTrie.FLOWS]);
+        assertEquals(100L, sums[1 * PrefixTrie.COUNTERS + PrefixTrie.BYTES]);
+        assertEquals(300L, sums[2 * PrefixTrie.COUNTERS + PrefixTrie.BYTES]);
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2011 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2011 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collectd.pmacct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+    private static final double ERROR = 0.008;
+
+    private static void assertQuantile(double[] sorted, QuantileSketch sketch, double q) {
+        double expected = sorted[(int) Math.max(0, Math.ceil(q * sorted.length) - 1)];
+        double actual = sketch.getQuantile(q);
+        assertTrue("q" + q + " " + actual + " != " + expected,
+                   Math.abs(actual - expected) <= Math.max(expected * ERROR, 0.001));
+    }
+
+    private static QuantileSketch copy(QuantileSketch sketch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sketch.writeTo(new DataOutputStream(bytes));
+        return QuantileSketch.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        assertEquals(0, sketch.getCount());
+        assertTrue(Double.isNaN(sketch.getQuantile(0.95)));
+        assertTrue(Double.isNaN(sketch.getMin()));
+        assertTrue(Double.isNaN(sketch.getMax()));
+        assertEquals(0, copy(sketch).getCount());
+    }
+
+    @Test
+    public void testQuantiles() {
+        Random random = new Random(42);
+        QuantileSketch sketch = new QuantileSketch();
+        double[] values = new double[20000];
+        for (int i = 0; i < values.length; i++) {
+            // rates spanning six decades
+            values[i] = Math.pow(10, random.nextDouble() * 6);
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(values[0], sketch.getMin(), 0);
+        assertEquals(values[values.length - 1], sketch.getMax(), 0);
+        for (double q : new double[] { 0.01, 0.25, 0.5, 0.9, 0.95, 0.99, 1 }) {
+            assertQuantile(values, sketch, q);
+        }
+    }
+
+    @Test
+    public void testSmallValues() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < 100; i++) {
+            sketch.add(i / 1000.0);
+        }
+        assertEquals(0.049, sketch.getQuantile(0.5), 0.001);
+        assertEquals(0.099, sketch.getQuantile(1), 0);
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(7);
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        QuantileSketch all = new QuantileSketch();
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 2 == 0 ? random.nextDouble() * 100 : 1e6 + random.nextDouble() * 1e6;
+            (i % 2 == 0 ? low : high).add(values[i]);
+            all.add(values[i]);
+        }
+        low.merge(high);
+        Arrays.sort(values);
+        assertEquals(values.length, low.getCount());
+        assertEquals(values[0], low.getMin(), 0);
+        assertEquals(values[values.length - 1], low.getMax(), 0);
+        for (double q : new double[] { 0.1, 0.5, 0.51, 0.95 }) {
+            assertEquals(all.getQuantile(q), low.getQuantile(q), 0);
+            assertQuantile(values, low, q);
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Random random = new Random(3);
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < 5000; i++) {
+            sketch.add(random.nextDouble() * 1e9);
+        }
+        QuantileSketch read = copy(sketch);
+        assertEquals(sketch.getCount(), read.getCount());
+        assertEquals(sketch.getMin(), read.getMin(), 0);
+        assertEquals(sketch.getMax(), read.getMax(), 0);
+        for (double q : new double[] { 0, 0.3, 0.5, 0.95, 1 }) {
+            assertEquals(sketch.getQuantile(q), read.getQuantile(q), 0);
+        }
+    }
+
+    @Test
+    public void testCorruptData() {
+        try {
+            QuantileSketch.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[] { 5, 0, 0 })));
+            fail("truncated sketch read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testVarLong() throws IOException {
+        long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : values) {
+            QuantileSketch.writeVarLong(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : values) {
+            assertEquals(value, QuantileSketch.readVarLong(in));
+        }
+    }
+
+    @Test
+    public void testBillingPeriods() throws IOException {
+        assertTrue(PmacctBillingStore.isPeriod("2012-03"));
+        assertFalse(PmacctBillingStore.isPeriod("../../etc/passwd"));
+        assertFalse(PmacctBillingStore.isPeriod("2012-3"));
+        assertFalse(PmacctBillingStore.isPeriod(""));
+
+        File directory = File.createTempFile("billing", "");
+        assertTrue(directory.delete());
+        PmacctBillingStore store = new PmacctBillingStore(directory, 1 << 20, TimeZone.getTimeZone("UTC"));
+        try {
+            assertNull(store.getSketch("..", "2001-01", "in", "10.0.0.1"));
+            try {
+                store.getSketch("bw", "../2001-01", "in", "10.0.0.1");
+                fail("period outside the directory accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertTrue(store.getPeriods("..").isEmpty());
+        } finally {
+            store.stop();
+            directory.delete();
+        }
+    }
+}